@@ -91,7 +91,7 @@ public class APKModuleGraph implements AddsToRuleKey {
             Builder<BuildTarget, APKModule> mapBuilder = ImmutableMap.builder();
             new AbstractBreadthFirstTraversal<APKModule>(getGraph().getNodesWithNoIncomingEdges()) {
               @Override
-              public ImmutableSet<APKModule> visit(APKModule node) {
+              public Iterable<APKModule> visit(APKModule node) {
                 if (node.equals(rootAPKModuleSupplier.get())) {
                   return ImmutableSet.of();
                 }
@@ -136,6 +136,15 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     return false;
   }
 
+  /**
+   * If present, tunes the size of multiFetch requests, in place of {@link
+   * #getMultiFetchBatchSize}, and how many of them are in flight at once. multiFetch is still only
+   * used if {@link #getMultiFetchBatchSize} is positive.
+   */
+  protected Optional<AdaptiveMultiFetchController> getMultiFetchController() {
+    return Optional.empty();
+  }
+
   private void doMultiCheck(ImmutableMap<RuleKey, ClaimedFetchRequest> ruleKeyToRequest) {
     try {
       ImmutableMap<RuleKey, CacheResult> ruleKeyToResult =
@@ -174,6 +183,9 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
 
   private void doMultiFetch(ImmutableList<ClaimedFetchRequest> requests) {
     boolean gotNonError = false;
+    long startNanos = System.nanoTime();
+    long responseBytes = 0;
+    int errors = requests.size();
     try (CacheEventListener.MultiFetchRequestEvents requestEvents =
         eventListener.multiFetchStarted(
             requests.stream()
@@ -211,6 +223,17 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
             result.getResults().stream()
                 .anyMatch(
                     fetchResult -> fetchResult.getCacheResult().getType() != CacheResultType.ERROR);
+        errors =
+            (int)
+                result.getResults().stream()
+                    .filter(
+                        fetchResult ->
+                            fetchResult.getCacheResult().getType() == CacheResultType.ERROR)
+                    .count();
+        responseBytes =
+            result.getResults().stream()
+                .mapToLong(fetchResult -> fetchResult.getResponseSizeBytes().orElse(0L))
+                .sum();
       } catch (IOException e) {
         ImmutableList<RuleKey> keys =
             requests.stream()
@@ -229,7 +252,13 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
         }
       }
     } finally {
-      if (gotNonError) {
+      Optional<AdaptiveMultiFetchController> controller = getMultiFetchController();
+      if (controller.isPresent()) {
+        // The controller backs off from a failing cache instead of giving up on multiFetch.
+        controller
+            .get()
+            .batchFinished(requests.size(), System.nanoTime() - startNanos, responseBytes, errors);
+      } else if (gotNonError) {
         consecutiveMultiFetchErrorCount.set(0);
       } else {
         if (consecutiveMultiFetchErrorCount.incrementAndGet()
@@ -349,6 +378,7 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     }
   }
 
+  @SuppressWarnings("CheckReturnValue")
   private void processFetch() {
     try {
       if (markAllFetchRequestsAsSkipped) {
@@ -359,8 +389,18 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
 
       int multiFetchLimit =
           enableMultiFetch ? getMultiFetchBatchSize(pendingFetchRequests.size()) : 0;
+      Optional<AdaptiveMultiFetchController> controller = getMultiFetchController();
+      if (multiFetchLimit > 0 && controller.isPresent()) {
+        if (!controller.get().tryStartBatch()) {
+          // As many requests as the cache can take are in flight, the first to finish will pick
+          // up the pending fetches.
+          return;
+        }
+        multiFetchLimit = controller.get().getBatchSize(pendingFetchRequests.size());
+      }
       if (multiFetchLimit > 0) {
         ImmutableList.Builder<ClaimedFetchRequest> requestsBuilder = ImmutableList.builder();
+        boolean sent = false;
         try {
           for (int i = 0; i < multiFetchLimit; i++) {
             ClaimedFetchRequest request = getFetchRequest();
@@ -373,9 +413,18 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
           if (requests.isEmpty()) {
             return;
           }
+          sent = true;
           doMultiFetch(requests);
         } finally {
           requestsBuilder.build().forEach(ClaimedFetchRequest::close);
+          if (controller.isPresent()) {
+            if (!sent) {
+              controller.get().batchAbandoned();
+            }
+            if (!pendingFetchRequests.isEmpty()) {
+              fetchExecutorService.submit(this::processFetch);
+            }
+          }
         }
       } else {
         try (ClaimedFetchRequest request = getFetchRequest()) {
@@ -32,6 +32,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import java.io.IOException;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import javax.annotation.Nullable;
@@ -45,6 +46,7 @@ public abstract class AbstractNetworkCache extends AbstractAsynchronousCache {
   protected final HttpService fetchClient;
   protected final HttpService storeClient;
   private final ErrorReporter errorReporter;
+  private final Optional<AdaptiveMultiFetchController> multiFetchController;
 
   public AbstractNetworkCache(NetworkCacheArgs args) {
     super(
@@ -66,6 +68,7 @@ public abstract class AbstractNetworkCache extends AbstractAsynchronousCache {
     this.fetchClient = args.getFetchClient();
     this.storeClient = args.getStoreClient();
     this.errorReporter = new ErrorReporter(args);
+    this.multiFetchController = args.getMultiFetchController();
   }
 
   private static boolean isNoHealthyServersException(Throwable exception) {
@@ -82,6 +85,11 @@ public abstract class AbstractNetworkCache extends AbstractAsynchronousCache {
     return repository;
   }
 
+  @Override
+  protected Optional<AdaptiveMultiFetchController> getMultiFetchController() {
+    return multiFetchController;
+  }
+
   private static class NetworkEventListener implements CacheEventListener {
     private final Function<String, UnconfiguredBuildTarget> unconfiguredBuildTargetFactory;
     private final TargetConfigurationSerializer targetConfigurationSerializer;
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.counters.SamplingCounter;
+import com.facebook.buck.event.BuckEventBus;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes the size of multiFetch requests and how many of them are in flight at once from how the
+ * previous ones went.
+ *
+ * <p>Both limits grow additively while batches succeed without slowing down, and are halved when a
+ * batch fails, has many errors, or takes much longer per key than batches usually do, as with
+ * TCP's congestion window. The batch size grows first, and the concurrency once the batch size is
+ * at its maximum, so a healthy cache ends up with few large requests and a struggling one with a
+ * few small ones.
+ */
+class AdaptiveMultiFetchController {
+
+  private static final Logger LOG = Logger.get(AdaptiveMultiFetchController.class);
+  private static final String COUNTER_CATEGORY = "buck_multi_fetch_stats";
+
+  private static final int INITIAL_BATCH_SIZE = 10;
+  // Batches with a larger share of errors are taken as a sign the cache is overloaded.
+  private static final double MAX_ERROR_RATE = 0.1;
+  // Batches taking longer per key than this many times the average are taken as a sign the cache
+  // is overloaded.
+  private static final double MAX_LATENCY_GROWTH = 2.0;
+  // Batches moving less data per second than this share of the average don't grow the limits.
+  private static final double MIN_THROUGHPUT_RATIO = 0.9;
+  // Weight of the latest batch in the averages.
+  private static final double SMOOTHING = 0.2;
+
+  private final int maxBatchSize;
+  private final int maxConcurrency;
+
+  private int batchSize;
+  private int concurrency;
+  private int inFlight;
+  private double averageNanosPerKey;
+  private double averageBytesPerSecond;
+
+  private final SamplingCounter batchSizeCounter;
+  private final SamplingCounter concurrencyCounter;
+  private final SamplingCounter bytesPerSecondCounter;
+  private final IntegerCounter increasesCounter;
+  private final IntegerCounter decreasesCounter;
+
+  AdaptiveMultiFetchController(
+      String cacheName, int maxBatchSize, int maxConcurrency, BuckEventBus buckEventBus) {
+    Preconditions.checkArgument(maxBatchSize > 0);
+    Preconditions.checkArgument(maxConcurrency > 0);
+    this.maxBatchSize = maxBatchSize;
+    this.maxConcurrency = maxConcurrency;
+    this.batchSize = Math.min(INITIAL_BATCH_SIZE, maxBatchSize);
+    this.concurrency = maxConcurrency;
+
+    ImmutableMap<String, String> tags = ImmutableMap.of("cache", cacheName);
+    batchSizeCounter = new SamplingCounter(COUNTER_CATEGORY, "batch_size_limit", tags);
+    concurrencyCounter = new SamplingCounter(COUNTER_CATEGORY, "concurrency_limit", tags);
+    bytesPerSecondCounter = new SamplingCounter(COUNTER_CATEGORY, "bytes_per_second", tags);
+    increasesCounter = new IntegerCounter(COUNTER_CATEGORY, "limit_increases", tags);
+    decreasesCounter = new IntegerCounter(COUNTER_CATEGORY, "limit_decreases", tags);
+    buckEventBus.post(new CounterRegistry.AsyncCounterRegistrationEvent(getCounters()));
+  }
+
+  @VisibleForTesting
+  ImmutableList<Counter> getCounters() {
+    return ImmutableList.of(
+        batchSizeCounter,
+        concurrencyCounter,
+        bytesPerSecondCounter,
+        increasesCounter,
+        decreasesCounter);
+  }
+
+  /**
+   * @return the number of keys to include in the next multiFetch request, which spreads the pending
+   *     requests over the requests allowed in flight.
+   */
+  synchronized int getBatchSize(int pendingRequestsSize) {
+    int spread = (pendingRequestsSize + concurrency - 1) / concurrency;
+    return Math.max(1, Math.min(batchSize, spread));
+  }
+
+  /**
+   * Claims a slot for a multiFetch request. Every successful call must be followed by a call to
+   * {@link #batchFinished} or {@link #batchAbandoned}.
+   *
+   * @return whether a request may be sent now.
+   */
+  synchronized boolean tryStartBatch() {
+    if (inFlight >= concurrency) {
+      return false;
+    }
+    inFlight++;
+    return true;
+  }
+
+  /** Releases the slot of a request that wasn't sent. */
+  synchronized void batchAbandoned() {
+    inFlight--;
+  }
+
+  /**
+   * Releases the slot of a request that was sent and adjusts the limits from how it went.
+   *
+   * @param keys the number of keys the request asked for.
+   * @param elapsedNanos how long the request took.
+   * @param bytes the number of bytes the response carried.
+   * @param errors the number of keys which couldn't be fetched, or {@code keys} if the whole
+   *     request failed.
+   */
+  synchronized void batchFinished(int keys, long elapsedNanos, long bytes, int errors) {
+    inFlight--;
+    if (keys <= 0) {
+      return;
+    }
+
+    double nanosPerKey = (double) Math.max(elapsedNanos, 1) / keys;
+    double bytesPerSecond =
+        bytes * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(elapsedNanos, 1);
+    boolean overloaded =
+        errors > keys * MAX_ERROR_RATE
+            || (averageNanosPerKey > 0 && nanosPerKey > averageNanosPerKey * MAX_LATENCY_GROWTH);
+    boolean slower = bytes > 0 && bytesPerSecond < averageBytesPerSecond * MIN_THROUGHPUT_RATIO;
+
+    if (overloaded) {
+      batchSize = Math.max(1, batchSize / 2);
+      concurrency = Math.max(1, concurrency / 2);
+      decreasesCounter.inc();
+      LOG.debug(
+          "multiFetch of %d keys took %d ms with %d errors, backing off to %d keys x %d requests.",
+          keys, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), errors, batchSize, concurrency);
+    } else if (!slower && (batchSize < maxBatchSize || concurrency < maxConcurrency)) {
+      if (batchSize < maxBatchSize) {
+        batchSize++;
+      } else {
+        concurrency++;
+      }
+      increasesCounter.inc();
+    }
+
+    // Failed requests say nothing about how fast the cache is when it works.
+    if (errors < keys) {
+      averageNanosPerKey = average(averageNanosPerKey, nanosPerKey);
+      if (bytes > 0) {
+        averageBytesPerSecond = average(averageBytesPerSecond, bytesPerSecond);
+        bytesPerSecondCounter.addSample((long) bytesPerSecond);
+      }
+    }
+    batchSizeCounter.addSample(batchSize);
+    concurrencyCounter.addSample(concurrency);
+  }
+
+  private static double average(double average, double sample) {
+    return average == 0 ? sample : average + SMOOTHING * (sample - average);
+  }
+
+  @VisibleForTesting
+  synchronized int getBatchSizeLimit() {
+    return batchSize;
+  }
+
+  @VisibleForTesting
+  synchronized int getConcurrencyLimit() {
+    return concurrency;
+  }
+}
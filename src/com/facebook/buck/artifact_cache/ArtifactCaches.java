@@ -321,7 +321,14 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
               httpWriteExecutorService,
               httpFetchExecutorService,
               builder,
-              HttpArtifactCache::new,
+              (args) ->
+                  buckConfig.getHttpMultiFetchEnabled()
+                      ? new HttpArtifactCache(
+                          args,
+                          getMultiFetchLimit(buckConfig),
+                          buckConfig.getHttpFetchConcurrency(),
+                          buckConfig.getMultiCheckEnabled())
+                      : new HttpArtifactCache(args),
               mode,
               clientCertificateHandler);
           break;
@@ -486,7 +493,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
               cacheDir,
               dirCacheConfig.getCacheReadMode(),
               dirCacheConfig.getMaxSizeBytes(),
-              storeExecutorService);
+              storeExecutorService,
+              dirCacheConfig.isChunked());
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
@@ -691,6 +699,15 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
             .setErrorTextTemplate(cacheDescription.getErrorMessageFormat())
             .setErrorTextLimit(cacheDescription.getErrorMessageLimit())
             .setMaxStoreSizeBytes(cacheDescription.getMaxStoreSize())
+            .setMultiFetchController(
+                config.getMultiFetchType() == MultiFetchType.ADAPTIVE
+                    ? Optional.of(
+                        new AdaptiveMultiFetchController(
+                            cacheMode.name(),
+                            Math.max(1, config.getMultiFetchLimit()),
+                            Math.max(1, config.getHttpFetchConcurrency()),
+                            buckEventBus))
+                    : Optional.empty())
             .build());
   }
 
@@ -710,6 +727,7 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
               buckEventBus,
               cacheConfig.getMaxSizeBytes(),
               cacheConfig.getMaxInlinedSizeBytes(),
+              cacheConfig.getReaderConnections(),
               cacheConfig.getCacheReadMode());
 
       return new LoggingArtifactCacheDecorator(
@@ -747,7 +765,7 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
   }
 
   private static int getMultiFetchLimit(ArtifactCacheBuckConfig buckConfig) {
-    return buckConfig.getMultiFetchType() == MultiFetchType.ENABLED
+    return buckConfig.getMultiFetchType() != MultiFetchType.DISABLED
         ? buckConfig.getMultiFetchLimit()
         : 0;
   }
@@ -25,7 +25,6 @@ import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.util.DirectoryCleaner;
-import com.facebook.buck.util.DirectoryCleanerArgs;
 import com.facebook.buck.util.types.Unit;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
@@ -33,25 +32,33 @@ import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nullable;
 
 public class DirArtifactCache implements ArtifactCache {
@@ -59,12 +66,12 @@ public class DirArtifactCache implements ArtifactCache {
   private static final Logger LOG = Logger.get(DirArtifactCache.class);
 
   private static final ArtifactCacheMode CACHE_MODE = ArtifactCacheMode.dir;
-  // Ratio of bytes stored to max size that expresses how many bytes need to be stored after we
-  // attempt to delete old files.
-  private static final float STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER = 0.5f;
   // How much of the max size to leave if we decide to delete old files.
   private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
   private static final String TMP_EXTENSION = ".tmp";
+  private static final String METADATA_EXTENSION = ".metadata";
+  private static final String CHUNKS_EXTENSION = ".chunks";
+  private static final String INDEX_FILE_NAME = "index";
 
   private final String name;
   private final ProjectFilesystem filesystem;
@@ -72,7 +79,12 @@ public class DirArtifactCache implements ArtifactCache {
   private final Optional<Long> maxCacheSizeBytes;
   private final CacheReadMode cacheReadMode;
   private final ListeningExecutorService storeExecutorService;
-  private long bytesSinceLastDeleteOldFiles;
+  private final boolean chunked;
+  private final DirArtifactCacheChunkStore chunkStore;
+  // Only needed to trim the cache, so only kept if it has a maximum size.
+  private final Optional<DirArtifactCacheIndex> index;
+  private final AtomicBoolean trimScheduled = new AtomicBoolean();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
 
   public DirArtifactCache(
       String name,
@@ -82,13 +94,47 @@ public class DirArtifactCache implements ArtifactCache {
       Optional<Long> maxCacheSizeBytes,
       ListeningExecutorService storeExecutorService)
       throws IOException {
+    this(
+        name,
+        filesystem,
+        cacheDir,
+        cacheReadMode,
+        maxCacheSizeBytes,
+        storeExecutorService,
+        false);
+  }
+
+  /**
+   * @param chunked whether to store artifacts as deduplicated chunks, which {@link
+   *     DirArtifactCacheChunkStore} describes. Artifacts stored either way can be fetched.
+   */
+  public DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      CacheReadMode cacheReadMode,
+      Optional<Long> maxCacheSizeBytes,
+      ListeningExecutorService storeExecutorService,
+      boolean chunked)
+      throws IOException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
     this.maxCacheSizeBytes = maxCacheSizeBytes;
     this.cacheReadMode = cacheReadMode;
     this.storeExecutorService = storeExecutorService;
-    this.bytesSinceLastDeleteOldFiles = 0L;
+    this.chunked = chunked;
+    this.chunkStore =
+        new DirArtifactCacheChunkStore(
+            filesystem, cacheDir.resolve("chunks"), getPathToTempFolder());
+    this.index =
+        maxCacheSizeBytes.map(
+            unused ->
+                new DirArtifactCacheIndex(
+                    filesystem.resolve(cacheDir),
+                    getPathToIndex(),
+                    filesystem.resolve(getPathToTempFolder()),
+                    getDirectoryCleanerPathSelector()));
 
     // Check first, as mkdirs will fail if the path is a symlink.
     if (!filesystem.isDirectory(cacheDir)) {
@@ -107,31 +153,93 @@ public class DirArtifactCache implements ArtifactCache {
     // Async requests are not supported by DirArtifactCache, so do nothing
   }
 
+  private ImmutableMap<String, String> readMetadata(RuleKey ruleKey) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(
+            filesystem.newFileInputStream(
+                getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION))))) {
+      int sz = in.readInt();
+      ImmutableMap.Builder<String, String> metadata = ImmutableMap.builderWithExpectedSize(sz);
+      for (int i = 0; i < sz; i++) {
+        String key = in.readUTF();
+        int valSize = in.readInt();
+        byte[] val = new byte[valSize];
+        ByteStreams.readFully(in, val);
+        metadata.put(key, new String(val, Charsets.UTF_8));
+      }
+      return metadata.build();
+    }
+  }
+
+  /**
+   * Opens the artifact stored for {@code ruleKey} for reading in place, rather than copying it out
+   * like {@link #fetchAsync} does.
+   *
+   * <p>The artifact stays readable through the returned channel even if it's deleted from the cache
+   * meanwhile.
+   *
+   * @return the opened artifact, or nothing if it isn't stored, is only stored as chunks, or its
+   *     metadata can't be read.
+   */
+  public Optional<StoredArtifact> openStoredArtifact(RuleKey ruleKey) throws IOException {
+    Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
+    FileChannel channel;
+    ImmutableMap<String, String> metadata;
+    try {
+      channel = FileChannel.open(filesystem.resolve(artifactPath), StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    }
+    try {
+      metadata = readMetadata(ruleKey);
+    } catch (IOException e) {
+      // Missing or malformed metadata makes fetches of the artifact miss as well.
+      LOG.debug(e, "Can't open artifact for %s", ruleKey);
+      channel.close();
+      return Optional.empty();
+    }
+
+    if (index.isPresent()) {
+      index
+          .get()
+          .recordAccessed(
+              ImmutableList.of(
+                  filesystem.resolve(getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION))),
+                  filesystem.resolve(artifactPath)));
+      scheduleIndexFlush();
+    }
+    return Optional.of(new StoredArtifact(metadata, channel));
+  }
+
   private CacheResult fetch(RuleKey ruleKey, LazyPath output) {
     CacheResult result;
     try {
       // First, build up the metadata from the metadata file.
-      ImmutableMap.Builder<String, String> metadata;
-      try (DataInputStream in =
-          new DataInputStream(
-              filesystem.newFileInputStream(
-                  getPathForRuleKey(ruleKey, Optional.of(".metadata"))))) {
-        int sz = in.readInt();
-        metadata = ImmutableMap.builderWithExpectedSize(sz);
-        for (int i = 0; i < sz; i++) {
-          String key = in.readUTF();
-          int valSize = in.readInt();
-          byte[] val = new byte[valSize];
-          ByteStreams.readFully(in, val);
-          metadata.put(key, new String(val, Charsets.UTF_8));
+      ImmutableMap<String, String> metadata = readMetadata(ruleKey);
+
+      // Now copy the artifact out, or reassemble it from its chunks if it was stored as chunks.
+      List<Path> usedPaths = new ArrayList<>();
+      usedPaths.add(getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION)));
+      Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
+      if (filesystem.exists(artifactPath)) {
+        filesystem.copyFile(artifactPath, output.get());
+        usedPaths.add(artifactPath);
+      } else {
+        Path manifestPath = getPathForRuleKey(ruleKey, Optional.of(CHUNKS_EXTENSION));
+        DirArtifactCacheChunkStore.Chunks chunks =
+            chunkStore.reassemble(manifestPath, output.get());
+        usedPaths.add(manifestPath);
+        for (HashCode hash : chunks.getHashes()) {
+          usedPaths.add(chunkStore.getPathForChunk(hash));
         }
       }
-
-      // Now copy the artifact out.
-      filesystem.copyFile(getPathForRuleKey(ruleKey, Optional.empty()), output.get());
+      if (index.isPresent()) {
+        index.get().recordAccessed(Iterables.transform(usedPaths, filesystem::resolve));
+        scheduleIndexFlush();
+      }
 
       result =
-          CacheResult.hit(name, CACHE_MODE, metadata.build(), filesystem.getFileSize(output.get()));
+          CacheResult.hit(name, CACHE_MODE, metadata, filesystem.getFileSize(output.get()));
     } catch (NoSuchFileException e) {
       result = CacheResult.miss();
     } catch (IOException e) {
@@ -162,11 +270,14 @@ public class DirArtifactCache implements ArtifactCache {
   }
 
   private void storeSynchronously(ArtifactInfo info, BorrowablePath output) {
+    Map<Path, Long> storedFiles = new LinkedHashMap<>();
     try {
       Optional<Path> borrowedAndStoredArtifactPath = Optional.empty();
+      Optional<DirArtifactCacheChunkStore.Chunks> storedChunks = Optional.empty();
       for (RuleKey ruleKey : info.getRuleKeys()) {
-        Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+        Path artifactPath =
+            getPathForRuleKey(ruleKey, chunked ? Optional.of(CHUNKS_EXTENSION) : Optional.empty());
+        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
 
         if (filesystem.exists(artifactPath) && filesystem.exists(metadataPath)) {
           continue;
@@ -174,7 +285,18 @@ public class DirArtifactCache implements ArtifactCache {
 
         filesystem.mkdirs(getParentDirForRuleKey(ruleKey));
 
-        if (!output.canBorrow()) {
+        if (chunked) {
+          if (!storedChunks.isPresent()) {
+            getPreparedTempFolder();
+            storedChunks = Optional.of(chunkStore.storeChunks(output.getPath()));
+            for (int i = 0; i < storedChunks.get().getHashes().size(); i++) {
+              storedFiles.put(
+                  chunkStore.getPathForChunk(storedChunks.get().getHashes().get(i)),
+                  (long) storedChunks.get().getSizes().get(i));
+            }
+          }
+          chunkStore.writeManifest(storedChunks.get(), artifactPath);
+        } else if (!output.canBorrow()) {
           filesystem.copyFile(output.getPath(), artifactPath);
         } else {
           // This branch means that we are apparently the only users of the `output`, so instead
@@ -187,7 +309,7 @@ public class DirArtifactCache implements ArtifactCache {
             filesystem.copyFile(borrowedAndStoredArtifactPath.get(), artifactPath);
           }
         }
-        bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
+        storedFiles.put(artifactPath, filesystem.getFileSize(artifactPath));
 
         // Now, write the meta data artifact.
         Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "metadata", TMP_EXTENSION);
@@ -202,7 +324,7 @@ public class DirArtifactCache implements ArtifactCache {
             }
           }
           filesystem.move(tmp, metadataPath, StandardCopyOption.REPLACE_EXISTING);
-          bytesSinceLastDeleteOldFiles += filesystem.getFileSize(metadataPath);
+          storedFiles.put(metadataPath, filesystem.getFileSize(metadataPath));
         } finally {
           filesystem.deleteFileAtPathIfExists(tmp);
         }
@@ -212,11 +334,52 @@ public class DirArtifactCache implements ArtifactCache {
       LOG.warn(e, "Artifact store(%s, %s) error", info.getRuleKeys(), output);
     }
 
-    if (maxCacheSizeBytes.isPresent()
-        && bytesSinceLastDeleteOldFiles
-            > (maxCacheSizeBytes.get() * STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER)) {
-      bytesSinceLastDeleteOldFiles = 0L;
-      deleteOldFiles();
+    if (index.isPresent() && !storedFiles.isEmpty()) {
+      index.get().recordUsed(resolveKeys(storedFiles));
+      // Stores already run on the store executor, so they can append to the log themselves.
+      index.get().flush();
+      scheduleTrimIfNeeded();
+    }
+  }
+
+  private Map<Path, Long> resolveKeys(Map<Path, Long> fileSizes) {
+    Map<Path, Long> resolved = new LinkedHashMap<>();
+    fileSizes.forEach((path, size) -> resolved.put(filesystem.resolve(path), size));
+    return resolved;
+  }
+
+  /** Trims the cache on the store executor once it outgrows its maximum size. */
+  private void scheduleTrimIfNeeded() {
+    if (index.get().getTotalBytes() <= maxCacheSizeBytes.get()
+        || !trimScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      storeExecutorService.submit(
+          () -> {
+            trimScheduled.set(false);
+            deleteOldFiles();
+          });
+    } catch (RejectedExecutionException e) {
+      trimScheduled.set(false);
+      LOG.debug(e, "Not trimming the cache, as stores are shutting down.");
+    }
+  }
+
+  /** Appends what was recorded in the index to its log on the store executor, off fetches. */
+  private void scheduleIndexFlush() {
+    if (!flushScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      storeExecutorService.submit(
+          () -> {
+            flushScheduled.set(false);
+            index.get().flush();
+          });
+    } catch (RejectedExecutionException e) {
+      // Whatever is left is flushed when the cache is closed.
+      flushScheduled.set(false);
     }
   }
 
@@ -231,9 +394,12 @@ public class DirArtifactCache implements ArtifactCache {
 
     for (RuleKey ruleKey : ruleKeys) {
       Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-      Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+      Path chunksPath = getPathForRuleKey(ruleKey, Optional.of(CHUNKS_EXTENSION));
+      Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
 
-      boolean contains = filesystem.exists(artifactPath) && filesystem.exists(metadataPath);
+      boolean contains =
+          (filesystem.exists(artifactPath) || filesystem.exists(chunksPath))
+              && filesystem.exists(metadataPath);
       results.put(ruleKey, contains ? CacheResult.contains(name, CACHE_MODE) : CacheResult.miss());
       LOG.verbose(
           "Artifact contains request for rulekey [%s] was a cache %s.",
@@ -245,11 +411,25 @@ public class DirArtifactCache implements ArtifactCache {
 
   private void deleteSync(RuleKey ruleKey) {
     Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-    Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+    Path chunksPath = getPathForRuleKey(ruleKey, Optional.of(CHUNKS_EXTENSION));
+    Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
 
     try {
       filesystem.deleteFileAtPathIfExists(metadataPath);
       filesystem.deleteFileAtPathIfExists(artifactPath);
+      // Only the manifest is deleted: its chunks may be shared with other artifacts, so they are
+      // left for trimming to delete.
+      filesystem.deleteFileAtPathIfExists(chunksPath);
+      if (index.isPresent()) {
+        index
+            .get()
+            .recordRemoved(
+                ImmutableList.of(
+                    filesystem.resolve(metadataPath),
+                    filesystem.resolve(artifactPath),
+                    filesystem.resolve(chunksPath)));
+        scheduleIndexFlush();
+      }
     } catch (IOException e) {
       String message =
           String.format("Failed to delete artifact for rule key [%s] from local cache", ruleKey);
@@ -270,6 +450,10 @@ public class DirArtifactCache implements ArtifactCache {
     return cacheDir.resolve("tmp");
   }
 
+  private Path getPathToIndex() {
+    return filesystem.resolve(cacheDir).resolve(INDEX_FILE_NAME);
+  }
+
   private Path getPreparedTempFolder() throws IOException {
     Path tmp = getPathToTempFolder();
     if (!filesystem.exists(tmp)) {
@@ -309,33 +493,39 @@ public class DirArtifactCache implements ArtifactCache {
 
   @Override
   public void close() {
-    // Do a cache clean up on exit only if cache was written to.
-    if (bytesSinceLastDeleteOldFiles > 0) {
-      deleteOldFiles();
+    if (index.isPresent()) {
+      index.get().flush();
+      index.get().compactIfNeeded();
     }
   }
 
-  /** Deletes files that haven't been accessed recently from the directory cache. */
+  /**
+   * Deletes files that haven't been accessed recently from the directory cache, if it outgrew its
+   * maximum size. The files are found with the cache's index rather than by walking the cache.
+   */
   @VisibleForTesting
   void deleteOldFiles() {
-    if (!maxCacheSizeBytes.isPresent()) {
+    if (!index.isPresent() || index.get().getTotalBytes() <= maxCacheSizeBytes.get()) {
       return;
     }
 
-    Path cacheDirInFs = filesystem.resolve(cacheDir);
-    try {
-      synchronized (this) {
-        newDirectoryCleaner().clean(cacheDirInFs);
+    long maxBytesAfterTrim = (long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO);
+    for (Path path : index.get().removeLeastRecentlyUsed(maxBytesAfterTrim)) {
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to delete [%s] from the cache.", path);
       }
-    } catch (IOException e) {
-      LOG.error(e, "Failed to clean path [%s].", cacheDirInFs);
     }
+    index.get().flush();
+    index.get().compactIfNeeded();
   }
 
   @VisibleForTesting
   List<Path> getAllFilesInCache() {
     List<Path> allFiles = new ArrayList<>();
     Path tempFolderPath = getPathToTempFolder();
+    Path indexPath = getPathToIndex();
     try {
       Files.walkFileTree(
           filesystem.resolve(cacheDir),
@@ -356,7 +546,9 @@ public class DirArtifactCache implements ArtifactCache {
             @Override
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
                 throws IOException {
-              allFiles.add(file);
+              if (!file.equals(indexPath)) {
+                allFiles.add(file);
+              }
               return super.visitFile(file, attrs);
             }
           });
@@ -367,18 +559,6 @@ public class DirArtifactCache implements ArtifactCache {
     return allFiles;
   }
 
-  private DirectoryCleaner newDirectoryCleaner() {
-    DirectoryCleanerArgs cleanerArgs =
-        DirectoryCleanerArgs.builder()
-            .setPathSelector(getDirectoryCleanerPathSelector())
-            .setMaxTotalSizeBytes(maxCacheSizeBytes.get())
-            .setMaxBytesAfterDeletion((long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO))
-            .setMinAmountOfEntriesToKeep(0)
-            .build();
-
-    return new DirectoryCleaner(cleanerArgs);
-  }
-
   @VisibleForTesting
   DirectoryCleaner.PathSelector getDirectoryCleanerPathSelector() {
     return new DirectoryCleaner.PathSelector() {
@@ -401,4 +581,29 @@ public class DirArtifactCache implements ArtifactCache {
   Path getCacheDir() {
     return cacheDir;
   }
+
+  /** An artifact opened for reading where it is stored in the cache. */
+  public static class StoredArtifact implements Closeable {
+    private final ImmutableMap<String, String> metadata;
+    private final FileChannel channel;
+
+    private StoredArtifact(ImmutableMap<String, String> metadata, FileChannel channel) {
+      this.metadata = metadata;
+      this.channel = channel;
+    }
+
+    public ImmutableMap<String, String> getMetadata() {
+      return metadata;
+    }
+
+    /** @return a channel reading the artifact, which is closed along with this. */
+    public FileChannel getChannel() {
+      return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
 }
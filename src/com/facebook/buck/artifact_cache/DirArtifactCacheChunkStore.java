@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * Stores artifacts of a {@link DirArtifactCache} as deduplicated chunks.
+ *
+ * <p>Artifacts are split at content-defined boundaries, found with a rolling hash over their
+ * bytes, so an insertion or removal only changes the chunks around it and artifacts that are
+ * mostly identical share most of their chunks. Each chunk is stored once, under its SHA-1, and an
+ * artifact is stored as a manifest listing its chunks.
+ */
+class DirArtifactCacheChunkStore {
+
+  private static final int MANIFEST_MAGIC = 0x43484e4b;
+  private static final int HASH_BYTES = 20;
+
+  private static final int MIN_CHUNK_SIZE = 16 * 1024;
+  private static final int MAX_CHUNK_SIZE = 256 * 1024;
+  // Cuts after a byte where the low 16 bits of the rolling hash are zero, so chunks are 64KiB
+  // larger than the minimum on average.
+  private static final long BOUNDARY_MASK = (1L << 16) - 1;
+
+  /** Random values mixed into the rolling hash for each byte value. */
+  private static final long[] GEAR = createGear();
+
+  private final ProjectFilesystem filesystem;
+  private final Path chunksDir;
+  private final Path tempDir;
+
+  DirArtifactCacheChunkStore(ProjectFilesystem filesystem, Path chunksDir, Path tempDir) {
+    this.filesystem = filesystem;
+    this.chunksDir = chunksDir;
+    this.tempDir = tempDir;
+  }
+
+  private static long[] createGear() {
+    // java.util.Random's sequence is fully specified, so boundaries are stable across JVMs.
+    Random random = new Random(0x5eed);
+    long[] gear = new long[256];
+    for (int i = 0; i < gear.length; i++) {
+      gear[i] = random.nextLong();
+    }
+    return gear;
+  }
+
+  /**
+   * Splits {@code file} into chunks, storing the ones that are not stored yet.
+   *
+   * @return the chunks of {@code file}, in order.
+   */
+  Chunks storeChunks(Path file) throws IOException {
+    ImmutableList.Builder<HashCode> hashes = ImmutableList.builder();
+    ImmutableList.Builder<Integer> sizes = ImmutableList.builder();
+    // Holds the next chunk, followed by the bytes read past its boundary.
+    byte[] buffer = new byte[MAX_CHUNK_SIZE];
+    int length = 0;
+    try (InputStream in = filesystem.newFileInputStream(file)) {
+      while (true) {
+        length += ByteStreams.read(in, buffer, length, buffer.length - length);
+        if (length == 0) {
+          break;
+        }
+        int size = findChunkBoundary(buffer, length);
+        HashCode hash = Hashing.sha1().hashBytes(buffer, 0, size);
+        storeChunk(hash, buffer, size);
+        hashes.add(hash);
+        sizes.add(size);
+        System.arraycopy(buffer, size, buffer, 0, length - size);
+        length -= size;
+      }
+    }
+    return new Chunks(hashes.build(), sizes.build());
+  }
+
+  /**
+   * Finds the first content-defined boundary in {@code buffer}.
+   *
+   * @return the size of the chunk at the start of {@code buffer}, which is {@code length} if there
+   *     is no boundary before it.
+   */
+  private static int findChunkBoundary(byte[] buffer, int length) {
+    long hash = 0;
+    for (int size = 1; size <= length; size++) {
+      hash = (hash << 1) + GEAR[buffer[size - 1] & 0xff];
+      if (size >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) {
+        return size;
+      }
+    }
+    return length;
+  }
+
+  private void storeChunk(HashCode hash, byte[] chunk, int size) throws IOException {
+    Path chunkPath = getPathForChunk(hash);
+    if (filesystem.exists(chunkPath)) {
+      return;
+    }
+
+    filesystem.mkdirs(chunkPath.getParent());
+    Path tmp = filesystem.createTempFile(tempDir, "chunk", ".tmp");
+    try {
+      try (OutputStream out = filesystem.newFileOutputStream(tmp)) {
+        out.write(chunk, 0, size);
+      }
+      // Concurrent stores of the same chunk write the same contents, so either one can win.
+      filesystem.move(tmp, chunkPath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
+  /** Writes a manifest listing {@code chunks} to {@code manifestPath}. */
+  void writeManifest(Chunks chunks, Path manifestPath) throws IOException {
+    Path tmp = filesystem.createTempFile(tempDir, "manifest", ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(filesystem.newFileOutputStream(tmp))) {
+        out.writeInt(MANIFEST_MAGIC);
+        out.writeInt(chunks.hashes.size());
+        for (int i = 0; i < chunks.hashes.size(); i++) {
+          out.write(chunks.hashes.get(i).asBytes());
+          out.writeInt(chunks.sizes.get(i));
+        }
+      }
+      filesystem.move(tmp, manifestPath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
+  /**
+   * Reassembles the artifact listed in the manifest at {@code manifestPath} into {@code output}.
+   *
+   * @return the chunks of the artifact, in order.
+   * @throws java.nio.file.NoSuchFileException if the manifest or one of its chunks is missing.
+   */
+  Chunks reassemble(Path manifestPath, Path output) throws IOException {
+    byte[] manifest = Files.readAllBytes(filesystem.resolve(manifestPath));
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(manifest));
+        OutputStream out = filesystem.newFileOutputStream(output)) {
+      if (in.readInt() != MANIFEST_MAGIC) {
+        throw new IOException("Malformed chunk manifest " + manifestPath);
+      }
+      int count = in.readInt();
+      ImmutableList.Builder<HashCode> hashes = ImmutableList.builderWithExpectedSize(count);
+      ImmutableList.Builder<Integer> sizes = ImmutableList.builderWithExpectedSize(count);
+      byte[] hashBytes = new byte[HASH_BYTES];
+      for (int i = 0; i < count; i++) {
+        in.readFully(hashBytes);
+        int size = in.readInt();
+        HashCode hash = HashCode.fromBytes(hashBytes);
+        Path chunkPath = getPathForChunk(hash);
+        long copied;
+        try (InputStream chunk = filesystem.newFileInputStream(chunkPath)) {
+          copied = ByteStreams.copy(chunk, out);
+        }
+        if (copied != size) {
+          throw new IOException(
+              String.format("Chunk %s has %d bytes, expected %d", chunkPath, copied, size));
+        }
+        hashes.add(hash);
+        sizes.add(size);
+      }
+      return new Chunks(hashes.build(), sizes.build());
+    }
+  }
+
+  Path getPathForChunk(HashCode hash) {
+    String name = hash.toString();
+    return chunksDir.resolve(name.substring(0, 2)).resolve(name.substring(2, 4)).resolve(name);
+  }
+
+  /** The chunks of an artifact, in order. */
+  static class Chunks {
+    private final ImmutableList<HashCode> hashes;
+    private final ImmutableList<Integer> sizes;
+
+    private Chunks(ImmutableList<HashCode> hashes, ImmutableList<Integer> sizes) {
+      this.hashes = hashes;
+      this.sizes = sizes;
+    }
+
+    ImmutableList<HashCode> getHashes() {
+      return hashes;
+    }
+
+    ImmutableList<Integer> getSizes() {
+      return sizes;
+    }
+  }
+}
@@ -0,0 +1,535 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.util.DirectoryCleaner;
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Sizes of the files in a {@link DirArtifactCache}, in the order they were last used, so the cache
+ * can be trimmed without walking its directory tree on every store.
+ *
+ * <p>The index is kept in an append-only log next to the cached files: every store, fetch and
+ * deletion makes a record, records are appended to the log in batches by {@link #flush}, and the
+ * log is rewritten as a snapshot of the index once it holds many more records than the index has
+ * entries. If there is no log yet, the index is built once by walking the cache, ordering files by
+ * their access and creation times. The log is read, or the cache walked, by the first flush or trim
+ * rather than by the first record, so recording never waits for it.
+ *
+ * <p>Files can end up in the cache without being recorded, e.g. when they're stored by a process
+ * which doesn't trim the cache, so the first trim walks the cache to add them to the index, unless
+ * the index was just built by walking it. As a walk costs as much as the index saves, later trims
+ * only walk the cache again once {@link #RECONCILE_INTERVAL_NANOS} has passed, relying on the
+ * records in between.
+ */
+class DirArtifactCacheIndex {
+
+  private static final Logger LOG = Logger.get(DirArtifactCacheIndex.class);
+
+  private static final int MAGIC = 0x44494458;
+  private static final int VERSION = 1;
+
+  private static final byte USED = 1;
+  private static final byte REMOVED = 2;
+
+  // Don't bother compacting small logs.
+  private static final int MIN_RECORDS_TO_COMPACT = 10000;
+
+  private static final long RECONCILE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+  private final Path cacheRoot;
+  private final Path logPath;
+  private final Path tempDir;
+  private final DirectoryCleaner.PathSelector bootstrapSelector;
+
+  /** Guards the log and the fields describing it. Always taken before the index's own lock. */
+  private final Object logLock = new Object();
+
+  /** Sizes of files, by path relative to {@link #cacheRoot}, least recently used first. */
+  @GuardedBy("this")
+  private LinkedHashMap<Path, Long> sizes = newSizes();
+
+  @GuardedBy("this")
+  private long totalBytes;
+
+  /** Records which haven't been appended to the log yet. */
+  @GuardedBy("this")
+  private ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+
+  @GuardedBy("this")
+  private int pendingRecordCount;
+
+  /** Whether {@link #sizes} holds the files from the log or the cache, not only new records. */
+  private volatile boolean loaded;
+
+  @GuardedBy("logLock")
+  private int logRecords;
+
+  @GuardedBy("logLock")
+  private boolean logExists;
+
+  /** Whether the cache has been walked since the index was created, and if so when. */
+  @GuardedBy("logLock")
+  private boolean walked;
+
+  @GuardedBy("logLock")
+  private long lastWalkNanos;
+
+  /**
+   * @param cacheRoot the absolute path of the cache directory.
+   * @param logPath the absolute path of the log.
+   * @param tempDir the absolute path of a directory to write new snapshots to.
+   * @param bootstrapSelector selects and orders the files to index if there is no log yet.
+   */
+  DirArtifactCacheIndex(
+      Path cacheRoot,
+      Path logPath,
+      Path tempDir,
+      DirectoryCleaner.PathSelector bootstrapSelector) {
+    this.cacheRoot = cacheRoot;
+    this.logPath = logPath;
+    this.tempDir = tempDir;
+    this.bootstrapSelector = bootstrapSelector;
+  }
+
+  private static LinkedHashMap<Path, Long> newSizes() {
+    return new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+  }
+
+  /** Records that the given files, keyed by absolute path, were stored or fetched. */
+  synchronized void recordUsed(Map<Path, Long> fileSizes) {
+    for (Map.Entry<Path, Long> entry : fileSizes.entrySet()) {
+      Path path = cacheRoot.relativize(entry.getKey());
+      Long previousSize = sizes.put(path, entry.getValue());
+      totalBytes += entry.getValue() - (previousSize == null ? 0 : previousSize);
+      addPendingRecord(USED, path, entry.getValue());
+    }
+  }
+
+  /** Records that the given files, given by absolute path, were fetched. */
+  synchronized void recordAccessed(Iterable<Path> paths) {
+    for (Path absolutePath : paths) {
+      Path path = cacheRoot.relativize(absolutePath);
+      // Looking the file up marks it as the most recently used.
+      Long size = sizes.get(path);
+      if (size == null) {
+        // Stored by another process since the index was read, or the index isn't loaded yet.
+        try {
+          size = Files.size(absolutePath);
+        } catch (IOException e) {
+          continue;
+        }
+        sizes.put(path, size);
+        totalBytes += size;
+      }
+      addPendingRecord(USED, path, size);
+    }
+  }
+
+  /** Records that the given files, given by absolute path, were deleted. */
+  synchronized void recordRemoved(Iterable<Path> paths) {
+    for (Path absolutePath : paths) {
+      Path path = cacheRoot.relativize(absolutePath);
+      Long size = sizes.remove(path);
+      if (size != null) {
+        totalBytes -= size;
+      }
+      // Before the index is loaded, the file may still be in the log.
+      if (size != null || !loaded) {
+        addPendingRecord(REMOVED, path, 0);
+      }
+    }
+  }
+
+  long getTotalBytes() {
+    load();
+    synchronized (this) {
+      return totalBytes;
+    }
+  }
+
+  /**
+   * Removes the least recently used files from the index until they take up at most {@code
+   * maxBytes}. The caller is responsible for deleting them.
+   *
+   * @return the absolute paths of the removed files.
+   */
+  ImmutableList<Path> removeLeastRecentlyUsed(long maxBytes) {
+    synchronized (logLock) {
+      load();
+      boolean reconciled = shouldReconcile() && reconcile();
+      ImmutableList.Builder<Path> removed = ImmutableList.builder();
+      synchronized (this) {
+        long remainingBytes = totalBytes;
+        Iterator<Map.Entry<Path, Long>> iterator = sizes.entrySet().iterator();
+        while (remainingBytes > maxBytes && iterator.hasNext()) {
+          Map.Entry<Path, Long> entry = iterator.next();
+          removed.add(cacheRoot.resolve(entry.getKey()));
+          remainingBytes -= entry.getValue();
+        }
+      }
+      ImmutableList<Path> paths = removed.build();
+      recordRemoved(paths);
+      if (reconciled) {
+        // Files added by reconciling are the least recently used, which records can't express.
+        writeSnapshot();
+      }
+      return paths;
+    }
+  }
+
+  /** Appends the records made since the last flush to the log. */
+  void flush() {
+    synchronized (logLock) {
+      synchronized (this) {
+        if (pendingRecordCount == 0) {
+          return;
+        }
+      }
+      load();
+      if (!logExists) {
+        // The index was built from the cache directory, so the log must start with all of it.
+        writeSnapshot();
+        return;
+      }
+      byte[] records;
+      int count;
+      synchronized (this) {
+        records = pendingRecords.toByteArray();
+        count = pendingRecordCount;
+        clearPendingRecords();
+      }
+      try {
+        // A single write, so that records appended by concurrent processes don't interleave.
+        Files.write(logPath, records, StandardOpenOption.APPEND);
+        logRecords += count;
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to append to dir cache index %s.", logPath);
+      }
+    }
+  }
+
+  /** Rewrites the log as a snapshot if it has grown much larger than the index. */
+  void compactIfNeeded() {
+    synchronized (logLock) {
+      if (!loaded) {
+        return;
+      }
+      int size;
+      synchronized (this) {
+        size = sizes.size();
+      }
+      if (logRecords > MIN_RECORDS_TO_COMPACT && logRecords > 2 * size) {
+        writeSnapshot();
+      }
+    }
+  }
+
+  /**
+   * Reads the log, or walks the cache if there is no log, without holding the index's lock. What
+   * was recorded in the meantime is then applied on top.
+   */
+  private void load() {
+    if (loaded) {
+      return;
+    }
+    synchronized (logLock) {
+      if (loaded) {
+        return;
+      }
+      LinkedHashMap<Path, Long> loadedSizes = newSizes();
+      logRecords = 0;
+      logExists = readLog(loadedSizes);
+      if (!logExists) {
+        loadedSizes.clear();
+        logRecords = 0;
+        bootstrap(loadedSizes);
+        markWalked();
+      }
+      synchronized (this) {
+        try (DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(pendingRecords.toByteArray()))) {
+          applyRecords(in, loadedSizes);
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+        sizes = loadedSizes;
+        totalBytes = sum(loadedSizes);
+        loaded = true;
+      }
+    }
+  }
+
+  /** @return whether the log was read. */
+  @GuardedBy("logLock")
+  private boolean readLog(Map<Path, Long> loadedSizes) {
+    byte[] log;
+    try {
+      log = Files.readAllBytes(logPath);
+    } catch (NoSuchFileException e) {
+      return false;
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to read dir cache index %s, rebuilding it.", logPath);
+      return false;
+    }
+
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(log))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        LOG.warn("Dir cache index %s has an unknown format, rebuilding it.", logPath);
+        return false;
+      }
+      logRecords = applyRecords(in, loadedSizes);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to read dir cache index %s, rebuilding it.", logPath);
+      return false;
+    }
+    return true;
+  }
+
+  /** @return the number of records applied, ignoring a partial record at the end. */
+  private int applyRecords(DataInputStream in, Map<Path, Long> loadedSizes) throws IOException {
+    int count = 0;
+    while (true) {
+      byte type;
+      try {
+        type = in.readByte();
+      } catch (EOFException e) {
+        return count;
+      }
+      Path path;
+      long size;
+      try {
+        path = cacheRoot.getFileSystem().getPath(in.readUTF());
+        size = in.readLong();
+      } catch (EOFException e) {
+        // The last record was only partially written, which happens if a write was interrupted.
+        LOG.debug("Ignoring a partial record at the end of %s.", logPath);
+        return count;
+      }
+      if (type == REMOVED) {
+        loadedSizes.remove(path);
+      } else {
+        loadedSizes.put(path, size);
+      }
+      count++;
+    }
+  }
+
+  private void bootstrap(Map<Path, Long> loadedSizes) {
+    Iterable<Path> paths;
+    try {
+      paths = bootstrapSelector.getCandidatesToDelete(cacheRoot);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to list the files in %s.", cacheRoot);
+      return;
+    }
+    List<DirectoryCleaner.PathStats> stats = new ArrayList<>();
+    for (Path path : paths) {
+      DirectoryCleaner.PathStats stat = readStats(path);
+      if (stat != null) {
+        stats.add(stat);
+      }
+    }
+    stats.sort(bootstrapSelector::comparePaths);
+    for (DirectoryCleaner.PathStats stat : stats) {
+      loadedSizes.put(cacheRoot.relativize(stat.getPath()), stat.getTotalSizeBytes());
+    }
+  }
+
+  @GuardedBy("logLock")
+  private boolean shouldReconcile() {
+    if (walked && System.nanoTime() - lastWalkNanos < RECONCILE_INTERVAL_NANOS) {
+      return false;
+    }
+    markWalked();
+    return true;
+  }
+
+  @GuardedBy("logLock")
+  private void markWalked() {
+    walked = true;
+    lastWalkNanos = System.nanoTime();
+  }
+
+  /**
+   * Walks the cache to add the files which aren't in the index as the least recently used ones,
+   * and to drop the indexed files which were deleted by other processes.
+   *
+   * @return whether the index changed.
+   */
+  @GuardedBy("logLock")
+  private boolean reconcile() {
+    Set<Path> indexed;
+    synchronized (this) {
+      indexed = new HashSet<>(sizes.keySet());
+    }
+    Iterable<Path> paths;
+    try {
+      paths = bootstrapSelector.getCandidatesToDelete(cacheRoot);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to list the files in %s.", cacheRoot);
+      return false;
+    }
+    Set<Path> found = new HashSet<>();
+    List<DirectoryCleaner.PathStats> unindexed = new ArrayList<>();
+    for (Path absolutePath : paths) {
+      Path path = cacheRoot.relativize(absolutePath);
+      found.add(path);
+      if (!indexed.contains(path)) {
+        DirectoryCleaner.PathStats stat = readStats(absolutePath);
+        if (stat != null) {
+          unindexed.add(stat);
+        }
+      }
+    }
+    unindexed.sort(bootstrapSelector::comparePaths);
+
+    synchronized (this) {
+      LinkedHashMap<Path, Long> reconciled = newSizes();
+      for (DirectoryCleaner.PathStats stat : unindexed) {
+        Path path = cacheRoot.relativize(stat.getPath());
+        if (!sizes.containsKey(path)) {
+          reconciled.put(path, stat.getTotalSizeBytes());
+        }
+      }
+      boolean changed = !reconciled.isEmpty();
+      for (Map.Entry<Path, Long> entry : sizes.entrySet()) {
+        // Files recorded since the walk started may not have been found by it.
+        if (indexed.contains(entry.getKey()) && !found.contains(entry.getKey())) {
+          changed = true;
+        } else {
+          reconciled.put(entry.getKey(), entry.getValue());
+        }
+      }
+      if (changed) {
+        sizes = reconciled;
+        totalBytes = sum(reconciled);
+      }
+      return changed;
+    }
+  }
+
+  @Nullable
+  private static DirectoryCleaner.PathStats readStats(Path path) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      return new DirectoryCleaner.PathStats(
+          path,
+          attributes.size(),
+          attributes.creationTime().toMillis(),
+          attributes.lastAccessTime().toMillis());
+    } catch (IOException e) {
+      LOG.debug(e, "Not indexing %s.", path);
+      return null;
+    }
+  }
+
+  private static long sum(Map<Path, Long> sizes) {
+    long total = 0;
+    for (long size : sizes.values()) {
+      total += size;
+    }
+    return total;
+  }
+
+  @GuardedBy("this")
+  private void addPendingRecord(byte type, Path path, long size) {
+    try (DataOutputStream out = new DataOutputStream(pendingRecords)) {
+      writeRecord(out, type, path, size);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    pendingRecordCount++;
+  }
+
+  @GuardedBy("this")
+  private void clearPendingRecords() {
+    pendingRecords = new ByteArrayOutputStream();
+    pendingRecordCount = 0;
+  }
+
+  /** Replaces the log with a snapshot of the index, which includes any pending records. */
+  @GuardedBy("logLock")
+  private void writeSnapshot() {
+    List<Map.Entry<Path, Long>> entries;
+    synchronized (this) {
+      entries = new ArrayList<>(sizes.size());
+      for (Map.Entry<Path, Long> entry : sizes.entrySet()) {
+        entries.add(new SimpleImmutableEntry<>(entry));
+      }
+      clearPendingRecords();
+    }
+    Path tmp = null;
+    try {
+      Files.createDirectories(tempDir);
+      tmp = Files.createTempFile(tempDir, logPath.getFileName().toString(), ".tmp");
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        for (Map.Entry<Path, Long> entry : entries) {
+          writeRecord(out, USED, entry.getKey(), entry.getValue());
+        }
+      }
+      Files.move(tmp, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      logExists = true;
+      logRecords = entries.size();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to write dir cache index %s.", logPath);
+    } finally {
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+          LOG.debug(e, "Failed to delete %s.", tmp);
+        }
+      }
+    }
+  }
+
+  private static void writeRecord(DataOutputStream out, byte type, Path path, long size)
+      throws IOException {
+    out.writeByte(type);
+    out.writeUTF(path.toString());
+    out.writeLong(size);
+  }
+}
@@ -23,9 +23,12 @@ import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.slb.HttpResponse;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import java.io.DataInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -55,11 +58,28 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
 
   private final Function<String, UnconfiguredBuildTarget> unconfiguredBuildTargetFactory;
   private final TargetConfigurationSerializer targetConfigurationSerializer;
+  private final int multiFetchLimit;
+  private final int concurrencyLevel;
+  private final boolean multiCheckEnabled;
 
   public HttpArtifactCache(NetworkCacheArgs args) {
+    this(args, 0, 0, false);
+  }
+
+  /**
+   * @param multiFetchLimit the maximum number of artifacts to fetch in a single request to the
+   *     server's multi-fetch endpoint, or 0 to fetch them one at a time.
+   * @param multiCheckEnabled whether to ask the server's multi-contains endpoint which artifacts
+   *     it has before fetching them.
+   */
+  public HttpArtifactCache(
+      NetworkCacheArgs args, int multiFetchLimit, int concurrencyLevel, boolean multiCheckEnabled) {
     super(args);
     this.unconfiguredBuildTargetFactory = args.getUnconfiguredBuildTargetFactory();
     this.targetConfigurationSerializer = args.getTargetConfigurationSerializer();
+    this.multiFetchLimit = multiFetchLimit;
+    this.concurrencyLevel = concurrencyLevel;
+    this.multiCheckEnabled = multiCheckEnabled;
   }
 
   @Override
@@ -94,64 +114,111 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
           return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
         }
 
-        // Setup a temporary file, which sits next to the destination, to write to and
-        // make sure all parent dirs exist.
-        Path file = output.get();
-        getProjectFilesystem().createParentDirs(file);
-        Path temp =
-            getProjectFilesystem()
-                .createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
-
-        HttpArtifactCacheBinaryProtocol.FetchResponseReadResult fetchedData;
-        try (OutputStream tempFileOutputStream = getProjectFilesystem().newFileOutputStream(temp)) {
-          fetchedData =
-              HttpArtifactCacheBinaryProtocol.readFetchResponse(input, tempFileOutputStream);
-        }
+        return readArtifact(ruleKey, output, input, response.requestUrl(), resultBuilder);
+      }
+    }
+  }
 
-        resultBuilder
-            .setBuildTarget(
-                AbstractArtifactCacheEventFactory.getTarget(
-                    unconfiguredBuildTargetFactory,
-                    targetConfigurationSerializer,
-                    fetchedData.getMetadata()))
-            .setResponseSizeBytes(fetchedData.getResponseSizeBytes())
-            .setArtifactContentHash(fetchedData.getArtifactOnlyHashCode().toString());
-
-        // Verify that we were one of the rule keys that stored this artifact.
-        if (!fetchedData.getRuleKeys().contains(ruleKey)) {
-          String msg = "incorrect key name";
-          reportFailureWithFormatKey("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
-        }
+  /**
+   * Reads the fetch response for {@code ruleKey} from {@code input} into {@code output}.
+   *
+   * @param input the fetch response, which is read up to its end.
+   */
+  private FetchResult readArtifact(
+      RuleKey ruleKey,
+      LazyPath output,
+      DataInputStream input,
+      String requestUrl,
+      ImmutableFetchResult.Builder resultBuilder)
+      throws IOException {
+    // Setup a temporary file, which sits next to the destination, to write to and
+    // make sure all parent dirs exist.
+    Path file = output.get();
+    getProjectFilesystem().createParentDirs(file);
+    Path temp =
+        getProjectFilesystem()
+            .createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
 
-        // Now form the checksum on the file we got and compare it to the checksum form the
-        // the HTTP header.  If it's incorrect, log this and return a miss.
-        if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
-          String msg = "artifact had invalid checksum";
-          reportFailureWithFormatKey("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          getProjectFilesystem().deleteFileAtPath(temp);
-          return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
-        }
+    HttpArtifactCacheBinaryProtocol.FetchResponseReadResult fetchedData;
+    try (OutputStream tempFileOutputStream = getProjectFilesystem().newFileOutputStream(temp)) {
+      fetchedData = HttpArtifactCacheBinaryProtocol.readFetchResponse(input, tempFileOutputStream);
+    }
 
-        // Finally, move the temp file into it's final place.
-        getProjectFilesystem().move(temp, file, StandardCopyOption.REPLACE_EXISTING);
-
-        LOG.info("fetch(%s, %s): cache hit", response.requestUrl(), ruleKey);
-        return resultBuilder
-            .setCacheResult(
-                CacheResult.hit(
-                    getName(),
-                    getMode(),
-                    fetchedData.getMetadata(),
-                    fetchedData.getResponseSizeBytes()))
-            .build();
-      }
+    resultBuilder
+        .setBuildTarget(
+            AbstractArtifactCacheEventFactory.getTarget(
+                unconfiguredBuildTargetFactory,
+                targetConfigurationSerializer,
+                fetchedData.getMetadata()))
+        .setResponseSizeBytes(fetchedData.getResponseSizeBytes())
+        .setArtifactContentHash(fetchedData.getArtifactOnlyHashCode().toString());
+
+    // Verify that we were one of the rule keys that stored this artifact.
+    if (!fetchedData.getRuleKeys().contains(ruleKey)) {
+      String msg = "incorrect key name";
+      reportFailureWithFormatKey("fetch(%s, %s): %s", requestUrl, ruleKey, msg);
+      return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
     }
+
+    // Now form the checksum on the file we got and compare it to the checksum form the
+    // the HTTP header.  If it's incorrect, log this and return a miss.
+    if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
+      String msg = "artifact had invalid checksum";
+      reportFailureWithFormatKey("fetch(%s, %s): %s", requestUrl, ruleKey, msg);
+      getProjectFilesystem().deleteFileAtPath(temp);
+      return resultBuilder.setCacheResult(CacheResult.error(getName(), getMode(), msg)).build();
+    }
+
+    // Finally, move the temp file into it's final place.
+    getProjectFilesystem().move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+
+    LOG.info("fetch(%s, %s): cache hit", requestUrl, ruleKey);
+    return resultBuilder
+        .setCacheResult(
+            CacheResult.hit(
+                getName(),
+                getMode(),
+                fetchedData.getMetadata(),
+                fetchedData.getResponseSizeBytes()))
+        .build();
   }
 
   @Override
-  protected MultiContainsResult multiContainsImpl(ImmutableSet<RuleKey> ruleKeys) {
-    throw new UnsupportedOperationException("multiContains is not supported");
+  protected MultiContainsResult multiContainsImpl(ImmutableSet<RuleKey> ruleKeys)
+      throws IOException {
+    // Only the built-in cache server has the multi-contains endpoint, so it's gated on the same
+    // config as multi-fetch.
+    if (!multiCheckEnabled) {
+      throw new UnsupportedOperationException("multiContains is not supported");
+    }
+    ImmutableList<RuleKey> keys = ruleKeys.asList();
+    ImmutableMultiContainsResult.Builder resultBuilder = ImmutableMultiContainsResult.builder();
+    try (HttpResponse response =
+        fetchClient.makeRequest("/artifacts/multi_contains", newMultiKeyRequest(keys))) {
+      resultBuilder.setResponseSizeBytes(response.contentLength());
+      try (DataInputStream input =
+          new DataInputStream(new FullyReadOnCloseInputStream(response.getBody()))) {
+        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+          String msg =
+              String.format(
+                  "unexpected server response: [%d:%s]",
+                  response.statusCode(), response.statusMessage());
+          reportFailureWithFormatKey("multiContains(%s, %s): %s", response.requestUrl(), keys, msg);
+          CacheResult error = CacheResult.error(getName(), getMode(), msg);
+          keys.forEach(key -> resultBuilder.putCacheResults(key, error));
+          return resultBuilder.build();
+        }
+
+        for (RuleKey ruleKey : keys) {
+          resultBuilder.putCacheResults(
+              ruleKey,
+              input.readBoolean()
+                  ? CacheResult.contains(getName(), getMode())
+                  : CacheResult.miss());
+        }
+        return resultBuilder.build();
+      }
+    }
   }
 
   @Override
@@ -218,7 +285,91 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
 
   @Override
   protected MultiFetchResult multiFetchImpl(
-      Iterable<AbstractAsynchronousCache.FetchRequest> requests) {
-    throw new RuntimeException("multiFetch not supported");
+      Iterable<AbstractAsynchronousCache.FetchRequest> requests) throws IOException {
+    ImmutableList<FetchRequest> fetchRequests = ImmutableList.copyOf(requests);
+    ImmutableList<RuleKey> keys =
+        fetchRequests.stream()
+            .map(FetchRequest::getRuleKey)
+            .collect(ImmutableList.toImmutableList());
+    ImmutableList.Builder<FetchResult> results = ImmutableList.builder();
+
+    try (HttpResponse response =
+        fetchClient.makeRequest("/artifacts/multi_fetch", newMultiKeyRequest(keys))) {
+      try (DataInputStream input =
+          new DataInputStream(new FullyReadOnCloseInputStream(response.getBody()))) {
+        if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+          String msg =
+              String.format(
+                  "unexpected server response: [%d:%s]",
+                  response.statusCode(), response.statusMessage());
+          reportFailureWithFormatKey("multiFetch(%s, %s): %s", response.requestUrl(), keys, msg);
+          FetchResult error =
+              ImmutableFetchResult.builder()
+                  .setCacheResult(CacheResult.error(getName(), getMode(), msg))
+                  .build();
+          fetchRequests.forEach(request -> results.add(error));
+          return ImmutableMultiFetchResult.of(results.build());
+        }
+
+        // The server streams the artifacts in the order they were asked for, so each one is
+        // written out as soon as it arrives.
+        for (FetchRequest request : fetchRequests) {
+          ImmutableFetchResult.Builder resultBuilder = ImmutableFetchResult.builder();
+          if (!input.readBoolean()) {
+            LOG.info("fetch(%s, %s): cache miss", response.requestUrl(), request.getRuleKey());
+            results.add(resultBuilder.setCacheResult(CacheResult.miss()).build());
+            continue;
+          }
+          long length = input.readLong();
+          try (DataInputStream artifactInput =
+              new DataInputStream(ByteStreams.limit(new NonClosingInputStream(input), length))) {
+            results.add(
+                readArtifact(
+                    request.getRuleKey(),
+                    request.getOutput(),
+                    artifactInput,
+                    response.requestUrl(),
+                    resultBuilder));
+            if (ByteStreams.exhaust(artifactInput) > 0) {
+              throw new IOException(
+                  "Fetch response for " + request.getRuleKey() + " was longer than expected.");
+            }
+          }
+        }
+        return ImmutableMultiFetchResult.of(results.build());
+      }
+    }
+  }
+
+  @Override
+  protected int getMultiFetchBatchSize(int pendingRequestsSize) {
+    if (concurrencyLevel > 0) {
+      return Math.min(multiFetchLimit, 1 + pendingRequestsSize / concurrencyLevel);
+    }
+    return multiFetchLimit;
+  }
+
+  @Override
+  protected boolean isMultiCheckEnabled() {
+    return multiCheckEnabled;
+  }
+
+  private static Request.Builder newMultiKeyRequest(ImmutableList<RuleKey> ruleKeys)
+      throws IOException {
+    return new Request.Builder()
+        .post(
+            RequestBody.create(
+                OCTET_STREAM_CONTENT_TYPE,
+                HttpArtifactCacheBinaryProtocol.createMultiKeyRequest(ruleKeys)));
+  }
+
+  /** Keeps the rest of a multi-fetch response open after reading one of its artifacts. */
+  private static class NonClosingInputStream extends FilterInputStream {
+    NonClosingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public void close() {}
   }
 }
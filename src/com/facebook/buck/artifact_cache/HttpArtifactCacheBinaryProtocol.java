@@ -22,6 +22,7 @@ import com.facebook.buck.util.hash.HasherInputStream;
 import com.facebook.buck.util.hash.HasherOutputStream;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
@@ -37,6 +38,8 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
 
 /** Implements the binary protocol used by Buck to talk to the cache server. */
@@ -138,6 +141,34 @@ public class HttpArtifactCacheBinaryProtocol {
     return result.build();
   }
 
+  /**
+   * @return the body of a multi-fetch or multi-contains request for {@code ruleKeys}, which the
+   *     response answers in the same order.
+   */
+  public static byte[] createMultiKeyRequest(List<RuleKey> ruleKeys) throws IOException {
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out)) {
+      data.writeInt(ruleKeys.size());
+      for (RuleKey ruleKey : ruleKeys) {
+        data.writeUTF(ruleKey.toString());
+      }
+      return out.toByteArray();
+    }
+  }
+
+  public static ImmutableList<RuleKey> readMultiKeyRequest(DataInputStream input)
+      throws IOException {
+    int ruleKeysCount = input.readInt();
+    if (ruleKeysCount < 0) {
+      throw new IOException(String.format("Invalid number of rule keys %d.", ruleKeysCount));
+    }
+    ImmutableList.Builder<RuleKey> ruleKeys = ImmutableList.builder();
+    for (int i = 0; i < ruleKeysCount; i++) {
+      ruleKeys.add(new RuleKey(input.readUTF()));
+    }
+    return ruleKeys.build();
+  }
+
   @VisibleForTesting
   static byte[] createKeysHeader(ImmutableSet<RuleKey> ruleKeys) throws IOException {
     try (ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -253,6 +284,17 @@ public class HttpArtifactCacheBinaryProtocol {
         payloadSource.copyTo(responseSink);
       }
     }
+
+    /**
+     * @return the part of the response before the payload, for callers which send the payload
+     *     themselves.
+     */
+    public byte[] getHeader() {
+      return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE + rawMetadata.length)
+          .putInt(rawMetadata.length)
+          .put(rawMetadata)
+          .array();
+    }
   }
 
   public abstract static class MetadataAndPayloadReadResult {
@@ -61,4 +61,6 @@ interface NetworkCacheArgs {
   int getErrorTextLimit();
 
   Optional<Long> getMaxStoreSizeBytes();
+
+  Optional<AdaptiveMultiFetchController> getMultiFetchController();
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.types.Pair;
+import com.facebook.buck.util.types.Unit;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * Fetches artifacts ahead of the requests for them into a staging area, so a later {@link
+ * #fetchAsync} for the same rule key only has to wait for the rest of the download, if any.
+ *
+ * <p>Artifacts are staged in the scratch directory of the project, so that they can be moved into
+ * place without being copied. Prefetched artifacts which are never asked for are deleted by {@link
+ * #discardPrefetched}.
+ */
+public class PrefetchingCacheDecorator implements ArtifactCache, CacheDecorator {
+
+  private static final Logger LOG = Logger.get(PrefetchingCacheDecorator.class);
+
+  private final ArtifactCache delegate;
+  private final ProjectFilesystem filesystem;
+  private final ConcurrentMap<RuleKey, Prefetch> prefetches = new ConcurrentHashMap<>();
+  /** Keys which were already asked for, and so aren't worth prefetching anymore. */
+  private final Set<RuleKey> fetched = ConcurrentHashMap.newKeySet();
+
+  private volatile boolean skipPrefetches = false;
+
+  public PrefetchingCacheDecorator(ArtifactCache delegate, ProjectFilesystem filesystem) {
+    this.delegate = delegate;
+    this.filesystem = filesystem;
+  }
+
+  /**
+   * Starts fetching the artifact for {@code ruleKey} into the staging area, unless it is already
+   * being fetched.
+   */
+  public void prefetch(@Nullable BuildTarget target, RuleKey ruleKey) {
+    if (skipPrefetches || fetched.contains(ruleKey) || prefetches.containsKey(ruleKey)) {
+      return;
+    }
+    StagingPath stagingPath = new StagingPath(filesystem);
+    Prefetch prefetch = new Prefetch(stagingPath);
+    // Fetches mark the key as fetched before taking its prefetch, so checking the mark while
+    // registering the prefetch means a concurrent fetch either takes this prefetch and waits for
+    // it, or keeps it from being registered and downloads the artifact itself.
+    if (prefetches.computeIfAbsent(ruleKey, key -> fetched.contains(key) ? null : prefetch)
+        != prefetch) {
+      return;
+    }
+    prefetch.result.setFuture(delegate.fetchAsync(target, ruleKey, stagingPath));
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+    fetched.add(ruleKey);
+    Prefetch prefetch = prefetches.remove(ruleKey);
+    if (prefetch == null) {
+      return delegate.fetchAsync(target, ruleKey, output);
+    }
+    ListenableFuture<CacheResult> result =
+        Futures.transformAsync(
+            prefetch.result,
+            prefetchResult -> {
+              if (prefetchResult.getType() == CacheResultType.HIT) {
+                try {
+                  Files.move(
+                      prefetch.stagingPath.getUnchecked(),
+                      output.get(),
+                      StandardCopyOption.REPLACE_EXISTING);
+                  return Futures.immediateFuture(prefetchResult);
+                } catch (IOException e) {
+                  LOG.warn(e, "Failed to move prefetched artifact for %s.", ruleKey);
+                }
+              }
+              if (prefetchResult.getType() == CacheResultType.MISS) {
+                return Futures.immediateFuture(prefetchResult);
+              }
+              // Errors, including failing to move the artifact, may have been transient.
+              return delegate.fetchAsync(target, ruleKey, output);
+            },
+            MoreExecutors.directExecutor());
+    // Unless the artifact was moved to the output, the staged file is no longer needed.
+    result.addListener(prefetch::delete, MoreExecutors.directExecutor());
+    return result;
+  }
+
+  /** Deletes the prefetched artifacts that weren't asked for, once their fetches finish. */
+  public void discardPrefetched() {
+    skipPrefetches = true;
+    for (RuleKey ruleKey : ImmutableList.copyOf(prefetches.keySet())) {
+      Prefetch prefetch = prefetches.remove(ruleKey);
+      if (prefetch != null) {
+        prefetch.result.addListener(prefetch::delete, MoreExecutors.directExecutor());
+      }
+    }
+  }
+
+  @VisibleForTesting
+  boolean isPrefetched(RuleKey ruleKey) {
+    return prefetches.containsKey(ruleKey);
+  }
+
+  @Override
+  public void skipPendingAndFutureAsyncFetches() {
+    skipPrefetches = true;
+    delegate.skipPendingAndFutureAsyncFetches();
+  }
+
+  @Override
+  public ArtifactCache getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public ListenableFuture<Unit> store(ArtifactInfo info, BorrowablePath output) {
+    return delegate.store(info, output);
+  }
+
+  @Override
+  public ListenableFuture<Unit> store(ImmutableList<Pair<ArtifactInfo, BorrowablePath>> artifacts) {
+    return delegate.store(artifacts);
+  }
+
+  @Override
+  public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+      ImmutableSet<RuleKey> ruleKeys) {
+    return delegate.multiContainsAsync(ruleKeys);
+  }
+
+  @Override
+  public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+    return delegate.deleteAsync(ruleKeys);
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return delegate.getCacheReadMode();
+  }
+
+  @Override
+  public void close() {
+    discardPrefetched();
+    delegate.close();
+  }
+
+  /** A temporary file the prefetched artifact is written to, created when the cache needs it. */
+  private static class StagingPath extends LazyPath {
+    private final ProjectFilesystem filesystem;
+    @Nullable private volatile Path created;
+
+    private StagingPath(ProjectFilesystem filesystem) {
+      this.filesystem = filesystem;
+    }
+
+    @Override
+    protected Path create() throws IOException {
+      Path scratchDir = filesystem.getBuckPaths().getScratchDir();
+      filesystem.mkdirs(scratchDir);
+      created =
+          filesystem.resolve(
+              filesystem.createTempFile(scratchDir, "buck_prefetched_artifact_", ".zip"));
+      return created;
+    }
+  }
+
+  private static class Prefetch {
+    private final StagingPath stagingPath;
+    private final SettableFuture<CacheResult> result = SettableFuture.create();
+
+    private Prefetch(StagingPath stagingPath) {
+      this.stagingPath = stagingPath;
+    }
+
+    private void delete() {
+      Path path = stagingPath.created;
+      if (path == null) {
+        return;
+      }
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        LOG.debug(e, "Failed to delete prefetched artifact %s.", path);
+      }
+    }
+  }
+}
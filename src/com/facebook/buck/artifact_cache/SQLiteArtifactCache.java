@@ -60,11 +60,16 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import javax.annotation.Nullable;
 import org.sqlite.BusyHandler;
@@ -87,6 +92,9 @@ public class SQLiteArtifactCache implements ArtifactCache {
   private static final String TMP_EXTENSION = ".tmp";
   private static final long DEFAULT_MAX_INLINED_BYTES = 40;
   private static final Duration DEFAULT_EVICTION_TIME = Duration.ofDays(7);
+  private static final int DEFAULT_READER_CONNECTIONS = 4;
+  // How many access time updates to buffer before writing them to the database.
+  private static final int ACCESS_TIME_BATCH_SIZE = 256;
 
   private final String name;
   private final ProjectFilesystem filesystem;
@@ -110,6 +118,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
       BuckEventBus eventBus,
       Optional<Long> maxCacheSizeBytes,
       Optional<Long> maxInlinedSizeBytes,
+      Optional<Integer> readerConnections,
       CacheReadMode cacheMode)
       throws IOException, SQLException {
     this.name = name;
@@ -136,7 +145,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
           String.format("Cache path [%s] already exists and is not a directory.", cacheDir));
     }
 
-    this.db = new ConnectionInfo(cacheDir);
+    this.db = new ConnectionInfo(cacheDir, readerConnections.orElse(DEFAULT_READER_CONNECTIONS));
   }
 
   @Override
@@ -540,11 +549,25 @@ public class SQLiteArtifactCache implements ArtifactCache {
     return keys.build();
   }
 
+  /**
+   * The database connections backing the cache.
+   *
+   * <p>All writes go through a single writer connection, which SQLite serializes anyway. Reads are
+   * served from a pool of separate connections: since the database is in WAL mode, readers neither
+   * block each other nor wait on the writer, so fetches from many build threads proceed in
+   * parallel. Access time updates are buffered and written in batches, so cache hits don't need the
+   * writer connection at all.
+   */
   private static class ConnectionInfo {
     private final Connection connection;
 
-    private final PreparedStatement fetchMetadata;
-    private final PreparedStatement fetchContent;
+    /** Every reader connection, including the ones currently borrowed from {@link #readers}. */
+    private final ImmutableList<ReaderInfo> allReaders;
+
+    private final BlockingQueue<ReaderInfo> readers;
+
+    private final Set<RuleKey> pendingMetadataAccesses = ConcurrentHashMap.newKeySet();
+    private final Set<RuleKey> pendingContentAccesses = ConcurrentHashMap.newKeySet();
 
     private final PreparedStatement updateMetadataTime;
     private final PreparedStatement updateContentTime;
@@ -561,13 +584,9 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
     private final PreparedStatement contentSize;
 
-    private ConnectionInfo(Path cacheDir) throws SQLException {
-      // date format must be set to match CURRENT_TIMESTAMP
-      Properties properties = new SQLiteConfig().toProperties();
-      properties.setProperty(
-          SQLiteConfig.Pragma.DATE_STRING_FORMAT.pragmaName, "yyyy-MM-dd HH:mm:ss");
-      connection =
-          DriverManager.getConnection("jdbc:sqlite:" + cacheDir.resolve("dircache.db"), properties);
+    private ConnectionInfo(Path cacheDir, int readerConnections) throws SQLException {
+      Path dbPath = cacheDir.resolve("dircache.db");
+      connection = openConnection(dbPath);
       connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
       connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
 
@@ -603,11 +622,6 @@ public class SQLiteArtifactCache implements ArtifactCache {
                   + "OR artifact ISNULL AND filepath NOT NULL)) "
                   + "WITHOUT ROWID");
 
-      fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
-      fetchContent =
-          connection.prepareStatement(
-              "SELECT artifact, filepath, size FROM content WHERE sha1 = ?");
-
       updateMetadataTime =
           connection.prepareStatement(
               "UPDATE metadata SET accessed = CURRENT_TIMESTAMP WHERE rulekey = ?");
@@ -636,31 +650,102 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
       contentSize = connection.prepareStatement("SELECT sum(size) FROM content");
 
+      // The tables must exist before the readers prepare their statements.
+      ImmutableList.Builder<ReaderInfo> allReadersBuilder = ImmutableList.builder();
+      for (int i = 0; i < readerConnections; i++) {
+        allReadersBuilder.add(new ReaderInfo(openConnection(dbPath)));
+      }
+      allReaders = allReadersBuilder.build();
+      readers = new ArrayBlockingQueue<>(readerConnections, false, allReaders);
+    }
+
+    private static Connection openConnection(Path dbPath) throws SQLException {
+      // date format must be set to match CURRENT_TIMESTAMP
+      Properties properties = new SQLiteConfig().toProperties();
+      properties.setProperty(
+          SQLiteConfig.Pragma.DATE_STRING_FORMAT.pragmaName, "yyyy-MM-dd HH:mm:ss");
+      Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath, properties);
       BusyHandler.setHandler(connection, new RetryBusyHandler());
+      return connection;
+    }
+
+    private ReaderInfo acquireReader() throws SQLException {
+      try {
+        return readers.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for a database connection", e);
+      }
+    }
+
+    private Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
+      ReaderInfo reader = acquireReader();
+      try {
+        return reader.selectMetadata(ruleKey);
+      } finally {
+        readers.add(reader);
+      }
+    }
+
+    private Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
+      ReaderInfo reader = acquireReader();
+      try {
+        return reader.selectContent(contentHash);
+      } finally {
+        readers.add(reader);
+      }
+    }
+
+    private void accessMetadata(RuleKey ruleKey) throws SQLException {
+      pendingMetadataAccesses.add(ruleKey);
+      maybeFlushAccesses();
     }
 
-    private synchronized Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
-      fetchMetadata.setBytes(1, getBytes(ruleKey));
-      ResultSet rs = fetchMetadata.executeQuery();
-      return rs.next() ? Optional.of(rs.getBytes(1)) : Optional.empty();
+    private void accessContent(RuleKey contentHash) throws SQLException {
+      pendingContentAccesses.add(contentHash);
+      maybeFlushAccesses();
     }
 
-    private synchronized Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
-      fetchContent.setBytes(1, getBytes(contentHash));
-      ResultSet rs = fetchContent.executeQuery();
-      return rs.next()
-          ? Optional.of(new Content(rs.getBytes(1), rs.getString(2), rs.getLong(3)))
-          : Optional.empty();
+    private void maybeFlushAccesses() throws SQLException {
+      if (pendingMetadataAccesses.size() + pendingContentAccesses.size()
+          >= ACCESS_TIME_BATCH_SIZE) {
+        flushAccesses();
+      }
     }
 
-    private synchronized void accessMetadata(RuleKey ruleKey) throws SQLException {
-      updateMetadataTime.setBytes(1, getBytes(ruleKey));
-      updateMetadataTime.executeUpdate();
+    /** Writes all buffered access time updates to the database in a single transaction. */
+    private synchronized void flushAccesses() throws SQLException {
+      boolean hasUpdates =
+          addAccessBatch(updateMetadataTime, pendingMetadataAccesses)
+              | addAccessBatch(updateContentTime, pendingContentAccesses);
+      if (!hasUpdates) {
+        return;
+      }
+
+      connection.setAutoCommit(false);
+      try {
+        updateMetadataTime.executeBatch();
+        updateContentTime.executeBatch();
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
     }
 
-    private synchronized void accessContent(RuleKey contentHash) throws SQLException {
-      updateContentTime.setBytes(1, getBytes(contentHash));
-      updateContentTime.executeUpdate();
+    private static boolean addAccessBatch(PreparedStatement statement, Set<RuleKey> pending)
+        throws SQLException {
+      boolean added = false;
+      for (Iterator<RuleKey> iterator = pending.iterator(); iterator.hasNext(); ) {
+        RuleKey ruleKey = iterator.next();
+        iterator.remove();
+        statement.setBytes(1, getBytes(ruleKey));
+        statement.addBatch();
+        added = true;
+      }
+      return added;
     }
 
     private synchronized void storeMetadata(ImmutableSet<RuleKey> ruleKeys, byte[] metadata)
@@ -696,6 +781,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
 
     private synchronized int deleteMetadata(Timestamp evictionCutoff) throws SQLException {
+      flushAccesses();
       deleteMetadataBeforeCutoff.setTimestamp(1, evictionCutoff);
       return deleteMetadataBeforeCutoff.executeUpdate();
     }
@@ -706,6 +792,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
 
     private synchronized void deleteContent(RuleKey contentHash) throws SQLException {
+      pendingContentAccesses.remove(contentHash);
       deleteContentForHash.setBytes(1, getBytes(contentHash));
       deleteContentForHash.executeUpdate();
     }
@@ -721,6 +808,9 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
     private synchronized Pair<Iterable<String>, Timestamp> getContentToEvict(long minToDelete)
         throws SQLException {
+      // Make sure recently fetched artifacts are not evicted based on stale access times.
+      flushAccesses();
+
       ImmutableList.Builder<String> filepaths = ImmutableList.builder();
       long deleted = 0;
 
@@ -756,6 +846,15 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
     private void close() {
       try {
+        flushAccesses();
+      } catch (SQLException e) {
+        LOG.warn(e, "Failed to record artifact access times");
+      }
+
+      try {
+        for (ReaderInfo reader : allReaders) {
+          reader.connection.close();
+        }
         connection.close();
       } catch (SQLException e) {
         throw new RuntimeException(e);
@@ -763,6 +862,42 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
   }
 
+  /**
+   * A read-only view of the database over its own connection. Each reader is used by one thread
+   * at a time, handed out through {@link ConnectionInfo#acquireReader()}.
+   */
+  private static class ReaderInfo {
+    private final Connection connection;
+
+    private final PreparedStatement fetchMetadata;
+    private final PreparedStatement fetchContent;
+
+    private ReaderInfo(Connection connection) throws SQLException {
+      this.connection = connection;
+      fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
+      fetchContent =
+          connection.prepareStatement(
+              "SELECT artifact, filepath, size FROM content WHERE sha1 = ?");
+    }
+
+    private Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
+      fetchMetadata.setBytes(1, ConnectionInfo.getBytes(ruleKey));
+      // Close the result set eagerly, so the read transaction doesn't pin an old snapshot.
+      try (ResultSet rs = fetchMetadata.executeQuery()) {
+        return rs.next() ? Optional.of(rs.getBytes(1)) : Optional.empty();
+      }
+    }
+
+    private Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
+      fetchContent.setBytes(1, ConnectionInfo.getBytes(contentHash));
+      try (ResultSet rs = fetchContent.executeQuery()) {
+        return rs.next()
+            ? Optional.of(new Content(rs.getBytes(1), rs.getString(2), rs.getLong(3)))
+            : Optional.empty();
+      }
+    }
+  }
+
   private static class Content {
     private final byte[] artifact;
     private final String filepath;
@@ -85,9 +85,10 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String DIR_FIELD = "dir";
   private static final String DIR_MODE_FIELD = "dir_mode";
   private static final String DIR_MAX_SIZE_FIELD = "dir_max_size";
+  private static final String DIR_CHUNKED_FIELD = "dir_chunked";
   private static final String DIR_CACHE_NAMES_FIELD_NAME = "dir_cache_names";
   private static final ImmutableSet<String> DIR_CACHE_DESCRIPTION_FIELDS =
-      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD);
+      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD, DIR_CHUNKED_FIELD);
 
   private static final URI DEFAULT_HTTP_URL = URI.create("http://localhost:8080/");
   private static final String DEFAULT_HTTP_CACHE_MODE = CacheReadMode.READWRITE.name();
@@ -105,6 +106,7 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String SQLITE_MODE_FIELD = "sqlite_mode";
   private static final String SQLITE_MAX_SIZE_FIELD = "sqlite_max_size";
   private static final String SQLITE_MAX_INLINED_SIZE_FIELD = "sqlite_inlined_size";
+  private static final String SQLITE_READER_CONNECTIONS_FIELD = "sqlite_reader_connections";
   private static final String SQLITE_CACHE_NAMES_FIELD_NAME = "sqlite_cache_names";
 
   private static final String SERVED_CACHE_ENABLED_FIELD_NAME = "serve_local_cache";
@@ -143,6 +145,7 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   public static final String MULTI_FETCH = "multi_fetch";
   private static final String MULTI_FETCH_LIMIT = "multi_fetch_limit";
   public static final String MULTI_CHECK = "multi_check";
+  private static final String HTTP_MULTI_FETCH = "http_multi_fetch";
   private static final int DEFAULT_MULTI_FETCH_LIMIT = 100;
 
   private static final String ENV_VAR_SUFFIX = "_env_var";
@@ -171,6 +174,14 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
     return buckConfig.getBooleanValue(CACHE_SECTION_NAME, MULTI_CHECK, false);
   }
 
+  /**
+   * Whether http caches should fetch and check artifacts in batches, which needs the server to
+   * support the multi-fetch and multi-contains endpoints of the built-in cache server.
+   */
+  public boolean getHttpMultiFetchEnabled() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, HTTP_MULTI_FETCH, false);
+  }
+
   @Override
   public BuckConfig getDelegate() {
     return buckConfig;
@@ -538,7 +549,9 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
     Optional<Long> maxSizeBytes =
         buckConfig.getValue(section, DIR_MAX_SIZE_FIELD).map(SizeUnit::parseBytes);
 
-    return DirCacheEntry.of(cacheName, pathToCacheDir, maxSizeBytes, readMode);
+    boolean chunked = buckConfig.getBooleanValue(section, DIR_CHUNKED_FIELD, false);
+
+    return DirCacheEntry.of(cacheName, pathToCacheDir, maxSizeBytes, readMode, chunked);
   }
 
   private HttpCacheEntry obtainHttpEntry() {
@@ -594,8 +607,33 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
     Optional<Long> maxInlinedSizeBytes =
         buckConfig.getValue(section, SQLITE_MAX_INLINED_SIZE_FIELD).map(SizeUnit::parseBytes);
 
+    Optional<Integer> readerConnections =
+        buckConfig
+            .getValue(section, SQLITE_READER_CONNECTIONS_FIELD)
+            .map(value -> parseReaderConnections(section, value));
+
     return ImmutableSQLiteCacheEntry.of(
-        Optional.of(cacheName), pathToCacheDir, maxSizeBytes, maxInlinedSizeBytes, readMode);
+        Optional.of(cacheName),
+        pathToCacheDir,
+        maxSizeBytes,
+        maxInlinedSizeBytes,
+        readerConnections,
+        readMode);
+  }
+
+  private static int parseReaderConnections(String section, String value) {
+    int readerConnections;
+    try {
+      readerConnections = Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      readerConnections = 0;
+    }
+    if (readerConnections <= 0) {
+      throw new HumanReadableException(
+          "Unusable %s.%s: '%s' (expected a positive number of connections)",
+          section, SQLITE_READER_CONNECTIONS_FIELD, value);
+    }
+    return readerConnections;
   }
 
   public ImmutableSet<String> getBlacklistedWifiSsids() {
@@ -30,6 +30,9 @@ public abstract class DirCacheEntry {
 
   public abstract CacheReadMode getCacheReadMode();
 
+  /** Whether artifacts are stored as deduplicated, content-defined chunks. */
+  public abstract boolean isChunked();
+
   public static DirCacheEntry of(
       Path cacheDir, Optional<Long> maxSizeBytes, CacheReadMode cacheReadMode) {
     return of(Optional.empty(), cacheDir, maxSizeBytes, cacheReadMode);
@@ -40,13 +43,23 @@ public abstract class DirCacheEntry {
       Path cacheDir,
       Optional<Long> maxSizeBytes,
       CacheReadMode cacheReadMode) {
-    return ImmutableDirCacheEntry.of(name, cacheDir, maxSizeBytes, cacheReadMode);
+    return of(name, cacheDir, maxSizeBytes, cacheReadMode, false);
+  }
+
+  public static DirCacheEntry of(
+      Optional<String> name,
+      Path cacheDir,
+      Optional<Long> maxSizeBytes,
+      CacheReadMode cacheReadMode,
+      boolean chunked) {
+    return ImmutableDirCacheEntry.of(name, cacheDir, maxSizeBytes, cacheReadMode, chunked);
   }
 
   public DirCacheEntry withCacheReadMode(CacheReadMode cacheReadMode) {
     if (getCacheReadMode().equals(cacheReadMode)) {
       return this;
     }
-    return ImmutableDirCacheEntry.of(getName(), getCacheDir(), getMaxSizeBytes(), cacheReadMode);
+    return ImmutableDirCacheEntry.of(
+        getName(), getCacheDir(), getMaxSizeBytes(), cacheReadMode, isChunked());
   }
 }
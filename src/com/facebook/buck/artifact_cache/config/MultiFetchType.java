@@ -18,7 +18,9 @@ package com.facebook.buck.artifact_cache.config;
 
 public enum MultiFetchType {
   ENABLED,
-  DISABLED;
+  DISABLED,
+  /** Enabled, with the batch size and concurrency tuned from how requests perform. */
+  ADAPTIVE;
 
   public static final MultiFetchType DEFAULT = ENABLED;
 }
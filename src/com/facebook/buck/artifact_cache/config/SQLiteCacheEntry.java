@@ -30,5 +30,7 @@ public abstract class SQLiteCacheEntry {
 
   public abstract Optional<Long> getMaxInlinedSizeBytes();
 
+  public abstract Optional<Integer> getReaderConnections();
+
   public abstract CacheReadMode getCacheReadMode();
 }
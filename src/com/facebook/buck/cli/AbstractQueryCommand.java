@@ -304,13 +304,17 @@ public abstract class AbstractQueryCommand extends AbstractCommand {
     }
     env.preloadTargetPatterns(targetLiterals);
 
-    // Now execute the query on the arguments one-by-one.
+    // Now execute the query on all the arguments at once, so that they share the evaluation of
+    // their common subexpressions.
+    List<String> queries = new ArrayList<>(inputsFormattedAsBuildTargets.size());
+    for (String input : inputsFormattedAsBuildTargets) {
+      queries.add(queryFormat.replace("%s", input));
+    }
+    List<Set<QueryTarget>> queryResults = env.evaluateQueries(queries);
     TreeMultimap<String, QueryTarget> queryResultMap =
         TreeMultimap.create(String::compareTo, QueryTarget::compare);
-    for (String input : inputsFormattedAsBuildTargets) {
-      String query = queryFormat.replace("%s", input);
-      Set<QueryTarget> queryResult = env.evaluateQuery(query);
-      queryResultMap.putAll(input, queryResult);
+    for (int i = 0; i < queries.size(); i++) {
+      queryResultMap.putAll(inputsFormattedAsBuildTargets.get(i), queryResults.get(i));
     }
 
     LOG.debug("Printing out %d targets", queryResultMap.size());
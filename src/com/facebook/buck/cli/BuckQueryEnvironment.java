@@ -27,13 +27,13 @@ import com.facebook.buck.core.filesystems.RelPath;
 import com.facebook.buck.core.model.BuildFileTree;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.QueryTarget;
-import com.facebook.buck.core.model.impl.FilesystemBackedBuildFileTree;
 import com.facebook.buck.core.model.targetgraph.TargetNode;
 import com.facebook.buck.core.model.targetgraph.impl.TargetNodes;
 import com.facebook.buck.core.sourcepath.PathSourcePath;
 import com.facebook.buck.core.sourcepath.SourcePath;
 import com.facebook.buck.core.util.graph.AbstractBreadthFirstTraversal;
 import com.facebook.buck.core.util.graph.AcyclicDepthFirstPostOrderTraversalWithPayload;
+import com.facebook.buck.core.util.graph.CompactDirectedGraph;
 import com.facebook.buck.core.util.graph.CycleException;
 import com.facebook.buck.core.util.graph.DirectedAcyclicGraph;
 import com.facebook.buck.core.util.graph.GraphTraversableWithPayload;
@@ -46,6 +46,7 @@ import com.facebook.buck.parser.Parser;
 import com.facebook.buck.parser.ParserMessages;
 import com.facebook.buck.parser.ParsingContext;
 import com.facebook.buck.parser.PerBuildState;
+import com.facebook.buck.parser.TargetNodeIndex;
 import com.facebook.buck.parser.config.ParserConfig;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.exceptions.BuildTargetException;
@@ -59,8 +60,8 @@ import com.facebook.buck.query.FilterFunction;
 import com.facebook.buck.query.InputsFunction;
 import com.facebook.buck.query.KindFunction;
 import com.facebook.buck.query.LabelsFunction;
-import com.facebook.buck.query.NoopQueryEvaluator;
 import com.facebook.buck.query.OwnerFunction;
+import com.facebook.buck.query.ParallelQueryEvaluator;
 import com.facebook.buck.query.QueryBuildTarget;
 import com.facebook.buck.query.QueryEnvironment;
 import com.facebook.buck.query.QueryException;
@@ -76,6 +77,7 @@ import com.facebook.buck.util.types.Unit;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Functions;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -83,24 +85,29 @@ import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import javax.annotation.Nullable;
 
 /**
  * The environment of a Buck query that can evaluate queries to produce a result.
@@ -137,14 +144,28 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
   private final TypeCoercerFactory typeCoercerFactory;
 
   private final ImmutableMap<Cell, BuildFileTree> buildFileTrees;
-  private final Map<BuildTarget, QueryBuildTarget> buildTargetToQueryTarget = new HashMap<>();
-
-  // Query execution is single threaded, however the buildTransitiveClosure implementation
-  // traverses the graph in parallel.
+  private final Map<BuildTarget, QueryBuildTarget> buildTargetToQueryTarget =
+      new ConcurrentHashMap<>();
+  private final ListeningExecutorService queryExecutor;
+  private final ParallelQueryEvaluator<QueryBuildTarget> evaluator;
+
+  // Queries and their subexpressions are evaluated in parallel on the query executor, and the
+  // buildTransitiveClosure implementation traverses the graph in parallel. Only one transitive
+  // closure is built at a time, so that the nodes found in targetsToNodes are in the graph.
   private MutableDirectedGraph<TargetNode<?>> graph = MutableDirectedGraph.createConcurrent();
   private Map<BuildTarget, TargetNode<?>> targetsToNodes = new ConcurrentHashMap<>();
   private TemporaryUnconfiguredTargetToTargetUniquenessChecker checker;
 
+  // Compact copy of the graph, used to find reverse dependencies, and the transitive closure of the
+  // last universe reverse dependencies were looked for in. Guarded by this.
+  @Nullable private CompactDirectedGraph<TargetNode<?>> graphSnapshot;
+  @Nullable private UniverseClosure lastUniverseClosure;
+
+  // The number of nodes in the graph and the version of the daemon's target node index when all
+  // the nodes of the graph were last found in the index. Guarded by this.
+  private int indexedNodeCount = -1;
+  private long indexedVersion = -1;
+
   @VisibleForTesting
   protected BuckQueryEnvironment(
       Cell rootCell,
@@ -154,6 +175,26 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
       TargetPatternEvaluator targetPatternEvaluator,
       BuckEventBus eventBus,
       TypeCoercerFactory typeCoercerFactory) {
+    this(
+        rootCell,
+        ownersReportBuilder,
+        parser,
+        parserState,
+        targetPatternEvaluator,
+        eventBus,
+        typeCoercerFactory,
+        MoreExecutors.newDirectExecutorService());
+  }
+
+  private BuckQueryEnvironment(
+      Cell rootCell,
+      Builder ownersReportBuilder,
+      Parser parser,
+      PerBuildState parserState,
+      TargetPatternEvaluator targetPatternEvaluator,
+      BuckEventBus eventBus,
+      TypeCoercerFactory typeCoercerFactory,
+      ListeningExecutorService queryExecutor) {
     this.parser = parser;
     this.eventBus = eventBus;
     this.parserState = parserState;
@@ -164,13 +205,12 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
             .collect(
                 ImmutableMap.toImmutableMap(
                     Function.identity(),
-                    cell ->
-                        new FilesystemBackedBuildFileTree(
-                            cell.getFilesystem(),
-                            cell.getBuckConfigView(ParserConfig.class).getBuildFileName())));
+                    cell -> parser.getPermState().getBuildFileTree(cell)));
     this.targetPatternEvaluator = targetPatternEvaluator;
     this.queryTargetEvaluator = new TargetEvaluator(targetPatternEvaluator);
     this.typeCoercerFactory = typeCoercerFactory;
+    this.queryExecutor = queryExecutor;
+    this.evaluator = new ParallelQueryEvaluator<>(queryExecutor);
     this.checker =
         TemporaryUnconfiguredTargetToTargetUniquenessChecker.create(
             BuildBuckConfig.of(rootCell.getBuckConfig()).shouldBuckOutIncludeTargetConfigHash());
@@ -196,7 +236,20 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
 
   public static BuckQueryEnvironment from(
       CommandRunnerParams params, PerBuildState parserState, ParsingContext parsingContext) {
-    return from(
+    return from(params, parserState, parsingContext, MoreExecutors.newDirectExecutorService());
+  }
+
+  /**
+   * Creates an environment which evaluates the queries of {@link #evaluateQueries} and independent
+   * subexpressions concurrently on {@code queryExecutor}. It must not be the executor of {@code
+   * parsingContext}, as query evaluation waits for parsing.
+   */
+  public static BuckQueryEnvironment from(
+      CommandRunnerParams params,
+      PerBuildState parserState,
+      ParsingContext parsingContext,
+      ListeningExecutorService queryExecutor) {
+    return new BuckQueryEnvironment(
         params.getCells().getRootCell(),
         OwnersReport.builder(
             params.getCells().getRootCell(),
@@ -217,7 +270,8 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
                 ParserConfig.ApplyDefaultFlavorsMode.DISABLED),
             params.getTargetConfiguration()),
         params.getBuckEventBus(),
-        params.getTypeCoercerFactory());
+        params.getTypeCoercerFactory(),
+        queryExecutor);
   }
 
   public DirectedAcyclicGraph<TargetNode<?>> getTargetGraph() {
@@ -251,13 +305,42 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
     Set<String> targetLiterals = new HashSet<>();
     expr.collectTargetPatterns(targetLiterals);
     preloadTargetPatterns(targetLiterals);
-    return new NoopQueryEvaluator<QueryBuildTarget>().eval(expr, this);
+    return evaluator.eval(expr, this);
   }
 
   public Set<QueryTarget> evaluateQuery(String query) throws QueryException, InterruptedException {
     return evaluateQuery(QueryExpression.parse(query, this));
   }
 
+  /**
+   * Evaluates the specified queries concurrently. Subexpressions the queries have in common are
+   * evaluated once.
+   *
+   * @return the resulting sets of targets, in the order of the queries.
+   * @throws QueryException if the evaluation of any of the queries failed.
+   */
+  public List<Set<QueryTarget>> evaluateQueries(List<String> queries)
+      throws QueryException, InterruptedException {
+    List<ListenableFuture<Set<QueryTarget>>> futures = new ArrayList<>(queries.size());
+    for (String query : queries) {
+      futures.add(queryExecutor.submit(() -> evaluateQuery(query)));
+    }
+    List<Set<QueryTarget>> results = new ArrayList<>(queries.size());
+    try {
+      for (ListenableFuture<Set<QueryTarget>> future : futures) {
+        results.add(future.get());
+      }
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), QueryException.class);
+      Throwables.throwIfInstanceOf(e.getCause(), InterruptedException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new QueryException(e.getCause(), "Failed executing queries: %s", e.getMessage());
+    } finally {
+      futures.forEach(future -> future.cancel(true));
+    }
+    return results;
+  }
+
   TargetNode<?> getNode(QueryBuildTarget target) throws QueryException {
     BuildTarget buildTarget = target.getBuildTarget();
     TargetNode<?> node = targetsToNodes.get(buildTarget);
@@ -371,7 +454,164 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
   }
 
   @Override
-  public void buildTransitiveClosure(Set<? extends QueryTarget> targets, int maxDepth)
+  public Set<QueryBuildTarget> getReverseDepsInUniverse(
+      Set<QueryBuildTarget> universe, Set<QueryBuildTarget> targets, int maxDepth)
+      throws QueryException {
+    Optional<Set<QueryBuildTarget>> indexedReverseDeps =
+        getReverseDepsInUniverseFromIndex(universe, targets, maxDepth);
+    if (indexedReverseDeps.isPresent()) {
+      return indexedReverseDeps.get();
+    }
+    UniverseClosure closure = getUniverseClosure(universe);
+    CompactDirectedGraph<TargetNode<?>> snapshot = closure.graph;
+    int[] found =
+        snapshot.reverseBreadthFirst(getIndexes(snapshot, targets), closure.nodes, maxDepth);
+    Set<QueryBuildTarget> result = new LinkedHashSet<>(found.length);
+    for (int index : found) {
+      result.add(getOrCreateQueryBuildTarget(snapshot.getNode(index).getBuildTarget()));
+    }
+    return result;
+  }
+
+  /**
+   * Looks for the reverse dependencies in the {@link TargetNodeIndex} of the daemon, which only
+   * visits the nodes depending on {@code targets} instead of the whole universe. The index holds
+   * the nodes of the transitive closure of the universe, as they were just found in or added to
+   * the daemon's cache. Returns nothing if some node of the graph isn't the one in the index, as
+   * the dependents of a node missing from the index would be missed.
+   */
+  private Optional<Set<QueryBuildTarget>> getReverseDepsInUniverseFromIndex(
+      Set<QueryBuildTarget> universe, Set<QueryBuildTarget> targets, int maxDepth) {
+    TargetNodeIndex index = parser.getPermState().getTargetNodeIndex();
+    if (!isGraphIndexed(index)) {
+      return Optional.empty();
+    }
+    List<BuildTarget> roots = getGraphTargets(universe);
+    List<BuildTarget> current = getGraphTargets(targets);
+
+    // All the targets in the graph which transitively depend on the targets.
+    Set<BuildTarget> ancestors = new HashSet<>();
+    Queue<BuildTarget> queue = new ArrayDeque<>();
+    for (BuildTarget target : current) {
+      if (ancestors.add(target)) {
+        queue.add(target);
+      }
+    }
+    while (!queue.isEmpty()) {
+      for (TargetNode<?> dependent : index.getDependents(queue.remove())) {
+        BuildTarget target = dependent.getBuildTarget();
+        // The ones not in the graph aren't in the transitive closure of the universe.
+        if (targetsToNodes.containsKey(target) && ancestors.add(target)) {
+          queue.add(target);
+        }
+      }
+    }
+
+    // The ones in the transitive closure of the universe. As the nodes on the paths from the
+    // universe to one of them depend on the targets too, there is no need to look further.
+    Set<BuildTarget> inUniverse = new HashSet<>();
+    for (BuildTarget root : roots) {
+      if (ancestors.contains(root) && inUniverse.add(root)) {
+        queue.add(root);
+      }
+    }
+    while (!queue.isEmpty()) {
+      TargetNode<?> node = Objects.requireNonNull(targetsToNodes.get(queue.remove()));
+      for (BuildTarget dep : node.getParseDeps()) {
+        if (ancestors.contains(dep) && inUniverse.add(dep)) {
+          queue.add(dep);
+        }
+      }
+    }
+
+    Set<QueryBuildTarget> visited = new LinkedHashSet<>();
+    for (int i = 0; i <= maxDepth && !current.isEmpty(); i++) {
+      List<BuildTarget> next = new ArrayList<>();
+      for (BuildTarget target : current) {
+        if (inUniverse.contains(target) && visited.add(getOrCreateQueryBuildTarget(target))) {
+          for (TargetNode<?> dependent : index.getDependents(target)) {
+            next.add(dependent.getBuildTarget());
+          }
+        }
+      }
+      current = next;
+    }
+    return Optional.of(visited);
+  }
+
+  /** Returns the build targets of the given targets, leaving out the ones not in the graph. */
+  private List<BuildTarget> getGraphTargets(Set<QueryBuildTarget> targets) {
+    List<BuildTarget> result = new ArrayList<>(targets.size());
+    // The evaluated sets aren't checked to only hold build targets.
+    for (Object target : targets) {
+      if (target instanceof QueryBuildTarget
+          && targetsToNodes.containsKey(((QueryBuildTarget) target).getBuildTarget())) {
+        result.add(((QueryBuildTarget) target).getBuildTarget());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return whether each node of the graph is the one held for its target in {@code index}. The
+   *     result is reused until nodes are added to the graph or removed from the index.
+   */
+  private synchronized boolean isGraphIndexed(TargetNodeIndex index) {
+    long version = index.getVersion();
+    int nodeCount = targetsToNodes.size();
+    if (nodeCount == indexedNodeCount && version == indexedVersion) {
+      return true;
+    }
+    for (Map.Entry<BuildTarget, TargetNode<?>> entry : targetsToNodes.entrySet()) {
+      if (index.getNode(entry.getKey()).orElse(null) != entry.getValue()) {
+        return false;
+      }
+    }
+    indexedNodeCount = nodeCount;
+    indexedVersion = version;
+    return true;
+  }
+
+  /** Returns the indexes of the given targets in the snapshot, leaving out the ones not in it. */
+  private int[] getIndexes(
+      CompactDirectedGraph<TargetNode<?>> snapshot, Set<QueryBuildTarget> targets) {
+    int[] indexes = new int[targets.size()];
+    int count = 0;
+    // The evaluated sets aren't checked to only hold build targets.
+    for (Object target : targets) {
+      if (target instanceof QueryBuildTarget) {
+        int index =
+            snapshot.getIndex(targetsToNodes.get(((QueryBuildTarget) target).getBuildTarget()));
+        if (index >= 0) {
+          indexes[count++] = index;
+        }
+      }
+    }
+    return Arrays.copyOf(indexes, count);
+  }
+
+  /**
+   * Returns the transitive closure of {@code universe} as a set of indexes in the current snapshot
+   * of the graph. The last one is kept, as queries like {@code rdeps(//..., %s)} look for reverse
+   * dependencies in the same universe over and over.
+   */
+  private synchronized UniverseClosure getUniverseClosure(Set<QueryBuildTarget> universe) {
+    if (graphSnapshot == null || graphSnapshot.getNodeCount() != graph.getNodeCount()) {
+      graphSnapshot = CompactDirectedGraph.copyOf(graph);
+    }
+    CompactDirectedGraph<TargetNode<?>> snapshot = graphSnapshot;
+    if (lastUniverseClosure == null
+        || lastUniverseClosure.universe != universe
+        || lastUniverseClosure.graph != snapshot) {
+      lastUniverseClosure =
+          new UniverseClosure(
+              universe, snapshot, snapshot.getTransitiveClosure(getIndexes(snapshot, universe)));
+    }
+    return lastUniverseClosure;
+  }
+
+  @Override
+  public synchronized void buildTransitiveClosure(Set<? extends QueryTarget> targets, int maxDepth)
       throws QueryException {
     // Filter QueryTargets that are build targets and not yet present in the build target graph.
     ImmutableSet<BuildTarget> newBuildTargets =
@@ -587,6 +827,20 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
     return queryTargetEvaluator;
   }
 
+  /** The transitive closure of a universe, as the indexes of its nodes in a graph snapshot. */
+  private static class UniverseClosure {
+    private final Set<QueryBuildTarget> universe;
+    private final CompactDirectedGraph<TargetNode<?>> graph;
+    private final BitSet nodes;
+
+    private UniverseClosure(
+        Set<QueryBuildTarget> universe, CompactDirectedGraph<TargetNode<?>> graph, BitSet nodes) {
+      this.universe = universe;
+      this.graph = graph;
+      this.nodes = nodes;
+    }
+  }
+
   private static class TargetEvaluator implements QueryEnvironment.TargetEvaluator {
     private final TargetPatternEvaluator evaluator;
 
@@ -156,7 +156,8 @@ public class FetchCommand extends BuildCommand {
                           .getBuckConfig()
                           .getView(BuildBuckConfig.class)
                           .getBuildInputRuleKeyFileSizeLimit(),
-                      ruleKeyCacheScope.getCache()));
+                      ruleKeyCacheScope.getCache()),
+                  cachingBuildEngineBuckConfig.getCachePrefetchEnabled());
           Build build =
               new Build(
                   actionGraphAndBuilder.getActionGraphBuilder(),
@@ -28,6 +28,7 @@ import com.facebook.buck.command.config.BuildBuckConfig;
 import com.facebook.buck.command.config.ConfigDifference;
 import com.facebook.buck.command.config.ConfigDifference.ConfigChange;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
+import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
 import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.cell.CellName;
 import com.facebook.buck.core.cell.Cells;
@@ -2214,8 +2215,15 @@ public final class MainRunner {
     Path criticalPathDir = projectFilesystem.resolve(logDirectoryPath);
     Path criticalPathLog = criticalPathDir.resolve(CRITICAL_PATH_FILE_NAME);
     projectFilesystem.mkdirs(criticalPathDir);
+    // The critical path is only kept across builds for prefetching to read.
+    Optional<Path> lastCriticalPathFile =
+        buckConfig.getView(CachingBuildEngineBuckConfig.class).getCachePrefetchEnabled()
+            ? Optional.of(
+                projectFilesystem.resolve(
+                    projectFilesystem.getBuckPaths().getLastCriticalPathFile()))
+            : Optional.empty();
     CriticalPathEventListener criticalPathEventListener =
-        new CriticalPathEventListener(criticalPathLog);
+        new CriticalPathEventListener(criticalPathLog, lastCriticalPathFile);
     buckEventBus.register(criticalPathEventListener);
 
     ChromeTraceBuckConfig chromeTraceConfig = buckConfig.getView(ChromeTraceBuckConfig.class);
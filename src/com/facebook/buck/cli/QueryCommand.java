@@ -40,6 +40,9 @@ public class QueryCommand extends AbstractQueryCommand {
 
     try (CommandThreadManager pool =
             new CommandThreadManager("Query", getConcurrencyLimit(params.getBuckConfig()));
+        CommandThreadManager queryPool =
+            new CommandThreadManager(
+                "QueryEvaluation", getConcurrencyLimit(params.getBuckConfig()));
         PerBuildState parserState =
             new PerBuildStateFactory(
                     params.getTypeCoercerFactory(),
@@ -62,7 +65,8 @@ public class QueryCommand extends AbstractQueryCommand {
               params,
               parserState,
               createParsingContext(
-                  params.getCells().getRootCell(), pool.getListeningExecutorService()));
+                  params.getCells().getRootCell(), pool.getListeningExecutorService()),
+              queryPool.getListeningExecutorService());
       formatAndRunQuery(params, env);
     } catch (QueryException e) {
       throw new HumanReadableException(e);
@@ -47,6 +47,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 class TargetPatternEvaluator {
   private static final Logger LOG = Logger.get(TargetPatternEvaluator.class);
@@ -59,7 +60,7 @@ class TargetPatternEvaluator {
   private final Cell rootCell;
   private final Optional<TargetConfiguration> targetConfiguration;
 
-  private Map<String, ImmutableSet<QueryTarget>> resolvedTargets = new HashMap<>();
+  private Map<String, ImmutableSet<QueryTarget>> resolvedTargets = new ConcurrentHashMap<>();
 
   public TargetPatternEvaluator(
       Cell rootCell,
@@ -279,6 +279,7 @@ public class TestCommand extends BuildCommand {
             .setJavaTempDir(params.getBuckConfig().getView(JavaBuckConfig.class).getJavaTempDir());
 
     TestBuckConfig testBuckConfig = params.getBuckConfig().getView(TestBuckConfig.class);
+    builder.setJUnitShards(testBuckConfig.getJUnitShards());
     Optional<ImmutableList<String>> coverageIncludes = testBuckConfig.getCoverageIncludes();
     Optional<ImmutableList<String>> coverageExcludes = testBuckConfig.getCoverageExcludes();
 
@@ -628,7 +629,8 @@ public class TestCommand extends BuildCommand {
                             .getBuckConfig()
                             .getView(BuildBuckConfig.class)
                             .getBuildInputRuleKeyFileSizeLimit(),
-                        ruleKeyCacheScope.getCache()));
+                        ruleKeyCacheScope.getCache()),
+                    cachingBuildEngineBuckConfig.getCachePrefetchEnabled());
             Build build =
                 new Build(
                     actionGraphAndBuilder.getActionGraphBuilder(),
@@ -56,14 +56,17 @@ import com.facebook.buck.jvm.java.JavacOptions;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepFailedException;
 import com.facebook.buck.step.StepRunner;
+import com.facebook.buck.step.TestShardStep;
 import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
 import com.facebook.buck.test.CoverageReportFormat;
 import com.facebook.buck.test.TestCaseSummary;
+import com.facebook.buck.test.TestDurationHistory;
 import com.facebook.buck.test.TestResultSummary;
 import com.facebook.buck.test.TestResults;
 import com.facebook.buck.test.TestRuleEvent;
 import com.facebook.buck.test.TestRunningOptions;
 import com.facebook.buck.test.TestStatusMessage;
+import com.facebook.buck.test.config.TestBuckConfig;
 import com.facebook.buck.test.result.type.ResultType;
 import com.facebook.buck.util.Threads;
 import com.facebook.buck.util.concurrent.MoreFutures;
@@ -91,6 +94,7 @@ import java.io.IOException;
 import java.io.Writer;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -102,7 +106,9 @@ import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 import javax.xml.parsers.DocumentBuilder;
@@ -167,6 +173,19 @@ public class TestRunning {
       rulesUnderTestForCoverage = ImmutableSet.of();
     }
 
+    ProjectFilesystem rootFilesystem = params.getCells().getRootCell().getFilesystem();
+    Path testDurationsFile =
+        rootFilesystem.resolve(rootFilesystem.getBuckPaths().getTestDurationsFile());
+    TestDurationHistory durationHistory = TestDurationHistory.load(testDurationsFile);
+    if (options.getJUnitShards() > 1) {
+      options =
+          TestRunningOptions.builder()
+              .from(options)
+              .putAllExpectedTestClassDurations(
+                  durationHistory.getExpectedClassDurationsMillis())
+              .build();
+    }
+
     ImmutableSet<String> testTargets =
         FluentIterable.from(tests)
             .transform(BuildRule::getBuildTarget)
@@ -301,6 +320,25 @@ public class TestRunning {
       }
     }
 
+    // Start the tests expected to take longest first, so that they don't hold up the end of the
+    // run. Tests which didn't run before may take any time, so they are started first too.
+    parallelTestRuns.sort(
+        Comparator.comparing(
+            (TestRun testRun) ->
+                durationHistory
+                    .getExpectedDurationMillis(testRun.getTest().getBuildTarget())
+                    .orElse(Long.MAX_VALUE),
+            Comparator.reverseOrder()));
+    Optional<Long> predictedWallTimeMillis =
+        predictWallTimeMillis(
+            durationHistory,
+            parallelTestRuns,
+            separateTestRuns,
+            executionContext.isDebugEnabled()
+                ? 1
+                : params.getBuckConfig().getView(TestBuckConfig.class).getNumTestThreads());
+    long startNanos = System.nanoTime();
+
     for (TestRun testRun : parallelTestRuns) {
       ListenableFuture<TestResults> testResults =
           runStepsAndYieldResult(
@@ -309,7 +347,8 @@ public class TestRunning {
               testRun.getTestResultsCallable(),
               testRun.getTest().getBuildTarget(),
               params.getBuckEventBus(),
-              service);
+              service,
+              durationHistory);
       results.add(
           transformTestResults(
               params,
@@ -345,7 +384,8 @@ public class TestRunning {
                               testRun.getTestResultsCallable(),
                               testRun.getTest().getBuildTarget(),
                               params.getBuckEventBus(),
-                              directExecutorService),
+                              directExecutorService,
+                              durationHistory),
                           testRun.getTest(),
                           testRun.getTestReportingCallback(),
                           testTargets,
@@ -396,6 +436,18 @@ public class TestRunning {
       throw e;
     }
 
+    long wallTimeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    predictedWallTimeMillis.ifPresent(
+        predicted ->
+            params
+                .getBuckEventBus()
+                .post(ConsoleEvent.info(formatPredictionSummary(wallTimeMillis, predicted))));
+    try {
+      durationHistory.save(testDurationsFile);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save test durations to %s", testDurationsFile);
+    }
+
     params.getBuckEventBus().post(TestRunEvent.finished(testTargets, completedResults));
 
     // Write out the results as XML, if requested.
@@ -470,6 +522,51 @@ public class TestRunning {
     return failures ? 32 : 0;
   }
 
+  /**
+   * @return how long running the given tests is expected to take, if all of them ran before, with
+   *     the parallel tests started longest first on {@code numThreads} threads, followed by the
+   *     separate tests one after the other.
+   */
+  private static Optional<Long> predictWallTimeMillis(
+      TestDurationHistory durationHistory,
+      List<TestRun> parallelTestRuns,
+      List<TestRun> separateTestRuns,
+      int numThreads) {
+    List<Long> parallelDurations = new ArrayList<>(parallelTestRuns.size());
+    for (TestRun testRun : parallelTestRuns) {
+      Optional<Long> duration =
+          durationHistory.getExpectedDurationMillis(testRun.getTest().getBuildTarget());
+      if (!duration.isPresent()) {
+        return Optional.empty();
+      }
+      parallelDurations.add(duration.get());
+    }
+    long separateDuration = 0;
+    for (TestRun testRun : separateTestRuns) {
+      Optional<Long> duration =
+          durationHistory.getExpectedDurationMillis(testRun.getTest().getBuildTarget());
+      if (!duration.isPresent()) {
+        return Optional.empty();
+      }
+      separateDuration += duration.get();
+    }
+    return Optional.of(
+        TestDurationHistory.predictWallTimeMillis(parallelDurations, numThreads)
+            + separateDuration);
+  }
+
+  @VisibleForTesting
+  static String formatPredictionSummary(long wallTimeMillis, long predictedWallTimeMillis) {
+    long differenceMillis = wallTimeMillis - predictedWallTimeMillis;
+    return String.format(
+        "Tests took %.1fs, %.1fs %s than the %.1fs predicted from previous runs (%+d%%).",
+        wallTimeMillis / 1000.0,
+        Math.abs(differenceMillis) / 1000.0,
+        differenceMillis > 0 ? "longer" : "shorter",
+        predictedWallTimeMillis / 1000.0,
+        predictedWallTimeMillis == 0 ? 0 : differenceMillis * 100 / predictedWallTimeMillis);
+  }
+
   private static ListenableFuture<TestResults> transformTestResults(
       CommandRunnerParams params,
       ListenableFuture<TestResults> originalTestResults,
@@ -846,27 +943,101 @@ public class TestRunning {
     return ImmutableSet.copyOf(srcFolders);
   }
 
+  /**
+   * Runs the steps of a test rule, and records how long they took in the history. Adjacent {@link
+   * TestShardStep}s are submitted to the executor separately, so that they run concurrently.
+   */
   private static ListenableFuture<TestResults> runStepsAndYieldResult(
       ExecutionContext context,
       List<Step> steps,
       Callable<TestResults> interpretResults,
       BuildTarget buildTarget,
       BuckEventBus eventBus,
-      ListeningExecutorService listeningExecutorService) {
+      ListeningExecutorService listeningExecutorService,
+      TestDurationHistory durationHistory) {
     Preconditions.checkState(!listeningExecutorService.isShutdown());
-    Callable<TestResults> callable =
-        () -> {
-          LOG.debug("Test steps will run for %s", buildTarget);
-          eventBus.post(TestRuleEvent.started(buildTarget));
-          for (Step step : steps) {
-            StepRunner.runStep(context, step, Optional.of(buildTarget));
-          }
-          LOG.debug("Test steps did run for %s", buildTarget);
-          eventBus.post(TestRuleEvent.finished(buildTarget));
+    int firstShard = Iterables.indexOf(steps, TestShardStep.class::isInstance);
+    int endOfShards = firstShard;
+    while (endOfShards >= 0
+        && endOfShards < steps.size()
+        && steps.get(endOfShards) instanceof TestShardStep) {
+      endOfShards++;
+    }
 
-          return interpretResults.call();
-        };
+    if (endOfShards - firstShard < 2) {
+      Callable<TestResults> callable =
+          () -> {
+            long startNanos = System.nanoTime();
+            LOG.debug("Test steps will run for %s", buildTarget);
+            eventBus.post(TestRuleEvent.started(buildTarget));
+            runSteps(context, steps, buildTarget);
+            LOG.debug("Test steps did run for %s", buildTarget);
+            eventBus.post(TestRuleEvent.finished(buildTarget));
+
+            return interpretAndRecordResults(interpretResults, durationHistory, startNanos);
+          };
+
+      return listeningExecutorService.submit(callable);
+    }
 
-    return listeningExecutorService.submit(callable);
+    List<Step> shards = steps.subList(firstShard, endOfShards);
+    AtomicLong startNanos = new AtomicLong();
+    ListenableFuture<Unit> setUp =
+        listeningExecutorService.submit(
+            () -> {
+              startNanos.set(System.nanoTime());
+              LOG.debug("Test steps will run for %s in %d shards", buildTarget, shards.size());
+              eventBus.post(TestRuleEvent.started(buildTarget));
+              runSteps(context, steps.subList(0, firstShard), buildTarget);
+              return Unit.UNIT;
+            });
+    ListenableFuture<List<Unit>> shardResults =
+        Futures.transformAsync(
+            setUp,
+            ignored -> {
+              List<ListenableFuture<Unit>> futures = new ArrayList<>(shards.size());
+              for (Step shard : shards) {
+                futures.add(
+                    listeningExecutorService.submit(
+                        () -> {
+                          StepRunner.runStep(context, shard, Optional.of(buildTarget));
+                          return Unit.UNIT;
+                        }));
+              }
+              return Futures.allAsList(futures);
+            },
+            MoreExecutors.directExecutor());
+    int finalEndOfShards = endOfShards;
+    return Futures.transformAsync(
+        shardResults,
+        ignored ->
+            listeningExecutorService.submit(
+                () -> {
+                  runSteps(context, steps.subList(finalEndOfShards, steps.size()), buildTarget);
+                  LOG.debug("Test steps did run for %s", buildTarget);
+                  eventBus.post(TestRuleEvent.finished(buildTarget));
+
+                  return interpretAndRecordResults(
+                      interpretResults, durationHistory, startNanos.get());
+                }),
+        MoreExecutors.directExecutor());
+  }
+
+  private static void runSteps(ExecutionContext context, List<Step> steps, BuildTarget buildTarget)
+      throws StepFailedException, InterruptedException {
+    for (Step step : steps) {
+      StepRunner.runStep(context, step, Optional.of(buildTarget));
+    }
+  }
+
+  private static TestResults interpretAndRecordResults(
+      Callable<TestResults> interpretResults,
+      TestDurationHistory durationHistory,
+      long startNanos)
+      throws Exception {
+    TestResults results = interpretResults.call();
+    durationHistory.record(
+        results, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    return results;
   }
 }
@@ -121,9 +121,7 @@ public class ThriftOutput<T> {
       nodeToAttributesFunction.apply(node).forEach(fromNode::putToNodeAttributes);
       thriftDag.addToNodes(fromNode);
 
-      ImmutableSet<T> outgoingNodes =
-          Optional.ofNullable(graph.getOutgoingNodesFor(node)).orElseGet(() -> ImmutableSet.of());
-      for (T outgoingNode : outgoingNodes) {
+      for (T outgoingNode : graph.getOutgoingNodesFor(node)) {
         if (!filterPredicate.test(outgoingNode)) {
           continue;
         }
@@ -63,6 +63,9 @@ public class UnconfiguredQueryCommand extends AbstractQueryCommand {
     try (CommandThreadManager pool =
             new CommandThreadManager(
                 "UnconfiguredQuery", getConcurrencyLimit(params.getBuckConfig()));
+        CommandThreadManager queryPool =
+            new CommandThreadManager(
+                "UnconfiguredQueryEvaluation", getConcurrencyLimit(params.getBuckConfig()));
         PerBuildState parserState =
             new PerBuildStateFactory(
                     params.getTypeCoercerFactory(),
@@ -87,7 +90,8 @@ public class UnconfiguredQueryCommand extends AbstractQueryCommand {
               parserState,
               createParsingContext(
                       params.getCells().getRootCell(), pool.getListeningExecutorService())
-                  .withUseUnconfiguredSelectorResolver(true));
+                  .withUseUnconfiguredSelectorResolver(true),
+              queryPool.getListeningExecutorService());
       formatAndRunQuery(params, env);
     } catch (QueryException e) {
       throw new HumanReadableException(e);
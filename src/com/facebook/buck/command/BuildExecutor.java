@@ -173,7 +173,8 @@ public class BuildExecutor {
             actionGraphAndBuilder.getActionGraphBuilder(),
             args.getBuckConfig().getView(BuildBuckConfig.class).getBuildInputRuleKeyFileSizeLimit(),
             ruleKeyCacheScope.getCache(),
-            ruleKeyLogger));
+            ruleKeyLogger),
+        engineConfig.getCachePrefetchEnabled());
   }
 
   public Build getBuild() {
@@ -52,6 +52,17 @@ public abstract class BuildBuckConfig implements ConfigView<BuckConfig> {
     return getDelegate().getInteger(CACHE_SECTION, "max_action_graph_cache_entries").orElse(1);
   }
 
+  /**
+   * @return the maximum number of build rules in all cached action graphs together, which bounds
+   *     the memory the action graph cache uses.
+   */
+  @Value.Lazy
+  public long getMaxActionGraphCacheRules() {
+    return getDelegate()
+        .getLong(CACHE_SECTION, "max_action_graph_cache_rules")
+        .orElse(Long.MAX_VALUE);
+  }
+
   /**
    * Whether Buck should use Buck binary hash or git commit id as the core key in all rule keys.
    *
@@ -251,6 +262,18 @@ public abstract class BuildBuckConfig implements ConfigView<BuckConfig> {
         .orElse(FileHashCacheMode.DEFAULT);
   }
 
+  /** @return whether the daemon should persist its file hash caches across restarts. */
+  @Value.Lazy
+  public boolean shouldPersistFileHashCaches() {
+    return getDelegate().getBooleanValue(BUILD_SECTION, "persist_file_hash_cache", false);
+  }
+
+  /** @return whether the daemon should persist default rule keys across restarts. */
+  @Value.Lazy
+  public boolean shouldPersistRuleKeyCache() {
+    return getDelegate().getBooleanValue(BUILD_SECTION, "persist_rule_key_cache", false);
+  }
+
   @Value.Lazy
   public boolean shouldBuckOutIncludeTargetConfigHash() {
     return getDelegate()
@@ -58,6 +58,14 @@ public abstract class CachingBuildEngineBuckConfig implements ConfigView<BuckCon
     return getDelegate().getLong("build", "max_depfile_cache_entries").orElse(256L);
   }
 
+  /**
+   * @return whether to fetch artifacts from the cache ahead of the rules that need them, once the
+   *     rule keys of the whole build are known.
+   */
+  public boolean getCachePrefetchEnabled() {
+    return getDelegate().getBooleanValue("build", "cache_prefetch", false);
+  }
+
   /** @return the maximum size an artifact can be for the build engine to cache it. */
   public Optional<Long> getBuildArtifactCacheSizeLimit() {
     return getDelegate().getLong("build", "artifact_cache_size_limit");
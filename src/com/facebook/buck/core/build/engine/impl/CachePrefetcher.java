@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.PrefetchingCacheDecorator;
+import com.facebook.buck.core.build.engine.BuildEngineBuildContext;
+import com.facebook.buck.core.build.engine.RuleDepsCache;
+import com.facebook.buck.core.build.engine.buildinfo.BuildInfo;
+import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
+import com.facebook.buck.core.build.engine.type.BuildType;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rulekey.calculator.ParallelRuleKeyCalculator;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.types.Unit;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
+
+/**
+ * Fetches the artifacts of a build's rules before the engine gets to them, so that the downloads
+ * for a long chain of rules overlap instead of each one waiting for the rules below it.
+ *
+ * <p>Once the default rule keys of a top-level rule and everything below it are computed, the
+ * artifact cache is asked which of them it has, and the artifacts the engine is going to fetch are
+ * staged by a {@link PrefetchingCacheDecorator}. If the cache can't tell, nothing is prefetched. In
+ * a shallow build, rules below one that is in the cache aren't prefetched, since the engine won't
+ * need them. Rules on the critical path of the previous build are prefetched first, followed by the
+ * others in the order the engine reaches them.
+ */
+class CachePrefetcher {
+
+  private static final Logger LOG = Logger.get(CachePrefetcher.class);
+
+  private final BuildType buildMode;
+  private final RuleDepsCache ruleDeps;
+  private final ParallelRuleKeyCalculator<RuleKey> ruleKeyCalculator;
+  private final BuildInfoStoreManager buildInfoStoreManager;
+  private final ListeningExecutorService service;
+
+  private final ConcurrentMap<ArtifactCache, PrefetchingCacheDecorator> caches =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<Path, ImmutableMap<String, Integer>> criticalPaths =
+      new ConcurrentHashMap<>();
+  /**
+   * Rules which were already considered for prefetching. Whether the engine is going to fetch a
+   * rule and the rules below it doesn't depend on which top-level rule it was reached from.
+   */
+  private final Set<BuildRule> visited = ConcurrentHashMap.newKeySet();
+
+  private final ConcurrentLinkedQueue<ListenableFuture<Unit>> prefetches =
+      new ConcurrentLinkedQueue<>();
+
+  private volatile boolean multiContainsFailed = false;
+
+  CachePrefetcher(
+      BuildType buildMode,
+      RuleDepsCache ruleDeps,
+      ParallelRuleKeyCalculator<RuleKey> ruleKeyCalculator,
+      BuildInfoStoreManager buildInfoStoreManager,
+      ListeningExecutorService service) {
+    this.buildMode = buildMode;
+    this.ruleDeps = ruleDeps;
+    this.ruleKeyCalculator = ruleKeyCalculator;
+    this.buildInfoStoreManager = buildInfoStoreManager;
+    this.service = service;
+  }
+
+  /**
+   * Starts prefetching the artifacts for building {@code rule}.
+   *
+   * @return the context to build {@code rule} with, which uses the prefetched artifacts.
+   */
+  BuildEngineBuildContext prefetch(BuildEngineBuildContext buildContext, BuildRule rule) {
+    ArtifactCache artifactCache = buildContext.getArtifactCache();
+    PrefetchingCacheDecorator cache =
+        artifactCache instanceof PrefetchingCacheDecorator
+            ? (PrefetchingCacheDecorator) artifactCache
+            : caches.computeIfAbsent(
+                artifactCache,
+                delegate -> new PrefetchingCacheDecorator(delegate, rule.getProjectFilesystem()));
+    BuildEngineBuildContext prefetchingContext = buildContext.withArtifactCache(cache);
+
+    ListenableFuture<Unit> started =
+        Futures.submitAsync(() -> prefetchBelow(prefetchingContext, cache, rule), service);
+    prefetches.add(
+        Futures.catching(
+            started,
+            Exception.class,
+            e -> {
+              LOG.warn(e, "Failed to prefetch artifacts for %s.", rule.getBuildTarget());
+              return Unit.UNIT;
+            },
+            service));
+    return prefetchingContext;
+  }
+
+  private ListenableFuture<Unit> prefetchBelow(
+      BuildEngineBuildContext buildContext, PrefetchingCacheDecorator cache, BuildRule rule) {
+    if (multiContainsFailed) {
+      return Futures.immediateFuture(Unit.UNIT);
+    }
+    List<BuildRule> rules = new ArrayList<>();
+    List<ListenableFuture<RuleKey>> keyFutures = new ArrayList<>();
+    Set<BuildRule> seen = new HashSet<>();
+    Deque<BuildRule> queue = new ArrayDeque<>();
+    seen.add(rule);
+    queue.add(rule);
+    while (!queue.isEmpty()) {
+      BuildRule current = queue.remove();
+      rules.add(current);
+      keyFutures.add(ruleKeyCalculator.calculate(buildContext.getEventBus(), current));
+      for (BuildRule dep : ruleDeps.get(current)) {
+        if (!visited.contains(dep) && seen.add(dep)) {
+          queue.add(dep);
+        }
+      }
+    }
+
+    return Futures.transformAsync(
+        Futures.allAsList(keyFutures),
+        ruleKeys -> {
+          Map<BuildRule, RuleKey> keys = new HashMap<>();
+          ImmutableSet.Builder<RuleKey> cacheableKeys = ImmutableSet.builder();
+          for (int i = 0; i < rules.size(); i++) {
+            keys.put(rules.get(i), ruleKeys.get(i));
+            if (rules.get(i).isCacheable()) {
+              cacheableKeys.add(ruleKeys.get(i));
+            }
+          }
+          ImmutableMap<String, Integer> criticalPath =
+              getCriticalPath(rule.getProjectFilesystem());
+          return Futures.transform(
+              multiContains(cache, cacheableKeys.build()),
+              contains -> {
+                if (!contains.isPresent()) {
+                  return Unit.UNIT;
+                }
+                for (BuildRule toFetch :
+                    selectRules(buildContext, rule, keys, contains.get(), criticalPath)) {
+                  cache.prefetch(toFetch.getBuildTarget(), keys.get(toFetch));
+                }
+                return Unit.UNIT;
+              },
+              service);
+        },
+        service);
+  }
+
+  /**
+   * Asks the cache which of {@code ruleKeys} it has. Only some caches can answer that, so if the
+   * cache fails to, prefetching stops for the rest of the build rather than guessing. Assuming
+   * every rule is cached would request each miss ahead of the engine, competing with the downloads
+   * it does need.
+   *
+   * @return the results for {@code ruleKeys}, or nothing if the cache can't tell.
+   */
+  private ListenableFuture<Optional<ImmutableMap<RuleKey, CacheResult>>> multiContains(
+      ArtifactCache cache, ImmutableSet<RuleKey> ruleKeys) {
+    if (multiContainsFailed) {
+      return Futures.immediateFuture(Optional.empty());
+    }
+    ListenableFuture<ImmutableMap<RuleKey, CacheResult>> contains;
+    try {
+      contains = cache.multiContainsAsync(ruleKeys);
+    } catch (UnsupportedOperationException e) {
+      contains = Futures.immediateFailedFuture(e);
+    }
+    return Futures.catching(
+        Futures.transform(contains, Optional::of, MoreExecutors.directExecutor()),
+        Exception.class,
+        e -> {
+          multiContainsFailed = true;
+          LOG.debug(e, "Failed to check which artifacts are cached, not prefetching them.");
+          return Optional.empty();
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** @return the rules whose artifacts the engine is going to fetch, in the order to fetch them. */
+  private List<BuildRule> selectRules(
+      BuildEngineBuildContext buildContext,
+      BuildRule rule,
+      Map<BuildRule, RuleKey> keys,
+      ImmutableMap<RuleKey, CacheResult> contains,
+      ImmutableMap<String, Integer> criticalPath) {
+    List<BuildRule> selected = new ArrayList<>();
+    Deque<BuildRule> queue = new ArrayDeque<>();
+    if (visited.add(rule)) {
+      queue.add(rule);
+    }
+    while (!queue.isEmpty()) {
+      BuildRule current = queue.remove();
+      RuleKey key = keys.get(current);
+      boolean builtLocally = isBuiltLocally(buildContext, current, key);
+      boolean cached =
+          !builtLocally
+              && current.isCacheable()
+              && isCached(contains.get(key));
+      if (cached) {
+        selected.add(current);
+      }
+      Iterable<BuildRule> deps =
+          buildMode == BuildType.SHALLOW && (cached || builtLocally)
+              ? ruleDeps.getRuntimeDeps(current)
+              : ruleDeps.get(current);
+      for (BuildRule dep : deps) {
+        if (visited.add(dep)) {
+          queue.add(dep);
+        }
+      }
+    }
+
+    // A shallow build fetches from the top down, the others build dependencies first.
+    if (buildMode != BuildType.SHALLOW) {
+      Collections.reverse(selected);
+    }
+    // Stable, so rules off the critical path stay in the engine's order.
+    selected.sort(
+        Comparator.comparingInt(
+            r -> criticalPath.getOrDefault(r.getFullyQualifiedName(), Integer.MAX_VALUE)));
+    return selected;
+  }
+
+  private static boolean isCached(@Nullable CacheResult result) {
+    return result != null
+        && (result.getType() == CacheResultType.CONTAINS
+            || result.getType() == CacheResultType.HIT);
+  }
+
+  private boolean isBuiltLocally(
+      BuildEngineBuildContext buildContext, BuildRule rule, RuleKey key) {
+    ProjectFilesystem filesystem = rule.getProjectFilesystem();
+    Optional<RuleKey> localKey =
+        buildContext
+            .createOnDiskBuildInfoFor(
+                rule.getBuildTarget(), filesystem, buildInfoStoreManager.get(filesystem))
+            .getRuleKey(BuildInfo.MetadataKey.RULE_KEY);
+    return localKey.isPresent() && localKey.get().equals(key);
+  }
+
+  /** @return the position of each target on the critical path of the previous build. */
+  private ImmutableMap<String, Integer> getCriticalPath(ProjectFilesystem filesystem) {
+    return criticalPaths.computeIfAbsent(
+        filesystem.resolve(filesystem.getBuckPaths().getLastCriticalPathFile()),
+        path -> {
+          ImmutableMap.Builder<String, Integer> positions = ImmutableMap.builder();
+          try {
+            List<String> targets = Files.readAllLines(path);
+            for (int i = 0; i < targets.size(); i++) {
+              positions.put(targets.get(i), i);
+            }
+          } catch (NoSuchFileException e) {
+            // No build has finished yet.
+          } catch (IOException e) {
+            LOG.debug(e, "Failed to read the last critical path from %s.", path);
+          }
+          return positions.build();
+        });
+  }
+
+  /** Waits for the prefetches to be started, and deletes the artifacts which weren't used. */
+  void close() throws InterruptedException {
+    try {
+      Futures.allAsList(prefetches).get();
+    } catch (ExecutionException e) {
+      // Failures to prefetch were already logged.
+    }
+    caches.values().forEach(PrefetchingCacheDecorator::discardPrefetched);
+  }
+}
@@ -144,6 +144,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   private final Optional<BuildRuleStrategy> customBuildRuleStrategy;
 
+  private final Optional<CachePrefetcher> cachePrefetcher;
+
   public CachingBuildEngine(
       CachingBuildEngineDelegate cachingBuildEngineDelegate,
       Optional<BuildRuleStrategy> customBuildRuleStrategy,
@@ -158,7 +160,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       BuildInfoStoreManager buildInfoStoreManager,
       ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
       boolean consoleLogBuildFailuresInline,
-      RuleKeyFactories ruleKeyFactories) {
+      RuleKeyFactories ruleKeyFactories,
+      boolean cachePrefetchEnabled) {
     this(
         cachingBuildEngineDelegate,
         customBuildRuleStrategy,
@@ -182,7 +185,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                 ruleKeyFactories
                     .getDefaultRuleKeyFactory()
                     .buildForDiagnostics(appendable, new StringRuleKeyHasher())),
-        consoleLogBuildFailuresInline);
+        consoleLogBuildFailuresInline,
+        cachePrefetchEnabled);
   }
 
   /** This constructor MUST ONLY BE USED FOR TESTS. */
@@ -202,7 +206,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       RuleKeyFactories ruleKeyFactories,
       ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
       RuleKeyDiagnostics<RuleKey, String> defaultRuleKeyDiagnostics,
-      boolean consoleLogBuildFailuresInline) {
+      boolean consoleLogBuildFailuresInline,
+      boolean cachePrefetchEnabled) {
     this.cachingBuildEngineDelegate = cachingBuildEngineDelegate;
     this.customBuildRuleStrategy = customBuildRuleStrategy;
 
@@ -235,6 +240,16 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                     rule,
                     buildRuleDurationTracker,
                     ruleKeyFactories.getDefaultRuleKeyFactory()));
+    this.cachePrefetcher =
+        cachePrefetchEnabled
+            ? Optional.of(
+                new CachePrefetcher(
+                    buildMode,
+                    ruleDeps,
+                    ruleKeyCalculator,
+                    buildInfoStoreManager,
+                    serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS)))
+            : Optional.empty();
   }
 
   @Override
@@ -245,6 +260,9 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       }
       terminateBuildWithFailure(new CancellationException("Cancelling due to engine shutdown."));
       Futures.allAsList(asyncCallbacks).get();
+      if (cachePrefetcher.isPresent()) {
+        cachePrefetcher.get().close();
+      }
     } catch (InterruptedException e) {
       e.printStackTrace();
     } catch (IOException | ExecutionException e) {
@@ -444,8 +462,12 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     // Keep track of all jobs that run asynchronously with respect to the build dep chain.  We want
     // to make sure we wait for these before calling yielding the final build result.
     registerTopLevelRule(rule, buildContext.getEventBus());
+    BuildEngineBuildContext ruleBuildContext =
+        cachePrefetcher.isPresent()
+            ? cachePrefetcher.get().prefetch(buildContext, rule)
+            : buildContext;
     ListenableFuture<BuildResult> resultFuture =
-        getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext);
+        getBuildRuleResultWithRuntimeDeps(rule, ruleBuildContext, executionContext);
     return BuildEngine.BuildEngineResult.of(resultFuture);
   }
 
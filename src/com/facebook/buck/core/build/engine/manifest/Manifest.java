@@ -46,6 +46,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import javax.annotation.Nullable;
 
 public class Manifest {
 
@@ -63,6 +64,9 @@ public class Manifest {
 
   @VisibleForTesting final List<Pair<RuleKey, int[]>> entries;
 
+  // The number of on-disk input hashes computed by calls to `lookup` on this manifest.
+  private int lookupProbes = 0;
+
   /** Create an empty manifest. */
   public Manifest(RuleKey key) {
     this.key = key;
@@ -179,33 +183,6 @@ public class Manifest {
         resolver.getRelativePath(archivePath.getArchiveSourcePath()), archivePath.getMemberPath());
   }
 
-  private boolean hashesMatch(
-      FileHashLoader fileHashLoader,
-      SourcePathResolverAdapter resolver,
-      ImmutableListMultimap<String, SourcePath> universe,
-      int[] hashIndices)
-      throws IOException {
-    for (int hashIndex : hashIndices) {
-      Pair<Integer, HashCode> hashEntry = hashes.get(hashIndex);
-      String input = inputs.get(hashEntry.getFirst());
-      ImmutableList<SourcePath> candidates = universe.get(input);
-      if (candidates.isEmpty()) {
-        return false;
-      }
-      HashCode onDiskHeaderHash;
-      try {
-        onDiskHeaderHash = hashSourcePathGroup(fileHashLoader, resolver, candidates);
-      } catch (NoSuchFileException e) {
-        return false;
-      }
-      HashCode inputHash = hashEntry.getSecond();
-      if (!inputHash.equals(onDiskHeaderHash)) {
-        return false;
-      }
-    }
-    return true;
-  }
-
   /**
    * @return the {@link RuleKey} of the entry that matches the on disk hashes provided by {@code
    *     fileHashLoader}.
@@ -231,15 +208,98 @@ public class Manifest {
             path -> sourcePathToManifestHeader(path, resolver),
             interestingPaths::contains);
 
-    // Find a matching entry.
+    // Find a matching entry.  Entries share most of their hashes, so rather than re-checking each
+    // entry against the file system, we probe each distinct input at most once and then match
+    // entries against the memoized per-hash results.
+    OnDiskHashes onDiskHashes = new OnDiskHashes(fileHashLoader, resolver, mappedUniverse);
     for (Pair<RuleKey, int[]> entry : entries) {
-      if (hashesMatch(fileHashLoader, resolver, mappedUniverse, entry.getSecond())) {
+      if (onDiskHashes.matchesAll(entry.getSecond())) {
+        lookupProbes += onDiskHashes.probes;
         return Optional.of(entry.getFirst());
       }
     }
+    lookupProbes += onDiskHashes.probes;
     return Optional.empty();
   }
 
+  /**
+   * Lazily computed view of the current on-disk hashes of the manifest's inputs, used to match
+   * entries during a single {@link #lookup}.
+   */
+  private class OnDiskHashes {
+
+    private static final byte UNKNOWN = 0;
+    private static final byte MATCH = 1;
+    private static final byte MISMATCH = 2;
+
+    private final FileHashLoader fileHashLoader;
+    private final SourcePathResolverAdapter resolver;
+    private final ImmutableListMultimap<String, SourcePath> universe;
+
+    // Whether the input at a given index has been hashed yet, and if so, its on-disk hash (or
+    // `null` if it's missing from the universe or the file system).
+    private final boolean[] inputProbed = new boolean[inputs.size()];
+    private final HashCode[] inputHashes = new HashCode[inputs.size()];
+
+    // Whether the hash at a given index matches what's on disk.
+    private final byte[] hashStates = new byte[hashes.size()];
+
+    private int probes = 0;
+
+    OnDiskHashes(
+        FileHashLoader fileHashLoader,
+        SourcePathResolverAdapter resolver,
+        ImmutableListMultimap<String, SourcePath> universe) {
+      this.fileHashLoader = fileHashLoader;
+      this.resolver = resolver;
+      this.universe = universe;
+    }
+
+    boolean matchesAll(int[] entryHashIndices) throws IOException {
+      // Check hashes already known to mismatch first, so that entries sharing a stale input are
+      // rejected without touching the file system.
+      for (int hashIndex : entryHashIndices) {
+        if (hashStates[hashIndex] == MISMATCH) {
+          return false;
+        }
+      }
+      for (int hashIndex : entryHashIndices) {
+        if (!matches(hashIndex)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean matches(int hashIndex) throws IOException {
+      byte state = hashStates[hashIndex];
+      if (state == UNKNOWN) {
+        Pair<Integer, HashCode> hashEntry = hashes.get(hashIndex);
+        HashCode onDiskHash = getInputHash(hashEntry.getFirst());
+        state = hashEntry.getSecond().equals(onDiskHash) ? MATCH : MISMATCH;
+        hashStates[hashIndex] = state;
+      }
+      return state == MATCH;
+    }
+
+    @Nullable
+    private HashCode getInputHash(int inputIndex) throws IOException {
+      if (!inputProbed[inputIndex]) {
+        inputProbed[inputIndex] = true;
+        ImmutableList<SourcePath> candidates = universe.get(inputs.get(inputIndex));
+        if (!candidates.isEmpty()) {
+          probes++;
+          try {
+            inputHashes[inputIndex] = hashSourcePathGroup(fileHashLoader, resolver, candidates);
+          } catch (NoSuchFileException e) {
+            inputHashes[inputIndex] = null;
+          }
+        }
+      }
+      return inputHashes[inputIndex];
+    }
+  }
+
   private static String sourcePathToManifestHeader(
       SourcePath input, SourcePathResolverAdapter resolver) {
     return sourcePathToManifestPathKey(input, resolver).toString();
@@ -342,6 +402,6 @@ public class Manifest {
   }
 
   public ManifestStats getStats() {
-    return ImmutableManifestStats.of(entries.size(), hashes.size(), inputs.size());
+    return ImmutableManifestStats.of(entries.size(), hashes.size(), inputs.size(), lookupProbes);
   }
 }
@@ -26,4 +26,7 @@ public interface ManifestStats {
   int getNumHashes();
 
   int getNumInputs();
+
+  /** @return the number of on-disk input hashes computed while looking up this manifest. */
+  int getNumLookupProbes();
 }
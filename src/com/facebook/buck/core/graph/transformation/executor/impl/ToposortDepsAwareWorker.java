@@ -155,7 +155,10 @@ class ToposortDepsAwareWorker<T> extends AbstractDepsAwareWorker<ToposortBasedDe
       TaskStatus status = task.getStatus();
       if (status != TaskStatus.DONE) {
         notDoneDepsBuilder.add(task);
-        if (task.compareAndSetStatus(TaskStatus.NOT_SCHEDULED, TaskStatus.SCHEDULED)) {
+        // a task which is waiting on its own deps is rescheduled by them, so running it again now
+        // would only register it with them once more
+        if (task.numOutStandingDependencies.get() == 0
+            && task.compareAndSetStatus(TaskStatus.NOT_SCHEDULED, TaskStatus.SCHEDULED)) {
           sharedQueue.putFirst(task);
         }
       }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.graph.transformation.executor.impl;
+
+import com.facebook.buck.core.graph.transformation.executor.DepsAwareExecutor;
+import com.facebook.buck.core.graph.transformation.executor.DepsAwareTask;
+import com.facebook.buck.core.graph.transformation.executor.DepsAwareTask.DepsSupplier;
+import com.facebook.buck.core.graph.transformation.executor.impl.AbstractDepsAwareTask.TaskStatus;
+import com.facebook.buck.util.function.ThrowingSupplier;
+import com.google.common.base.Verify;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A specialized Executor that executes {@link DepsAwareTask}. This executor will attempt to
+ * maintain maximum concurrency, while completing dependencies of each supplied work first.
+ *
+ * <p>This implementation runs the tasks in a {@link ForkJoinPool}, where each worker has its own
+ * deque of tasks and idle workers steal from the others, instead of all workers contending on one
+ * shared queue. Dependencies discovered by a task are pushed to the deque of the worker running it,
+ * so that worker continues depth first with the work it just found, while other workers steal the
+ * older, larger pieces of work.
+ *
+ * <p>As in {@link ToposortBasedDepsAwareExecutor}, a task waiting on dependencies is not requeued,
+ * but registers itself with them, and the last of them to complete schedules it through the
+ * task's atomic counter of outstanding dependencies.
+ */
+public class WorkStealingDepsAwareExecutor<T>
+    implements DepsAwareExecutor<T, ToposortBasedDepsAwareTask<T>> {
+
+  private final ForkJoinPool pool;
+
+  private volatile boolean isShutdown = false;
+
+  private WorkStealingDepsAwareExecutor(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /** Creates a {@link WorkStealingDepsAwareExecutor} with the given {@code numberOfThreads}. */
+  public static <U> WorkStealingDepsAwareExecutor<U> of(int numberOfThreads) {
+    // Not async mode, so each worker runs the tasks it pushed last first.
+    ForkJoinPool pool =
+        new ForkJoinPool(
+            numberOfThreads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, false);
+    return new WorkStealingDepsAwareExecutor<>(pool);
+  }
+
+  @Override
+  public void close() {
+    isShutdown = true;
+    pool.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return isShutdown;
+  }
+
+  @Override
+  public ToposortBasedDepsAwareTask<T> createThrowingTask(
+      Callable<T> callable,
+      ThrowingSupplier<ImmutableSet<ToposortBasedDepsAwareTask<T>>, Exception> prereqSupplier,
+      ThrowingSupplier<ImmutableSet<ToposortBasedDepsAwareTask<T>>, Exception> depsSupplier) {
+    return ToposortBasedDepsAwareTask.of(callable, DepsSupplier.of(prereqSupplier, depsSupplier));
+  }
+
+  @Override
+  public ToposortBasedDepsAwareTask<T> createTask(Callable<T> callable) {
+    return ToposortBasedDepsAwareTask.of(callable);
+  }
+
+  @Override
+  public Future<T> submit(ToposortBasedDepsAwareTask<T> task) {
+    if (isShutdown) {
+      throw new RejectedExecutionException("Executor has already been shutdown");
+    }
+    schedule(task);
+    return task.getResultFuture();
+  }
+
+  @Override
+  public ImmutableList<Future<T>> submitAll(Collection<ToposortBasedDepsAwareTask<T>> tasks) {
+    ImmutableList.Builder<Future<T>> futures = ImmutableList.builderWithExpectedSize(tasks.size());
+    for (ToposortBasedDepsAwareTask<T> task : tasks) {
+      futures.add(submit(task));
+    }
+    return futures.build();
+  }
+
+  private void schedule(ToposortBasedDepsAwareTask<T> task) {
+    if (task.compareAndSetStatus(TaskStatus.NOT_SCHEDULED, TaskStatus.SCHEDULED)) {
+      enqueue(task);
+    }
+  }
+
+  /** Queues a {@link TaskStatus#SCHEDULED} task, on the current worker's deque if there is one. */
+  private void enqueue(ToposortBasedDepsAwareTask<T> task) {
+    ForkJoinTask<?> job = ForkJoinTask.adapt(() -> eval(task));
+    Thread thread = Thread.currentThread();
+    if (thread instanceof ForkJoinWorkerThread
+        && ((ForkJoinWorkerThread) thread).getPool() == pool) {
+      job.fork();
+      return;
+    }
+    try {
+      pool.execute(job);
+    } catch (RejectedExecutionException e) {
+      if (!isShutdown) {
+        throw e;
+      }
+      // Work found after shutting down is dropped, like the work that was already queued.
+    }
+  }
+
+  /**
+   * The {@link TaskStatus} is used to synchronize between tasks.
+   *
+   * <p>Tasks in the pool should always have a status of {@link TaskStatus#SCHEDULED}. A task that
+   * is waiting for its dependencies is {@link TaskStatus#NOT_SCHEDULED} only once it is registered
+   * with all of them, and is scheduled again by whichever of them brings its count of outstanding
+   * dependencies to zero. Completed tasks are {@link TaskStatus#DONE}, whether they failed or not,
+   * and always report their completion so that tasks depending on them are never stranded.
+   */
+  private void eval(ToposortBasedDepsAwareTask<T> task) {
+    if (!task.compareAndSetStatus(TaskStatus.SCHEDULED, TaskStatus.STARTED)) {
+      return;
+    }
+
+    try {
+      if (!awaitTasks(task, task.getPrereqs()) || !awaitTasks(task, task.getDependencies())) {
+        return;
+      }
+    } catch (Throwable e) {
+      completeWithException(task, e);
+      scheduleDependants(task);
+      return;
+    }
+
+    task.call();
+    scheduleDependants(task);
+  }
+
+  /**
+   * Schedules the given tasks which aren't done, and registers {@code task} with them.
+   *
+   * @return whether {@code task} may keep running, which is when all of the given tasks are done.
+   *     Otherwise {@code task} will be scheduled again by the last of them to complete.
+   */
+  private boolean awaitTasks(
+      ToposortBasedDepsAwareTask<T> task, ImmutableSet<ToposortBasedDepsAwareTask<T>> tasks)
+      throws ExecutionException, InterruptedException {
+    List<ToposortBasedDepsAwareTask<T>> notDone = new ArrayList<>();
+    for (ToposortBasedDepsAwareTask<T> dep : tasks) {
+      if (dep.getStatus() != TaskStatus.DONE) {
+        notDone.add(dep);
+        // A dep which is waiting on its own deps is scheduled by them, so running it again now
+        // would only register it with them once more.
+        if (dep.numOutStandingDependencies.get() == 0) {
+          schedule(dep);
+        }
+      }
+      propagateException(dep);
+    }
+    if (notDone.isEmpty()) {
+      return true;
+    }
+
+    notDone.forEach(dep -> dep.registerDependant(task));
+    // The task becomes NOT_SCHEDULED only when all its deps are registered, after which its count
+    // of outstanding dependencies can only decrease.
+    Verify.verify(task.compareAndSetStatus(TaskStatus.STARTED, TaskStatus.NOT_SCHEDULED));
+    return task.numOutStandingDependencies.get() == 0
+        && task.compareAndSetStatus(TaskStatus.NOT_SCHEDULED, TaskStatus.STARTED);
+  }
+
+  private void scheduleDependants(ToposortBasedDepsAwareTask<T> task) {
+    for (ToposortBasedDepsAwareTask<T> dependant : task.reportCompletionToDependents()) {
+      if (!dependant.compareAndSetStatus(TaskStatus.NOT_SCHEDULED, TaskStatus.SCHEDULED)) {
+        continue;
+      }
+      if (dependant.numOutStandingDependencies.get() != 0) {
+        // The dependant may still have been registering with its other dependencies when this task
+        // completed. Put it back, and recheck in case the last of them completed in the meantime
+        // and was blocked from scheduling it by this task.
+        Verify.verify(
+            dependant.compareAndSetStatus(TaskStatus.SCHEDULED, TaskStatus.NOT_SCHEDULED));
+        if (dependant.numOutStandingDependencies.get() != 0
+            || !dependant.compareAndSetStatus(TaskStatus.NOT_SCHEDULED, TaskStatus.SCHEDULED)) {
+          continue;
+        }
+      }
+      enqueue(dependant);
+    }
+  }
+
+  /** propagate an exception for the dependency to the current task by throwing it */
+  private static void propagateException(ToposortBasedDepsAwareTask<?> task)
+      throws ExecutionException, InterruptedException {
+    CompletableFuture<?> depResult = task.getFuture();
+    if (depResult.isCompletedExceptionally()) {
+      depResult.get();
+      Verify.verify(false, "Should have completed exceptionally");
+    }
+  }
+
+  private static void completeWithException(ToposortBasedDepsAwareTask<?> task, Throwable e) {
+    if (e instanceof ExecutionException) {
+      e = e.getCause();
+    }
+    task.getFuture().completeExceptionally(e);
+    Verify.verify(task.compareAndSetStatus(TaskStatus.STARTED, TaskStatus.DONE));
+  }
+}
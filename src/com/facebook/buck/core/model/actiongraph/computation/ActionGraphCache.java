@@ -18,47 +18,177 @@ package com.facebook.buck.core.model.actiongraph.computation;
 
 import com.facebook.buck.core.model.actiongraph.ActionGraphAndBuilder;
 import com.facebook.buck.core.model.targetgraph.TargetGraph;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
 import com.facebook.buck.core.rules.ActionGraphBuilder;
+import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.event.BuckEventBus;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.base.Preconditions;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
 import javax.annotation.Nullable;
 
-/** Contains cached action graphs. */
+/**
+ * Contains cached action graphs.
+ *
+ * <p>Several generations of action graphs are kept, up to a maximum number of entries and a
+ * maximum total number of build rules, evicting the least-recently-used ones first. When an action
+ * graph is generated incrementally while the cache is full, build rules are reused from the cached
+ * generation that shares the most unchanged target nodes with the new target graph, which is
+ * evicted in turn, since its rules move to the new action graph. While the cache has room for
+ * another generation, new action graphs are generated from scratch, so that the cached ones stay
+ * intact.
+ */
 public class ActionGraphCache {
+  private static final Logger LOG = Logger.get(ActionGraphCache.class);
+
+  private final int maxEntries;
+  private final long maxRules;
+
+  /** Cached generations in least-recently-used order. */
+  private final LinkedHashMap<TargetGraph, CachedActionGraph> previousActionGraphs;
 
-  private final Cache<TargetGraph, ActionGraphAndBuilder> previousActionGraphs;
   private final IncrementalActionGraphGenerator incrementalActionGraphGenerator;
 
+  private long cachedRules;
+
   public ActionGraphCache(int maxEntries) {
-    previousActionGraphs = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
-    incrementalActionGraphGenerator = new IncrementalActionGraphGenerator();
+    this(maxEntries, Long.MAX_VALUE);
   }
 
-  public void invalidateCache() {
-    previousActionGraphs.invalidateAll();
+  /**
+   * @param maxEntries the maximum number of action graphs to keep.
+   * @param maxRules the maximum number of build rules in all kept action graphs together. The most
+   *     recently used action graph is kept even if it alone exceeds this number.
+   */
+  public ActionGraphCache(int maxEntries, long maxRules) {
+    Preconditions.checkArgument(maxEntries >= 0);
+    Preconditions.checkArgument(maxRules >= 0);
+    this.maxEntries = maxEntries;
+    this.maxRules = maxRules;
+    this.previousActionGraphs = new LinkedHashMap<>(16, 0.75f, true);
+    this.incrementalActionGraphGenerator = new IncrementalActionGraphGenerator();
+  }
+
+  public synchronized void invalidateCache() {
+    previousActionGraphs.clear();
+    cachedRules = 0;
   }
 
   @Nullable
-  public ActionGraphAndBuilder getIfPresent(TargetGraph targetGraph) {
-    return previousActionGraphs.getIfPresent(targetGraph);
+  public synchronized ActionGraphAndBuilder getIfPresent(TargetGraph targetGraph) {
+    CachedActionGraph cached = previousActionGraphs.get(targetGraph);
+    return cached == null ? null : cached.actionGraphAndBuilder;
   }
 
-  public boolean isEmpty() {
-    return previousActionGraphs.size() == 0;
+  public synchronized boolean isEmpty() {
+    return previousActionGraphs.isEmpty();
   }
 
-  public long size() {
+  public synchronized long size() {
     return previousActionGraphs.size();
   }
 
-  public void put(TargetGraph targetGraph, ActionGraphAndBuilder actionGraphAndBuilder) {
-    previousActionGraphs.put(targetGraph, actionGraphAndBuilder);
+  public synchronized void put(
+      TargetGraph targetGraph, ActionGraphAndBuilder actionGraphAndBuilder) {
+    CachedActionGraph cached = new CachedActionGraph(actionGraphAndBuilder);
+    CachedActionGraph replaced = previousActionGraphs.put(targetGraph, cached);
+    if (replaced != null) {
+      cachedRules -= replaced.ruleCount;
+    }
+    cachedRules += cached.ruleCount;
+
+    Iterator<CachedActionGraph> leastRecentlyUsed = previousActionGraphs.values().iterator();
+    while (previousActionGraphs.size() > maxEntries
+        || (cachedRules > maxRules && previousActionGraphs.size() > 1)) {
+      cachedRules -= leastRecentlyUsed.next().ruleCount;
+      leastRecentlyUsed.remove();
+    }
   }
 
+  /**
+   * Populates {@code graphBuilder} with the usable rules of a previously generated action graph,
+   * which is removed from the cache.
+   */
   public void populateActionGraphBuilderWithCachedRules(
       BuckEventBus eventBus, TargetGraph targetGraph, ActionGraphBuilder graphBuilder) {
-    incrementalActionGraphGenerator.populateActionGraphBuilderWithCachedRules(
-        eventBus, targetGraph, graphBuilder);
+    Optional<Map.Entry<TargetGraph, CachedActionGraph>> previousGeneration;
+    boolean reusePreviousGeneration;
+    synchronized (this) {
+      reusePreviousGeneration = previousActionGraphs.isEmpty() || isFull();
+      previousGeneration =
+          reusePreviousGeneration ? removeMostSimilarGeneration(targetGraph) : Optional.empty();
+    }
+
+    if (!reusePreviousGeneration) {
+      // Leave the cached generations intact, since they can all be kept alongside the new one.
+      incrementalActionGraphGenerator.populateActionGraphBuilderWithCachedRules(
+          eventBus, targetGraph, graphBuilder, null, null);
+    } else if (previousGeneration.isPresent()) {
+      incrementalActionGraphGenerator.populateActionGraphBuilderWithCachedRules(
+          eventBus,
+          targetGraph,
+          graphBuilder,
+          previousGeneration.get().getKey(),
+          previousGeneration.get().getValue().actionGraphAndBuilder.getActionGraphBuilder());
+    } else {
+      // Nothing is cached, but the last generated action graph may still be reused.
+      incrementalActionGraphGenerator.populateActionGraphBuilderWithCachedRules(
+          eventBus, targetGraph, graphBuilder);
+    }
+  }
+
+  private boolean isFull() {
+    return previousActionGraphs.size() >= maxEntries || cachedRules >= maxRules;
+  }
+
+  /**
+   * Removes the cached generation with the most target nodes that are unchanged in {@code
+   * targetGraph}, preferring less recently used ones.
+   */
+  private Optional<Map.Entry<TargetGraph, CachedActionGraph>> removeMostSimilarGeneration(
+      TargetGraph targetGraph) {
+    Map.Entry<TargetGraph, CachedActionGraph> mostSimilar = null;
+    int mostUnchangedNodes = -1;
+    for (Map.Entry<TargetGraph, CachedActionGraph> entry : previousActionGraphs.entrySet()) {
+      int unchangedNodes = countUnchangedNodes(entry.getKey(), targetGraph);
+      if (unchangedNodes > mostUnchangedNodes) {
+        mostSimilar = entry;
+        mostUnchangedNodes = unchangedNodes;
+      }
+    }
+    if (mostSimilar == null) {
+      return Optional.empty();
+    }
+    LOG.debug(
+        "reusing build rules from a cached action graph with %d unchanged target nodes",
+        mostUnchangedNodes);
+    previousActionGraphs.remove(mostSimilar.getKey());
+    cachedRules -= mostSimilar.getValue().ruleCount;
+    return Optional.of(mostSimilar);
+  }
+
+  private static int countUnchangedNodes(TargetGraph previousTargetGraph, TargetGraph targetGraph) {
+    int unchangedNodes = 0;
+    for (TargetNode<?> node : targetGraph.getNodes()) {
+      Optional<TargetNode<?>> previousNode =
+          previousTargetGraph.getExactOptional(node.getBuildTarget());
+      if (previousNode.isPresent() && previousNode.get().equals(node)) {
+        unchangedNodes++;
+      }
+    }
+    return unchangedNodes;
+  }
+
+  /** An action graph together with its number of build rules, which is costly to compute. */
+  private static final class CachedActionGraph {
+    private final ActionGraphAndBuilder actionGraphAndBuilder;
+    private final long ruleCount;
+
+    private CachedActionGraph(ActionGraphAndBuilder actionGraphAndBuilder) {
+      this.actionGraphAndBuilder = actionGraphAndBuilder;
+      this.ruleCount = actionGraphAndBuilder.getActionGraph().getSize();
+    }
   }
 }
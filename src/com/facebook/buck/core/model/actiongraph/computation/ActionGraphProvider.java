@@ -210,17 +210,13 @@ public class ActionGraphProvider {
         transformer,
         targetGraph,
         incrementalActionGraphMode,
-        graphBuilder -> {
-          // Any previously cached action graphs are no longer valid, as we may use build rules
-          // from those graphs to construct a new graph incrementally, and update those build
-          // rules to use a new BuildRuleResolver.
-          actionGraphCache.invalidateCache();
-
-          // Populate the new build rule graphBuilder with all of the usable rules from the last
-          // build rule graphBuilder for incremental action graph generation.
-          actionGraphCache.populateActionGraphBuilderWithCachedRules(
-              eventBus, targetGraph, graphBuilder);
-        });
+        graphBuilder ->
+            // Populate the new build rule graphBuilder with all of the usable rules from a previous
+            // build rule graphBuilder for incremental action graph generation. The cache drops the
+            // action graph those rules are taken from, as they are updated to use a new
+            // BuildRuleResolver.
+            actionGraphCache.populateActionGraphBuilderWithCachedRules(
+                eventBus, targetGraph, graphBuilder));
   }
 
   private static Map<BuildRule, RuleKey> getRuleKeysFromBuildRules(
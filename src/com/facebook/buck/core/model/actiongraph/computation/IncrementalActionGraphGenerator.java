@@ -57,14 +57,32 @@ public class IncrementalActionGraphGenerator {
    */
   public void populateActionGraphBuilderWithCachedRules(
       BuckEventBus eventBus, TargetGraph targetGraph, ActionGraphBuilder graphBuilder) {
+    populateActionGraphBuilderWithCachedRules(
+        eventBus, targetGraph, graphBuilder, lastTargetGraph, lastActionGraphBuilder);
+  }
+
+  /**
+   * Populates the given {@link ActionGraphBuilder} with the rules from {@code
+   * previousGraphBuilder}, which was created for {@code previousTargetGraph}, that are deemed
+   * usable after checking for invalidations with a target graph walk. The previous {@link
+   * ActionGraphBuilder} is invalidated, so it must not be used after this call.
+   *
+   * <p>If no previous {@link ActionGraphBuilder} is given, no rules are reused.
+   */
+  public void populateActionGraphBuilderWithCachedRules(
+      BuckEventBus eventBus,
+      TargetGraph targetGraph,
+      ActionGraphBuilder graphBuilder,
+      @Nullable TargetGraph previousTargetGraph,
+      @Nullable ActionGraphBuilder previousGraphBuilder) {
     int reusedRuleCount = 0;
-    if (lastActionGraphBuilder != null) {
-      Objects.requireNonNull(lastTargetGraph);
+    if (previousGraphBuilder != null) {
+      Objects.requireNonNull(previousTargetGraph);
 
       // We first walk the new target graph to find new nodes. A new node will invalidate all nodes
       // with the same unflavored target.
       Set<UnflavoredBuildTarget> unflavoredTargetsForNewNodes =
-          findUnflavoredTargetsForNewNodes(targetGraph);
+          findUnflavoredTargetsForNewNodes(targetGraph, previousTargetGraph);
 
       // We figure out which build rules we can reuse from the last action graph by performing an
       // invalidation walk over the new target graph.
@@ -72,6 +90,8 @@ public class IncrementalActionGraphGenerator {
       Set<UnflavoredBuildTarget> allUnflavoredTargetsInNewGraph = new HashSet<>();
       invalidateChangedTargets(
           targetGraph,
+          previousTargetGraph,
+          previousGraphBuilder,
           allUnflavoredTargetsInNewGraph,
           invalidUnflavoredTargets,
           unflavoredTargetsForNewNodes);
@@ -80,11 +100,14 @@ public class IncrementalActionGraphGenerator {
       // incremental action graph generation.
       reusedRuleCount =
           addValidRulesToActionGraphBuilder(
-              graphBuilder, allUnflavoredTargetsInNewGraph, invalidUnflavoredTargets);
+              graphBuilder,
+              previousGraphBuilder,
+              allUnflavoredTargetsInNewGraph,
+              invalidUnflavoredTargets);
 
       // Invalidate the previous {@see ActionGraphBuilder}, which we no longer need, to make sure
       // nobody unexpectedly accesses it after this point.
-      lastActionGraphBuilder.invalidate();
+      previousGraphBuilder.invalidate();
     }
 
     lastTargetGraph = targetGraph;
@@ -92,12 +115,14 @@ public class IncrementalActionGraphGenerator {
     eventBus.post(new ActionGraphEvent.IncrementalLoad(reusedRuleCount));
   }
 
-  private Set<UnflavoredBuildTarget> findUnflavoredTargetsForNewNodes(TargetGraph targetGraph) {
+  private Set<UnflavoredBuildTarget> findUnflavoredTargetsForNewNodes(
+      TargetGraph targetGraph, TargetGraph previousTargetGraph) {
     ImmutableSet.Builder<UnflavoredBuildTarget> unflavoredTargetsForNewNodes =
         new ImmutableSet.Builder<>();
     Set<BuildTarget> explored = new HashSet<>();
     for (TargetNode<?> root : targetGraph.getNodesWithNoIncomingEdges()) {
-      findUnflavoredTargetsForNewNodes(root, targetGraph, explored, unflavoredTargetsForNewNodes);
+      findUnflavoredTargetsForNewNodes(
+          root, targetGraph, previousTargetGraph, explored, unflavoredTargetsForNewNodes);
     }
     return unflavoredTargetsForNewNodes.build();
   }
@@ -105,6 +130,7 @@ public class IncrementalActionGraphGenerator {
   private void findUnflavoredTargetsForNewNodes(
       TargetNode<?> node,
       TargetGraph targetGraph,
+      TargetGraph previousTargetGraph,
       Set<BuildTarget> explored,
       ImmutableSet.Builder<UnflavoredBuildTarget> unflavoredTargetsForNewNodes) {
     if (explored.contains(node.getBuildTarget())) {
@@ -112,23 +138,24 @@ public class IncrementalActionGraphGenerator {
     }
     explored.add(node.getBuildTarget());
 
-    if (!lastTargetGraph.getExactOptional(node.getBuildTarget()).isPresent()) {
+    if (!previousTargetGraph.getExactOptional(node.getBuildTarget()).isPresent()) {
       unflavoredTargetsForNewNodes.add(node.getBuildTarget().getUnflavoredBuildTarget());
     }
 
     for (TargetNode<?> child : targetGraph.getOutgoingNodesFor(node)) {
-      findUnflavoredTargetsForNewNodes(child, targetGraph, explored, unflavoredTargetsForNewNodes);
+      findUnflavoredTargetsForNewNodes(
+          child, targetGraph, previousTargetGraph, explored, unflavoredTargetsForNewNodes);
     }
   }
 
   private int addValidRulesToActionGraphBuilder(
       ActionGraphBuilder graphBuilder,
+      ActionGraphBuilder previousGraphBuilder,
       Set<UnflavoredBuildTarget> allUnflavoredTargetsInNewGraph,
       Set<UnflavoredBuildTarget> invalidUnflavoredTargets) {
     int totalRuleCount = 0;
     int reusedRuleCount = 0;
-    for (BuildRule buildRule :
-        Objects.requireNonNull(lastActionGraphBuilder).getSuccessfullyConstructedBuildRules()) {
+    for (BuildRule buildRule : previousGraphBuilder.getSuccessfullyConstructedBuildRules()) {
       UnflavoredBuildTarget unflavoredTarget =
           buildRule.getBuildTarget().getUnflavoredBuildTarget();
       if (!invalidUnflavoredTargets.contains(unflavoredTarget)
@@ -151,6 +178,8 @@ public class IncrementalActionGraphGenerator {
 
   private void invalidateChangedTargets(
       TargetGraph targetGraph,
+      TargetGraph previousTargetGraph,
+      ActionGraphBuilder previousGraphBuilder,
       Set<UnflavoredBuildTarget> allUnflavoredTargetsInNewGraph,
       Set<UnflavoredBuildTarget> invalidUnflavoredTargets,
       Set<UnflavoredBuildTarget> unflavoredTargetsForNewNodes) {
@@ -159,6 +188,8 @@ public class IncrementalActionGraphGenerator {
       invalidateChangedTargets(
           root,
           targetGraph,
+          previousTargetGraph,
+          previousGraphBuilder,
           explored,
           allUnflavoredTargetsInNewGraph,
           invalidUnflavoredTargets,
@@ -169,6 +200,8 @@ public class IncrementalActionGraphGenerator {
   private boolean invalidateChangedTargets(
       TargetNode<?> node,
       TargetGraph targetGraph,
+      TargetGraph previousTargetGraph,
+      ActionGraphBuilder previousGraphBuilder,
       Map<BuildTarget, Boolean> explored,
       Set<UnflavoredBuildTarget> allUnflavoredTargetsInNewGraph,
       Set<UnflavoredBuildTarget> invalidUnflavoredTargets,
@@ -188,6 +221,8 @@ public class IncrementalActionGraphGenerator {
           invalidateChangedTargets(
               child,
               targetGraph,
+              previousTargetGraph,
+              previousGraphBuilder,
               explored,
               allUnflavoredTargetsInNewGraph,
               invalidUnflavoredTargets,
@@ -195,7 +230,9 @@ public class IncrementalActionGraphGenerator {
     }
 
     boolean invalidateParent = false;
-    if (ancestorInvalidated || shouldInvalidateParentChain(node, unflavoredTargetsForNewNodes)) {
+    if (ancestorInvalidated
+        || shouldInvalidateParentChain(
+            node, previousTargetGraph, previousGraphBuilder, unflavoredTargetsForNewNodes)) {
       if (LOG.isVerboseEnabled()) {
         LOG.verbose("invalidating target %s", node.getBuildTarget().toString());
       }
@@ -210,7 +247,10 @@ public class IncrementalActionGraphGenerator {
   }
 
   private boolean shouldInvalidateParentChain(
-      TargetNode<?> targetNode, Set<UnflavoredBuildTarget> unflavoredTargetsForNewNodes) {
+      TargetNode<?> targetNode,
+      TargetGraph previousTargetGraph,
+      ActionGraphBuilder previousGraphBuilder,
+      Set<UnflavoredBuildTarget> unflavoredTargetsForNewNodes) {
     if (unflavoredTargetsForNewNodes.contains(
         targetNode.getBuildTarget().getUnflavoredBuildTarget())) {
       // If this node wasn't present in the previous graph, we need to invalidate, as flavored
@@ -227,33 +267,31 @@ public class IncrementalActionGraphGenerator {
       return true;
     }
 
-    if (lastTargetGraph != null) {
-      Optional<TargetNode<?>> previousTargetNode =
-          lastTargetGraph.getExactOptional(targetNode.getBuildTarget());
-      if (previousTargetNode.isPresent()) {
-        if (targetNode.getBuildTarget().getTargetConfiguration()
-            != ConfigurationForConfigurationTargets.INSTANCE) {
-          // Config nodes don't appear on action graphs
-          Preconditions.checkState(
-              lastActionGraphBuilder.getRuleOptional(targetNode.getBuildTarget()).isPresent(),
-              "Target not found in previous action graph: %s",
-              targetNode.getBuildTarget());
-        }
-        // If the target node has changed, then invalidate parent chains, as ancestors might
-        // generate their subgraphs differently given the change.
-        if (!targetNode.equals(previousTargetNode.get())) {
-          if (LOG.isVerboseEnabled()) {
-            LOG.verbose(
-                "target %s caused invalidation due to target node change",
-                targetNode.getBuildTarget().toString());
-          }
-          return true;
-        }
-      } else {
+    Optional<TargetNode<?>> previousTargetNode =
+        previousTargetGraph.getExactOptional(targetNode.getBuildTarget());
+    if (previousTargetNode.isPresent()) {
+      if (targetNode.getBuildTarget().getTargetConfiguration()
+          != ConfigurationForConfigurationTargets.INSTANCE) {
+        // Config nodes don't appear on action graphs
         Preconditions.checkState(
-            unflavoredTargetsForNewNodes.contains(
-                targetNode.getBuildTarget().getUnflavoredBuildTarget()));
+            previousGraphBuilder.getRuleOptional(targetNode.getBuildTarget()).isPresent(),
+            "Target not found in previous action graph: %s",
+            targetNode.getBuildTarget());
+      }
+      // If the target node has changed, then invalidate parent chains, as ancestors might
+      // generate their subgraphs differently given the change.
+      if (!targetNode.equals(previousTargetNode.get())) {
+        if (LOG.isVerboseEnabled()) {
+          LOG.verbose(
+              "target %s caused invalidation due to target node change",
+              targetNode.getBuildTarget().toString());
+        }
+        return true;
       }
+    } else {
+      Preconditions.checkState(
+          unflavoredTargetsForNewNodes.contains(
+              targetNode.getBuildTarget().getUnflavoredBuildTarget()));
     }
 
     // Incremental caching is only supported for {@link Description}s known to
@@ -42,6 +42,18 @@ public abstract class AbstractBottomUpTraversal<T, E extends Throwable> {
    * @throws E
    */
   public final void traverse(Predicate<T> shouldExploreChildren) throws E {
+    if (graph instanceof DirectedAcyclicGraph) {
+      CompactDirectedGraph<T> compactGraph = ((DirectedAcyclicGraph<T>) graph).getCompactGraph();
+      int[] postOrder =
+          compactGraph.depthFirstPostOrder(
+              compactGraph.getIndexesOfNodesWithNoIncomingEdges(),
+              index -> shouldExploreChildren.test(compactGraph.getNode(index)));
+      for (int index : postOrder) {
+        visit(compactGraph.getNode(index));
+      }
+      return;
+    }
+
     Iterable<T> roots = graph.getNodesWithNoIncomingEdges();
     GraphTraversable<T> graphTraversable = node -> graph.getOutgoingNodesFor(node).iterator();
     try {
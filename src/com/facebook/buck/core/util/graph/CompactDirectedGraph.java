@@ -0,0 +1,525 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.util.graph;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.IntPredicate;
+import javax.annotation.Nullable;
+
+/**
+ * An immutable directed graph stored in compressed sparse row form: each node is interned to a
+ * dense index in {@code [0, getNodeCount())}, and the edges of all the nodes are stored in a pair
+ * of {@code int} arrays, one for the outgoing and one for the incoming edges.
+ *
+ * <p>Compared to {@link MutableDirectedGraph}, which keeps a multimap entry and a set per edge and
+ * per node for both directions, this takes a few {@code int}s per edge, and the traversals which
+ * work on the indexes of the nodes don't need any hashing or boxing.
+ *
+ * <p>The indexes of the nodes follow the iteration order of the nodes of the graph this was
+ * created from, and the edges of each node keep their iteration order as well, so that traversals
+ * visit nodes in the same order as they would on the original graph.
+ *
+ * @param <T> the type of object stored as nodes in this graph
+ */
+public final class CompactDirectedGraph<T> implements TraversableGraph<T> {
+
+  private final ImmutableSet<T> nodes;
+  private final ImmutableList<T> nodesByIndex;
+
+  /**
+   * Open addressing hash table from nodes to their indexes, holding {@code index + 1} so that zero
+   * marks an empty slot.
+   */
+  private final int[] indexTable;
+
+  /**
+   * The indexes of the nodes the node with index {@code i} has an edge to are in {@code
+   * outgoingEdges[outgoingOffsets[i]]} to {@code outgoingEdges[outgoingOffsets[i + 1] - 1]}, and
+   * likewise for the incoming edges.
+   */
+  private final int[] outgoingOffsets;
+
+  private final int[] outgoingEdges;
+  private final int[] incomingOffsets;
+  private final int[] incomingEdges;
+
+  private CompactDirectedGraph(
+      ImmutableSet<T> nodes,
+      int[] outgoingOffsets,
+      int[] outgoingEdges,
+      int[] incomingOffsets,
+      int[] incomingEdges,
+      int[] indexTable) {
+    this.nodes = nodes;
+    this.nodesByIndex = nodes.asList();
+    this.outgoingOffsets = outgoingOffsets;
+    this.outgoingEdges = outgoingEdges;
+    this.incomingOffsets = incomingOffsets;
+    this.incomingEdges = incomingEdges;
+    this.indexTable = indexTable;
+  }
+
+  /** Creates a compact copy of the nodes and edges of the given graph. */
+  public static <T> CompactDirectedGraph<T> copyOf(MutableDirectedGraph<T> graph) {
+    ImmutableSet<T> nodes = graph.createImmutableCopyOfNodes();
+    ImmutableList<T> nodesByIndex = nodes.asList();
+    int[] indexTable = createIndexTable(nodesByIndex);
+
+    int nodeCount = nodes.size();
+    int edgeCount = graph.getEdgeCount();
+    int[] outgoingOffsets = new int[nodeCount + 1];
+    int[] outgoingEdges = new int[edgeCount];
+    int[] incomingOffsets = new int[nodeCount + 1];
+    int[] incomingEdges = new int[edgeCount];
+    int outgoingCount = 0;
+    int incomingCount = 0;
+    for (int i = 0; i < nodeCount; i++) {
+      T node = nodesByIndex.get(i);
+      outgoingOffsets[i] = outgoingCount;
+      for (T sink : graph.getOutgoingNodesFor(node)) {
+        outgoingEdges[outgoingCount++] = lookUp(indexTable, nodesByIndex, sink);
+      }
+      incomingOffsets[i] = incomingCount;
+      for (T source : graph.getIncomingNodesFor(node)) {
+        incomingEdges[incomingCount++] = lookUp(indexTable, nodesByIndex, source);
+      }
+    }
+    Preconditions.checkState(
+        outgoingCount == edgeCount && incomingCount == edgeCount,
+        "Graph was modified while being copied");
+    outgoingOffsets[nodeCount] = outgoingCount;
+    incomingOffsets[nodeCount] = incomingCount;
+
+    return new CompactDirectedGraph<>(
+        nodes, outgoingOffsets, outgoingEdges, incomingOffsets, incomingEdges, indexTable);
+  }
+
+  private static int[] createIndexTable(ImmutableList<?> nodesByIndex) {
+    // Keep the table at most half full so that probe sequences stay short.
+    int[] table = new int[Math.max(2, Integer.highestOneBit(Math.max(1, nodesByIndex.size())) * 4)];
+    int mask = table.length - 1;
+    for (int i = 0; i < nodesByIndex.size(); i++) {
+      int slot = smear(nodesByIndex.get(i).hashCode()) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = i + 1;
+    }
+    return table;
+  }
+
+  private static int lookUp(int[] indexTable, ImmutableList<?> nodesByIndex, Object node) {
+    int mask = indexTable.length - 1;
+    for (int slot = smear(node.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+      int entry = indexTable[slot];
+      if (entry == 0) {
+        return -1;
+      }
+      if (nodesByIndex.get(entry - 1).equals(node)) {
+        return entry - 1;
+      }
+    }
+  }
+
+  private static int smear(int hashCode) {
+    // Same as the hash spreading of Guava's hash based immutable collections.
+    return 0x1b873593 * Integer.rotateLeft(hashCode * 0xcc9e2d51, 15);
+  }
+
+  /** @return the number of nodes in the graph */
+  public int getNodeCount() {
+    return nodesByIndex.size();
+  }
+
+  /** @return the number of edges in the graph */
+  public int getEdgeCount() {
+    return outgoingEdges.length;
+  }
+
+  /** @return the index of the given node, or {@code -1} if it isn't in the graph. */
+  public int getIndex(@Nullable Object node) {
+    return node == null ? -1 : lookUp(indexTable, nodesByIndex, node);
+  }
+
+  /** @return the node with the given index. */
+  public T getNode(int index) {
+    return nodesByIndex.get(index);
+  }
+
+  /** @return the number of edges going out of the node with the given index. */
+  public int getOutDegree(int index) {
+    return outgoingOffsets[index + 1] - outgoingOffsets[index];
+  }
+
+  /** @return the index of the {@code i}th node the node with the given index has an edge to. */
+  public int getOutgoingIndex(int index, int i) {
+    return outgoingEdges[outgoingOffsets[index] + i];
+  }
+
+  /** @return the number of edges coming into the node with the given index. */
+  public int getInDegree(int index) {
+    return incomingOffsets[index + 1] - incomingOffsets[index];
+  }
+
+  /** @return the index of the {@code i}th node with an edge to the node with the given index. */
+  public int getIncomingIndex(int index, int i) {
+    return incomingEdges[incomingOffsets[index] + i];
+  }
+
+  /** @return the indexes of the nodes without incoming edges, in ascending order. */
+  public int[] getIndexesOfNodesWithNoIncomingEdges() {
+    return indexesOfNodesWithoutEdges(incomingOffsets);
+  }
+
+  /** @return the indexes of the nodes without outgoing edges, in ascending order. */
+  public int[] getIndexesOfNodesWithNoOutgoingEdges() {
+    return indexesOfNodesWithoutEdges(outgoingOffsets);
+  }
+
+  private int[] indexesOfNodesWithoutEdges(int[] offsets) {
+    int[] indexes = new int[getNodeCount()];
+    int count = 0;
+    for (int i = 0; i < indexes.length; i++) {
+      if (offsets[i] == offsets[i + 1]) {
+        indexes[count++] = i;
+      }
+    }
+    return Arrays.copyOf(indexes, count);
+  }
+
+  /**
+   * Sorts the nodes so that every node comes after all the nodes it has an edge to, in the same
+   * order as {@link TopologicalSort#sort(TraversableGraph)}. Nodes which are part of a cycle, or
+   * depend on one, are left out.
+   *
+   * @return the indexes of the sorted nodes.
+   */
+  public int[] topologicalSort() {
+    int nodeCount = getNodeCount();
+    int[] remainingOutDegrees = new int[nodeCount];
+    int[] sorted = new int[nodeCount];
+    int tail = 0;
+    for (int i = 0; i < nodeCount; i++) {
+      remainingOutDegrees[i] = getOutDegree(i);
+      if (remainingOutDegrees[i] == 0) {
+        sorted[tail++] = i;
+      }
+    }
+    // Breadth-first from the leaves: the sorted nodes double as the queue of nodes to explore.
+    for (int head = 0; head < tail; head++) {
+      int node = sorted[head];
+      for (int edge = incomingOffsets[node]; edge < incomingOffsets[node + 1]; edge++) {
+        int source = incomingEdges[edge];
+        if (--remainingOutDegrees[source] == 0) {
+          sorted[tail++] = source;
+        }
+      }
+    }
+    return tail == nodeCount ? sorted : Arrays.copyOf(sorted, tail);
+  }
+
+  /**
+   * Performs a depth-first, post-order traversal from the given nodes, in the same order as {@link
+   * AcyclicDepthFirstPostOrderTraversal}.
+   *
+   * @param roots the indexes of the nodes to start the traversal from.
+   * @param shouldExploreChildren whether or not to explore the children of the node with a given
+   *     index. Used to support short circuiting in the traversal.
+   * @return the indexes of the visited nodes, in post-order.
+   * @throws IllegalStateException if a cycle is found while performing the traversal.
+   */
+  public int[] depthFirstPostOrder(int[] roots, IntPredicate shouldExploreChildren) {
+    int nodeCount = getNodeCount();
+    BitSet explored = new BitSet(nodeCount);
+    BitSet inProgress = new BitSet(nodeCount);
+    int[] postOrder = new int[nodeCount];
+    int visitedCount = 0;
+
+    // The current chain of nodes being explored, and the next edge to follow from each of them.
+    int[] stack = new int[nodeCount];
+    int[] nextEdges = new int[nodeCount];
+    for (int root : roots) {
+      if (explored.get(root)) {
+        continue;
+      }
+      int depth = push(stack, nextEdges, 0, root, shouldExploreChildren);
+      inProgress.set(root);
+      while (depth > 0) {
+        int node = stack[depth - 1];
+        int child = -1;
+        while (nextEdges[depth - 1] < outgoingOffsets[node + 1]) {
+          int candidate = outgoingEdges[nextEdges[depth - 1]++];
+          if (inProgress.get(candidate)) {
+            throw new IllegalStateException(
+                "Cycle detected despite graph which was claimed to be a DAG: "
+                    + getNode(candidate)
+                    + " is part of a cycle");
+          }
+          if (!explored.get(candidate)) {
+            child = candidate;
+            break;
+          }
+        }
+        if (child == -1) {
+          depth--;
+          inProgress.clear(node);
+          explored.set(node);
+          postOrder[visitedCount++] = node;
+        } else {
+          depth = push(stack, nextEdges, depth, child, shouldExploreChildren);
+          inProgress.set(child);
+        }
+      }
+    }
+    return visitedCount == nodeCount ? postOrder : Arrays.copyOf(postOrder, visitedCount);
+  }
+
+  private int push(
+      int[] stack, int[] nextEdges, int depth, int node, IntPredicate shouldExploreChildren) {
+    stack[depth] = node;
+    // Nodes whose children shouldn't be explored start past their last edge.
+    nextEdges[depth] =
+        shouldExploreChildren.test(node) ? outgoingOffsets[node] : outgoingOffsets[node + 1];
+    return depth + 1;
+  }
+
+  /**
+   * @param roots the indexes of the nodes to start from.
+   * @return the indexes of the nodes reachable from the given nodes, including themselves.
+   */
+  public BitSet getTransitiveClosure(int[] roots) {
+    int nodeCount = getNodeCount();
+    BitSet closure = new BitSet(nodeCount);
+    int[] queue = new int[nodeCount];
+    int tail = 0;
+    for (int root : roots) {
+      if (!closure.get(root)) {
+        closure.set(root);
+        queue[tail++] = root;
+      }
+    }
+    for (int head = 0; head < tail; head++) {
+      int node = queue[head];
+      for (int edge = outgoingOffsets[node]; edge < outgoingOffsets[node + 1]; edge++) {
+        int target = outgoingEdges[edge];
+        if (!closure.get(target)) {
+          closure.set(target);
+          queue[tail++] = target;
+        }
+      }
+    }
+    return closure;
+  }
+
+  /**
+   * Performs a breadth-first traversal of the incoming edges from the given nodes, staying within
+   * the given set of nodes.
+   *
+   * @param roots the indexes of the nodes to start the traversal from. The ones which are not in
+   *     {@code within} are ignored.
+   * @param within the indexes of the nodes the traversal may visit.
+   * @param maxDepth the largest number of edges between a root and a visited node.
+   * @return the indexes of the visited nodes, level by level, with the roots first.
+   */
+  public int[] reverseBreadthFirst(int[] roots, BitSet within, int maxDepth) {
+    BitSet visited = new BitSet(getNodeCount());
+    int[] queue = new int[getNodeCount()];
+    int tail = 0;
+    for (int root : roots) {
+      if (within.get(root) && !visited.get(root)) {
+        visited.set(root);
+        queue[tail++] = root;
+      }
+    }
+    int head = 0;
+    for (int depth = 0; depth < maxDepth && head < tail; depth++) {
+      int levelEnd = tail;
+      for (; head < levelEnd; head++) {
+        int node = queue[head];
+        for (int edge = incomingOffsets[node]; edge < incomingOffsets[node + 1]; edge++) {
+          int source = incomingEdges[edge];
+          if (within.get(source) && !visited.get(source)) {
+            visited.set(source);
+            queue[tail++] = source;
+          }
+        }
+      }
+    }
+    return Arrays.copyOf(queue, tail);
+  }
+
+  @Override
+  public ImmutableSet<T> getNodes() {
+    return nodes;
+  }
+
+  @Override
+  public Iterable<T> getNodesWithNoIncomingEdges() {
+    return toNodes(getIndexesOfNodesWithNoIncomingEdges());
+  }
+
+  @Override
+  public Iterable<T> getNodesWithNoOutgoingEdges() {
+    return toNodes(getIndexesOfNodesWithNoOutgoingEdges());
+  }
+
+  /** @return the nodes with the given indexes, in the same order. */
+  public ImmutableList<T> toNodes(int[] indexes) {
+    ImmutableList.Builder<T> builder = ImmutableList.builderWithExpectedSize(indexes.length);
+    for (int index : indexes) {
+      builder.add(getNode(index));
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return an unmodifiable view of the nodes {@code source} has an edge to, or an empty set if
+   *     {@code source} isn't in the graph.
+   */
+  @Override
+  public NodeSet getOutgoingNodesFor(T source) {
+    int index = getIndex(source);
+    return index == -1
+        ? new NodeSet(outgoingEdges, 0, 0)
+        : new NodeSet(outgoingEdges, outgoingOffsets[index], outgoingOffsets[index + 1]);
+  }
+
+  /**
+   * @return an unmodifiable view of the nodes which have an edge to {@code sink}, or an empty set
+   *     if {@code sink} isn't in the graph.
+   */
+  @Override
+  public NodeSet getIncomingNodesFor(T sink) {
+    int index = getIndex(sink);
+    return index == -1
+        ? new NodeSet(incomingEdges, 0, 0)
+        : new NodeSet(incomingEdges, incomingOffsets[index], incomingOffsets[index + 1]);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof CompactDirectedGraph)) {
+      return false;
+    }
+
+    CompactDirectedGraph<?> that = (CompactDirectedGraph<?>) other;
+    if (!nodes.equals(that.nodes) || getEdgeCount() != that.getEdgeCount()) {
+      return false;
+    }
+    // The nodes may have different indexes in both graphs, so compare the edges by their nodes.
+    for (int i = 0; i < getNodeCount(); i++) {
+      int thatIndex = that.getIndex(getNode(i));
+      if (getOutDegree(i) != that.getOutDegree(thatIndex)) {
+        return false;
+      }
+      for (int edge = outgoingOffsets[i]; edge < outgoingOffsets[i + 1]; edge++) {
+        if (!that.hasEdge(thatIndex, that.getIndex(getNode(outgoingEdges[edge])))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean hasEdge(int source, int sink) {
+    for (int edge = outgoingOffsets[source]; edge < outgoingOffsets[source + 1]; edge++) {
+      if (outgoingEdges[edge] == sink) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    // Independent of the order of the nodes and edges, like equals().
+    int edgesHashCode = 0;
+    for (int i = 0; i < getNodeCount(); i++) {
+      int sourceHashCode = getNode(i).hashCode();
+      for (int edge = outgoingOffsets[i]; edge < outgoingOffsets[i + 1]; edge++) {
+        edgesHashCode += sourceHashCode ^ getNode(outgoingEdges[edge]).hashCode();
+      }
+    }
+    return Objects.hash(nodes, edgesHashCode);
+  }
+
+  /**
+   * An unmodifiable view of a range of the outgoing or incoming edges of the graph. As the range
+   * isn't hashed, {@link #contains} takes time linear in the size of the set.
+   */
+  public final class NodeSet extends AbstractSet<T> {
+    private final int[] edges;
+    private final int start;
+    private final int end;
+
+    private NodeSet(int[] edges, int start, int end) {
+      this.edges = edges;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public int size() {
+      return end - start;
+    }
+
+    @Override
+    public boolean contains(@Nullable Object node) {
+      int index = getIndex(node);
+      if (index == -1) {
+        return false;
+      }
+      for (int i = start; i < end; i++) {
+        if (edges[i] == index) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return new Iterator<T>() {
+        private int next = start;
+
+        @Override
+        public boolean hasNext() {
+          return next < end;
+        }
+
+        @Override
+        public T next() {
+          if (next >= end) {
+            throw new NoSuchElementException();
+          }
+          return getNode(edges[next++]);
+        }
+      };
+    }
+  }
+}
@@ -16,52 +16,85 @@
 
 package com.facebook.buck.core.util.graph;
 
+import com.facebook.buck.util.MoreSuppliers;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Sets;
-import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
 
+/**
+ * An immutable directed acyclic graph, stored as a {@link CompactDirectedGraph} so that large
+ * graphs such as the target graph take little heap, and {@link TopologicalSort} and {@link
+ * AbstractBottomUpTraversal} can traverse them by node index.
+ */
 public class DirectedAcyclicGraph<T> implements TraversableGraph<T> {
 
-  private final ImmutableSet<T> nodes;
-  private final ImmutableSetMultimap<T, T> outgoingEdges;
-  private final ImmutableSetMultimap<T, T> incomingEdges;
+  private final CompactDirectedGraph<T> graph;
+  private final Supplier<ImmutableSetMultimap<T, T>> outgoingEdges;
 
   public DirectedAcyclicGraph(MutableDirectedGraph<T> graph) {
     Preconditions.checkState(graph.isAcyclic(), "Graph must by acyclic");
-    this.nodes = graph.createImmutableCopyOfNodes();
-    this.outgoingEdges = graph.createImmutableCopyOfOutgoingEdges();
-    this.incomingEdges = graph.createImmutableCopyOfIncomingEdges();
+    this.graph = CompactDirectedGraph.copyOf(graph);
+    this.outgoingEdges = MoreSuppliers.memoize(this::copyOutgoingEdges);
+  }
+
+  /** @return the compact representation of this graph, to traverse it by node index. */
+  public CompactDirectedGraph<T> getCompactGraph() {
+    return graph;
   }
 
+  /**
+   * @return an unmodifiable view of the nodes {@code source} has an edge to. Unlike a hash set, its
+   *     {@code contains} scans all the edges of {@code source}, so copy it into a set first to test
+   *     many nodes against it.
+   */
   @Override
-  public ImmutableSet<T> getOutgoingNodesFor(T source) {
-    return outgoingEdges.get(source);
+  public Set<T> getOutgoingNodesFor(T source) {
+    return graph.getOutgoingNodesFor(source);
   }
 
+  /**
+   * @return an unmodifiable view of the nodes which have an edge to {@code sink}. Unlike a hash
+   *     set, its {@code contains} scans all the edges of {@code sink}, so copy it into a set first
+   *     to test many nodes against it.
+   */
   @Override
-  public ImmutableSet<T> getIncomingNodesFor(T sink) {
-    return incomingEdges.get(sink);
+  public Set<T> getIncomingNodesFor(T sink) {
+    return graph.getIncomingNodesFor(sink);
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoOutgoingEdges() {
-    return ImmutableSet.copyOf(Sets.difference(nodes, outgoingEdges.keySet()));
+    return ImmutableSet.copyOf(graph.getNodesWithNoOutgoingEdges());
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoIncomingEdges() {
-    return ImmutableSet.copyOf(Sets.difference(nodes, incomingEdges.keySet()));
+    return ImmutableSet.copyOf(graph.getNodesWithNoIncomingEdges());
   }
 
   @Override
   public ImmutableSet<T> getNodes() {
-    return nodes;
+    return graph.getNodes();
   }
 
+  /**
+   * @return the edges of the graph, keyed by their source node. They're copied out of the compact
+   *     graph on the first call, and kept from then on.
+   */
   public ImmutableSetMultimap<T, T> getOutgoingEdges() {
-    return outgoingEdges;
+    return outgoingEdges.get();
+  }
+
+  private ImmutableSetMultimap<T, T> copyOutgoingEdges() {
+    ImmutableSetMultimap.Builder<T, T> edges = ImmutableSetMultimap.builder();
+    for (int i = 0; i < graph.getNodeCount(); i++) {
+      for (int j = 0; j < graph.getOutDegree(i); j++) {
+        edges.put(graph.getNode(i), graph.getNode(graph.getOutgoingIndex(i, j)));
+      }
+    }
+    return edges.build();
   }
 
   @Override
@@ -71,13 +104,11 @@ public class DirectedAcyclicGraph<T> implements TraversableGraph<T> {
     }
 
     DirectedAcyclicGraph<?> that = (DirectedAcyclicGraph<?>) other;
-    return Objects.equals(this.nodes, that.nodes)
-        && Objects.equals(this.outgoingEdges, that.outgoingEdges)
-        && Objects.equals(this.incomingEdges, that.incomingEdges);
+    return graph.equals(that.graph);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(nodes, outgoingEdges, incomingEdges);
+    return graph.hashCode();
   }
 }
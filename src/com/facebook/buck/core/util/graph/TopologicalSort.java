@@ -44,6 +44,10 @@ public class TopologicalSort {
 
   /** Returns a topologically sorted list of the nodes in the graph. */
   public static <T> ImmutableList<T> sort(TraversableGraph<T> graph) {
+    if (graph instanceof DirectedAcyclicGraph) {
+      CompactDirectedGraph<T> compactGraph = ((DirectedAcyclicGraph<T>) graph).getCompactGraph();
+      return compactGraph.toNodes(compactGraph.topologicalSort());
+    }
     return sortImpl(graph, LinkedHashSet::new);
   }
 
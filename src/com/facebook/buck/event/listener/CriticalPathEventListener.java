@@ -59,6 +59,7 @@ public class CriticalPathEventListener implements BuckEventListener {
   private final DecimalFormat decimalFormat = new DecimalFormat("#0.00");
 
   private final Path outputPath;
+  private final Optional<Path> lastCriticalPathFile;
   @Nullable private BuildTarget longestPathSoFar;
   public long longestTimeSoFar;
   /**
@@ -72,7 +73,16 @@ public class CriticalPathEventListener implements BuckEventListener {
   private final Map<BuildTarget, ExecutionTimeInfo> buildTargetToExecutionTimeMap = new HashMap<>();
 
   public CriticalPathEventListener(Path outputPath) {
+    this(outputPath, Optional.empty());
+  }
+
+  /**
+   * @param lastCriticalPathFile where to also write the targets on the critical path, one per line,
+   *     for the next build to prefetch their artifacts first.
+   */
+  public CriticalPathEventListener(Path outputPath, Optional<Path> lastCriticalPathFile) {
     this.outputPath = Objects.requireNonNull(outputPath);
+    this.lastCriticalPathFile = lastCriticalPathFile;
   }
 
   /** Subscribes to {@link BuildRuleExecutionEvent.Finished} events */
@@ -157,6 +167,9 @@ public class CriticalPathEventListener implements BuckEventListener {
     try {
       if (longestPathSoFar != null) {
         dumpCriticalPath();
+        if (lastCriticalPathFile.isPresent()) {
+          dumpCriticalPathTargets(lastCriticalPathFile.get());
+        }
       }
     } catch (IOException e) {
       Path parentDir = outputPath.getParent();
@@ -180,6 +193,16 @@ public class CriticalPathEventListener implements BuckEventListener {
     }
   }
 
+  /** Dumps the targets on the critical path into the given {@code path}, one per line */
+  private void dumpCriticalPathTargets(Path path) throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+      for (Pair<BuildTarget, CriticalPathNode> pair : getCriticalPath()) {
+        writer.write(pair.getFirst().getFullyQualifiedName());
+        writer.newLine();
+      }
+    }
+  }
+
   /** Return all the critical path nodes for reports */
   public ImmutableList<CriticalPathReportableNode> getCriticalPathReportNodes() {
     return getCriticalPath().stream()
@@ -113,6 +113,8 @@ public class JsUtil {
                 tool.getEnvironment(pathResolver),
                 worker.getMaxWorkers(),
                 worker.isAsync(),
+                worker.getPrewarmWorkers(),
+                worker.getMaxIdleTimeSeconds(),
                 worker.isPersistent()
                     ? Optional.of(
                         WorkerProcessIdentity.of(buildTarget.toString(), worker.getInstanceKey()))
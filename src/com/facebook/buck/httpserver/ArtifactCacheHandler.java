@@ -19,27 +19,54 @@ package com.facebook.buck.httpserver;
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
 import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.DirArtifactCache;
 import com.facebook.buck.artifact_cache.HttpArtifactCacheBinaryProtocol;
 import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
 import com.google.common.util.concurrent.Futures;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
 import java.util.Optional;
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
-/** Implements a really simple cache server on top of the local dircache. */
+/**
+ * Implements a really simple cache server on top of the local dircache.
+ *
+ * <p>Besides fetching ({@code GET /artifacts/key/<rulekey>}) and storing ({@code PUT
+ * /artifacts/key}) single artifacts, it answers batches of keys in a single round trip:
+ *
+ * <ul>
+ *   <li>{@code POST /artifacts/multi_fetch} responds with, for each requested key in order, a
+ *       boolean telling whether the artifact was found, followed for found artifacts by the length
+ *       of their fetch response and the fetch response itself.
+ *   <li>{@code POST /artifacts/multi_contains} responds with, for each requested key in order, a
+ *       boolean telling whether the cache contains the artifact.
+ * </ul>
+ *
+ * Both take a body written by {@link HttpArtifactCacheBinaryProtocol#createMultiKeyRequest}.
+ */
 public class ArtifactCacheHandler extends AbstractHandler {
   private static final Logger LOG = Logger.get(ArtifactCacheHandler.class);
 
@@ -83,10 +110,86 @@ public class ArtifactCacheHandler extends AbstractHandler {
       status = handleGet(baseRequest, response);
     } else if (method.equals("PUT")) {
       status = handlePut(baseRequest, response);
+    } else if (method.equals("POST")) {
+      status = handlePost(baseRequest, response);
     }
     return status;
   }
 
+  private int handlePost(Request baseRequest, HttpServletResponse response) throws IOException {
+    String path = baseRequest.getHttpURI().getPath();
+    String[] pathElements = path.split("/");
+    if (pathElements.length != 3) {
+      response.getWriter().write("Incorrect url format.");
+      return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    ImmutableList<RuleKey> ruleKeys;
+    try (DataInputStream requestInputData = new DataInputStream(baseRequest.getInputStream())) {
+      ruleKeys = HttpArtifactCacheBinaryProtocol.readMultiKeyRequest(requestInputData);
+    }
+
+    switch (pathElements[2]) {
+      case "multi_fetch":
+        return handleMultiFetch(ruleKeys, response);
+      case "multi_contains":
+        return handleMultiContains(ruleKeys, response);
+      default:
+        response.getWriter().write("Incorrect url format.");
+        return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+  }
+
+  private int handleMultiFetch(ImmutableList<RuleKey> ruleKeys, HttpServletResponse response)
+      throws IOException {
+    response.setStatus(HttpServletResponse.SC_OK);
+    DataOutputStream out = new DataOutputStream(response.getOutputStream());
+    for (RuleKey ruleKey : ruleKeys) {
+      // Each artifact is streamed as soon as it is read, rather than after the whole batch.
+      int status =
+          withArtifact(
+              ruleKey,
+              (metadata, payload, payloadChannel) -> {
+                HttpArtifactCacheBinaryProtocol.FetchResponse fetchResponse =
+                    new HttpArtifactCacheBinaryProtocol.FetchResponse(
+                        ImmutableSet.of(ruleKey), metadata, payload);
+                byte[] header = fetchResponse.getHeader();
+                out.writeBoolean(true);
+                out.writeLong(fetchResponse.getContentLength());
+                out.write(header);
+                writePayload(
+                    ruleKey,
+                    payload,
+                    payloadChannel,
+                    0,
+                    fetchResponse.getContentLength() - header.length,
+                    out);
+                return HttpServletResponse.SC_OK;
+              });
+      if (status == HttpServletResponse.SC_NOT_FOUND) {
+        out.writeBoolean(false);
+      }
+    }
+    out.flush();
+    return HttpServletResponse.SC_OK;
+  }
+
+  private int handleMultiContains(ImmutableList<RuleKey> ruleKeys, HttpServletResponse response)
+      throws IOException {
+    ImmutableMap<RuleKey, CacheResult> results =
+        Futures.getUnchecked(
+            artifactCache.get().multiContainsAsync(ImmutableSet.copyOf(ruleKeys)));
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentLength(ruleKeys.size());
+    DataOutputStream out = new DataOutputStream(response.getOutputStream());
+    for (RuleKey ruleKey : ruleKeys) {
+      CacheResult result = results.get(ruleKey);
+      out.writeBoolean(result != null && result.getType().isSuccess());
+    }
+    out.flush();
+    return HttpServletResponse.SC_OK;
+  }
+
   private int handleGet(Request baseRequest, HttpServletResponse response) throws IOException {
     String path = baseRequest.getHttpURI().getPath();
     String[] pathElements = path.split("/");
@@ -96,6 +199,46 @@ public class ArtifactCacheHandler extends AbstractHandler {
     }
 
     RuleKey ruleKey = new RuleKey(pathElements[3]);
+    return withArtifact(
+        ruleKey,
+        (metadata, payload, payloadChannel) ->
+            serveArtifact(ruleKey, metadata, payload, payloadChannel, baseRequest, response));
+  }
+
+  /** Serves an artifact read from {@code payload}. */
+  private interface ArtifactServer {
+    /**
+     * @param payloadChannel the channel {@code payload} reads, if any, to send it from directly.
+     * @return the status of the response.
+     */
+    int serve(
+        ImmutableMap<String, String> metadata,
+        ByteSource payload,
+        Optional<FileChannel> payloadChannel)
+        throws IOException;
+  }
+
+  /**
+   * Finds the artifact for {@code ruleKey} and hands it to {@code server}.
+   *
+   * @return the status {@code server} returned, or {@link HttpServletResponse#SC_NOT_FOUND} if the
+   *     cache doesn't have the artifact.
+   */
+  private int withArtifact(RuleKey ruleKey, ArtifactServer server) throws IOException {
+    // A dir cache serves its artifacts straight from where they are stored, other caches and
+    // artifacts stored as chunks are fetched into a temporary file first.
+    if (artifactCache.get() instanceof DirArtifactCache) {
+      Optional<DirArtifactCache.StoredArtifact> storedArtifact =
+          ((DirArtifactCache) artifactCache.get()).openStoredArtifact(ruleKey);
+      if (storedArtifact.isPresent()) {
+        try (DirArtifactCache.StoredArtifact artifact = storedArtifact.get()) {
+          return server.serve(
+              artifact.getMetadata(),
+              asByteSource(artifact.getChannel()),
+              Optional.of(artifact.getChannel()));
+        }
+      }
+    }
 
     Path temp = null;
     try {
@@ -111,19 +254,15 @@ public class ArtifactCacheHandler extends AbstractHandler {
       }
 
       Path tempFinal = temp;
-      HttpArtifactCacheBinaryProtocol.FetchResponse fetchResponse =
-          new HttpArtifactCacheBinaryProtocol.FetchResponse(
-              ImmutableSet.of(ruleKey),
-              fetchResult.getMetadata(),
-              new ByteSource() {
-                @Override
-                public InputStream openStream() throws IOException {
-                  return projectFilesystem.newFileInputStream(tempFinal);
-                }
-              });
-      fetchResponse.write(response.getOutputStream());
-      response.setContentLengthLong(fetchResponse.getContentLength());
-      return HttpServletResponse.SC_OK;
+      return server.serve(
+          fetchResult.getMetadata(),
+          new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+              return projectFilesystem.newFileInputStream(tempFinal);
+            }
+          },
+          Optional.empty());
     } finally {
       if (temp != null) {
         projectFilesystem.deleteFileAtPathIfExists(temp);
@@ -131,6 +270,153 @@ public class ArtifactCacheHandler extends AbstractHandler {
     }
   }
 
+  /**
+   * Writes the fetch response for an artifact read from {@code payload}, or the range of it which
+   * the request asks for.
+   *
+   * @param payloadChannel the channel {@code payload} reads, if any, to send it from directly.
+   */
+  private static int serveArtifact(
+      RuleKey ruleKey,
+      ImmutableMap<String, String> metadata,
+      ByteSource payload,
+      Optional<FileChannel> payloadChannel,
+      Request baseRequest,
+      HttpServletResponse response)
+      throws IOException {
+    HttpArtifactCacheBinaryProtocol.FetchResponse fetchResponse =
+        new HttpArtifactCacheBinaryProtocol.FetchResponse(
+            ImmutableSet.of(ruleKey), metadata, payload);
+    byte[] header = fetchResponse.getHeader();
+    long contentLength = fetchResponse.getContentLength();
+
+    response.setHeader(HttpHeader.ACCEPT_RANGES.asString(), "bytes");
+    long start = 0;
+    long end = contentLength - 1;
+    int status = HttpServletResponse.SC_OK;
+    Optional<Pair<Long, Long>> range =
+        parseRange(baseRequest.getHeader(HttpHeader.RANGE.asString()), contentLength);
+    if (range.isPresent() && range.get().getFirst() >= contentLength) {
+      response.setHeader(HttpHeader.CONTENT_RANGE.asString(), "bytes */" + contentLength);
+      response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      return HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+    } else if (range.isPresent()) {
+      start = range.get().getFirst();
+      end = range.get().getSecond();
+      status = HttpServletResponse.SC_PARTIAL_CONTENT;
+      response.setHeader(
+          HttpHeader.CONTENT_RANGE.asString(),
+          String.format("bytes %d-%d/%d", start, end, contentLength));
+    }
+    response.setStatus(status);
+    response.setContentLengthLong(end - start + 1);
+
+    OutputStream out = response.getOutputStream();
+    if (start < header.length) {
+      out.write(header, (int) start, (int) (Math.min(end + 1, header.length) - start));
+    }
+    long position = Math.max(start - header.length, 0);
+    long remaining = end + 1 - header.length - position;
+    if (remaining > 0) {
+      writePayload(ruleKey, payload, payloadChannel, position, remaining, out);
+    }
+    return status;
+  }
+
+  /** Writes {@code length} bytes of {@code payload} from {@code position} to {@code out}. */
+  private static void writePayload(
+      RuleKey ruleKey,
+      ByteSource payload,
+      Optional<FileChannel> payloadChannel,
+      long position,
+      long length,
+      OutputStream out)
+      throws IOException {
+    if (!payloadChannel.isPresent()) {
+      payload.slice(position, length).copyTo(out);
+      return;
+    }
+    // Hand the file to the channel rather than reading it through a stream, so it can be sent
+    // without copying it through the heap.
+    WritableByteChannel outChannel = Channels.newChannel(out);
+    long remaining = length;
+    while (remaining > 0) {
+      long transferred = payloadChannel.get().transferTo(position, remaining, outChannel);
+      if (transferred <= 0) {
+        throw new IOException("Artifact for " + ruleKey + " is shorter than expected.");
+      }
+      position += transferred;
+      remaining -= transferred;
+    }
+  }
+
+  /** Reads {@code channel} from its start, without closing it. */
+  private static ByteSource asByteSource(FileChannel channel) {
+    return new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        return new FilterInputStream(Channels.newInputStream(channel.position(0))) {
+          @Override
+          public void close() {
+            // The channel is closed by whoever opened it.
+          }
+        };
+      }
+
+      @Override
+      public long size() throws IOException {
+        return channel.size();
+      }
+    };
+  }
+
+  /**
+   * Parses a {@code Range} header asking for a single range of bytes, like {@code bytes=0-99},
+   * {@code bytes=100-} or {@code bytes=-100}.
+   *
+   * @return the first and last byte of the range, where a range starting at or past {@code
+   *     contentLength} can't be satisfied, or nothing if the whole content should be served.
+   */
+  @VisibleForTesting
+  static Optional<Pair<Long, Long>> parseRange(@Nullable String header, long contentLength) {
+    if (header == null || !header.startsWith("bytes=") || header.contains(",")) {
+      // Requests without ranges or with several ranges get the whole content.
+      return Optional.empty();
+    }
+    String spec = header.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return Optional.empty();
+    }
+    long start;
+    long end;
+    try {
+      if (dash == 0) {
+        long suffixLength = Long.parseLong(spec.substring(1));
+        if (suffixLength <= 0) {
+          return Optional.of(new Pair<>(contentLength, contentLength));
+        }
+        start = Math.max(contentLength - suffixLength, 0);
+        end = contentLength - 1;
+      } else {
+        start = Long.parseLong(spec.substring(0, dash));
+        end =
+            dash == spec.length() - 1
+                ? contentLength - 1
+                : Math.min(Long.parseLong(spec.substring(dash + 1)), contentLength - 1);
+      }
+    } catch (NumberFormatException e) {
+      return Optional.empty();
+    }
+    if (start >= contentLength) {
+      return Optional.of(new Pair<>(start, start));
+    } else if (start > end) {
+      // Invalid ranges are ignored.
+      return Optional.empty();
+    }
+    return Optional.of(new Pair<>(start, end));
+  }
+
   private int handlePut(Request baseRequest, HttpServletResponse response) throws IOException {
     Path temp = null;
     try {
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.io.file;
+
+import com.facebook.buck.core.util.log.Logger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The format of a file in which a daemon saves some of its state for the next one to pick up. The
+ * file starts with a magic number and a format version, followed by records which only the owner of
+ * the state knows how to read.
+ *
+ * <p>Such a file is only ever a cache, so it's replaced atomically when written, and reading it
+ * never fails: files which are missing or in another format are ignored, and the reader keeps
+ * whatever it read before hitting a truncated or corrupt record.
+ */
+public class SnapshotFile {
+
+  private static final Logger LOG = Logger.get(SnapshotFile.class);
+
+  /** Writes the records of a snapshot. */
+  @FunctionalInterface
+  public interface RecordWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /** Reads the records of a snapshot, and may be interrupted by an exception at any point. */
+  @FunctionalInterface
+  public interface RecordReader {
+    void read(DataInputStream in) throws IOException;
+  }
+
+  private final String description;
+  private final int magic;
+  private final int version;
+
+  /**
+   * @param description what the snapshot holds, for log messages.
+   * @param magic the number identifying files holding this kind of snapshot.
+   * @param version the version of the format of the records, which must be bumped whenever they
+   *     change, so that files in an older format are ignored.
+   */
+  public SnapshotFile(String description, int magic, int version) {
+    this.description = description;
+    this.magic = magic;
+    this.version = version;
+  }
+
+  /** Writes the records written by {@code writer} to {@code path}, replacing it atomically. */
+  public void write(Path path, RecordWriter writer) throws IOException {
+    Files.createDirectories(path.getParent());
+    Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(magic);
+        out.writeInt(version);
+        writer.write(out);
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Passes the records of the snapshot at {@code path} to {@code reader}, unless it's missing or in
+   * another format. Failures to read the records are logged rather than thrown, in which case
+   * {@code reader} keeps whatever it read before the failure.
+   */
+  public void read(Path path, RecordReader reader) {
+    if (!Files.isRegularFile(path)) {
+      return;
+    }
+
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != magic || in.readInt() != version) {
+        LOG.debug("Ignoring %s snapshot %s with unknown format", description, path);
+        return;
+      }
+      reader.read(in);
+    } catch (IOException | RuntimeException e) {
+      // Corrupt records may be read as anything, including invalid arguments or array sizes.
+      LOG.warn(e, "Failed to read %s snapshot %s", description, path);
+    }
+  }
+}
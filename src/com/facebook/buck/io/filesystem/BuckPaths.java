@@ -98,6 +98,18 @@ public abstract class BuckPaths {
     return getBuckOut().resolve("log");
   }
 
+  /** The file in which the critical path of the last build is kept. */
+  @Value.Derived
+  public Path getLastCriticalPathFile() {
+    return getLogDir().resolve("last_critical_path");
+  }
+
+  /** The file in which the durations of the tests run by previous test runs are kept. */
+  @Value.Derived
+  public Path getTestDurationsFile() {
+    return getLogDir().resolve("test_durations.json");
+  }
+
   @Value.Derived
   public Path getJournalDir() {
     return getLogDir().resolve("journal");
@@ -113,6 +125,12 @@ public abstract class BuckPaths {
     return getBuckOut().resolve("cache");
   }
 
+  /** The directory in which the daemon persists its caches across restarts. */
+  @Value.Derived
+  public Path getDaemonStateDir() {
+    return getBuckOut().resolve("daemon");
+  }
+
   @Value.Derived
   public Path getTmpDir() {
     return getBuckOut().resolve("tmp");
@@ -21,6 +21,7 @@ import com.facebook.buck.io.watchman.Capability;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
 import java.nio.file.FileVisitOption;
@@ -133,6 +134,14 @@ public interface ProjectFilesystemView {
       Path pathRelativeToProjectRoot, Predicate<Path> filter, EnumSet<FileVisitOption> visitOptions)
       throws IOException;
 
+  /**
+   * Returns the files under the given path relative to the root of this view, like {@link
+   * #getFilesUnderPath(Path, EnumSet)}, along with the attributes read for them while walking the
+   * tree. Subdirectories are walked in parallel.
+   */
+  ImmutableMap<Path, BasicFileAttributes> getFilesAndAttributesUnderPath(
+      Path pathRelativeToProjectRoot, EnumSet<FileVisitOption> visitOptions) throws IOException;
+
   /**
    * Gets a list of paths of the contents of the given directory, obeying the ignores. All paths are
    * relative to the root of this view.
@@ -32,6 +32,7 @@ import com.facebook.buck.io.filesystem.ProjectFilesystemDelegatePair;
 import com.facebook.buck.io.filesystem.RecursiveFileMatcher;
 import com.facebook.buck.io.windowsfs.WindowsFS;
 import com.facebook.buck.util.MoreSuppliers;
+import com.facebook.buck.util.concurrent.DirectoryListingPool;
 import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.sha1.Sha1HashCode;
 import com.google.common.annotations.VisibleForTesting;
@@ -70,7 +71,6 @@ import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -462,14 +462,6 @@ public class DefaultProjectFilesystem implements Cloneable, ProjectFilesystem {
         skipIgnored);
   }
 
-  private void walkRelativeFileTree(
-      Path pathRelativeToProjectRoot,
-      EnumSet<FileVisitOption> visitOptions,
-      FileVisitor<Path> fileVisitor)
-      throws IOException {
-    walkRelativeFileTree(pathRelativeToProjectRoot, visitOptions, fileVisitor, true);
-  }
-
   /** Walks a project-root relative file tree with a visitor and visit options. */
   @Override
   public void walkRelativeFileTree(
@@ -587,20 +579,35 @@ public class DefaultProjectFilesystem implements Cloneable, ProjectFilesystem {
       Predicate<Path> predicate,
       EnumSet<FileVisitOption> visitOptions)
       throws IOException {
-    ImmutableSet.Builder<Path> paths = ImmutableSet.builder();
-    walkRelativeFileTree(
-        pathRelativeToProjectRoot,
-        visitOptions,
-        new SimpleFileVisitor<Path>() {
-          @Override
-          public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
-            if (predicate.test(path)) {
-              paths.add(path);
-            }
-            return FileVisitResult.CONTINUE;
-          }
-        });
-    return paths.build();
+    return getFilesAndAttributesWithPathMapping(
+            pathRelativeToProjectRoot,
+            visitOptions,
+            input -> !isIgnored(relativize(input)),
+            path -> relativize(path).getPath())
+        .keySet()
+        .stream()
+        .filter(predicate)
+        .collect(ImmutableSet.toImmutableSet());
+  }
+
+  /**
+   * Returns the files found by walking {@code root} like {@link #walkFileTreeWithPathMapping}, with
+   * the attributes read for them, listing subdirectories in parallel.
+   */
+  ImmutableMap<Path, BasicFileAttributes> getFilesAndAttributesWithPathMapping(
+      Path root,
+      EnumSet<FileVisitOption> visitOptions,
+      DirectoryStream.Filter<? super Path> ignoreFilter,
+      Function<Path, Path> pathMapper)
+      throws IOException {
+    return new ParallelFileTreeWalker(
+            DirectoryListingPool.get(),
+            visitOptions,
+            ignoreFilter,
+            // Like walkFileTreeWithPathMapping(), don't descend in Eden's magic directory.
+            dir -> !edenMagicPathElement.equals(dir.getFileName()),
+            pathMapper)
+        .walk(getPathForRelativePath(root));
   }
 
   /** Allows {@link Files#isDirectory} to be faked in tests. */
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.io.filesystem.impl;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+
+/**
+ * Finds the files under a directory like {@link DefaultProjectFilesystem}'s FileTreeWalker, but
+ * lists subdirectories in parallel on a {@link ForkJoinPool}.
+ *
+ * <p>Entries rejected by the ignore filter are dropped as soon as their directory is listed, before
+ * their attributes are read, so ignored subtrees are never walked. The walk returns the files it
+ * found together with the attributes read for them, in the order FileTreeWalker would have visited
+ * them, so the result doesn't depend on scheduling.
+ *
+ * <p>Like a walk with a {@link java.nio.file.SimpleFileVisitor}, it fails with the first {@link
+ * IOException} hit while listing a directory or reading attributes, including a {@link
+ * FileSystemLoopException} when following links.
+ */
+class ParallelFileTreeWalker {
+
+  private final ForkJoinPool pool;
+  private final boolean followLinks;
+  private final DirectoryStream.Filter<? super Path> ignoreFilter;
+  private final Predicate<Path> directoryFilter;
+  private final Function<Path, Path> pathMapper;
+
+  /**
+   * @param ignoreFilter accepts the directory entries that should be walked.
+   * @param directoryFilter accepts the directories whose contents should be walked.
+   * @param pathMapper maps the paths of the files found to the keys of the result.
+   */
+  ParallelFileTreeWalker(
+      ForkJoinPool pool,
+      Set<FileVisitOption> options,
+      DirectoryStream.Filter<? super Path> ignoreFilter,
+      Predicate<Path> directoryFilter,
+      Function<Path, Path> pathMapper) {
+    this.pool = pool;
+    this.followLinks = options.contains(FileVisitOption.FOLLOW_LINKS);
+    this.ignoreFilter = ignoreFilter;
+    this.directoryFilter = directoryFilter;
+    this.pathMapper = pathMapper;
+  }
+
+  /** @return the files under {@code root}, or {@code root} itself if it isn't a directory. */
+  ImmutableMap<Path, BasicFileAttributes> walk(Path root) throws IOException {
+    BasicFileAttributes rootAttributes = getAttributes(root);
+    if (!rootAttributes.isDirectory()) {
+      return ImmutableMap.of(pathMapper.apply(root), rootAttributes);
+    }
+    if (!directoryFilter.test(root)) {
+      return ImmutableMap.of();
+    }
+    DirectoryTask rootTask = new DirectoryTask(root, rootAttributes, null);
+    try {
+      pool.invoke(rootTask);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    ImmutableMap.Builder<Path, BasicFileAttributes> files = ImmutableMap.builder();
+    rootTask.addFilesTo(files);
+    return files.build();
+  }
+
+  /** Lists a directory, and forks a task for each of its subdirectories. */
+  private class DirectoryTask extends RecursiveAction {
+    private final Path dir;
+    private final BasicFileAttributes attributes;
+    @Nullable private final DirectoryTask parent;
+
+    /**
+     * The files of the directory as entries, and its subdirectories as tasks, in the order in which
+     * they are visited.
+     */
+    private final List<Object> children = new ArrayList<>();
+
+    DirectoryTask(Path dir, BasicFileAttributes attributes, @Nullable DirectoryTask parent) {
+      this.dir = dir;
+      this.attributes = attributes;
+      this.parent = parent;
+    }
+
+    @Override
+    protected void compute() {
+      List<DirectoryTask> subdirectories = new ArrayList<>();
+      try {
+        for (Path path : getContents(dir)) {
+          BasicFileAttributes pathAttributes = getAttributes(path);
+          if (!pathAttributes.isDirectory()) {
+            children.add(new SimpleImmutableEntry<>(pathMapper.apply(path), pathAttributes));
+            continue;
+          }
+          if (followLinks && isAncestor(path, pathAttributes)) {
+            throw new FileSystemLoopException(path.toString());
+          }
+          if (directoryFilter.test(path)) {
+            DirectoryTask task = new DirectoryTask(path, pathAttributes, this);
+            subdirectories.add(task);
+            children.add(task);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      invokeAll(subdirectories);
+    }
+
+    private boolean isAncestor(Path path, BasicFileAttributes pathAttributes) {
+      Object key = pathAttributes.fileKey();
+      try {
+        for (DirectoryTask task = this; task != null; task = task.parent) {
+          Object ancestorKey = task.attributes.fileKey();
+          if (key != null && ancestorKey != null) {
+            if (key.equals(ancestorKey)) {
+              return true;
+            }
+          } else if (Files.isSameFile(path, task.dir)) {
+            return true;
+          }
+        }
+      } catch (IOException e) {
+        return true;
+      }
+      return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addFilesTo(ImmutableMap.Builder<Path, BasicFileAttributes> files) {
+      for (Object child : children) {
+        if (child instanceof DirectoryTask) {
+          ((DirectoryTask) child).addFilesTo(files);
+        } else {
+          files.put((Map.Entry<Path, BasicFileAttributes>) child);
+        }
+      }
+    }
+  }
+
+  private List<Path> getContents(Path dir) throws IOException {
+    List<Path> contents = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, ignoreFilter)) {
+      stream.forEach(contents::add);
+    }
+    contents.sort(Comparator.naturalOrder());
+    return contents;
+  }
+
+  private BasicFileAttributes getAttributes(Path path) throws IOException {
+    if (!followLinks) {
+      return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException e) {
+      return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+  }
+}
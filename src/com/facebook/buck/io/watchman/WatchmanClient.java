@@ -16,6 +16,10 @@
 
 package com.facebook.buck.io.watchman;
 
+import com.facebook.buck.util.bser.BserReader;
+import com.facebook.buck.util.bser.BserSerializer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Optional;
@@ -25,6 +29,34 @@ public interface WatchmanClient extends AutoCloseable {
   Optional<? extends Map<String, ? extends Object>> queryWithTimeout(
       long timeoutNanos, Object... query) throws IOException, InterruptedException;
 
+  /**
+   * Like {@link #queryWithTimeout}, but lets {@code responseReader} decode the response while it's
+   * read, rather than building a {@code Map} for it first.
+   *
+   * <p>The default implementation encodes the response of {@link #queryWithTimeout} back to BSER,
+   * so clients which don't talk BSER only need to implement that.
+   */
+  default <T> Optional<T> streamingQueryWithTimeout(
+      long timeoutNanos, ResponseReader<T> responseReader, Object... query)
+      throws IOException, InterruptedException {
+    Optional<? extends Map<String, ? extends Object>> response =
+        queryWithTimeout(timeoutNanos, query);
+    if (!response.isPresent()) {
+      return Optional.empty();
+    }
+    ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
+    new BserSerializer().serializeToStream(response.get(), responseBytes);
+    return Optional.ofNullable(
+        responseReader.read(
+            new BserReader(new ByteArrayInputStream(responseBytes.toByteArray()))));
+  }
+
   @Override
   void close() throws IOException;
+
+  /** Decodes the response of a query from the reader positioned at its start. */
+  @FunctionalInterface
+  interface ResponseReader<T> {
+    T read(BserReader reader) throws IOException;
+  }
 }
@@ -40,6 +40,10 @@ public abstract class WatchmanMultiplePathEvent implements WatchmanEvent {
 
     /** Kind of a file system change, like modification or deletion of the file */
     public abstract WatchmanEvent.Kind getKind();
+
+    public static Change of(WatchmanEvent.Type type, Path path, WatchmanEvent.Kind kind) {
+      return ImmutableChange.of(type, path, kind);
+    }
   }
 
   @Override
@@ -47,4 +51,8 @@ public abstract class WatchmanMultiplePathEvent implements WatchmanEvent {
 
   /** All changes to monitored file system that occurred since last invalidation */
   public abstract ImmutableList<Change> getChanges();
+
+  public static WatchmanMultiplePathEvent of(AbsPath cellPath, Iterable<? extends Change> changes) {
+    return ImmutableWatchmanMultiplePathEvent.of(cellPath, changes);
+  }
 }
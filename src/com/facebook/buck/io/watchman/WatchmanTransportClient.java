@@ -22,6 +22,7 @@ import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator
 import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.bser.BserDeserializer;
+import com.facebook.buck.util.bser.BserReader;
 import com.facebook.buck.util.bser.BserSerializer;
 import com.facebook.buck.util.timing.Clock;
 import com.google.common.collect.ImmutableList;
@@ -31,6 +32,7 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -61,17 +63,26 @@ class WatchmanTransportClient implements WatchmanClient, AutoCloseable {
   @Override
   public Optional<Map<String, Object>> queryWithTimeout(long timeoutNanos, Object... query)
       throws IOException, InterruptedException {
-    return queryListWithTimeout(timeoutNanos, ImmutableList.copyOf(query));
+    List<Object> queryList = ImmutableList.copyOf(query);
+    return queryListWithTimeout(timeoutNanos, queryList, () -> sendWatchmanQuery(queryList));
   }
 
-  private Optional<Map<String, Object>> queryListWithTimeout(long timeoutNanos, List<Object> query)
+  @Override
+  public <T> Optional<T> streamingQueryWithTimeout(
+      long timeoutNanos, ResponseReader<T> responseReader, Object... query)
       throws IOException, InterruptedException {
-    ListenableFuture<Optional<Map<String, Object>>> future =
-        listeningExecutorService.submit(() -> sendWatchmanQuery(query));
+    List<Object> queryList = ImmutableList.copyOf(query);
+    return queryListWithTimeout(
+        timeoutNanos, queryList, () -> sendStreamingWatchmanQuery(queryList, responseReader));
+  }
+
+  private <T> Optional<T> queryListWithTimeout(
+      long timeoutNanos, List<Object> query, Callable<Optional<T>> sendQuery)
+      throws IOException, InterruptedException {
+    ListenableFuture<Optional<T>> future = listeningExecutorService.submit(sendQuery);
     try {
       long startTimeNanos = clock.nanoTime();
-      Optional<Map<String, Object>> result =
-          waitForQueryNotifyingUserIfSlow(future, timeoutNanos, query);
+      Optional<T> result = waitForQueryNotifyingUserIfSlow(future, timeoutNanos, query);
       long elapsedNanos = clock.nanoTime() - startTimeNanos;
       LOG.debug("Query %s returned in %d ms", query, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
       return result;
@@ -107,8 +118,8 @@ class WatchmanTransportClient implements WatchmanClient, AutoCloseable {
             TimeUnit.NANOSECONDS.toSeconds(timeoutNanos));
   }
 
-  private Optional<Map<String, Object>> waitForQueryNotifyingUserIfSlow(
-      ListenableFuture<Optional<Map<String, Object>>> future, long timeoutNanos, List<Object> query)
+  private <T> Optional<T> waitForQueryNotifyingUserIfSlow(
+      ListenableFuture<Optional<T>> future, long timeoutNanos, List<Object> query)
       throws InterruptedException, ExecutionException {
     long queryStartNanos = clock.nanoTime();
     try {
@@ -147,4 +158,21 @@ class WatchmanTransportClient implements WatchmanClient, AutoCloseable {
     }
     return Optional.of(responseMap);
   }
+
+  private <T> Optional<T> sendStreamingWatchmanQuery(
+      List<Object> query, ResponseReader<T> responseReader) throws IOException {
+    LOG.verbose("Sending query: %s", query);
+    bserSerializer.serializeToStream(query, transport.getOutputStream());
+    BserReader reader = new BserReader(transport.getInputStream());
+    T response;
+    try {
+      response = responseReader.read(reader);
+    } catch (IOException | RuntimeException e) {
+      reader.skipToEndAfter(e);
+      throw e;
+    }
+    // Leave the stream at the start of the next response, even if the reader stopped early.
+    reader.skipToEnd();
+    return Optional.ofNullable(response);
+  }
 }
@@ -25,6 +25,7 @@ import com.facebook.buck.event.WatchmanStatusEvent;
 import com.facebook.buck.io.filesystem.PathMatcher;
 import com.facebook.buck.io.watchman.WatchmanEvent.Type;
 import com.facebook.buck.util.Threads;
+import com.facebook.buck.util.bser.BserReader;
 import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.types.Unit;
 import com.google.common.annotations.VisibleForTesting;
@@ -48,6 +49,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
 
 /** Queries Watchman for changes to a path. */
 public class WatchmanWatcher {
@@ -260,7 +262,6 @@ public class WatchmanWatcher {
     }
   }
 
-  @SuppressWarnings("unchecked")
   private void postEvents(
       BuckEventBus buckEventBus,
       FreshInstanceAction freshInstanceAction,
@@ -272,11 +273,14 @@ public class WatchmanWatcher {
       SimplePerfEvent.Scope perfEvent)
       throws IOException, InterruptedException {
     try {
-      Optional<? extends Map<String, ? extends Object>> queryResponse;
+      Optional<QueryResponse> queryResponse;
       try (SimplePerfEvent.Scope ignored = SimplePerfEvent.scope(buckEventBus, "query")) {
+        FileSystem fileSystem = cellPath.getFileSystem();
         queryResponse =
-            client.queryWithTimeout(
-                TimeUnit.MILLISECONDS.toNanos(timeoutMillis), query.toList(cursor.get()).toArray());
+            client.streamingQueryWithTimeout(
+                TimeUnit.MILLISECONDS.toNanos(timeoutMillis),
+                reader -> QueryResponse.read(reader, fileSystem),
+                query.toList(cursor.get()).toArray());
       }
 
       try (SimplePerfEvent.Scope ignored =
@@ -296,8 +300,8 @@ public class WatchmanWatcher {
           return;
         }
 
-        Map<String, ? extends Object> response = queryResponse.get();
-        String error = (String) response.get("error");
+        QueryResponse response = queryResponse.get();
+        String error = response.error;
         if (error != null) {
           // This message is not de-duplicated via WatchmanDiagnostic.
           WatchmanWatcherException e = new WatchmanWatcherException(error);
@@ -312,21 +316,19 @@ public class WatchmanWatcher {
         if (cursor.get().startsWith("c:")) {
           // Update the clockId
           String newCursor =
-              Optional.ofNullable((String) response.get("clock"))
-                  .orElse(WatchmanFactory.NULL_CLOCK);
+              Optional.ofNullable(response.clock).orElse(WatchmanFactory.NULL_CLOCK);
           LOG.debug("Updating Watchman Cursor from %s to %s", cursor.get(), newCursor);
           cursor.set(newCursor);
         }
 
-        String warning = (String) response.get("warning");
+        String warning = response.warning;
         if (warning != null) {
           buckEventBus.post(
               new WatchmanDiagnosticEvent(
                   WatchmanDiagnostic.of(WatchmanDiagnostic.Level.WARNING, warning)));
         }
 
-        Boolean isFreshInstance = (Boolean) response.get("is_fresh_instance");
-        if (isFreshInstance != null && isFreshInstance) {
+        if (response.isFreshInstance) {
           LOG.debug(
               "Watchman indicated a fresh instance (fresh instance action %s)",
               freshInstanceAction);
@@ -344,85 +346,61 @@ public class WatchmanWatcher {
           return;
         }
 
-        List<Map<String, Object>> files = (List<Map<String, Object>>) response.get("files");
-        if (files == null) {
+        List<WatchmanMultiplePathEvent.Change> changes = response.changes;
+        if (changes == null) {
           if (freshInstanceAction == FreshInstanceAction.NONE) {
             filesHaveChanged.set(true);
           }
           return;
         }
-        LOG.debug("Watchman indicated %d changes", files.size());
-        if (files.size() > OVERFLOW_THRESHOLD) {
+        LOG.debug("Watchman indicated %d changes", response.fileCount);
+        if (response.fileCount > OVERFLOW_THRESHOLD) {
           LOG.warn(
               "Posting overflow event: too many files changed: %d > %d",
-              files.size(), OVERFLOW_THRESHOLD);
+              response.fileCount, OVERFLOW_THRESHOLD);
           postWatchEvent(
               buckEventBus, ImmutableWatchmanOverflowEvent.of(cellPath, "Too many files changed."));
           filesHaveChanged.set(true);
           return;
         }
-        if (files.size() < TRACE_CHANGES_THRESHOLD) {
-          perfEvent.appendFinishedInfo("files", files);
+        if (changes.size() < TRACE_CHANGES_THRESHOLD) {
+          perfEvent.appendFinishedInfo("files", changes);
         } else {
-          perfEvent.appendFinishedInfo("files_sample", files.subList(0, TRACE_CHANGES_THRESHOLD));
+          perfEvent.appendFinishedInfo(
+              "files_sample", changes.subList(0, TRACE_CHANGES_THRESHOLD));
         }
 
-        FileSystem fileSystem = cellPath.getFileSystem();
-        List<WatchmanMultiplePathEvent.Change> changes = new ArrayList<>(files.size());
-        for (Map<String, Object> file : files) {
-          String fileName = (String) file.get("name");
-          if (fileName == null) {
-            LOG.warn("Filename missing from watchman file response %s", file);
-            postWatchEvent(
-                buckEventBus,
-                ImmutableWatchmanOverflowEvent.of(
-                    cellPath, "Filename missing from watchman response."));
-            filesHaveChanged.set(true);
-            return;
-          }
-          Boolean fileNew = (Boolean) file.get("new");
-          WatchmanEvent.Kind kind = WatchmanEvent.Kind.MODIFY;
-          if (fileNew != null && fileNew) {
-            kind = WatchmanEvent.Kind.CREATE;
-          }
-          Boolean fileExists = (Boolean) file.get("exists");
-          if (fileExists != null && !fileExists) {
-            kind = WatchmanEvent.Kind.DELETE;
-          }
-
-          // Following legacy behavior, everything we get from Watchman is interpreted as file
-          // changes unless explicitly specified with `type` field
-          WatchmanEvent.Type type = Type.FILE;
-          String stype = (String) file.get("type");
-          if (stype != null) {
-            switch (stype) {
-              case "d":
-                type = Type.DIRECTORY;
-                break;
-              case "l":
-                type = Type.SYMLINK;
-                break;
-            }
-          }
-
-          RelPath filePath = RelPath.of(fileSystem.getPath(fileName));
-
-          changes.add(ImmutableChange.of(type, filePath.getPath(), kind));
-
-          if (type != WatchmanEvent.Type.DIRECTORY) {
+        for (WatchmanMultiplePathEvent.Change change : changes) {
+          if (change.getType() != WatchmanEvent.Type.DIRECTORY) {
             // WatchmanPathEvent is sent for everything but directories - this is legacy
             // behavior and we want to keep it.
             // TODO(buck_team): switch everything to use WatchmanMultiplePathEvent and retire
             // WatchmanPathEvent
-            postWatchEvent(buckEventBus, ImmutableWatchmanPathEvent.of(cellPath, kind, filePath));
+            postWatchEvent(
+                buckEventBus,
+                ImmutableWatchmanPathEvent.of(
+                    cellPath, change.getKind(), RelPath.of(change.getPath())));
           }
         }
 
+        if (response.filenameMissing) {
+          // The changes stop right before the file without a name.
+          LOG.warn(
+              "Filename missing from file at index %d of %d in watchman file response",
+              changes.size(), response.fileCount);
+          postWatchEvent(
+              buckEventBus,
+              ImmutableWatchmanOverflowEvent.of(
+                  cellPath, "Filename missing from watchman response."));
+          filesHaveChanged.set(true);
+          return;
+        }
+
         if (!changes.isEmpty()) {
           postWatchEvent(buckEventBus, ImmutableWatchmanMultiplePathEvent.of(cellPath, changes));
         }
 
-        if (!files.isEmpty() || freshInstanceAction == FreshInstanceAction.NONE) {
+        if (response.fileCount > 0 || freshInstanceAction == FreshInstanceAction.NONE) {
           filesHaveChanged.set(true);
         }
       }
@@ -443,6 +421,134 @@ public class WatchmanWatcher {
     }
   }
 
+  /**
+   * The fields of a Watchman "since" query response that are used by {@link #postEvents}, decoded
+   * straight from BSER. Changed files are read into {@link WatchmanMultiplePathEvent.Change}s
+   * without building a {@code Map} for each, and are skipped without decoding their names when
+   * there are too many of them to be processed anyway.
+   */
+  private static class QueryResponse {
+    @Nullable private String error;
+    @Nullable private String clock;
+    @Nullable private String warning;
+    private boolean isFreshInstance;
+
+    /** The changed files, or {@code null} if the response has none. */
+    @Nullable private List<WatchmanMultiplePathEvent.Change> changes;
+
+    private int fileCount;
+
+    /**
+     * Whether a file has no name, in which case {@link #changes} only has the files before it.
+     */
+    private boolean filenameMissing;
+
+    static QueryResponse read(BserReader reader, FileSystem fileSystem) throws IOException {
+      QueryResponse response = new QueryResponse();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (reader.peek() == BserReader.ValueType.NULL) {
+          reader.nextNull();
+          continue;
+        }
+        switch (name) {
+          case "error":
+            response.error = reader.nextString();
+            break;
+          case "clock":
+            response.clock = reader.nextString();
+            break;
+          case "warning":
+            response.warning = reader.nextString();
+            break;
+          case "is_fresh_instance":
+            response.isFreshInstance = reader.nextBoolean();
+            break;
+          case "files":
+            response.readFiles(reader, fileSystem);
+            break;
+          default:
+            reader.skipValue();
+            break;
+        }
+      }
+      reader.endObject();
+      return response;
+    }
+
+    private void readFiles(BserReader reader, FileSystem fileSystem) throws IOException {
+      fileCount = reader.beginArray();
+      changes = new ArrayList<>(fileCount > OVERFLOW_THRESHOLD ? 0 : fileCount);
+      while (reader.hasNext()) {
+        if (fileCount > OVERFLOW_THRESHOLD || filenameMissing) {
+          reader.skipValue();
+          continue;
+        }
+        WatchmanMultiplePathEvent.Change change = readChange(reader, fileSystem);
+        if (change == null) {
+          filenameMissing = true;
+        } else {
+          changes.add(change);
+        }
+      }
+      reader.endArray();
+    }
+
+    @Nullable
+    private static WatchmanMultiplePathEvent.Change readChange(
+        BserReader reader, FileSystem fileSystem) throws IOException {
+      String fileName = null;
+      WatchmanEvent.Kind kind = WatchmanEvent.Kind.MODIFY;
+      boolean deleted = false;
+      // Following legacy behavior, everything we get from Watchman is interpreted as file
+      // changes unless explicitly specified with `type` field
+      WatchmanEvent.Type type = Type.FILE;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (reader.peek() == BserReader.ValueType.NULL) {
+          reader.nextNull();
+          continue;
+        }
+        switch (name) {
+          case "name":
+            fileName = reader.nextString();
+            break;
+          case "new":
+            if (reader.nextBoolean()) {
+              kind = WatchmanEvent.Kind.CREATE;
+            }
+            break;
+          case "exists":
+            deleted = !reader.nextBoolean();
+            break;
+          case "type":
+            switch (reader.nextString()) {
+              case "d":
+                type = Type.DIRECTORY;
+                break;
+              case "l":
+                type = Type.SYMLINK;
+                break;
+            }
+            break;
+          default:
+            reader.skipValue();
+            break;
+        }
+      }
+      reader.endObject();
+      if (fileName == null) {
+        return null;
+      }
+      if (deleted) {
+        kind = WatchmanEvent.Kind.DELETE;
+      }
+      return ImmutableChange.of(type, fileSystem.getPath(fileName), kind);
+    }
+  }
+
   private void postWatchEvent(BuckEventBus eventBus, WatchmanEvent event) {
     LOG.debug("Posting WatchEvent: %s", event);
     fileChangeEventBus.post(event);
@@ -52,6 +52,7 @@ import com.facebook.buck.step.AbstractExecutionStep;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepExecutionResult;
 import com.facebook.buck.step.StepExecutionResults;
+import com.facebook.buck.step.TestShardStep;
 import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
 import com.facebook.buck.step.fs.MkdirStep;
 import com.facebook.buck.test.TestCaseSummary;
@@ -73,7 +74,10 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -142,6 +146,9 @@ public class JavaTest extends AbstractBuildRuleWithDeclaredAndExtraDeps
 
   @Nullable private ImmutableList<JUnitStep> junits;
 
+  /** The logs written by the JUnit steps, one per shard when the tests are sharded. */
+  private ImmutableList<Path> testLogPaths;
+
   @Nullable private JUnitStep externalJunitStep;
 
   private final boolean runTestSeparately;
@@ -190,6 +197,7 @@ public class JavaTest extends AbstractBuildRuleWithDeclaredAndExtraDeps
     this.stdErrLogLevel = stdErrLogLevel;
     this.unbundledResourcesRoot = unbundledResourcesRoot;
     this.pathToTestLogs = getPathToTestOutputDirectory().resolve("logs.txt");
+    this.testLogPaths = ImmutableList.of(pathToTestLogs);
   }
 
   @Override
@@ -306,6 +314,7 @@ public class JavaTest extends AbstractBuildRuleWithDeclaredAndExtraDeps
             BuildCellRelativePath.fromCellRelativePath(
                 buildContext.getBuildCellRootPath(), getProjectFilesystem(), pathToTestOutput)));
     addPreTestSteps(buildContext, steps);
+    testLogPaths = ImmutableList.of(pathToTestLogs);
     if (forkMode() == ForkMode.PER_TEST) {
       ImmutableList.Builder<JUnitStep> junitsBuilder = ImmutableList.builder();
       for (String testClass : testClassNames) {
@@ -319,6 +328,27 @@ public class JavaTest extends AbstractBuildRuleWithDeclaredAndExtraDeps
                 Collections.singleton(testClass)));
       }
       junits = junitsBuilder.build();
+    } else if (options.getJUnitShards() > 1 && testClassNames.size() > 1) {
+      ImmutableList.Builder<JUnitStep> junitsBuilder = ImmutableList.builder();
+      ImmutableList.Builder<Path> testLogPathsBuilder = ImmutableList.builder();
+      List<Set<String>> shards = shardTestClasses(testClassNames, options);
+      for (int i = 0; i < shards.size(); i++) {
+        // Shards run concurrently, so each one needs a log of its own.
+        Path shardTestLogs = pathToTestOutput.resolve(String.format("logs-shard%d.txt", i));
+        testLogPathsBuilder.add(shardTestLogs);
+        junitsBuilder.add(
+            getJUnitStep(
+                executionContext,
+                buildContext.getSourcePathResolver(),
+                options,
+                Optional.of(pathToTestOutput),
+                Optional.of(shardTestLogs),
+                shards.get(i)));
+      }
+      junits = junitsBuilder.build();
+      testLogPaths = testLogPathsBuilder.build();
+      junits.forEach(junit -> steps.add(new TestShardStep(junit)));
+      return steps.build();
     } else {
       junits =
           ImmutableList.of(
@@ -334,6 +364,47 @@ public class JavaTest extends AbstractBuildRuleWithDeclaredAndExtraDeps
     return steps.build();
   }
 
+  /**
+   * Splits the test classes into shards expected to take about as long as each other, by adding
+   * them from the longest expected to the shortest to the shard expected to finish first. Classes
+   * which didn't run before are expected to take as long as the average class which did.
+   */
+  private static List<Set<String>> shardTestClasses(
+      Set<String> testClassNames, TestRunningOptions options) {
+    ImmutableMap<String, Long> durations = options.getExpectedTestClassDurations();
+    long defaultDuration =
+        (long)
+            testClassNames.stream()
+                .filter(durations::containsKey)
+                .mapToLong(durations::get)
+                .average()
+                .orElse(1);
+    List<String> longestFirst = new ArrayList<>(testClassNames);
+    longestFirst.sort(
+        Comparator.comparing(
+                (String testClass) -> durations.getOrDefault(testClass, defaultDuration))
+            .reversed()
+            .thenComparing(Comparator.naturalOrder()));
+
+    int numShards = Math.min(options.getJUnitShards(), testClassNames.size());
+    List<Set<String>> shards = new ArrayList<>(numShards);
+    long[] shardDurations = new long[numShards];
+    for (int i = 0; i < numShards; i++) {
+      shards.add(new LinkedHashSet<>());
+    }
+    for (String testClass : longestFirst) {
+      int shortestShard = 0;
+      for (int i = 1; i < numShards; i++) {
+        if (shardDurations[i] < shardDurations[shortestShard]) {
+          shortestShard = i;
+        }
+      }
+      shards.get(shortestShard).add(testClass);
+      shardDurations[shortestShard] += durations.getOrDefault(testClass, defaultDuration);
+    }
+    return shards;
+  }
+
   private static Iterable<String> reorderClasses(Set<String> testClassNames, boolean shuffle) {
     Random rng;
     if (shuffle) {
@@ -431,15 +502,13 @@ public class JavaTest extends AbstractBuildRuleWithDeclaredAndExtraDeps
                 .getPathForRelativePath(getPathToTestOutputDirectory().resolve(path));
         if (!isUsingTestSelectors && !Files.isRegularFile(testResultFile)) {
           String message;
-          for (JUnitStep junit : Objects.requireNonNull(junits)) {
-            if (junit.hasTimedOut()) {
-              message = "test timed out before generating results file";
-            } else {
-              message = "test exited before generating results file";
-            }
-            summaries.add(
-                getTestClassFailedSummary(testClass, message, testRuleTimeoutMs.orElse(0L)));
+          if (Objects.requireNonNull(junits).stream().anyMatch(JUnitStep::hasTimedOut)) {
+            message = "test timed out before generating results file";
+          } else {
+            message = "test exited before generating results file";
           }
+          summaries.add(
+              getTestClassFailedSummary(testClass, message, testRuleTimeoutMs.orElse(0L)));
           // Not having a test result file at all (which only happens when we are using test
           // selectors) is interpreted as meaning a test didn't run at all, so we'll completely
           // ignore it.  This is another result of the fact that JUnit is the only thing that can
@@ -460,7 +529,10 @@ public class JavaTest extends AbstractBuildRuleWithDeclaredAndExtraDeps
           .setTestCases(summaries)
           .setContacts(contacts)
           .setLabels(labels.stream().map(Object::toString).collect(ImmutableSet.toImmutableSet()))
-          .addTestLogPaths(getProjectFilesystem().resolve(pathToTestLogs))
+          .addAllTestLogPaths(
+              testLogPaths.stream()
+                  .map(getProjectFilesystem()::resolve)
+                  .collect(Collectors.toList()))
           .build();
     };
   }
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.exceptions.ParsingError;
+import com.facebook.buck.parser.syntax.ListWithSelects;
+import com.facebook.buck.parser.syntax.SelectorValue;
+import com.facebook.buck.skylark.io.GlobSpec;
+import com.facebook.buck.skylark.io.GlobSpecWithResult;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Ordering;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import javax.annotation.Nullable;
+
+/**
+ * Compact binary encoding of {@link BuildFileManifest}s.
+ *
+ * <p>Manifests hold the attribute values of raw target nodes, so the encoding covers the types
+ * build file parsers produce for them: strings, booleans, numbers, lists, sets and maps of those,
+ * and {@code select} expressions. Unlike a generic object mapper, it keeps the exact collection
+ * types and iteration order, so a decoded manifest is equal to the encoded one.
+ */
+class BuildFileManifestCodec {
+
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte BOOLEAN = 2;
+  private static final byte INTEGER = 3;
+  private static final byte LONG = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte LIST = 6;
+  private static final byte SET = 7;
+  private static final byte SORTED_SET = 8;
+  private static final byte MAP = 9;
+  private static final byte SORTED_MAP = 10;
+  private static final byte OPTIONAL = 11;
+  private static final byte LIST_WITH_SELECTS = 12;
+  private static final byte SELECTOR_VALUE = 13;
+
+  private BuildFileManifestCodec() {}
+
+  /**
+   * @return the encoded form of {@code manifest}.
+   * @throws IOException if the manifest holds values of a type this encoding doesn't support.
+   */
+  static byte[] encode(BuildFileManifest manifest) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      writeValue(out, manifest.getTargets());
+      writeValue(out, manifest.getIncludes());
+      writeValue(out, manifest.getConfigs());
+      writeValue(out, manifest.getEnv());
+      out.writeInt(manifest.getGlobManifest().size());
+      for (GlobSpecWithResult glob : manifest.getGlobManifest()) {
+        GlobSpec spec = glob.getGlobSpec();
+        writeValue(out, ImmutableList.copyOf(spec.getInclude()));
+        writeValue(out, ImmutableList.copyOf(spec.getExclude()));
+        out.writeBoolean(spec.getExcludeDirectories());
+        writeValue(out, ImmutableSet.copyOf(glob.getFilePaths()));
+      }
+      out.writeInt(manifest.getErrors().size());
+      for (ParsingError error : manifest.getErrors()) {
+        writeString(out, error.getMessage());
+        writeValue(out, error.getStackTrace());
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  /** @return the manifest encoded in {@code encoded}. */
+  @SuppressWarnings("unchecked")
+  static BuildFileManifest decode(byte[] encoded) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded))) {
+      ImmutableMap<String, ImmutableMap<String, Object>> targets =
+          (ImmutableMap<String, ImmutableMap<String, Object>>) readValue(in);
+      ImmutableSortedSet<String> includes = (ImmutableSortedSet<String>) readValue(in);
+      ImmutableMap<String, Object> configs = (ImmutableMap<String, Object>) readValue(in);
+      Optional<ImmutableMap<String, Optional<String>>> env =
+          (Optional<ImmutableMap<String, Optional<String>>>) readValue(in);
+      int globCount = in.readInt();
+      ImmutableList.Builder<GlobSpecWithResult> globs =
+          ImmutableList.builderWithExpectedSize(globCount);
+      for (int i = 0; i < globCount; i++) {
+        ImmutableList<String> include = (ImmutableList<String>) readValue(in);
+        ImmutableList<String> exclude = (ImmutableList<String>) readValue(in);
+        GlobSpec spec = GlobSpec.of(include, exclude, in.readBoolean());
+        globs.add(GlobSpecWithResult.of(spec, (ImmutableSet<String>) readValue(in)));
+      }
+      int errorCount = in.readInt();
+      ImmutableList.Builder<ParsingError> errors =
+          ImmutableList.builderWithExpectedSize(errorCount);
+      for (int i = 0; i < errorCount; i++) {
+        String message = readString(in);
+        errors.add(ParsingError.of(message, (ImmutableList<String>) readValue(in)));
+      }
+      return BuildFileManifest.of(targets, includes, configs, env, globs.build(), errors.build());
+    } catch (ClassCastException | NullPointerException | IllegalArgumentException e) {
+      throw new IOException("Malformed build file manifest", e);
+    }
+  }
+
+  private static void writeValue(DataOutputStream out, @Nullable Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Integer) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof List) {
+      out.writeByte(LIST);
+      writeElements(out, (List<?>) value);
+    } else if (value instanceof SortedSet) {
+      if (!isNaturalOrdering(((SortedSet<?>) value).comparator())) {
+        throw new IOException("Sorted sets with custom ordering are not supported");
+      }
+      out.writeByte(SORTED_SET);
+      writeElements(out, (SortedSet<?>) value);
+    } else if (value instanceof Set) {
+      out.writeByte(SET);
+      writeElements(out, (Set<?>) value);
+    } else if (value instanceof Map) {
+      if (value instanceof SortedMap) {
+        if (!isNaturalOrdering(((SortedMap<?, ?>) value).comparator())) {
+          throw new IOException("Sorted maps with custom ordering are not supported");
+        }
+        out.writeByte(SORTED_MAP);
+      } else {
+        out.writeByte(MAP);
+      }
+      Map<?, ?> map = (Map<?, ?>) value;
+      out.writeInt(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        writeValue(out, entry.getKey());
+        writeValue(out, entry.getValue());
+      }
+    } else if (value instanceof Optional) {
+      out.writeByte(OPTIONAL);
+      writeValue(out, ((Optional<?>) value).orElse(null));
+    } else if (value instanceof ListWithSelects) {
+      ListWithSelects list = (ListWithSelects) value;
+      out.writeByte(LIST_WITH_SELECTS);
+      writeString(out, list.getType().getName());
+      writeElements(out, list.getElements());
+    } else if (value instanceof SelectorValue) {
+      SelectorValue selector = (SelectorValue) value;
+      out.writeByte(SELECTOR_VALUE);
+      writeString(out, selector.getNoMatchError());
+      writeValue(out, selector.getDictionary());
+    } else {
+      throw new IOException("Unsupported value of type " + value.getClass().getName());
+    }
+  }
+
+  private static boolean isNaturalOrdering(@Nullable Comparator<?> comparator) {
+    return comparator == null
+        || comparator.equals(Ordering.natural())
+        || comparator.equals(Comparator.naturalOrder());
+  }
+
+  private static void writeElements(DataOutputStream out, Collection<?> elements)
+      throws IOException {
+    out.writeInt(elements.size());
+    for (Object element : elements) {
+      writeValue(out, element);
+    }
+  }
+
+  @Nullable
+  @SuppressWarnings("unchecked")
+  private static Object readValue(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case NULL:
+        return null;
+      case STRING:
+        return readString(in);
+      case BOOLEAN:
+        return in.readBoolean();
+      case INTEGER:
+        return in.readInt();
+      case LONG:
+        return in.readLong();
+      case DOUBLE:
+        return in.readDouble();
+      case LIST:
+        return readElements(in);
+      case SET:
+        return ImmutableSet.copyOf(readElements(in));
+      case SORTED_SET:
+        return ImmutableSortedSet.copyOf(
+            (Collection<? extends Comparable<Object>>) readElements(in));
+      case MAP:
+      case SORTED_MAP:
+        int size = in.readInt();
+        ImmutableMap.Builder<Object, Object> map = ImmutableMap.builderWithExpectedSize(size);
+        for (int i = 0; i < size; i++) {
+          map.put(readValue(in), readValue(in));
+        }
+        return type == MAP
+            ? map.build()
+            : ImmutableSortedMap.copyOf((Map<? extends Comparable<Object>, ?>) map.build());
+      case OPTIONAL:
+        return Optional.ofNullable(readValue(in));
+      case LIST_WITH_SELECTS:
+        String typeName = readString(in);
+        try {
+          return ListWithSelects.of(readElements(in), Class.forName(typeName));
+        } catch (ClassNotFoundException e) {
+          throw new IOException(e);
+        }
+      case SELECTOR_VALUE:
+        String noMatchError = readString(in);
+        return SelectorValue.of((Map<String, Object>) readValue(in), noMatchError);
+      default:
+        throw new IOException("Unknown value type " + type);
+    }
+  }
+
+  private static ImmutableList<Object> readElements(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    ImmutableList.Builder<Object> elements = ImmutableList.builderWithExpectedSize(size);
+    for (int i = 0; i < size; i++) {
+      elements.add(readValue(in));
+    }
+    return elements.build();
+  }
+
+  /** Unlike {@link DataOutputStream#writeUTF}, this isn't limited to 64KiB. */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -30,6 +30,8 @@ import com.facebook.buck.parser.api.PackageFileManifest;
 import com.facebook.buck.parser.exceptions.BuildTargetException;
 import com.facebook.buck.util.concurrent.AutoCloseableLock;
 import com.facebook.buck.util.concurrent.AutoCloseableReadWriteUpdateLock;
+import com.facebook.buck.util.sha1.Sha1HashCode;
+import com.facebook.buck.util.types.Pair;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableMap;
@@ -84,8 +86,18 @@ class DaemonicCellState {
     private void invalidateFor(UnflavoredBuildTarget target) {
       Set<K> keys = targetsCornucopia.removeAll(target);
       allComputedNodes.invalidateAll(keys);
+      for (K key : keys) {
+        onNodeInvalidated(key);
+      }
     }
 
+    /** Called with the cache lock held when a node is added to the cache. */
+    protected void onNodeAdded(
+        @SuppressWarnings("unused") K target, @SuppressWarnings("unused") T node) {}
+
+    /** Called with the cache lock held when a node is invalidated. */
+    protected void onNodeInvalidated(@SuppressWarnings("unused") K target) {}
+
     public Optional<T> lookupComputedNode(K target) throws BuildTargetException {
       try (AutoCloseableLock readLock = cachesLock.readLock()) {
         return Optional.ofNullable(allComputedNodes.getIfPresent(target));
@@ -101,6 +113,7 @@ class DaemonicCellState {
             target);
         if (updatedNode.equals(targetNode)) {
           targetsCornucopia.put(type.keyToUnflavoredBuildTargetView.apply(target), target);
+          onNodeAdded(target, targetNode);
         }
         return updatedNode;
       }
@@ -137,6 +150,14 @@ class DaemonicCellState {
   @GuardedBy("cachesLock")
   private final Map<AbsPath, ImmutableMap<String, Optional<String>>> buildFileEnv;
 
+  /**
+   * Contains the content hashes of the build file and includes that a build file manifest was
+   * computed from, taken when the manifest was produced. Only recorded when the parser state is
+   * persisted, see {@link ParserStateSnapshot}.
+   */
+  @GuardedBy("cachesLock")
+  private final Map<AbsPath, ImmutableMap<AbsPath, Sha1HashCode>> buildFileInputHashes;
+
   /** Used as an unbounded cache to stored build file manifests by build file path. */
   @GuardedBy("cachesLock")
   private final ConcurrentMapCache<AbsPath, BuildFileManifest> allBuildFileManifests;
@@ -200,7 +221,14 @@ class DaemonicCellState {
   private final AutoCloseableReadWriteUpdateLock cachesLock;
   private final int parsingThreads;
 
+  /** Daemon-wide index of the target nodes in {@link #targetNodeCache} of all cells. */
+  private final TargetNodeIndex targetNodeIndex;
+
   DaemonicCellState(Cell cell, int parsingThreads) {
+    this(cell, parsingThreads, new TargetNodeIndex());
+  }
+
+  DaemonicCellState(Cell cell, int parsingThreads, TargetNodeIndex targetNodeIndex) {
     this.cell = new AtomicReference<>(cell);
     this.parsingThreads = parsingThreads;
     this.cellRoot = cell.getRoot();
@@ -208,11 +236,24 @@ class DaemonicCellState {
     this.buildFileDependents = HashMultimap.create();
     this.packageFileDependents = HashMultimap.create();
     this.buildFileEnv = new HashMap<>();
+    this.buildFileInputHashes = new HashMap<>();
     this.allBuildFileManifests = new ConcurrentMapCache<>(parsingThreads);
     this.allPackageFileManifests = new ConcurrentMapCache<>(parsingThreads);
     this.allRawNodeTargets = new HashSet<>();
     this.cachesLock = new AutoCloseableReadWriteUpdateLock();
-    this.targetNodeCache = new Cache<>(TARGET_NODE_CACHE_TYPE);
+    this.targetNodeIndex = targetNodeIndex;
+    this.targetNodeCache =
+        new Cache<BuildTarget, TargetNodeMaybeIncompatible>(TARGET_NODE_CACHE_TYPE) {
+          @Override
+          protected void onNodeAdded(BuildTarget target, TargetNodeMaybeIncompatible node) {
+            node.getTargetNodeOptional().ifPresent(targetNodeIndex::add);
+          }
+
+          @Override
+          protected void onNodeInvalidated(BuildTarget target) {
+            targetNodeIndex.remove(target);
+          }
+        };
     this.rawTargetNodeCache = new Cache<>(RAW_TARGET_NODE_CACHE_TYPE);
   }
 
@@ -229,17 +270,72 @@ class DaemonicCellState {
     return type.getCache.apply(this);
   }
 
+  /** Adds the target nodes of this cell to the daemon-wide {@link TargetNodeIndex}. */
+  void addToTargetNodeIndex() {
+    try (AutoCloseableLock readLock = cachesLock.readLock()) {
+      for (TargetNodeMaybeIncompatible node : targetNodeCache.allComputedNodes.values()) {
+        node.getTargetNodeOptional().ifPresent(targetNodeIndex::add);
+      }
+    }
+  }
+
+  /**
+   * Removes the target nodes of this cell from the daemon-wide {@link TargetNodeIndex}, as the
+   * state of the cell is dropped.
+   */
+  void removeFromTargetNodeIndex() {
+    try (AutoCloseableLock writeLock = cachesLock.writeLock()) {
+      for (BuildTarget target : targetNodeCache.allComputedNodes.keySet()) {
+        targetNodeIndex.remove(target);
+      }
+    }
+  }
+
   Optional<BuildFileManifest> lookupBuildFileManifest(AbsPath buildFile) {
     try (AutoCloseableLock readLock = cachesLock.readLock()) {
       return Optional.ofNullable(allBuildFileManifests.getIfPresent(buildFile));
     }
   }
 
+  /**
+   * @return the build file manifests currently held for this cell whose input hashes were
+   *     recorded, together with those hashes, keyed by build file.
+   */
+  ImmutableMap<AbsPath, Pair<BuildFileManifest, ImmutableMap<AbsPath, Sha1HashCode>>>
+      getBuildFileManifestsWithInputHashes() {
+    try (AutoCloseableLock readLock = cachesLock.readLock()) {
+      ImmutableMap.Builder<AbsPath, Pair<BuildFileManifest, ImmutableMap<AbsPath, Sha1HashCode>>>
+          manifests = ImmutableMap.builder();
+      for (Map.Entry<AbsPath, ImmutableMap<AbsPath, Sha1HashCode>> entry :
+          buildFileInputHashes.entrySet()) {
+        BuildFileManifest manifest = allBuildFileManifests.getIfPresent(entry.getKey());
+        if (manifest != null) {
+          manifests.put(entry.getKey(), new Pair<>(manifest, entry.getValue()));
+        }
+      }
+      return manifests.build();
+    }
+  }
+
   BuildFileManifest putBuildFileManifestIfNotPresent(
       AbsPath buildFile,
       BuildFileManifest buildFileManifest,
       ImmutableSet<AbsPath> dependentsOfEveryNode,
       ImmutableMap<String, Optional<String>> env) {
+    return putBuildFileManifestIfNotPresent(
+        buildFile, buildFileManifest, dependentsOfEveryNode, env, Optional.empty());
+  }
+
+  /**
+   * @param inputHashes the content hashes of the files {@code buildFileManifest} was computed from,
+   *     recorded if the manifest is inserted.
+   */
+  BuildFileManifest putBuildFileManifestIfNotPresent(
+      AbsPath buildFile,
+      BuildFileManifest buildFileManifest,
+      ImmutableSet<AbsPath> dependentsOfEveryNode,
+      ImmutableMap<String, Optional<String>> env,
+      Optional<ImmutableMap<AbsPath, Sha1HashCode>> inputHashes) {
     try (AutoCloseableLock writeLock = cachesLock.writeLock()) {
       BuildFileManifest updated =
           allBuildFileManifests.putIfAbsentAndGet(buildFile, buildFileManifest);
@@ -255,6 +351,7 @@ class DaemonicCellState {
         for (AbsPath dependent : dependentsOfEveryNode) {
           buildFileDependents.put(dependent, buildFile);
         }
+        inputHashes.ifPresent(hashes -> buildFileInputHashes.put(buildFile, hashes));
       }
       return updated;
     }
@@ -343,6 +440,7 @@ class DaemonicCellState {
 
       allBuildFileManifests.invalidate(path);
       allPackageFileManifests.invalidate(path);
+      buildFileInputHashes.remove(path);
 
       // We may have been given a file that other build files depend on. Invalidate accordingly.
       Set<AbsPath> dependents = buildFileDependents.get(path);
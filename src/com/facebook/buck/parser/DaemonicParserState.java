@@ -41,8 +41,10 @@ import com.facebook.buck.parser.api.PackageFileManifest;
 import com.facebook.buck.parser.config.ParserConfig;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.exceptions.BuildTargetException;
+import com.facebook.buck.skylark.parser.SkylarkParseCache;
 import com.facebook.buck.util.concurrent.AutoCloseableLock;
 import com.facebook.buck.util.concurrent.AutoCloseableReadWriteLock;
+import com.facebook.buck.util.sha1.Sha1HashCode;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
@@ -57,7 +59,9 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.MapDifference;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Optional;
@@ -65,6 +69,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -184,10 +189,17 @@ public class DaemonicParserState {
       invalidateIfBuckConfigOrEnvHasChanged(cell, buildFile, eventBus);
 
       DaemonicCellState state = getCellState(cell);
-      if (state == null) {
-        return Optional.empty();
+      if (state != null) {
+        Optional<BuildFileManifest> manifest = state.lookupBuildFileManifest(buildFile);
+        if (manifest.isPresent()) {
+          return manifest;
+        }
+      }
+      Optional<BuildFileManifest> restored = restoreFromSnapshot(cell, buildFile);
+      if (!restored.isPresent()) {
+        recordParseStart(cell, buildFile);
       }
-      return state.lookupBuildFileManifest(buildFile);
+      return restored;
     }
 
     /**
@@ -212,27 +224,92 @@ public class DaemonicParserState {
       // invalidated mid-way through the parse).
       invalidateIfProjectBuildFileParserStateChanged(cell);
 
-      ImmutableSet.Builder<AbsPath> dependentsOfEveryNode = ImmutableSet.builder();
+      return putBuildFileManifestIfNotPresent(
+          getOrCreateCellState(cell),
+          cell,
+          buildFile,
+          manifest,
+          hashInputs(cell, buildFile, manifest));
+    }
+  }
 
-      addAllIncludes(dependentsOfEveryNode, manifest.getIncludes(), cell);
+  private static BuildFileManifest putBuildFileManifestIfNotPresent(
+      DaemonicCellState state,
+      Cell cell,
+      AbsPath buildFile,
+      BuildFileManifest manifest,
+      Optional<ImmutableMap<AbsPath, Sha1HashCode>> inputHashes) {
+    ImmutableSet.Builder<AbsPath> dependentsOfEveryNode = ImmutableSet.builder();
+
+    addAllIncludes(dependentsOfEveryNode, manifest.getIncludes(), cell);
+
+    if (cell.getBuckConfig().getView(ParserConfig.class).getEnablePackageFiles()) {
+      // Add the PACKAGE file in the build file's directory and parent directory as dependents,
+      // regardless of whether they currently exist. If a PACKAGE file is added, we need to
+      // invalidate all relevant nodes.
+      AbsPath packageFile = PackagePipeline.getPackageFileFromBuildFile(cell, buildFile);
+      ImmutableSet<AbsPath> parentPackageFiles =
+          PackagePipeline.getAllParentPackageFiles(cell, packageFile);
+      dependentsOfEveryNode.add(packageFile).addAll(parentPackageFiles);
+    }
 
-      if (cell.getBuckConfig().getView(ParserConfig.class).getEnablePackageFiles()) {
-        // Add the PACKAGE file in the build file's directory and parent directory as dependents,
-        // regardless of whether they currently exist. If a PACKAGE file is added, we need to
-        // invalidate all relevant nodes.
-        AbsPath packageFile = PackagePipeline.getPackageFileFromBuildFile(cell, buildFile);
-        ImmutableSet<AbsPath> parentPackageFiles =
-            PackagePipeline.getAllParentPackageFiles(cell, packageFile);
-        dependentsOfEveryNode.add(packageFile).addAll(parentPackageFiles);
-      }
+    return state.putBuildFileManifestIfNotPresent(
+        buildFile,
+        manifest,
+        dependentsOfEveryNode.build(),
+        manifest.getEnv().orElse(ImmutableMap.of()),
+        inputHashes);
+  }
 
-      return getOrCreateCellState(cell)
-          .putBuildFileManifestIfNotPresent(
-              buildFile,
-              manifest,
-              dependentsOfEveryNode.build(),
-              manifest.getEnv().orElse(ImmutableMap.of()));
+  /**
+   * Hashes {@code buildFile} and counts the file changes reported so far right before it's parsed,
+   * so that {@link #hashInputs} can tell whether anything changed while it was parsed.
+   */
+  private void recordParseStart(Cell cell, AbsPath buildFile) {
+    if (snapshot == null) {
+      return;
     }
+    // Counted before hashing, so that a change racing with the hash is noticed after parsing. If
+    // the build file is looked up again before its manifest is put, the earliest start is kept,
+    // which can only make the check stricter.
+    long changesBefore = fileChanges.get();
+    parseStarts.putIfAbsent(
+        buildFile, new ParseStart(changesBefore, ParserStateSnapshot.hash(cell, buildFile)));
+  }
+
+  /**
+   * Hashes the build file and includes {@code manifest} was computed from, so that the manifest can
+   * be persisted along with the hashes of the contents it was actually computed from. The hashes
+   * are taken after parsing, so they're discarded if the build file doesn't hash the same as right
+   * before it was parsed, or if any file change was reported in between, as one of the includes
+   * may then have been parsed with different contents.
+   *
+   * @return the hashes, or an empty optional if the parser state isn't persisted, some input
+   *     couldn't be hashed or may have changed while parsing.
+   */
+  private Optional<ImmutableMap<AbsPath, Sha1HashCode>> hashInputs(
+      Cell cell, AbsPath buildFile, BuildFileManifest manifest) {
+    ParseStart parseStart = parseStarts.remove(buildFile);
+    if (snapshot == null || parseStart == null) {
+      return Optional.empty();
+    }
+    ImmutableSet.Builder<AbsPath> inputs = ImmutableSet.builder();
+    inputs.add(buildFile);
+    addAllIncludes(inputs, manifest.getIncludes(), cell);
+    Optional<ImmutableMap<AbsPath, Sha1HashCode>> hashes =
+        ParserStateSnapshot.hashInputs(inputs.build(), path -> hashFile(cell, path));
+    if (!hashes.isPresent()
+        || fileChanges.get() != parseStart.fileChanges
+        || !parseStart.buildFileHash.equals(Optional.ofNullable(hashes.get().get(buildFile)))) {
+      LOG.verbose("Not recording inputs of %s, which may have changed while parsing", buildFile);
+      return Optional.empty();
+    }
+    return hashes;
+  }
+
+  /** @return the memoized content hash of {@code path}, see {@link #fileHashes}. */
+  private Optional<Sha1HashCode> hashFile(Cell cell, AbsPath path) {
+    return fileHashes.computeIfAbsent(path, p -> ParserStateSnapshot.hash(cell, p));
   }
 
   /** Stateless view of caches on object that conforms to {@link PipelineNodeCache.Cache}. */
@@ -359,6 +436,18 @@ public class DaemonicParserState {
 
   private final LoadingCache<Cell, BuildFileTree> buildFileTrees;
 
+  /** Reverse dependencies of the target nodes in the caches of all cells. */
+  private final TargetNodeIndex targetNodeIndex = new TargetNodeIndex();
+
+  /** Whether {@link #targetNodeIndex} was enabled and holds the nodes of all cells. */
+  private volatile boolean targetNodeIndexLoaded = false;
+
+  /**
+   * Skylark syntax trees and extensions, which outlive the parsers of a single command. Entries are
+   * keyed by file contents, so they don't need to be invalidated.
+   */
+  private final SkylarkParseCache skylarkParseCache = new SkylarkParseCache();
+
   /**
    * The default includes used by the previous run of the parser in each cell (the key is the cell's
    * root path). If this value changes, then we need to invalidate all the caches.
@@ -369,6 +458,35 @@ public class DaemonicParserState {
   private final AutoCloseableReadWriteLock cachedStateLock;
   private final AutoCloseableReadWriteLock cellStateLock;
 
+  /**
+   * Parser state saved by a previous daemon, whose cells are taken the first time they're used.
+   * Null unless the parser state is persisted.
+   */
+  @Nullable private volatile ParserStateSnapshot snapshot;
+
+  /**
+   * The snapshotted manifests of the cells in use, keyed by cell root. Each one is validated and
+   * restored when its build file is first looked up.
+   */
+  private final ConcurrentMap<AbsPath, ParserStateSnapshot.CellSnapshot> snapshotsToRestore =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Content hashes of the build files and includes, used to record and validate snapshotted
+   * manifests when the parser state is persisted. Entries are dropped when the file changes.
+   */
+  private final ConcurrentMap<AbsPath, Optional<Sha1HashCode>> fileHashes =
+      new ConcurrentHashMap<>();
+
+  /** The number of file changes reported so far, see {@link #recordParseStart}. */
+  private final AtomicLong fileChanges = new AtomicLong();
+
+  /**
+   * What each build file being parsed looked like right before it was parsed, when the parser
+   * state is persisted.
+   */
+  private final ConcurrentMap<AbsPath, ParseStart> parseStarts = new ConcurrentHashMap<>();
+
   public DaemonicParserState(int parsingThreads) {
     this.parsingThreads = parsingThreads;
     this.cacheInvalidatedByEnvironmentVariableChangeCounter =
@@ -419,6 +537,40 @@ public class DaemonicParserState {
     return buildFileTrees;
   }
 
+  /**
+   * @return the tree of build files of {@code cell}, which is kept across commands and rebuilt when
+   *     a build file is added or removed.
+   */
+  public BuildFileTree getBuildFileTree(Cell cell) {
+    return buildFileTrees.getUnchecked(cell);
+  }
+
+  /**
+   * @return the index of the target nodes cached by this daemon. The index is built from the
+   *     cached nodes the first time it is asked for, and kept up to date from then on.
+   */
+  public TargetNodeIndex getTargetNodeIndex() {
+    if (!targetNodeIndexLoaded) {
+      synchronized (targetNodeIndex) {
+        if (!targetNodeIndexLoaded) {
+          // Enabled first, so that the nodes added to a cell after it was read aren't missed.
+          targetNodeIndex.enable();
+          try (AutoCloseableLock readLock = cellStateLock.readLock()) {
+            for (DaemonicCellState state : cellPathToDaemonicState.values()) {
+              state.addToTargetNodeIndex();
+            }
+          }
+          targetNodeIndexLoaded = true;
+        }
+      }
+    }
+    return targetNodeIndex;
+  }
+
+  SkylarkParseCache getSkylarkParseCache() {
+    return skylarkParseCache;
+  }
+
   /** Type-safe accessor to one of state caches */
   static final class CacheType<K, T> {
     private final Function<DaemonicParserState, DaemonicCacheView<K, T>> getCacheView;
@@ -467,7 +619,7 @@ public class DaemonicParserState {
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       DaemonicCellState state = cellPathToDaemonicState.get(cell.getRoot());
       if (state == null) {
-        state = new DaemonicCellState(cell, parsingThreads);
+        state = new DaemonicCellState(cell, parsingThreads, targetNodeIndex);
         cellPathToDaemonicState.put(cell.getRoot(), state);
       }
       return state;
@@ -479,6 +631,8 @@ public class DaemonicParserState {
     // Non-path change event, likely an overflow due to many change events: invalidate everything.
     LOG.debug("Received non-path change event %s, assuming overflow and checking caches.", event);
 
+    fileChanges.incrementAndGet();
+    fileHashes.clear();
     if (invalidateAllCaches()) {
       LOG.warn("Invalidated cache on watch event %s.", event);
       cacheInvalidatedByWatchOverflowCounter.inc();
@@ -493,6 +647,8 @@ public class DaemonicParserState {
 
     RelPath path = event.getPath();
     AbsPath fullPath = event.getCellPath().resolve(event.getPath());
+    fileChanges.incrementAndGet();
+    fileHashes.remove(fullPath);
 
     // We only care about creation and deletion events because modified should result in a
     // rule key change.  For parsing, these are the only events we need to care about.
@@ -531,6 +687,12 @@ public class DaemonicParserState {
           }
         }
       }
+      // Queries also use the trees of cells nothing was parsed in yet.
+      for (Cell cell : buildFileTrees.asMap().keySet()) {
+        if (fullPath.endsWith(cell.getBuckConfigView(ParserConfig.class).getBuildFileName())) {
+          buildFileTrees.invalidate(cell);
+        }
+      }
     }
 
     if (configurationBuildFiles.contains(fullPath) || configurationRulesDependOn(path.getPath())) {
@@ -675,6 +837,8 @@ public class DaemonicParserState {
   }
 
   private boolean invalidateIfProjectBuildFileParserStateChanged(Cell cell) {
+    takeCellSnapshot(cell);
+
     Iterable<String> defaultIncludes =
         cell.getBuckConfig().getView(ParserConfig.class).getDefaultIncludes();
 
@@ -704,12 +868,116 @@ public class DaemonicParserState {
     return true;
   }
 
+  /** @return the default location of the parser state snapshot of {@code rootCell}. */
+  public static Path getDefaultSnapshotPath(Cell rootCell) {
+    return ParserStateSnapshot.getDefaultSnapshotPath(rootCell);
+  }
+
+  /**
+   * Reads the parser state snapshot at {@code snapshotPath}. The build file manifests it holds are
+   * validated and restored when their build files are first looked up. From then on, the hashes of
+   * the inputs of the manifests this state computes are recorded, so that {@link #saveSnapshot}
+   * can persist them.
+   */
+  public void loadSnapshot(Path snapshotPath) {
+    ParserStateSnapshot loaded = ParserStateSnapshot.read(snapshotPath);
+    LOG.debug("Loaded %d build file manifests from %s", loaded.size(), snapshotPath);
+    snapshot = loaded;
+  }
+
+  /** Writes the build file manifests of all cells to {@code snapshotPath}. */
+  public void saveSnapshot(Path snapshotPath) throws IOException {
+    ImmutableList<DaemonicCellState> states;
+    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
+      states = ImmutableList.copyOf(cellPathToDaemonicState.values());
+    }
+
+    Map<AbsPath, ParserStateSnapshot.CellSnapshot> cells = new HashMap<>();
+    for (DaemonicCellState state : states) {
+      Cell cell = state.getCell();
+      Iterable<String> defaultIncludes;
+      try (AutoCloseableLock readLock = cachedStateLock.readLock()) {
+        defaultIncludes = cachedIncludes.get(cell.getRoot());
+      }
+      if (defaultIncludes == null) {
+        continue;
+      }
+      cells.put(
+          cell.getRoot(),
+          ParserStateSnapshot.capture(
+              defaultIncludes, state.getBuildFileManifestsWithInputHashes()));
+    }
+    ParserStateSnapshot.write(cells, snapshotPath);
+    LOG.debug("Saved parser state of %d cells to %s", cells.size(), snapshotPath);
+  }
+
+  /**
+   * Takes the build file manifests recorded for {@code cell} in the loaded snapshot, if this is the
+   * first time the cell is seen, so they can be restored when looked up. They're only kept if the
+   * cell's default includes are the ones they were parsed with.
+   */
+  private void takeCellSnapshot(Cell cell) {
+    ParserStateSnapshot currentSnapshot = snapshot;
+    if (currentSnapshot == null) {
+      return;
+    }
+    Optional<ParserStateSnapshot.CellSnapshot> cellSnapshot =
+        currentSnapshot.takeCell(cell.getRoot());
+    if (!cellSnapshot.isPresent()) {
+      return;
+    }
+
+    Iterable<String> defaultIncludes =
+        cell.getBuckConfig().getView(ParserConfig.class).getDefaultIncludes();
+    if (!Iterables.elementsEqual(defaultIncludes, cellSnapshot.get().getDefaultIncludes())) {
+      LOG.debug("Not restoring parser state of %s: default includes changed", cell.getRoot());
+      return;
+    }
+    try (AutoCloseableLock writeLock = cachedStateLock.writeLock()) {
+      cachedIncludes.putIfAbsent(cell.getRoot(), defaultIncludes);
+    }
+    snapshotsToRestore.put(cell.getRoot(), cellSnapshot.get());
+    LOG.debug(
+        "Restoring up to %d build file manifests of %s from snapshot",
+        cellSnapshot.get().size(),
+        cell.getRoot());
+  }
+
+  /**
+   * Restores the manifest of {@code buildFile} recorded in the loaded snapshot, if there is one and
+   * it's still valid.
+   */
+  private Optional<BuildFileManifest> restoreFromSnapshot(Cell cell, AbsPath buildFile) {
+    ParserStateSnapshot.CellSnapshot cellSnapshot = snapshotsToRestore.get(cell.getRoot());
+    if (cellSnapshot == null) {
+      return Optional.empty();
+    }
+    ParserStateSnapshot.ManifestSnapshot manifestSnapshot = cellSnapshot.take(buildFile);
+    if (manifestSnapshot == null) {
+      return Optional.empty();
+    }
+    BuildFileManifest manifest = manifestSnapshot.validate(cell, path -> hashFile(cell, path));
+    if (manifest == null) {
+      LOG.verbose("Not restoring stale manifest of %s from snapshot", buildFile);
+      return Optional.empty();
+    }
+    return Optional.of(
+        putBuildFileManifestIfNotPresent(
+            getOrCreateCellState(cell),
+            cell,
+            buildFile,
+            manifest,
+            Optional.of(manifestSnapshot.getInputHashes())));
+  }
+
   public boolean invalidateCellCaches(Cell cell) {
     LOG.debug("Starting to invalidate caches for %s..", cell.getRoot());
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
-      boolean invalidated = cellPathToDaemonicState.containsKey(cell.getRoot());
-      cellPathToDaemonicState.remove(cell.getRoot());
+      DaemonicCellState state = cellPathToDaemonicState.remove(cell.getRoot());
+      snapshotsToRestore.remove(cell.getRoot());
+      boolean invalidated = state != null;
       if (invalidated) {
+        state.removeFromTargetNodeIndex();
         LOG.debug("Cell cache data invalidated.");
       } else {
         LOG.debug("Cell caches were empty, no data invalidated.");
@@ -724,6 +992,7 @@ public class DaemonicParserState {
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       boolean invalidated = !cellPathToDaemonicState.isEmpty();
       cellPathToDaemonicState.clear();
+      targetNodeIndex.clear();
       buildFileTrees.invalidateAll();
       configurationBuildFiles.clear();
       if (invalidated) {
@@ -752,4 +1021,15 @@ public class DaemonicParserState {
       return String.format("memoized=%s", cellPathToDaemonicState);
     }
   }
+
+  /** The state of a build file right before it was parsed, see {@link #recordParseStart}. */
+  private static final class ParseStart {
+    private final long fileChanges;
+    private final Optional<Sha1HashCode> buildFileHash;
+
+    private ParseStart(long fileChanges, Optional<Sha1HashCode> buildFileHash) {
+      this.fileChanges = fileChanges;
+      this.buildFileHash = buildFileHash;
+    }
+  }
 }
@@ -47,6 +47,7 @@ import com.facebook.buck.skylark.io.impl.NativeGlobber;
 import com.facebook.buck.skylark.io.impl.SyncCookieState;
 import com.facebook.buck.skylark.parser.BuckGlobals;
 import com.facebook.buck.skylark.parser.RuleFunctionFactory;
+import com.facebook.buck.skylark.parser.SkylarkParseCache;
 import com.facebook.buck.skylark.parser.SkylarkProjectBuildFileParser;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.DefaultProcessExecutor;
@@ -68,20 +69,44 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
   private final KnownRuleTypesProvider knownRuleTypesProvider;
   private final boolean enableProfiling;
   private final Optional<AtomicLong> processedBytes;
+  private final SkylarkParseCache skylarkParseCache;
 
+  /**
+   * @param skylarkParseCache syntax trees and extensions shared by all Skylark parsers this factory
+   *     creates.
+   */
   public DefaultProjectBuildFileParserFactory(
       TypeCoercerFactory typeCoercerFactory,
       Console console,
       ParserPythonInterpreterProvider pythonInterpreterProvider,
       KnownRuleTypesProvider knownRuleTypesProvider,
       boolean enableProfiling,
-      Optional<AtomicLong> processedBytes) {
+      Optional<AtomicLong> processedBytes,
+      SkylarkParseCache skylarkParseCache) {
     this.typeCoercerFactory = typeCoercerFactory;
     this.console = console;
     this.pythonInterpreterProvider = pythonInterpreterProvider;
     this.knownRuleTypesProvider = knownRuleTypesProvider;
     this.enableProfiling = enableProfiling;
     this.processedBytes = processedBytes;
+    this.skylarkParseCache = skylarkParseCache;
+  }
+
+  public DefaultProjectBuildFileParserFactory(
+      TypeCoercerFactory typeCoercerFactory,
+      Console console,
+      ParserPythonInterpreterProvider pythonInterpreterProvider,
+      KnownRuleTypesProvider knownRuleTypesProvider,
+      boolean enableProfiling,
+      Optional<AtomicLong> processedBytes) {
+    this(
+        typeCoercerFactory,
+        console,
+        pythonInterpreterProvider,
+        knownRuleTypesProvider,
+        enableProfiling,
+        processedBytes,
+        new SkylarkParseCache());
   }
 
   public DefaultProjectBuildFileParserFactory(
@@ -201,7 +226,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
               knownRuleTypesProvider.getUserDefinedRuleTypes(cell),
               eventBus,
               buildFileParserOptions,
-              parserConfig.getSkylarkGlobHandler());
+              parserConfig.getSkylarkGlobHandler(),
+              skylarkParseCache);
       Optional<UserDefinedRuleLoader> udrLoader = Optional.empty();
       if (parserConfig.getUserDefinedRulesState() == UserDefinedRulesState.ENABLED) {
         udrLoader = Optional.of(skylark);
@@ -231,7 +257,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
                   knownRuleTypesProvider.getUserDefinedRuleTypes(cell),
                   eventBus,
                   buildFileParserOptions,
-                  parserConfig.getSkylarkGlobHandler());
+                  parserConfig.getSkylarkGlobHandler(),
+                  skylarkParseCache);
           break;
         case PYTHON_DSL:
           parser =
@@ -288,7 +315,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       KnownUserDefinedRuleTypes knownUserDefinedRuleTypes,
       BuckEventBus eventBus,
       ProjectBuildFileParserOptions buildFileParserOptions,
-      SkylarkGlobHandler skylarkGlobHandler) {
+      SkylarkGlobHandler skylarkGlobHandler,
+      SkylarkParseCache skylarkParseCache) {
     GlobberFactory globberFactory;
     try {
       globberFactory = getSkylarkGlobberFactory(buildFileParserOptions, skylarkGlobHandler);
@@ -336,7 +364,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
               SkylarkFilesystem.using(cell.getFilesystem()),
               buckGlobals,
               eventHandler,
-              globberFactory);
+              globberFactory,
+              skylarkParseCache);
 
       // All built-ins should have already been discovered. Freezing improves performance by
       // avoiding synchronization during query operations. This operation is idempotent, so it's
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.command.config.ConfigIgnoredByDaemon;
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.file.SnapshotFile;
+import com.facebook.buck.io.filesystem.skylark.SkylarkFilesystem;
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.skylark.io.GlobSpec;
+import com.facebook.buck.skylark.io.GlobSpecWithResult;
+import com.facebook.buck.skylark.io.impl.NativeGlobber;
+import com.facebook.buck.util.sha1.Sha1HashCode;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * A compact on-disk snapshot of the build file manifests held by a {@link DaemonicParserState},
+ * used to give a newly started daemon the parse results of its predecessor.
+ *
+ * <p>Each manifest is recorded together with the content hashes of the build file and of every file
+ * it includes, taken when the manifest was produced, and with the values of the configuration
+ * options it read. A manifest is only restored if all of these still match, its environment
+ * variables still have the values it was parsed with and each of its globs still expands to the
+ * same set of paths, so build files affected by changes made while no daemon was watching are
+ * simply parsed again. Manifests are validated one build file at a time, when they're first looked
+ * up.
+ */
+class ParserStateSnapshot {
+
+  private static final Logger LOG = Logger.get(ParserStateSnapshot.class);
+
+  private static final SnapshotFile SNAPSHOT_FILE = new SnapshotFile("parser state", 0x50535453, 2);
+
+  private final ConcurrentMap<AbsPath, CellSnapshot> cells;
+
+  private ParserStateSnapshot(ConcurrentMap<AbsPath, CellSnapshot> cells) {
+    this.cells = cells;
+  }
+
+  /** @return the default location of the parser state snapshot of {@code cell}'s repository. */
+  static Path getDefaultSnapshotPath(Cell cell) {
+    return cell.getFilesystem()
+        .resolve(cell.getFilesystem().getBuckPaths().getDaemonStateDir())
+        .resolve("parser_state.bin");
+  }
+
+  /**
+   * Removes the manifests recorded for the cell rooted at {@code cellRoot} from this snapshot.
+   *
+   * @return the manifests, if any were recorded and they haven't been taken yet.
+   */
+  Optional<CellSnapshot> takeCell(AbsPath cellRoot) {
+    return Optional.ofNullable(cells.remove(cellRoot));
+  }
+
+  /** @return the number of manifests in this snapshot. */
+  int size() {
+    return cells.values().stream().mapToInt(cell -> cell.manifests.size()).sum();
+  }
+
+  /**
+   * Captures the given manifests of a cell. Manifests whose configuration reads can't be recorded
+   * are left out.
+   *
+   * @param manifests the manifests, together with the hashes of the files they were computed from,
+   *     keyed by build file.
+   */
+  static CellSnapshot capture(
+      Iterable<String> defaultIncludes,
+      Map<AbsPath, Pair<BuildFileManifest, ImmutableMap<AbsPath, Sha1HashCode>>> manifests) {
+    ConcurrentMap<AbsPath, ManifestSnapshot> captured = new ConcurrentHashMap<>();
+    for (Map.Entry<AbsPath, Pair<BuildFileManifest, ImmutableMap<AbsPath, Sha1HashCode>>> entry :
+        manifests.entrySet()) {
+      AbsPath buildFile = entry.getKey();
+      BuildFileManifest manifest = entry.getValue().getFirst();
+      Optional<ImmutableList<ConfigValue>> configs = getConfigValues(manifest);
+      if (!configs.isPresent()) {
+        continue;
+      }
+
+      byte[] serialized;
+      try {
+        serialized = BuildFileManifestCodec.encode(manifest);
+      } catch (IOException e) {
+        LOG.debug(e, "Unable to encode manifest of %s", buildFile);
+        continue;
+      }
+      captured.put(
+          buildFile,
+          new ManifestSnapshot(
+              buildFile, serialized, entry.getValue().getSecond(), configs.get()));
+    }
+    return new CellSnapshot(ImmutableList.copyOf(defaultIncludes), captured);
+  }
+
+  /**
+   * Hashes the files a manifest was computed from.
+   *
+   * @return the hashes, or an empty optional if one of the files can't be hashed.
+   */
+  static Optional<ImmutableMap<AbsPath, Sha1HashCode>> hashInputs(
+      Iterable<AbsPath> inputs, Function<AbsPath, Optional<Sha1HashCode>> hasher) {
+    ImmutableMap.Builder<AbsPath, Sha1HashCode> hashes = ImmutableMap.builder();
+    for (AbsPath input : inputs) {
+      Optional<Sha1HashCode> hash = hasher.apply(input);
+      if (!hash.isPresent()) {
+        return Optional.empty();
+      }
+      hashes.put(input, hash.get());
+    }
+    return Optional.of(hashes.build());
+  }
+
+  /** @return the content hash of {@code path}, or an empty optional if it can't be read. */
+  static Optional<Sha1HashCode> hash(Cell cell, AbsPath path) {
+    try {
+      return Optional.of(cell.getFilesystem().computeSha1(path.getPath()));
+    } catch (IOException e) {
+      return Optional.empty();
+    }
+  }
+
+  /** Writes {@code cells} to {@code snapshotPath}, replacing it atomically. */
+  static void write(Map<AbsPath, CellSnapshot> cells, Path snapshotPath) throws IOException {
+    SNAPSHOT_FILE.write(
+        snapshotPath,
+        out -> {
+          for (Map.Entry<AbsPath, CellSnapshot> cellEntry : cells.entrySet()) {
+            CellSnapshot cell = cellEntry.getValue();
+            out.writeBoolean(true);
+            out.writeUTF(cellEntry.getKey().toString());
+            out.writeInt(cell.defaultIncludes.size());
+            for (String include : cell.defaultIncludes) {
+              out.writeUTF(include);
+            }
+            for (ManifestSnapshot manifest : cell.manifests.values()) {
+              out.writeBoolean(true);
+              writeManifest(out, manifest);
+            }
+            out.writeBoolean(false);
+          }
+          out.writeBoolean(false);
+        });
+  }
+
+  /**
+   * Reads the snapshot at {@code snapshotPath}. Missing or unreadable snapshots result in an empty
+   * snapshot, and a truncated one in the cells read before the point of truncation.
+   */
+  static ParserStateSnapshot read(Path snapshotPath) {
+    ConcurrentMap<AbsPath, CellSnapshot> cells = new ConcurrentHashMap<>();
+    SNAPSHOT_FILE.read(
+        snapshotPath,
+        in -> {
+          while (in.readBoolean()) {
+            AbsPath cellRoot = AbsPath.get(in.readUTF());
+            int includeCount = in.readInt();
+            ImmutableList.Builder<String> defaultIncludes =
+                ImmutableList.builderWithExpectedSize(includeCount);
+            for (int i = 0; i < includeCount; i++) {
+              defaultIncludes.add(in.readUTF());
+            }
+            ConcurrentMap<AbsPath, ManifestSnapshot> manifests = new ConcurrentHashMap<>();
+            while (in.readBoolean()) {
+              ManifestSnapshot manifest = readManifest(in);
+              manifests.put(manifest.buildFile, manifest);
+            }
+            // A cell is only added once all of its manifests were read, so a truncation drops the
+            // whole cell being read rather than leaving it with an arbitrary subset of them.
+            cells.put(cellRoot, new CellSnapshot(defaultIncludes.build(), manifests));
+          }
+        });
+    return new ParserStateSnapshot(cells);
+  }
+
+  private static void writeManifest(DataOutputStream out, ManifestSnapshot manifest)
+      throws IOException {
+    out.writeUTF(manifest.buildFile.toString());
+    out.writeInt(manifest.serializedManifest.length);
+    out.write(manifest.serializedManifest);
+    out.writeInt(manifest.inputHashes.size());
+    for (Map.Entry<AbsPath, Sha1HashCode> input : manifest.inputHashes.entrySet()) {
+      out.writeUTF(input.getKey().toString());
+      out.writeUTF(input.getValue().getHash());
+    }
+    out.writeInt(manifest.configs.size());
+    for (ConfigValue config : manifest.configs) {
+      out.writeUTF(config.section);
+      out.writeUTF(config.key);
+      out.writeBoolean(config.value != null);
+      if (config.value != null) {
+        out.writeUTF(config.value);
+      }
+    }
+  }
+
+  private static ManifestSnapshot readManifest(DataInputStream in) throws IOException {
+    AbsPath buildFile = AbsPath.get(in.readUTF());
+    byte[] serializedManifest = new byte[in.readInt()];
+    in.readFully(serializedManifest);
+    int inputCount = in.readInt();
+    ImmutableMap.Builder<AbsPath, Sha1HashCode> inputHashes =
+        ImmutableMap.builderWithExpectedSize(inputCount);
+    for (int i = 0; i < inputCount; i++) {
+      inputHashes.put(AbsPath.get(in.readUTF()), Sha1HashCode.of(in.readUTF()));
+    }
+    int configCount = in.readInt();
+    ImmutableList.Builder<ConfigValue> configs = ImmutableList.builderWithExpectedSize(configCount);
+    for (int i = 0; i < configCount; i++) {
+      String section = in.readUTF();
+      String key = in.readUTF();
+      configs.add(new ConfigValue(section, key, in.readBoolean() ? in.readUTF() : null));
+    }
+    return new ManifestSnapshot(
+        buildFile, serializedManifest, inputHashes.build(), configs.build());
+  }
+
+  /**
+   * @return the configuration options read while parsing {@code manifest}, or an empty optional if
+   *     they are not in a form the snapshot understands.
+   */
+  private static Optional<ImmutableList<ConfigValue>> getConfigValues(BuildFileManifest manifest) {
+    ImmutableList.Builder<ConfigValue> values = ImmutableList.builder();
+    for (Map.Entry<String, Object> section : manifest.getConfigs().entrySet()) {
+      if (!(section.getValue() instanceof Map)) {
+        return Optional.empty();
+      }
+      for (Map.Entry<?, ?> option : ((Map<?, ?>) section.getValue()).entrySet()) {
+        Object value = option.getValue();
+        if (value instanceof Optional) {
+          value = ((Optional<?>) value).orElse(null);
+        }
+        if (!(option.getKey() instanceof String) || !(value == null || value instanceof String)) {
+          return Optional.empty();
+        }
+        values.add(new ConfigValue(section.getKey(), (String) option.getKey(), (String) value));
+      }
+    }
+    return Optional.of(values.build());
+  }
+
+  /** The manifests recorded for a single cell, which are taken one build file at a time. */
+  static final class CellSnapshot {
+    private final ImmutableList<String> defaultIncludes;
+    private final ConcurrentMap<AbsPath, ManifestSnapshot> manifests;
+
+    private CellSnapshot(
+        ImmutableList<String> defaultIncludes, ConcurrentMap<AbsPath, ManifestSnapshot> manifests) {
+      this.defaultIncludes = defaultIncludes;
+      this.manifests = manifests;
+    }
+
+    /** @return the number of manifests recorded for this cell which haven't been taken yet. */
+    int size() {
+      return manifests.size();
+    }
+
+    /** @return the default includes of the cell at the time its manifests were recorded. */
+    ImmutableList<String> getDefaultIncludes() {
+      return defaultIncludes;
+    }
+
+    /**
+     * Removes the manifest recorded for {@code buildFile}, so that it's validated at most once.
+     *
+     * @return the manifest, or null if none was recorded or it was already taken.
+     */
+    @Nullable
+    ManifestSnapshot take(AbsPath buildFile) {
+      return manifests.remove(buildFile);
+    }
+  }
+
+  /** A recorded manifest, which has yet to be validated. */
+  static final class ManifestSnapshot {
+    private final AbsPath buildFile;
+    private final byte[] serializedManifest;
+    private final ImmutableMap<AbsPath, Sha1HashCode> inputHashes;
+    private final ImmutableList<ConfigValue> configs;
+
+    private ManifestSnapshot(
+        AbsPath buildFile,
+        byte[] serializedManifest,
+        ImmutableMap<AbsPath, Sha1HashCode> inputHashes,
+        ImmutableList<ConfigValue> configs) {
+      this.buildFile = buildFile;
+      this.serializedManifest = serializedManifest;
+      this.inputHashes = inputHashes;
+      this.configs = configs;
+    }
+
+    /** @return the hashes of the files the manifest was computed from. */
+    ImmutableMap<AbsPath, Sha1HashCode> getInputHashes() {
+      return inputHashes;
+    }
+
+    /** @return the recorded manifest if it is still valid for {@code cell}, or null otherwise. */
+    @Nullable
+    BuildFileManifest validate(Cell cell, Function<AbsPath, Optional<Sha1HashCode>> hasher) {
+      ImmutableMap<String, ImmutableMap<String, String>> rawConfig =
+          cell.getBuckConfig().getView(ConfigIgnoredByDaemon.class).getRawConfigForParser();
+      for (ConfigValue config : configs) {
+        String current = rawConfig.getOrDefault(config.section, ImmutableMap.of()).get(config.key);
+        if (!Objects.equals(current, config.value)) {
+          return null;
+        }
+      }
+
+      for (Map.Entry<AbsPath, Sha1HashCode> input : inputHashes.entrySet()) {
+        if (!hasher.apply(input.getKey()).equals(Optional.of(input.getValue()))) {
+          return null;
+        }
+      }
+
+      BuildFileManifest manifest;
+      try {
+        manifest = BuildFileManifestCodec.decode(serializedManifest);
+      } catch (IOException e) {
+        LOG.debug(e, "Unable to decode manifest of %s", buildFile);
+        return null;
+      }
+
+      Map<String, String> environment = cell.getBuckConfig().getEnvironment();
+      for (Map.Entry<String, Optional<String>> env :
+          manifest.getEnv().orElse(ImmutableMap.of()).entrySet()) {
+        if (!env.getValue().equals(Optional.ofNullable(environment.get(env.getKey())))) {
+          return null;
+        }
+      }
+
+      // Files added or removed while no daemon was running would otherwise go unnoticed.
+      NativeGlobber globber =
+          NativeGlobber.create(
+              SkylarkFilesystem.using(cell.getFilesystem())
+                  .getPath(buildFile.getParent().toString()));
+      for (GlobSpecWithResult glob : manifest.getGlobManifest()) {
+        GlobSpec spec = glob.getGlobSpec();
+        try {
+          if (!globber
+              .run(spec.getInclude(), spec.getExclude(), spec.getExcludeDirectories())
+              .equals(glob.getFilePaths())) {
+            return null;
+          }
+        } catch (IOException e) {
+          return null;
+        }
+      }
+      return manifest;
+    }
+  }
+
+  /** A configuration option read while parsing a build file, and the value it had. */
+  private static final class ConfigValue {
+    private final String section;
+    private final String key;
+    @Nullable private final String value;
+
+    private ConfigValue(String section, String key, @Nullable String value) {
+      this.section = section;
+      this.key = key;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.google.common.collect.ImmutableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of the compatible target nodes held in the target node cache of a {@link
+ * DaemonicParserState}, and of their reverse parse dependencies.
+ *
+ * <p>The index is only maintained once it is enabled, which {@link
+ * DaemonicParserState#getTargetNodeIndex} does when a command first needs it, so that commands
+ * which don't use it pay nothing for it. From then on, it is updated by {@link DaemonicCellState}
+ * whenever a node is added to or invalidated from the cache, so it lives as long as the daemon and
+ * reflects the nodes of all the commands it ran. It doesn't load nodes: a node which was never
+ * parsed, or which was invalidated since, has no entry, and neither do its dependencies on other
+ * nodes.
+ */
+public class TargetNodeIndex {
+
+  private volatile boolean enabled = false;
+
+  /** Incremented whenever nodes are removed, so that checks against the index can be reused. */
+  private final AtomicLong version = new AtomicLong();
+
+  private final ConcurrentMap<BuildTarget, TargetNode<?>> nodes = new ConcurrentHashMap<>();
+
+  /** Maps each target to the targets of the indexed nodes which have a parse dep on it. */
+  private final ConcurrentMap<BuildTarget, Set<BuildTarget>> dependents =
+      new ConcurrentHashMap<>();
+
+  /** Starts maintaining the index. The nodes which are already cached have to be added. */
+  void enable() {
+    enabled = true;
+  }
+
+  void add(TargetNode<?> node) {
+    if (!enabled) {
+      return;
+    }
+    BuildTarget target = node.getBuildTarget();
+    if (nodes.putIfAbsent(target, node) != null) {
+      return;
+    }
+    for (BuildTarget dep : node.getParseDeps()) {
+      dependents.compute(
+          dep,
+          (key, targets) -> {
+            Set<BuildTarget> result = targets == null ? ConcurrentHashMap.newKeySet() : targets;
+            result.add(target);
+            return result;
+          });
+    }
+  }
+
+  void remove(BuildTarget target) {
+    TargetNode<?> node = nodes.remove(target);
+    if (node == null) {
+      return;
+    }
+    version.incrementAndGet();
+    for (BuildTarget dep : node.getParseDeps()) {
+      dependents.computeIfPresent(
+          dep,
+          (key, targets) -> {
+            targets.remove(target);
+            return targets.isEmpty() ? null : targets;
+          });
+    }
+  }
+
+  void clear() {
+    nodes.clear();
+    dependents.clear();
+    version.incrementAndGet();
+  }
+
+  /**
+   * @return a number which changes whenever nodes are removed from the index. A node which was
+   *     found in the index is still there as long as this doesn't change.
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  /** @return the cached node of {@code target}, if it's held by the daemon. */
+  public Optional<TargetNode<?>> getNode(BuildTarget target) {
+    return Optional.ofNullable(nodes.get(target));
+  }
+
+  /** @return the cached nodes which have a parse dependency on {@code target}. */
+  public ImmutableSet<TargetNode<?>> getDependents(BuildTarget target) {
+    Set<BuildTarget> targets = dependents.get(target);
+    if (targets == null) {
+      return ImmutableSet.of();
+    }
+    ImmutableSet.Builder<TargetNode<?>> result =
+        ImmutableSet.builderWithExpectedSize(targets.size());
+    for (BuildTarget dependent : targets) {
+      TargetNode<?> node = nodes.get(dependent);
+      if (node != null) {
+        result.add(node);
+      }
+    }
+    return result.build();
+  }
+
+  /** @return the number of nodes in the index. */
+  public int size() {
+    return nodes.size();
+  }
+}
@@ -299,6 +299,15 @@ public abstract class ParserConfig implements ConfigView<BuckConfig> {
     return getDelegate().getInteger("parser", "target_threshold").orElse(TARGET_PARSER_THRESHOLD);
   }
 
+  /**
+   * @return whether the daemon should save its parsed build files when it shuts down, for the next
+   *     daemon to pick up.
+   */
+  @Value.Lazy
+  public boolean shouldPersistParserState() {
+    return getDelegate().getBooleanValue("parser", "persist_state", false);
+  }
+
   @Value.Lazy
   public boolean getEnableTargetCompatibilityChecks() {
     return getDelegate().getBooleanValue("parser", "enable_target_compatibility_checks", true);
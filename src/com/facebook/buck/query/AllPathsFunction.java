@@ -103,6 +103,11 @@ public class AllPathsFunction<T extends QueryTarget> implements QueryFunction<T,
     return result;
   }
 
+  @Override
+  public boolean evaluatesAllExpressionArguments() {
+    return true;
+  }
+
   /**
    * Returns a new and mutable set containing the intersection of the two specified sets. Using the
    * smaller of the two sets as the base for finding the intersection for performance reasons.
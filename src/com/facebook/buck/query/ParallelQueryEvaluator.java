@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.query;
+
+import com.facebook.buck.core.model.QueryTarget;
+import com.facebook.buck.query.QueryEnvironment.Argument;
+import com.facebook.buck.query.QueryEnvironment.ArgumentType;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A {@link QueryEvaluator} which, like {@link CachingQueryEvaluator}, evaluates each expression
+ * once, and which evaluates independent subexpressions concurrently.
+ *
+ * <p>Before an expression is evaluated, the operands of set operators and the expression arguments
+ * of functions which evaluate all of them (see {@link
+ * QueryEnvironment.QueryFunction#evaluatesAllExpressionArguments}) but the first are submitted to
+ * the executor, while the calling thread goes on with the first one. A thread which needs the
+ * value of an expression nobody started evaluating yet evaluates it itself, so evaluation makes
+ * progress even when all the threads of the executor are busy.
+ *
+ * <p>An instance can be shared by concurrent evaluations of queries in the same environment, which
+ * then evaluate their common subexpressions, like the universe of {@code rdeps()}, once.
+ */
+public class ParallelQueryEvaluator<ENV_NODE_TYPE> implements QueryEvaluator<ENV_NODE_TYPE> {
+  private final Executor executor;
+  private final ConcurrentMap<QueryExpression<?>, FutureTask<Set<?>>> results =
+      new ConcurrentHashMap<>();
+
+  public ParallelQueryEvaluator(Executor executor) {
+    this.executor = executor;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <OUTPUT_TYPE extends QueryTarget> Set<OUTPUT_TYPE> eval(
+      QueryExpression<ENV_NODE_TYPE> exp, QueryEnvironment<ENV_NODE_TYPE> env)
+      throws QueryException {
+    FutureTask<Set<?>> result = getResult(exp, env);
+    if (!result.isDone()) {
+      List<QueryExpression<ENV_NODE_TYPE>> operands = getIndependentOperands(exp);
+      for (int i = 1; i < operands.size(); i++) {
+        prefetch(operands.get(i), env);
+      }
+      // Does nothing if another thread is already evaluating the expression.
+      result.run();
+    }
+    try {
+      return (Set<OUTPUT_TYPE>) result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new QueryException(e, "Interrupted while executing query [%s]", exp);
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), QueryException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new QueryException(e.getCause(), "Failed executing query [%s]", exp);
+    }
+  }
+
+  @VisibleForTesting
+  public boolean isPresent(QueryExpression<?> exp) {
+    FutureTask<Set<?>> result = results.get(exp);
+    return result != null && result.isDone();
+  }
+
+  private FutureTask<Set<?>> getResult(
+      QueryExpression<ENV_NODE_TYPE> exp, QueryEnvironment<ENV_NODE_TYPE> env) {
+    return results.computeIfAbsent(exp, key -> new FutureTask<>(() -> exp.eval(this, env)));
+  }
+
+  private void prefetch(QueryExpression<ENV_NODE_TYPE> exp, QueryEnvironment<ENV_NODE_TYPE> env) {
+    if (getResult(exp, env).isDone()) {
+      return;
+    }
+    try {
+      executor.execute(
+          () -> {
+            try {
+              eval(exp, env);
+            } catch (QueryException | RuntimeException e) {
+              // The failure is memoized and rethrown to the evaluation which needs the value.
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // The expression is evaluated when its value is needed.
+    }
+  }
+
+  private static <T> List<QueryExpression<T>> getIndependentOperands(QueryExpression<T> exp) {
+    if (exp instanceof BinaryOperatorExpression) {
+      return ((BinaryOperatorExpression<T>) exp).getOperands();
+    }
+    if (exp instanceof FunctionExpression
+        && ((FunctionExpression<T>) exp).getFunction().evaluatesAllExpressionArguments()) {
+      List<QueryExpression<T>> operands = new ArrayList<>();
+      for (Argument<T> arg : ((FunctionExpression<T>) exp).getArgs()) {
+        if (arg.getType() == ArgumentType.EXPRESSION) {
+          operands.add(arg.getExpression());
+        }
+      }
+      return operands;
+    }
+    return Collections.emptyList();
+  }
+}
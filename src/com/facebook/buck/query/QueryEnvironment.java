@@ -33,6 +33,8 @@ package com.facebook.buck.query;
 import com.facebook.buck.core.model.QueryTarget;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import java.util.LinkedHashSet;
 import java.util.Objects;
 import java.util.Set;
 import java.util.function.Consumer;
@@ -196,6 +198,16 @@ public interface QueryEnvironment<NODE_TYPE> {
         QueryEnvironment<ENV_NODE_TYPE> env,
         ImmutableList<Argument<ENV_NODE_TYPE>> args)
         throws QueryException;
+
+    /**
+     * Whether {@link #eval} evaluates all of its {@link ArgumentType#EXPRESSION} arguments with the
+     * evaluator and in the environment it is given, so that evaluators may evaluate them ahead of
+     * time and concurrently. Functions which only evaluate some of them, or which evaluate them in
+     * another environment like the templates of {@code deps()}, must return false.
+     */
+    default boolean evaluatesAllExpressionArguments() {
+      return false;
+    }
   }
 
   /**
@@ -241,6 +253,40 @@ public interface QueryEnvironment<NODE_TYPE> {
   /** Returns the direct reverse dependencies of the specified targets. */
   Set<NODE_TYPE> getReverseDeps(Iterable<NODE_TYPE> targets) throws QueryException;
 
+  /**
+   * Returns the targets in the transitive closure of {@code universe} which depend on {@code
+   * targets} through up to {@code maxDepth} edges, including {@code targets} themselves, level by
+   * level starting from {@code targets}. Callers must ensure that {@link #buildTransitiveClosure}
+   * has been called for {@code universe}.
+   */
+  default Set<NODE_TYPE> getReverseDepsInUniverse(
+      Set<NODE_TYPE> universe, Set<NODE_TYPE> targets, int maxDepth) throws QueryException {
+    Set<NODE_TYPE> transitiveClosureUniverse = getTransitiveClosure(universe);
+
+    // LinkedHashSet preserves the order of insertion when iterating over the values.
+    // The order by which we traverse the result is meaningful because the dependencies are
+    // traversed level-by-level.
+    Set<NODE_TYPE> visited = new LinkedHashSet<>();
+    Set<NODE_TYPE> current = targets;
+
+    // This predicate function does not just do filtering but also populates visited collection.
+    // This is a bit ugly but enables to evaluate the collection exactly once
+    // The actual evaluation and population of `visited` happens in `getReverseDeps` as it iterates
+    // through targets
+    Predicate<NODE_TYPE> filter =
+        target -> (transitiveClosureUniverse.contains(target) && visited.add(target));
+
+    // Iterating maxDepth+1 times because the first one processes the given argument set.
+    for (int i = 0; i <= maxDepth; i++) {
+      Set<NODE_TYPE> next = getReverseDeps(Iterables.filter(current, filter::test));
+      if (next.isEmpty()) {
+        break;
+      }
+      current = next;
+    }
+    return visited;
+  }
+
   Set<QueryFileTarget> getInputs(NODE_TYPE target) throws QueryException;
 
   /**
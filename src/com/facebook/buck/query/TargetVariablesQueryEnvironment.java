@@ -52,6 +52,12 @@ public class TargetVariablesQueryEnvironment<NODE_TYPE> implements QueryEnvironm
     return delegate.getReverseDeps(targets);
   }
 
+  @Override
+  public Set<NODE_TYPE> getReverseDepsInUniverse(
+      Set<NODE_TYPE> universe, Set<NODE_TYPE> targets, int maxDepth) throws QueryException {
+    return delegate.getReverseDepsInUniverse(universe, targets, maxDepth);
+  }
+
   @Override
   public Set<QueryFileTarget> getInputs(NODE_TYPE target) throws QueryException {
     return delegate.getInputs(target);
@@ -40,12 +40,16 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
 /** GRPC implementation of the CasBlobUploader. */
 public class GrpcCasBlobUploader implements CasBlobUploader {
@@ -129,42 +133,26 @@ public class GrpcCasBlobUploader implements CasBlobUploader {
   @Override
   public UploadResult uploadFromStream(UploadDataSupplier blob) throws IOException {
     long uploadSize = blob.getDigest().getSize();
-    try (Scope ignored = CasBlobUploadEvent.sendEvent(buckEventBus, 1, uploadSize)) {
-      InputStream dataStream = blob.get();
+    try (Scope ignored = CasBlobUploadEvent.sendEvent(buckEventBus, 1, uploadSize);
+        InputStream dataStream = blob.get()) {
       String name = GrpcRemoteExecutionClients.getResourceName(instanceName, blob.getDigest());
 
-      SettableFuture<UploadResult> result = SettableFuture.create();
-      StreamObserver<ByteStreamProto.WriteResponse> responseObserver =
-          new StreamObserver<ByteStreamProto.WriteResponse>() {
-            @Override
-            public void onNext(ByteStreamProto.WriteResponse value) {}
-
-            @Override
-            public void onError(Throwable t) {
-              Status status = Status.fromThrowable(t);
-              LOG.warn(
-                  "Writing Digest "
-                      + blob.getDigest()
-                      + " to byte stream service failed: "
-                      + status);
-              result.set(
-                  new UploadResult(blob.getDigest(), status.getCode().value(), t.getMessage()));
-            }
-
-            @Override
-            public void onCompleted() {
-              result.set(new UploadResult(blob.getDigest(), Status.OK.getCode().value(), ""));
-            }
-          };
+      WriteObserver responseObserver = new WriteObserver(blob.getDigest());
       StreamObserver<ByteStreamProto.WriteRequest> requestObserver =
           byteStreamStub.write(responseObserver);
 
       // ByteString's readFrom InputStream will drain the stream - since these are large objects we
       // want read and send chunks at a time. So read byte[CHUNK_SIZE] from the InputStream and copy
-      // them into the ByteString for upload.
+      // them into the ByteString for upload. Chunks are only sent once the transport is ready for
+      // them, so that no more than a few of them are buffered in memory however large the blob is.
       byte[] buffer = new byte[CHUNK_SIZE];
-      int len, writeOffset = 0;
+      int len;
+      long writeOffset = 0;
       while ((len = dataStream.read(buffer)) > 0) {
+        if (!responseObserver.awaitReady()) {
+          // The write has already failed.
+          return responseObserver.result.get();
+        }
         requestObserver.onNext(
             ByteStreamProto.WriteRequest.newBuilder()
                 .setResourceName(name)
@@ -176,14 +164,70 @@ public class GrpcCasBlobUploader implements CasBlobUploader {
       requestObserver.onNext(
           ByteStreamProto.WriteRequest.newBuilder()
               .setResourceName(name)
+              .setWriteOffset(writeOffset)
               .setFinishWrite(true)
               .build());
       requestObserver.onCompleted();
-      return result.get();
+      return responseObserver.result.get();
     } catch (InterruptedException | ExecutionException e) {
       MoreThrowables.throwIfInitialCauseInstanceOf(e, BuckUncheckedExecutionException.class);
       throw new BuckUncheckedExecutionException(
           e, "When uploading a blob: <%s>. Digests: %s.", blob.describe(), blob.getDigest());
     }
   }
+
+  /** Observes a ByteStream write, and lets the writer wait for the call to be ready for more. */
+  private static class WriteObserver
+      implements ClientResponseObserver<
+          ByteStreamProto.WriteRequest, ByteStreamProto.WriteResponse> {
+    private final Digest digest;
+    private final SettableFuture<UploadResult> result = SettableFuture.create();
+    private final Object readyLock = new Object();
+    @Nullable private ClientCallStreamObserver<ByteStreamProto.WriteRequest> requestStream;
+
+    WriteObserver(Digest digest) {
+      this.digest = digest;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<ByteStreamProto.WriteRequest> requestStream) {
+      this.requestStream = requestStream;
+      requestStream.setOnReadyHandler(this::signal);
+    }
+
+    /** @return false if the write completed before the call was ready. */
+    boolean awaitReady() throws InterruptedException {
+      ClientCallStreamObserver<ByteStreamProto.WriteRequest> stream =
+          Objects.requireNonNull(requestStream);
+      synchronized (readyLock) {
+        while (!stream.isReady() && !result.isDone()) {
+          readyLock.wait();
+        }
+      }
+      return !result.isDone();
+    }
+
+    private void signal() {
+      synchronized (readyLock) {
+        readyLock.notifyAll();
+      }
+    }
+
+    @Override
+    public void onNext(ByteStreamProto.WriteResponse value) {}
+
+    @Override
+    public void onError(Throwable t) {
+      Status status = Status.fromThrowable(t);
+      LOG.warn("Writing Digest " + digest + " to byte stream service failed: " + status);
+      result.set(new UploadResult(digest, status.getCode().value(), t.getMessage()));
+      signal();
+    }
+
+    @Override
+    public void onCompleted() {
+      result.set(new UploadResult(digest, Status.OK.getCode().value(), ""));
+      signal();
+    }
+  }
 }
@@ -17,6 +17,8 @@
 package com.facebook.buck.remoteexecution.grpc;
 
 import build.bazel.remote.execution.v2.Digest;
+import com.facebook.buck.remoteexecution.CasBlobUploader.UploadResult;
+import com.facebook.buck.remoteexecution.UploadDataSupplier;
 import com.facebook.buck.remoteexecution.grpc.GrpcProtocol.GrpcDigest;
 import com.facebook.buck.remoteexecution.util.LocalContentAddressedStorage;
 import com.google.bytestream.ByteStreamGrpc.ByteStreamImplBase;
@@ -27,11 +29,20 @@ import com.google.bytestream.ByteStreamProto.ReadResponse;
 import com.google.bytestream.ByteStreamProto.WriteRequest;
 import com.google.bytestream.ByteStreamProto.WriteResponse;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.protobuf.ByteString;
+import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 
 /** A simple ByteStream server backed by a {@link LocalContentAddressedStorage}. */
 class LocalBackedByteStreamServer extends ByteStreamImplBase {
@@ -86,8 +97,105 @@ class LocalBackedByteStreamServer extends ByteStreamImplBase {
 
   @Override
   public StreamObserver<WriteRequest> write(StreamObserver<WriteResponse> responseObserver) {
-    // Unimplemented, Buck client doesn't use this.
-    return super.write(responseObserver);
+    return new StreamObserver<WriteRequest>() {
+      @Nullable private Digest digest;
+      @Nullable private Path tempPath;
+      @Nullable private OutputStream output;
+      private long committedSize = 0;
+      private boolean finished = false;
+
+      @Override
+      public void onNext(WriteRequest request) {
+        if (finished) {
+          return;
+        }
+        try {
+          if (output == null) {
+            digest = parseResourceName(request.getResourceName()).getDigest();
+            tempPath = Files.createTempFile("bytestream-write", ".tmp");
+            output = new BufferedOutputStream(Files.newOutputStream(tempPath));
+          }
+          if (request.getWriteOffset() != committedSize) {
+            fail(
+                Status.INVALID_ARGUMENT.withDescription(
+                    String.format(
+                        "Expected write at offset %d, got %d.",
+                        committedSize, request.getWriteOffset())));
+            return;
+          }
+          request.getData().writeTo(output);
+          committedSize += request.getData().size();
+          if (request.getFinishWrite()) {
+            finish();
+          }
+        } catch (Exception e) {
+          fail(Status.INTERNAL.withDescription(e.getMessage()).withCause(e));
+        }
+      }
+
+      private void finish() throws IOException {
+        Digest expectedDigest = Objects.requireNonNull(digest);
+        Path path = Objects.requireNonNull(tempPath);
+        Objects.requireNonNull(output).close();
+        if (committedSize != expectedDigest.getSizeBytes()) {
+          fail(
+              Status.INVALID_ARGUMENT.withDescription(
+                  String.format(
+                      "Expected %d bytes for %s, got %d.",
+                      expectedDigest.getSizeBytes(), expectedDigest.getHash(), committedSize)));
+          return;
+        }
+        UploadResult result =
+            storage
+                .batchUpdateBlobs(
+                    ImmutableList.of(
+                        UploadDataSupplier.of(
+                            "ByteStream write",
+                            new GrpcDigest(expectedDigest),
+                            () -> Files.newInputStream(path))))
+                .get(0);
+        if (result.status != Status.Code.OK.value()) {
+          fail(Status.fromCodeValue(result.status).withDescription(result.message));
+          return;
+        }
+        finished = true;
+        cleanUp();
+        responseObserver.onNext(WriteResponse.newBuilder().setCommittedSize(committedSize).build());
+        responseObserver.onCompleted();
+      }
+
+      private void fail(Status status) {
+        finished = true;
+        cleanUp();
+        responseObserver.onError(status.asException());
+      }
+
+      private void cleanUp() {
+        try {
+          if (output != null) {
+            output.close();
+          }
+          if (tempPath != null) {
+            Files.deleteIfExists(tempPath);
+          }
+        } catch (IOException e) {
+          // Only a temporary file is left behind.
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        finished = true;
+        cleanUp();
+      }
+
+      @Override
+      public void onCompleted() {
+        if (!finished) {
+          fail(Status.INVALID_ARGUMENT.withDescription("The write was never finished."));
+        }
+      }
+    };
   }
 
   @Override
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.remoteexecution.util;
+
+import com.facebook.buck.remoteexecution.interfaces.Protocol;
+import com.facebook.buck.remoteexecution.interfaces.Protocol.DirectoryNode;
+import com.facebook.buck.remoteexecution.interfaces.Protocol.FileNode;
+import com.facebook.buck.remoteexecution.interfaces.Protocol.SymlinkNode;
+import com.facebook.buck.remoteexecution.util.MerkleTreeNodeCache.NodeData;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * A content addressed cache of the {@link Protocol} encoded directories of merkle trees, keyed by
+ * the entries of each directory, i.e. the names and digests of its children.
+ *
+ * <p>The nodes of a {@link MerkleTreeNodeCache} only live as long as the build which created them,
+ * while the shared instance lives as long as the daemon, so that the unchanged directories of the
+ * inputs of an action aren't encoded and hashed again in each build. The cache evicts the least
+ * recently used directories once their encoded size exceeds its bound.
+ */
+public class MerkleTreeDirectoryCache {
+  private static final long DEFAULT_MAX_ENCODED_BYTES = 64 * 1024 * 1024;
+
+  private static final Supplier<MerkleTreeDirectoryCache> SHARED_INSTANCE =
+      Suppliers.memoize(() -> new MerkleTreeDirectoryCache(DEFAULT_MAX_ENCODED_BYTES));
+
+  private final Cache<DirectoryKey, NodeData> directories;
+
+  @VisibleForTesting
+  MerkleTreeDirectoryCache(long maxEncodedBytes) {
+    this.directories =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxEncodedBytes)
+            .weigher(
+                (Weigher<DirectoryKey, NodeData>)
+                    (key, data) -> Math.max(1, data.getDigest().getSize()))
+            .build();
+  }
+
+  /** @return the instance shared by all the builds of the daemon. */
+  public static MerkleTreeDirectoryCache getSharedInstance() {
+    return SHARED_INSTANCE.get();
+  }
+
+  /**
+   * Gets the data of the directory with the given entries, computing it with {@code dataSupplier}
+   * if it isn't cached.
+   */
+  NodeData getOrCompute(
+      Collection<DirectoryNode> directories,
+      Collection<FileNode> files,
+      Collection<SymlinkNode> symlinks,
+      Supplier<NodeData> dataSupplier) {
+    DirectoryKey key = new DirectoryKey(directories, files, symlinks);
+    NodeData data = this.directories.getIfPresent(key);
+    if (data == null) {
+      // Threads racing to compute the same directory all compute the same data.
+      data = dataSupplier.get();
+      this.directories.put(key, data);
+    }
+    return data;
+  }
+
+  @VisibleForTesting
+  long size() {
+    return directories.size();
+  }
+
+  private static class DirectoryKey {
+    private final ImmutableList<DirectoryNode> directories;
+    private final ImmutableList<FileNode> files;
+    private final ImmutableList<SymlinkNode> symlinks;
+    private final int hashCode;
+
+    DirectoryKey(
+        Collection<DirectoryNode> directories,
+        Collection<FileNode> files,
+        Collection<SymlinkNode> symlinks) {
+      this.directories = ImmutableList.copyOf(directories);
+      this.files = ImmutableList.copyOf(files);
+      this.symlinks = ImmutableList.copyOf(symlinks);
+      this.hashCode = Objects.hash(this.directories, this.files, this.symlinks);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      }
+
+      if (!(obj instanceof DirectoryKey)) {
+        return false;
+      }
+
+      DirectoryKey other = (DirectoryKey) obj;
+      return hashCode == other.hashCode
+          && directories.equals(other.directories)
+          && files.equals(other.files)
+          && symlinks.equals(other.symlinks);
+    }
+  }
+}
@@ -39,6 +39,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import javax.annotation.Nullable;
 
 /**
@@ -46,14 +47,21 @@ import javax.annotation.Nullable;
  * interned.
  *
  * <p>It also provides methods to get the {@link Protocol} encoded merkle tree data structures
- * (these values are cached once computed for a node).
+ * (these values are cached once computed for a node, and in a {@link MerkleTreeDirectoryCache}
+ * which may outlive the nodes).
  */
 public class MerkleTreeNodeCache {
   private final Interner<MerkleTreeNode> nodeInterner = Interners.newWeakInterner();
   private final Protocol protocol;
+  private final MerkleTreeDirectoryCache directoryCache;
 
   public MerkleTreeNodeCache(Protocol protocol) {
+    this(protocol, MerkleTreeDirectoryCache.getSharedInstance());
+  }
+
+  public MerkleTreeNodeCache(Protocol protocol, MerkleTreeDirectoryCache directoryCache) {
     this.protocol = protocol;
+    this.directoryCache = directoryCache;
   }
 
   /**
@@ -113,9 +121,38 @@ public class MerkleTreeNodeCache {
     rootNode.forAllNodes(n -> dataConsumer.accept(getData(n)));
   }
 
+  /**
+   * Like {@link #forAllData(MerkleTreeNode, Consumer)}, but skips the subtrees whose root digest
+   * matches {@code skipSubtree}, e.g. because they are known to be uploaded already.
+   */
+  public void forAllData(
+      MerkleTreeNode rootNode, Predicate<Digest> skipSubtree, Consumer<NodeData> dataConsumer) {
+    NodeData data = getData(rootNode);
+    if (skipSubtree.test(data.getDigest())) {
+      return;
+    }
+    dataConsumer.accept(data);
+    rootNode.children.values().forEach(child -> forAllData(child, skipSubtree, dataConsumer));
+  }
+
+  /**
+   * Iterate over the files in the tree rooted at the provided node, skipping the subtrees whose
+   * root digest matches {@code skipSubtree}.
+   */
+  public void forAllFiles(
+      MerkleTreeNode rootNode,
+      Predicate<Digest> skipSubtree,
+      BiConsumer<Path, FileNode> nodeConsumer) {
+    if (skipSubtree.test(getData(rootNode).getDigest())) {
+      return;
+    }
+    rootNode.files.forEach(nodeConsumer);
+    rootNode.children.values().forEach(child -> forAllFiles(child, skipSubtree, nodeConsumer));
+  }
+
   /** Gets the {@link Protocol} encoded data for the provided tree. */
   public NodeData getData(MerkleTreeNode node) {
-    return node.getData(protocol);
+    return node.getData(protocol, directoryCache);
   }
 
   /** Represents a node in the merkle tree of files and symlinks. */
@@ -181,7 +218,7 @@ public class MerkleTreeNodeCache {
           && Objects.equals(emptyDirectories, other.emptyDirectories);
     }
 
-    private NodeData getData(Protocol protocol) {
+    private NodeData getData(Protocol protocol, MerkleTreeDirectoryCache directoryCache) {
       if (data != null) {
         return data;
       }
@@ -192,7 +229,7 @@ public class MerkleTreeNodeCache {
       long totalInputsSize = 0;
       for (Map.Entry<Path, MerkleTreeNode> entry : children.entrySet()) {
         MerkleTreeNode child = entry.getValue();
-        NodeData childData = child.getData(protocol);
+        NodeData childData = child.getData(protocol, directoryCache);
         totalInputsSize += childData.totalInputsSize;
         childNodes.add(
             protocol.newDirectoryNode(entry.getKey().getFileName().toString(), childData.digest));
@@ -201,9 +238,19 @@ public class MerkleTreeNodeCache {
         totalInputsSize += value.getDigest().getSize();
       }
       childNodes.addAll(emptyDirectories.values());
-      Directory directory = protocol.newDirectory(childNodes, files.values(), symlinks.values());
+      long totalSize = totalInputsSize;
+      // The directory is fully determined by its entries, so it may well have been encoded by a
+      // previous build, under a different node.
       NodeData nodeData =
-          new NodeData(directory, protocol.computeDigest(directory), totalInputsSize);
+          directoryCache.getOrCompute(
+              childNodes,
+              files.values(),
+              symlinks.values(),
+              () -> {
+                Directory directory =
+                    protocol.newDirectory(childNodes, files.values(), symlinks.values());
+                return new NodeData(directory, protocol.computeDigest(directory), totalSize);
+              });
       this.data = nodeData;
       return nodeData;
     }
@@ -30,12 +30,15 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import io.grpc.Status;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
@@ -47,6 +50,7 @@ import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * A simple multi-threaded blob uploader for uploading inputs/outputs to the CAS.
@@ -58,18 +62,37 @@ import java.util.stream.Stream;
  * does/doesn't contain. Any that are missing will be added to a queue to be uploaded. Work threads
  * will then pull those off and upload them. When the upload is finished, the future for that digest
  * will be fulfilled.
+ *
+ * <p>Blobs larger than uploadSizeLimit are streamed one at a time, and the smaller ones are packed
+ * into batches of up to uploadSizeLimit bytes. Work threads alternate between the two, so that
+ * neither a few very large blobs nor many small ones hold up the others. The bytes of the uploads
+ * in flight are bounded by maxInFlightBytes, where a batch counts for the bytes it holds in memory
+ * and a stream for at most uploadSizeLimit.
  */
 public class MultiThreadedBlobUploader {
   private static final Logger LOG = Logger.get(MultiThreadedBlobUploader.class);
 
+  // The number of queued blobs looked at for ones which fit in a batch.
+  private static final int MAX_BATCH_SCAN = 1000;
+
   private final int missingCheckLimit;
   private final int uploadSizeLimit;
+  private final long maxInFlightBytes;
 
   private final ConcurrentHashMap<String, ListenableFuture<Unit>> pendingUploads =
       new ConcurrentHashMap<>();
 
   private final Set<String> containedHashes = Sets.newConcurrentHashSet();
   private final BlockingDeque<PendingUpload> waitingUploads = new LinkedBlockingDeque<>();
+  private final BlockingDeque<PendingUpload> waitingStreams = new LinkedBlockingDeque<>();
+
+  private final Object scheduleLock = new Object();
+
+  @GuardedBy("scheduleLock")
+  private long inFlightBytes = 0;
+
+  @GuardedBy("scheduleLock")
+  private boolean preferStreams = false;
 
   private final BlockingQueue<PendingUpload> waitingMissingCheck = new LinkedBlockingQueue<>();
 
@@ -99,8 +122,18 @@ public class MultiThreadedBlobUploader {
       int uploadSizeLimit,
       ExecutorService uploadService,
       CasBlobUploader delegate) {
+    this(missingCheckLimit, uploadSizeLimit, 4L * uploadSizeLimit, uploadService, delegate);
+  }
+
+  public MultiThreadedBlobUploader(
+      int missingCheckLimit,
+      int uploadSizeLimit,
+      long maxInFlightBytes,
+      ExecutorService uploadService,
+      CasBlobUploader delegate) {
     this.missingCheckLimit = missingCheckLimit;
     this.uploadSizeLimit = uploadSizeLimit;
+    this.maxInFlightBytes = maxInFlightBytes;
     this.uploadService = uploadService;
     this.asyncBlobUploader = delegate;
   }
@@ -192,10 +225,12 @@ public class MultiThreadedBlobUploader {
       Set<String> missing = asyncBlobUploader.getMissingHashes(requiredDigests);
 
       for (PendingUpload entry : data) {
-        if (missing.contains(entry.getHash())) {
-          waitingUploads.add(entry);
-        } else {
+        if (!missing.contains(entry.getHash())) {
           entry.future.set(null);
+        } else if (entry.getSize() > uploadSizeLimit) {
+          waitingStreams.add(entry);
+        } else {
+          waitingUploads.add(entry);
         }
       }
     } catch (Throwable e) {
@@ -205,66 +240,128 @@ public class MultiThreadedBlobUploader {
 
   private void processUploads() {
     processMissing();
-    ImmutableMap.Builder<String, PendingUpload> dataBuilder = ImmutableMap.builder();
-    int size = 0;
-    while (!waitingUploads.isEmpty()) {
+    ImmutableList<PendingUpload> data;
+    long cost;
+    synchronized (scheduleLock) {
+      data = takeNextUpload();
+      cost = getInFlightCost(data);
+      if (inFlightBytes > 0 && inFlightBytes + cost > maxInFlightBytes) {
+        // The last of the uploads in flight to finish will pick these up again.
+        putBack(data);
+        return;
+      }
+      inFlightBytes += cost;
+    }
+
+    try {
+      // Let another thread start on the next upload, if it fits.
+      scheduleIfWaiting();
+      upload(data);
+    } finally {
+      synchronized (scheduleLock) {
+        inFlightBytes -= cost;
+      }
+    }
+    scheduleIfWaiting();
+  }
+
+  private void scheduleIfWaiting() {
+    if (!waitingMissingCheck.isEmpty() || !waitingUploads.isEmpty() || !waitingStreams.isEmpty()) {
+      uploadService.submit(this::processUploads);
+    }
+  }
+
+  /** @return a single blob to stream, or a batch of blobs, or nothing when nothing is waiting. */
+  @GuardedBy("scheduleLock")
+  private ImmutableList<PendingUpload> takeNextUpload() {
+    boolean takeStream = !waitingStreams.isEmpty() && (preferStreams || waitingUploads.isEmpty());
+    preferStreams = !takeStream;
+    if (takeStream) {
+      PendingUpload data = waitingStreams.poll();
+      return data == null ? ImmutableList.of() : ImmutableList.of(data);
+    }
+
+    // Blobs which don't fit are skipped rather than ending the batch, so that batches are filled up
+    // with the smaller blobs behind them.
+    ImmutableList.Builder<PendingUpload> batch = ImmutableList.builder();
+    List<PendingUpload> skipped = new ArrayList<>();
+    long size = 0;
+    for (int i = 0; i < MAX_BATCH_SCAN && size < uploadSizeLimit; i++) {
       PendingUpload data = waitingUploads.poll();
       if (data == null) {
         break;
       }
-
-      if (size == 0 || data.getSize() + size < uploadSizeLimit) {
-        dataBuilder.put(data.getHash(), data);
+      if (size + data.getSize() <= uploadSizeLimit) {
+        batch.add(data);
         size += data.getSize();
       } else {
-        // This object is too large to fit in this batch.
-        // Add it back to the beginning of the upload queue for the next batch.
-        waitingUploads.addFirst(data);
-        break;
+        skipped.add(data);
       }
     }
-    ImmutableMap<String, PendingUpload> data = dataBuilder.build();
-
-    if (!data.isEmpty()) {
-      try {
-        LOG.debug(
-            "Starting Uploading: "
-                + data.size()
-                + " requests, size: "
-                + size
-                + ". "
-                + String.join(", ", data.keySet()));
-        if (size > uploadSizeLimit) {
-          // This should only happen when we're trying to upload a single large object
-          Preconditions.checkState(data.size() == 1);
-          PendingUpload largeDataUpload = data.entrySet().iterator().next().getValue();
-          UploadResult uploadResult =
-              asyncBlobUploader.uploadFromStream(largeDataUpload.uploadData);
-          setPendingUploadResult(largeDataUpload, uploadResult);
-        } else {
-          ImmutableList<UploadDataSupplier> blobs =
-              data.values().stream()
-                  .map(e -> e.uploadData)
-                  .collect(ImmutableList.toImmutableList());
-
-          ImmutableList<UploadResult> results = asyncBlobUploader.batchUpdateBlobs(blobs);
-          Preconditions.checkState(results.size() == blobs.size());
-          results.forEach(
-              result -> {
-                PendingUpload pendingUpload =
-                    Objects.requireNonNull(data.get(result.digest.getHash()));
-                setPendingUploadResult(pendingUpload, result);
-              });
-          data.forEach((k, pending) -> pending.future.setException(new RuntimeException("idk")));
-        }
-        LOG.debug("Finished Uploading: " + data.size() + " requests, size: " + size);
-      } catch (Exception e) {
-        data.forEach((k, pending) -> pending.future.setException(e));
+    Lists.reverse(skipped).forEach(waitingUploads::addFirst);
+    return batch.build();
+  }
+
+  @GuardedBy("scheduleLock")
+  private void putBack(ImmutableList<PendingUpload> data) {
+    for (PendingUpload upload : data.reverse()) {
+      if (upload.getSize() > uploadSizeLimit) {
+        waitingStreams.addFirst(upload);
+      } else {
+        waitingUploads.addFirst(upload);
       }
     }
+  }
 
-    if (!waitingMissingCheck.isEmpty() || !waitingUploads.isEmpty()) {
-      uploadService.submit(this::processUploads);
+  private long getInFlightCost(ImmutableList<PendingUpload> data) {
+    // Streams only hold a chunk at a time in memory, but take up the connection for longer.
+    return Math.min(getSize(data), uploadSizeLimit);
+  }
+
+  private static long getSize(ImmutableList<PendingUpload> data) {
+    return data.stream().mapToLong(PendingUpload::getSize).sum();
+  }
+
+  private void upload(ImmutableList<PendingUpload> uploads) {
+    if (uploads.isEmpty()) {
+      return;
+    }
+
+    ImmutableMap<String, PendingUpload> data =
+        uploads.stream()
+            .collect(ImmutableMap.toImmutableMap(PendingUpload::getHash, upload -> upload));
+    long size = getSize(uploads);
+    try {
+      LOG.debug(
+          "Starting Uploading: "
+              + data.size()
+              + " requests, size: "
+              + size
+              + ". "
+              + String.join(", ", data.keySet()));
+      if (size > uploadSizeLimit) {
+        // This should only happen when we're trying to upload a single large object
+        Preconditions.checkState(data.size() == 1);
+        PendingUpload largeDataUpload = data.entrySet().iterator().next().getValue();
+        UploadResult uploadResult = asyncBlobUploader.uploadFromStream(largeDataUpload.uploadData);
+        setPendingUploadResult(largeDataUpload, uploadResult);
+      } else {
+        ImmutableList<UploadDataSupplier> blobs =
+            data.values().stream().map(e -> e.uploadData).collect(ImmutableList.toImmutableList());
+
+        ImmutableList<UploadResult> results = asyncBlobUploader.batchUpdateBlobs(blobs);
+        Preconditions.checkState(results.size() == blobs.size());
+        results.forEach(
+            result -> {
+              PendingUpload pendingUpload =
+                  Objects.requireNonNull(data.get(result.digest.getHash()));
+              setPendingUploadResult(pendingUpload, result);
+            });
+        data.forEach((k, pending) -> pending.future.setException(new RuntimeException("idk")));
+      }
+      LOG.debug("Finished Uploading: " + data.size() + " requests, size: " + size);
+    } catch (Exception e) {
+      data.forEach((k, pending) -> pending.future.setException(e));
     }
   }
 
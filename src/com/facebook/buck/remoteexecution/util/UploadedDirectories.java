@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.remoteexecution.util;
+
+import com.facebook.buck.remoteexecution.interfaces.Protocol.Digest;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the directories of merkle trees which are known to be in a CAS along with
+ * everything below them, so that the subtrees an action shares with actions whose inputs were
+ * already uploaded can be skipped, instead of asking the CAS about each of their files again.
+ *
+ * <p>The instances returned by {@link #forCas(String)} are shared by the builds of the daemon. As
+ * the CAS may evict blobs which aren't used for a while, directories are forgotten some time after
+ * they were uploaded.
+ */
+public class UploadedDirectories {
+  private static final long MAX_DIRECTORIES = 200_000;
+  private static final long EXPIRE_AFTER_MINUTES = 60;
+
+  private static final ConcurrentMap<String, UploadedDirectories> SHARED_INSTANCES =
+      new ConcurrentHashMap<>();
+
+  private final Cache<Digest, Boolean> directories;
+
+  /** Creates an instance which only knows about the directories added to it. */
+  public UploadedDirectories() {
+    this(Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  UploadedDirectories(Ticker ticker) {
+    this.directories =
+        CacheBuilder.newBuilder()
+            .maximumSize(MAX_DIRECTORIES)
+            .expireAfterWrite(EXPIRE_AFTER_MINUTES, TimeUnit.MINUTES)
+            .ticker(ticker)
+            .build();
+  }
+
+  /** @return the instance shared by all the builds of the daemon which upload to {@code cas}. */
+  public static UploadedDirectories forCas(String cas) {
+    return SHARED_INSTANCES.computeIfAbsent(cas, ignored -> new UploadedDirectories());
+  }
+
+  /** @return whether the directory and everything below it is known to be uploaded. */
+  public boolean contains(Digest directoryDigest) {
+    return directories.getIfPresent(directoryDigest) != null;
+  }
+
+  /** Records that the directories and everything below them were uploaded. */
+  public void addAll(Iterable<Digest> directoryDigests) {
+    directoryDigests.forEach(digest -> directories.put(digest, true));
+  }
+}
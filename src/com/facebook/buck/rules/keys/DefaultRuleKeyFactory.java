@@ -17,6 +17,7 @@
 package com.facebook.buck.rules.keys;
 
 import com.facebook.buck.core.build.action.BuildEngineAction;
+import com.facebook.buck.core.exceptions.BuckUncheckedExecutionException;
 import com.facebook.buck.core.rulekey.AddsToRuleKey;
 import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.core.rules.BuildRule;
@@ -26,16 +27,25 @@ import com.facebook.buck.core.rules.attr.HasDeclaredAndExtraDeps;
 import com.facebook.buck.core.sourcepath.BuildTargetSourcePath;
 import com.facebook.buck.core.sourcepath.PathSourcePath;
 import com.facebook.buck.core.sourcepath.SourcePath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.thrift.ThriftRuleKeyLogger;
 import com.facebook.buck.rules.keys.hasher.RuleKeyHasher;
+import com.facebook.buck.util.cache.FileHashCache;
+import com.facebook.buck.util.cache.FileStat;
 import com.facebook.buck.util.cache.NoOpCacheStatsTracker;
 import com.facebook.buck.util.hashing.FileHashLoader;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
 /** A {@link RuleKeyFactory} which adds some default settings to {@link RuleKey}s. */
@@ -45,6 +55,7 @@ public class DefaultRuleKeyFactory implements RuleKeyFactoryWithDiagnostics<Rule
   private final FileHashLoader hashLoader;
   private final SourcePathRuleFinder ruleFinder;
   private final RuleKeyCache<RuleKey> ruleKeyCache;
+  private final Optional<PersistentRuleKeyCache> persistentRuleKeyCache;
   private final Optional<ThriftRuleKeyLogger> ruleKeyLogger;
 
   public DefaultRuleKeyFactory(
@@ -52,14 +63,26 @@ public class DefaultRuleKeyFactory implements RuleKeyFactoryWithDiagnostics<Rule
       FileHashLoader hashLoader,
       SourcePathRuleFinder ruleFinder,
       RuleKeyCache<RuleKey> ruleKeyCache,
+      Optional<PersistentRuleKeyCache> persistentRuleKeyCache,
       Optional<ThriftRuleKeyLogger> ruleKeyLogger) {
     this.ruleKeyFieldLoader = ruleKeyFieldLoader;
     this.hashLoader = hashLoader;
     this.ruleFinder = ruleFinder;
     this.ruleKeyCache = ruleKeyCache;
+    this.persistentRuleKeyCache = persistentRuleKeyCache;
     this.ruleKeyLogger = ruleKeyLogger;
   }
 
+  public DefaultRuleKeyFactory(
+      RuleKeyFieldLoader ruleKeyFieldLoader,
+      FileHashLoader hashLoader,
+      SourcePathRuleFinder ruleFinder,
+      RuleKeyCache<RuleKey> ruleKeyCache,
+      Optional<ThriftRuleKeyLogger> ruleKeyLogger) {
+    this(
+        ruleKeyFieldLoader, hashLoader, ruleFinder, ruleKeyCache, Optional.empty(), ruleKeyLogger);
+  }
+
   public DefaultRuleKeyFactory(
       RuleKeyFieldLoader ruleKeyFieldLoader,
       FileHashLoader hashLoader,
@@ -115,11 +138,63 @@ public class DefaultRuleKeyFactory implements RuleKeyFactoryWithDiagnostics<Rule
 
   @Override
   public RuleKey build(BuildEngineAction action) {
-    return ruleKeyCache.get(
-        action,
-        rule ->
-            newPopulatedBuilder(rule, RuleKeyBuilder.createDefaultHasher(ruleKeyLogger))
-                .buildResult(RuleKey::new));
+    return ruleKeyCache.get(action, this::calculateActionKey);
+  }
+
+  private RuleKeyResult<RuleKey> calculateActionKey(BuildEngineAction action) {
+    if (persistentRuleKeyCache.isPresent() && action instanceof BuildRule) {
+      return calculateBuildRuleKey((BuildRule) action, persistentRuleKeyCache.get());
+    }
+    return newPopulatedBuilder(action, RuleKeyBuilder.createDefaultHasher(ruleKeyLogger))
+        .buildResult(RuleKey::new);
+  }
+
+  /**
+   * Serves the rule key of {@code rule} from {@code persistentCache} if neither the structure of
+   * the rule, nor the keys of its deps, nor any of the files it hashes changed since it was
+   * recorded. Otherwise computes it from what was recorded while fingerprinting the rule, and
+   * records it if the file hash cache could tell what each of those files looked like when it was
+   * hashed.
+   */
+  private RuleKeyResult<RuleKey> calculateBuildRuleKey(
+      BuildRule rule, PersistentRuleKeyCache persistentCache) {
+    FingerprintInputs fingerprintInputs = new FingerprintInputs();
+    FingerprintBuilder fingerprintBuilder =
+        new FingerprintBuilder(fingerprintInputs, fingerprintInputs.recorder);
+    ruleKeyFieldLoader.setFields(fingerprintBuilder, rule, RuleKeyType.DEFAULT);
+    addDepsToRuleKey(rule, fingerprintBuilder);
+    HashCode fingerprint = fingerprintBuilder.build();
+
+    String target = rule.getBuildTarget().toStringWithConfiguration();
+    ImmutableSet<Path> hashedPaths = fingerprintInputs.hashedPaths.build();
+    RuleKey ruleKey = persistentCache.get(target, fingerprint, hashedPaths);
+    if (ruleKey == null) {
+      // The fingerprint was hashed from the same values as the rule key, except for placeholders
+      // which the recorder knows how to replace, so there's no need to populate a Builder again.
+      try {
+        ruleKey =
+            new RuleKey(
+                fingerprintInputs.recorder.replay(
+                    RuleKeyBuilder.createDefaultHasher(ruleKeyLogger)));
+      } catch (IOException e) {
+        throw new BuckUncheckedExecutionException(
+            e, String.format("When computing the rule key of %s", target));
+      }
+      Optional<ImmutableMap<Path, FileStat>> inputStats;
+      try {
+        inputStats = fingerprintInputs.getInputStats(hashedPaths);
+      } catch (IOException e) {
+        throw new BuckUncheckedExecutionException(
+            e, String.format("When computing the rule key of %s", target));
+      }
+      if (inputStats.isPresent()) {
+        persistentCache.put(target, fingerprint, ruleKey, inputStats.get());
+      } else {
+        persistentCache.remove(target);
+      }
+    }
+    return new RuleKeyResult<>(
+        ruleKey, fingerprintInputs.deps.build(), fingerprintInputs.inputs.build());
   }
 
   private RuleKey buildAppendableKey(AddsToRuleKey appendable) {
@@ -217,4 +292,203 @@ public class DefaultRuleKeyFactory implements RuleKeyFactoryWithDiagnostics<Rule
       return new RuleKeyResult<>(this.build(mapper), deps.build(), inputs.build());
     }
   }
+
+  /**
+   * Builds the fingerprint used to look up a rule in the {@link PersistentRuleKeyCache}. It hashes
+   * the same fields as {@link Builder}, including the keys of deps, except that files are hashed
+   * by path only (their paths are recorded by {@link FingerprintInputs} instead), and appendables
+   * are fingerprinted inline rather than through their own content dependent keys. Non-hashing
+   * source paths, whose contents go into default rule keys but which often are directories, are
+   * hashed for real rather than recorded.
+   */
+  private class FingerprintBuilder extends RuleKeyBuilder<HashCode> {
+
+    private final FingerprintInputs fingerprintInputs;
+
+    private FingerprintBuilder(
+        FingerprintInputs fingerprintInputs, RuleKeyHasher<HashCode> hasher) {
+      super(ruleFinder, fingerprintInputs, hasher);
+      this.fingerprintInputs = fingerprintInputs;
+    }
+
+    @Override
+    protected AbstractRuleKeyBuilder<HashCode> setAction(Action action) {
+      fingerprintInputs.deps.add(action);
+      return setActionRuleKey(DefaultRuleKeyFactory.this.build(action));
+    }
+
+    @Override
+    protected RuleKeyBuilder<HashCode> setBuildRule(BuildRule rule) {
+      fingerprintInputs.deps.add(rule);
+      return setBuildRuleKey(DefaultRuleKeyFactory.this.build(rule));
+    }
+
+    @Override
+    protected RuleKeyBuilder<HashCode> setAddsToRuleKey(AddsToRuleKey appendable) {
+      fingerprintInputs.deps.add(appendable);
+      FingerprintBuilder appendableBuilder =
+          new FingerprintBuilder(
+              fingerprintInputs, RuleKeyBuilder.createDefaultHasher(Optional.empty()));
+      AlterRuleKeys.amendKey(appendableBuilder, appendable);
+      return setAddsToRuleKey(
+          fingerprintInputs.recorder.defer(
+              new RuleKey(appendableBuilder.build()),
+              () -> DefaultRuleKeyFactory.this.buildAppendableKey(appendable)));
+    }
+
+    @Override
+    protected RuleKeyBuilder<HashCode> setSourcePath(SourcePath sourcePath) throws IOException {
+      if (sourcePath instanceof BuildTargetSourcePath) {
+        return setSourcePathAsRule((BuildTargetSourcePath) sourcePath);
+      }
+      return setSourcePathDirectly(sourcePath);
+    }
+
+    @Override
+    protected RuleKeyBuilder<HashCode> setNonHashingSourcePath(SourcePath sourcePath) {
+      fingerprintInputs.hashContents = true;
+      try {
+        return setSourcePath(sourcePath);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      } finally {
+        fingerprintInputs.hashContents = false;
+      }
+    }
+  }
+
+  /**
+   * A {@link FileHashLoader} for {@link FingerprintBuilder} which records the files that would have
+   * been hashed instead of hashing them, along with the deps and inputs to track for the rule. The
+   * placeholder hashes it returns are deferred to their real hashes in {@link #recorder}, and the
+   * stat the file hash cache took before computing each real hash is recorded along with it.
+   */
+  private class FingerprintInputs implements FileHashLoader {
+
+    private final RecordingRuleKeyHasher recorder =
+        new RecordingRuleKeyHasher(RuleKeyBuilder.createDefaultHasher(Optional.empty()));
+    private final ImmutableList.Builder<Object> deps = ImmutableList.builder();
+    private final ImmutableList.Builder<RuleKeyInput> inputs = ImmutableList.builder();
+    private final ImmutableSet.Builder<Path> hashedPaths = ImmutableSet.builder();
+
+    /** Reads the real hash of each file and records its stat, keyed by absolute path. */
+    private final Map<Path, RecordingRuleKeyHasher.DeferredValue<HashCode>> hashReaders =
+        new HashMap<>();
+
+    /**
+     * The stats recorded for the real hashes read so far, or empty for the files whose stat
+     * couldn't be told.
+     */
+    private final Map<Path, Optional<FileStat>> inputStats = new HashMap<>();
+
+    /** Whether files should be hashed for real rather than recorded. */
+    private boolean hashContents = false;
+
+    private HashCode getPlaceholder(
+        Path path,
+        RecordingRuleKeyHasher.DeferredValue<HashCode> realHash,
+        Supplier<Optional<FileStat>> recordedStat)
+        throws IOException {
+      if (hashContents) {
+        return realHash.get();
+      }
+      hashedPaths.add(path);
+      RecordingRuleKeyHasher.DeferredValue<HashCode> hashReader =
+          () -> {
+            HashCode hashCode = realHash.get();
+            // The recorded stat was taken before the cached hash was computed, so it only vouches
+            // for the hash used here if that hash is still the cached one.
+            Optional<FileStat> stat = recordedStat.get();
+            if (stat.isPresent() && !realHash.get().equals(hashCode)) {
+              stat = Optional.empty();
+            }
+            inputStats.merge(
+                path, stat, (first, second) -> first.equals(second) ? first : Optional.empty());
+            return hashCode;
+          };
+      hashReaders.putIfAbsent(path, hashReader);
+      // Each placeholder is a distinct object, so that the recorder can tell them apart.
+      return recorder.defer(HashCode.fromLong(0), hashReader);
+    }
+
+    /**
+     * @return the stats recorded for {@code hashedPaths}, or empty if any of them is unknown. Files
+     *     only hashed within appendables went into the rule key through the appendables' own keys,
+     *     so their hashes weren't read while replaying, and are read here instead.
+     */
+    private Optional<ImmutableMap<Path, FileStat>> getInputStats(ImmutableSet<Path> hashedPaths)
+        throws IOException {
+      ImmutableMap.Builder<Path, FileStat> stats =
+          ImmutableMap.builderWithExpectedSize(hashedPaths.size());
+      for (Path path : hashedPaths) {
+        RecordingRuleKeyHasher.DeferredValue<HashCode> hashReader = hashReaders.get(path);
+        if (!inputStats.containsKey(path) && hashReader != null) {
+          hashReader.get();
+        }
+        Optional<FileStat> stat = inputStats.getOrDefault(path, Optional.empty());
+        if (!stat.isPresent()) {
+          return Optional.empty();
+        }
+        stats.put(path, stat.get());
+      }
+      return Optional.of(stats.build());
+    }
+
+    private Optional<FileStat> getRecordedStat(Path path) {
+      return hashLoader instanceof FileHashCache
+          ? ((FileHashCache) hashLoader).getFileStat(path)
+          : Optional.empty();
+    }
+
+    private Optional<FileStat> getRecordedStat(ProjectFilesystem filesystem, Path path) {
+      return hashLoader instanceof FileHashCache
+          ? ((FileHashCache) hashLoader).getFileStat(filesystem, path)
+          : Optional.empty();
+    }
+
+    @Override
+    public HashCode get(Path path) throws IOException {
+      return getPlaceholder(path, () -> hashLoader.get(path), () -> getRecordedStat(path));
+    }
+
+    @Override
+    public long getSize(Path path) {
+      hashedPaths.add(path);
+      return 0;
+    }
+
+    @Override
+    public HashCode getForArchiveMember(Path archivePath, Path memberPath) throws IOException {
+      return getPlaceholder(
+          archivePath,
+          () -> hashLoader.getForArchiveMember(archivePath, memberPath),
+          () -> getRecordedStat(archivePath));
+    }
+
+    @Override
+    public HashCode get(ProjectFilesystem filesystem, Path path) throws IOException {
+      inputs.add(ImmutableRuleKeyInput.of(filesystem, path));
+      return getPlaceholder(
+          filesystem.resolve(path),
+          () -> hashLoader.get(filesystem, path),
+          () -> getRecordedStat(filesystem, path));
+    }
+
+    @Override
+    public HashCode getForArchiveMember(
+        ProjectFilesystem filesystem, Path relativeArchivePath, Path memberPath)
+        throws IOException {
+      inputs.add(ImmutableRuleKeyInput.of(filesystem, relativeArchivePath));
+      return getPlaceholder(
+          filesystem.resolve(relativeArchivePath),
+          () -> hashLoader.getForArchiveMember(filesystem, relativeArchivePath, memberPath),
+          () -> getRecordedStat(filesystem, relativeArchivePath));
+    }
+
+    @Override
+    public long getSize(ProjectFilesystem filesystem, Path path) {
+      inputs.add(ImmutableRuleKeyInput.of(filesystem, path));
+      return getSize(filesystem.resolve(path));
+    }
+  }
 }
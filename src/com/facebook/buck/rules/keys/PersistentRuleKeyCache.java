@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.file.SnapshotFile;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.cache.FileStat;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * A store of default {@link RuleKey}s which, unlike {@link DefaultRuleKeyCache}, is indexed by
+ * stable content rather than by object identity, so it remains usable across action graphs and can
+ * be saved to disk and picked up by a later daemon.
+ *
+ * <p>Entries are keyed by build target and record a fingerprint of the rule's structure, which
+ * {@link DefaultRuleKeyFactory} computes from the same fields as the rule key itself but without
+ * the contents of any files, together with the {@link FileStat} of each file whose contents went
+ * into the rule key. Those are the stats the file hash cache took right before hashing the files,
+ * so a file changed after it was hashed never gets recorded as unchanged. An entry is only served
+ * if its fingerprint matches and a fresh stat of every one of those files still matches what was
+ * recorded. Entries are also dropped as soon as a change to any of their files is reported.
+ */
+public class PersistentRuleKeyCache {
+
+  private static final Logger LOG = Logger.get(PersistentRuleKeyCache.class);
+
+  private static final SnapshotFile SNAPSHOT_FILE = new SnapshotFile("rule key", 0x524b4353, 2);
+
+  /**
+   * The number of rule keys kept by default. The least recently used ones are dropped beyond that,
+   * so that neither the cache nor its snapshot grow without bound as targets come and go.
+   */
+  private static final long DEFAULT_MAX_ENTRIES = 250_000;
+
+  private final ProjectFilesystem filesystem;
+  private final Cache<String, Entry> entries;
+
+  /**
+   * The targets whose entries depend on each file, so that they can be dropped when it changes.
+   * This may still name targets whose entries were since replaced or evicted, which only costs a
+   * needless invalidation when the file changes.
+   */
+  private final ConcurrentMap<Path, Set<String>> targetsByInput = new ConcurrentHashMap<>();
+
+  /**
+   * @param filesystem the filesystem used to stat the files rule keys depend on, which may belong
+   *     to any cell, as they are recorded by absolute path.
+   */
+  public PersistentRuleKeyCache(ProjectFilesystem filesystem) {
+    this(filesystem, DEFAULT_MAX_ENTRIES);
+  }
+
+  @VisibleForTesting
+  PersistentRuleKeyCache(ProjectFilesystem filesystem, long maxEntries) {
+    this.filesystem = filesystem;
+    this.entries = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+  }
+
+  /** @return the default location of the snapshot of this cache, inside buck-out. */
+  public static Path getDefaultSnapshotPath(ProjectFilesystem filesystem) {
+    return filesystem
+        .resolve(filesystem.getBuckPaths().getDaemonStateDir())
+        .resolve("rule_keys.bin");
+  }
+
+  /**
+   * @return the rule key recorded for {@code target} if it was recorded with the same {@code
+   *     fingerprint} and none of the {@code hashedPaths} changed since, or null otherwise.
+   */
+  @Nullable
+  RuleKey get(String target, HashCode fingerprint, Collection<Path> hashedPaths) {
+    Entry entry = entries.getIfPresent(target);
+    if (entry == null
+        || !entry.fingerprint.equals(fingerprint)
+        || entry.inputs.size() != hashedPaths.size()) {
+      return null;
+    }
+    int index = 0;
+    for (Path path : hashedPaths) {
+      InputState recorded = entry.inputs.get(index++);
+      if (!recorded.path.equals(path) || !recorded.stat.matches(filesystem, recorded.path)) {
+        return null;
+      }
+    }
+    return entry.ruleKey;
+  }
+
+  /**
+   * Records {@code ruleKey} for {@code target}, along with the stats {@code inputStats} of the
+   * files it was computed from, which must have been taken before those files were hashed.
+   */
+  void put(String target, HashCode fingerprint, RuleKey ruleKey, Map<Path, FileStat> inputStats) {
+    ImmutableList.Builder<InputState> inputs =
+        ImmutableList.builderWithExpectedSize(inputStats.size());
+    for (Map.Entry<Path, FileStat> input : inputStats.entrySet()) {
+      inputs.add(new InputState(input.getKey(), input.getValue()));
+    }
+    putEntry(target, new Entry(fingerprint, ruleKey, inputs.build()));
+  }
+
+  private void putEntry(String target, Entry entry) {
+    // Index the entry first, so that a change reported while it's being added still drops it.
+    for (InputState input : entry.inputs) {
+      targetsByInput.compute(
+          input.path,
+          (path, targets) -> {
+            Set<String> result = targets == null ? ConcurrentHashMap.newKeySet() : targets;
+            result.add(target);
+            return result;
+          });
+    }
+    entries.put(target, entry);
+  }
+
+  /** Drops the rule key recorded for {@code target}, if any. */
+  void remove(String target) {
+    entries.invalidate(target);
+  }
+
+  /** Drops the rule keys which depend on the contents of the file at the absolute {@code path}. */
+  public void invalidate(Path path) {
+    Set<String> targets = targetsByInput.remove(path);
+    if (targets != null) {
+      entries.invalidateAll(targets);
+    }
+  }
+
+  /** Drops all rule keys. */
+  public void invalidateAll() {
+    targetsByInput.clear();
+    entries.invalidateAll();
+  }
+
+  /** @return the number of rule keys in this cache. */
+  public long size() {
+    return entries.size();
+  }
+
+  /** Writes the contents of this cache to {@code snapshotPath}, replacing it atomically. */
+  public void save(Path snapshotPath) throws IOException {
+    SNAPSHOT_FILE.write(
+        snapshotPath,
+        out -> {
+          for (Map.Entry<String, Entry> mapEntry : entries.asMap().entrySet()) {
+            Entry entry = mapEntry.getValue();
+            out.writeBoolean(true);
+            out.writeUTF(mapEntry.getKey());
+            writeHashCode(out, entry.fingerprint);
+            writeHashCode(out, entry.ruleKey.getHashCode());
+            out.writeInt(entry.inputs.size());
+            for (InputState input : entry.inputs) {
+              out.writeUTF(input.path.toString());
+              out.writeLong(input.stat.getSize());
+              out.writeLong(input.stat.getModifiedMillis());
+              out.writeUTF(input.stat.getFileKey());
+            }
+          }
+          out.writeBoolean(false);
+        });
+    LOG.debug("Saved %d rule keys to %s", entries.size(), snapshotPath);
+  }
+
+  /**
+   * @return a cache holding the contents of the snapshot at {@code snapshotPath}. Missing or
+   *     unreadable snapshots result in an empty cache.
+   */
+  public static PersistentRuleKeyCache load(ProjectFilesystem filesystem, Path snapshotPath) {
+    return load(filesystem, snapshotPath, DEFAULT_MAX_ENTRIES);
+  }
+
+  @VisibleForTesting
+  static PersistentRuleKeyCache load(
+      ProjectFilesystem filesystem, Path snapshotPath, long maxEntries) {
+    PersistentRuleKeyCache cache = new PersistentRuleKeyCache(filesystem, maxEntries);
+    // Each rule key is added as soon as it's read, so a truncated snapshot still yields the ones
+    // before the point of truncation. They're validated against their inputs like any other.
+    SNAPSHOT_FILE.read(
+        snapshotPath,
+        in -> {
+          while (in.readBoolean()) {
+            String target = in.readUTF();
+            HashCode fingerprint = readHashCode(in);
+            RuleKey ruleKey = new RuleKey(readHashCode(in));
+            int size = in.readInt();
+            ImmutableList.Builder<InputState> inputs = ImmutableList.builderWithExpectedSize(size);
+            for (int i = 0; i < size; i++) {
+              inputs.add(
+                  new InputState(
+                      filesystem.getPath(in.readUTF()),
+                      FileStat.of(in.readLong(), in.readLong(), in.readUTF())));
+            }
+            cache.putEntry(target, new Entry(fingerprint, ruleKey, inputs.build()));
+          }
+        });
+    LOG.debug("Loaded %d rule keys from %s", cache.entries.size(), snapshotPath);
+    return cache;
+  }
+
+  private static void writeHashCode(DataOutputStream out, HashCode hashCode) throws IOException {
+    byte[] bytes = hashCode.asBytes();
+    out.writeByte(bytes.length);
+    out.write(bytes);
+  }
+
+  private static HashCode readHashCode(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readByte()];
+    in.readFully(bytes);
+    return HashCode.fromBytes(bytes);
+  }
+
+  private static final class Entry {
+    private final HashCode fingerprint;
+    private final RuleKey ruleKey;
+    private final ImmutableList<InputState> inputs;
+
+    private Entry(HashCode fingerprint, RuleKey ruleKey, ImmutableList<InputState> inputs) {
+      this.fingerprint = fingerprint;
+      this.ruleKey = ruleKey;
+      this.inputs = inputs;
+    }
+  }
+
+  /** A file whose contents went into a rule key, with its stat taken before it was hashed. */
+  private static final class InputState {
+    private final Path path;
+    private final FileStat stat;
+
+    private InputState(Path path, FileStat stat) {
+      this.path = path;
+      this.stat = stat;
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.RuleType;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.sourcepath.BuildTargetSourcePath;
+import com.facebook.buck.rules.keys.hasher.RuleKeyHasher;
+import com.facebook.buck.util.sha1.Sha1HashCode;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link RuleKeyHasher} which hashes into a delegate, and records the values it is given so that
+ * they can be replayed into another hasher later on, without populating a builder again.
+ *
+ * <p>Placeholder file hashes and rule keys registered with {@link #defer} are hashed as is, but are
+ * replaced by their real values when replayed. Placeholders are matched by identity, so each one
+ * must be a distinct object. Like other hashers, this isn't thread safe.
+ */
+class RecordingRuleKeyHasher implements RuleKeyHasher<HashCode> {
+
+  /** The real value of a placeholder, which is only computed on replay. */
+  @FunctionalInterface
+  interface DeferredValue<T> {
+    T get() throws IOException;
+  }
+
+  @FunctionalInterface
+  private interface Step {
+    void replay(RuleKeyHasher<HashCode> hasher) throws IOException;
+  }
+
+  private final RuleKeyHasher<HashCode> delegate;
+  private final List<Step> steps = new ArrayList<>();
+  private final Map<Object, DeferredValue<?>> deferredValues = new IdentityHashMap<>();
+
+  RecordingRuleKeyHasher(RuleKeyHasher<HashCode> delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * Registers the value which replaces {@code placeholder} on replay.
+   *
+   * @return {@code placeholder}.
+   */
+  <T> T defer(T placeholder, DeferredValue<T> value) {
+    deferredValues.put(placeholder, value);
+    return placeholder;
+  }
+
+  /** Replays the values hashed so far into {@code hasher}, and returns its hash. */
+  HashCode replay(RuleKeyHasher<HashCode> hasher) throws IOException {
+    for (Step step : steps) {
+      step.replay(hasher);
+    }
+    return hasher.hash();
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> DeferredValue<T> getDeferredValue(T value) {
+    @Nullable DeferredValue<T> deferredValue = (DeferredValue<T>) deferredValues.remove(value);
+    return deferredValue != null ? deferredValue : () -> value;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putKey(String key) {
+    steps.add(hasher -> hasher.putKey(key));
+    delegate.putKey(key);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putKeyPath(Path key) {
+    steps.add(hasher -> hasher.putKeyPath(key));
+    delegate.putKeyPath(key);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putNull() {
+    steps.add(RuleKeyHasher::putNull);
+    delegate.putNull();
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putCharacter(char val) {
+    steps.add(hasher -> hasher.putCharacter(val));
+    delegate.putCharacter(val);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putBoolean(boolean val) {
+    steps.add(hasher -> hasher.putBoolean(val));
+    delegate.putBoolean(val);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putNumber(Number val) {
+    steps.add(hasher -> hasher.putNumber(val));
+    delegate.putNumber(val);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putString(String val) {
+    steps.add(hasher -> hasher.putString(val));
+    delegate.putString(val);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putBytes(byte[] bytes) {
+    steps.add(hasher -> hasher.putBytes(bytes));
+    delegate.putBytes(bytes);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putPattern(Pattern pattern) {
+    steps.add(hasher -> hasher.putPattern(pattern));
+    delegate.putPattern(pattern);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putSha1(Sha1HashCode sha1) {
+    steps.add(hasher -> hasher.putSha1(sha1));
+    delegate.putSha1(sha1);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putPath(Path path, HashCode hash) {
+    DeferredValue<HashCode> realHash = getDeferredValue(hash);
+    steps.add(hasher -> hasher.putPath(path, realHash.get()));
+    delegate.putPath(path, hash);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putArchiveMemberPath(
+      Path relativeArchivePath, Path archiveMemberPath, HashCode hash) {
+    DeferredValue<HashCode> realHash = getDeferredValue(hash);
+    steps.add(
+        hasher ->
+            hasher.putArchiveMemberPath(relativeArchivePath, archiveMemberPath, realHash.get()));
+    delegate.putArchiveMemberPath(relativeArchivePath, archiveMemberPath, hash);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putNonHashingPath(Path path) {
+    steps.add(hasher -> hasher.putNonHashingPath(path));
+    delegate.putNonHashingPath(path);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putRuleKey(RuleKey ruleKey) {
+    DeferredValue<RuleKey> realRuleKey = getDeferredValue(ruleKey);
+    steps.add(hasher -> hasher.putRuleKey(realRuleKey.get()));
+    delegate.putRuleKey(ruleKey);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putRuleType(RuleType ruleType) {
+    steps.add(hasher -> hasher.putRuleType(ruleType));
+    delegate.putRuleType(ruleType);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putBuildTarget(BuildTarget buildTarget) {
+    steps.add(hasher -> hasher.putBuildTarget(buildTarget));
+    delegate.putBuildTarget(buildTarget);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putBuildTargetSourcePath(
+      BuildTargetSourcePath buildTargetSourcePath) {
+    steps.add(hasher -> hasher.putBuildTargetSourcePath(buildTargetSourcePath));
+    delegate.putBuildTargetSourcePath(buildTargetSourcePath);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putContainer(Container container, int length) {
+    steps.add(hasher -> hasher.putContainer(container, length));
+    delegate.putContainer(container, length);
+    return this;
+  }
+
+  @Override
+  public RecordingRuleKeyHasher putWrapper(Wrapper wrapper) {
+    steps.add(hasher -> hasher.putWrapper(wrapper));
+    delegate.putWrapper(wrapper);
+    return this;
+  }
+
+  @Override
+  public HashCode hash() {
+    return delegate.hash();
+  }
+}
@@ -33,6 +33,7 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.stream.IntStream;
 import javax.annotation.Nullable;
@@ -44,13 +45,17 @@ public class RuleKeyCacheRecycler<V> {
 
   private final TrackableRuleKeyCache<V> cache;
   private final ImmutableSet<ProjectFilesystem> watchedFilesystems;
+  private final Optional<PersistentRuleKeyCache> persistentCache;
 
   @Nullable private SettingsAffectingCache previousSettings = null;
 
   private RuleKeyCacheRecycler(
-      TrackableRuleKeyCache<V> cache, ImmutableSet<ProjectFilesystem> watchedFilesystems) {
+      TrackableRuleKeyCache<V> cache,
+      ImmutableSet<ProjectFilesystem> watchedFilesystems,
+      Optional<PersistentRuleKeyCache> persistentCache) {
     this.cache = cache;
     this.watchedFilesystems = watchedFilesystems;
+    this.persistentCache = persistentCache;
   }
 
   /**
@@ -63,8 +68,23 @@ public class RuleKeyCacheRecycler<V> {
       EventBus eventBus,
       TrackableRuleKeyCache<V> ruleKeyCache,
       ImmutableSet<ProjectFilesystem> watchedFilesystems) {
+    return createAndRegister(eventBus, ruleKeyCache, watchedFilesystems, Optional.empty());
+  }
+
+  /**
+   * @param persistentCache a {@link PersistentRuleKeyCache} to hand out along with the recycled
+   *     cache, which outlives changes to the action graph.
+   * @return a new {@link RuleKeyCacheRecycler}.
+   * @see #createAndRegister(EventBus, TrackableRuleKeyCache, ImmutableSet)
+   */
+  public static <V> RuleKeyCacheRecycler<V> createAndRegister(
+      EventBus eventBus,
+      TrackableRuleKeyCache<V> ruleKeyCache,
+      ImmutableSet<ProjectFilesystem> watchedFilesystems,
+      Optional<PersistentRuleKeyCache> persistentCache) {
 
-    RuleKeyCacheRecycler<V> recycler = new RuleKeyCacheRecycler<>(ruleKeyCache, watchedFilesystems);
+    RuleKeyCacheRecycler<V> recycler =
+        new RuleKeyCacheRecycler<>(ruleKeyCache, watchedFilesystems, persistentCache);
 
     // Subscribe the recycler to receive filesystem watch events.
     eventBus.register(recycler);
@@ -73,7 +93,7 @@ public class RuleKeyCacheRecycler<V> {
   }
 
   public static <V> RuleKeyCacheRecycler<V> create(TrackableRuleKeyCache<V> ruleKeyCache) {
-    return new RuleKeyCacheRecycler<>(ruleKeyCache, ImmutableSet.of());
+    return new RuleKeyCacheRecycler<>(ruleKeyCache, ImmutableSet.of(), Optional.empty());
   }
 
   @Subscribe
@@ -87,6 +107,7 @@ public class RuleKeyCacheRecycler<V> {
           "invalidating path \"%s\" from filesystem at \"%s\" due to event (%s)",
           path, filesystem.getRootPath(), event);
       invalidatePath(filesystem, path.getPath());
+      persistentCache.ifPresent(cache -> cache.invalidate(filesystem.resolve(path.getPath())));
     }
   }
 
@@ -108,6 +129,7 @@ public class RuleKeyCacheRecycler<V> {
       // Do not track stats from Daemon watchman events.
       cache.invalidateFilesystem(filesystem, new NoOpCacheStatsTracker());
     }
+    persistentCache.ifPresent(PersistentRuleKeyCache::invalidateAll);
   }
 
   /**
@@ -120,7 +142,8 @@ public class RuleKeyCacheRecycler<V> {
   public RuleKeyCacheScope<V> withRecycledCache(
       BuckEventBus buckEventBus, SettingsAffectingCache currentSettings) {
     return new EventPostingRuleKeyCacheScope<V>(
-        buckEventBus, new TrackedRuleKeyCache<>(cache, new InstrumentingCacheStatsTracker())) {
+        buckEventBus,
+        new TrackedRuleKeyCache<>(cache, new InstrumentingCacheStatsTracker(), persistentCache)) {
 
       // Cache setup which is run before the caller gets access to the cache, at the time the scope
       // is allocated.
@@ -174,6 +197,11 @@ public class RuleKeyCacheRecycler<V> {
     return cache.getCachedBuildRules();
   }
 
+  /** @return the {@link PersistentRuleKeyCache} handed out with the recycled cache, if any. */
+  public Optional<PersistentRuleKeyCache> getPersistentCache() {
+    return persistentCache;
+  }
+
   /** Any external settings which, if changed, will cause the entire cache to be invalidated. */
   public static class SettingsAffectingCache {
 
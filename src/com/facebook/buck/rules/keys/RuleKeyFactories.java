@@ -69,7 +69,12 @@ public abstract class RuleKeyFactories {
     RuleKeyFieldLoader fieldLoader = new RuleKeyFieldLoader(ruleKeyConfiguration);
     return of(
         new DefaultRuleKeyFactory(
-            fieldLoader, fileHashLoader, resolver, defaultRuleKeyFactoryCache, ruleKeyLogger),
+            fieldLoader,
+            fileHashLoader,
+            resolver,
+            defaultRuleKeyFactoryCache,
+            defaultRuleKeyFactoryCache.getPersistentCache(),
+            ruleKeyLogger),
         new InputBasedRuleKeyFactory(
             fieldLoader, fileHashLoader, resolver, inputRuleKeyFileSizeLimit, ruleKeyLogger),
         new DefaultDependencyFileRuleKeyFactory(
@@ -23,6 +23,7 @@ import com.facebook.buck.util.cache.CacheStats;
 import com.facebook.buck.util.cache.CacheStatsTracker;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
+import java.util.Optional;
 import java.util.function.Function;
 import javax.annotation.Nullable;
 
@@ -35,10 +36,19 @@ public class TrackedRuleKeyCache<V> implements RuleKeyCache<V> {
 
   private final TrackableRuleKeyCache<V> cache;
   private final CacheStatsTracker statsTracker;
+  private final Optional<PersistentRuleKeyCache> persistentCache;
 
-  public TrackedRuleKeyCache(TrackableRuleKeyCache<V> cache, CacheStatsTracker statsTracker) {
+  public TrackedRuleKeyCache(
+      TrackableRuleKeyCache<V> cache,
+      CacheStatsTracker statsTracker,
+      Optional<PersistentRuleKeyCache> persistentCache) {
     this.cache = cache;
     this.statsTracker = statsTracker;
+    this.persistentCache = persistentCache;
+  }
+
+  public TrackedRuleKeyCache(TrackableRuleKeyCache<V> cache, CacheStatsTracker statsTracker) {
+    this(cache, statsTracker, Optional.empty());
   }
 
   @Override
@@ -92,6 +102,14 @@ public class TrackedRuleKeyCache<V> implements RuleKeyCache<V> {
     return cache;
   }
 
+  /**
+   * @return the {@link PersistentRuleKeyCache} backing this cache, which default rule key
+   *     factories consult for rules missing from this one.
+   */
+  public Optional<PersistentRuleKeyCache> getPersistentCache() {
+    return persistentCache;
+  }
+
   /** @return the stats of the cache */
   public CacheStats getStats() {
     CacheStats.Builder statsBuilder =
@@ -133,6 +133,14 @@ public class WorkerMacroArg extends ProxyArg {
     return workerTool.getMaxWorkers();
   }
 
+  public int getPrewarmWorkers() {
+    return workerTool.getPrewarmWorkers();
+  }
+
+  public long getMaxIdleTimeSeconds() {
+    return workerTool.getMaxIdleTimeSeconds();
+  }
+
   public boolean isAsync() {
     return workerTool.isAsync();
   }
@@ -43,6 +43,7 @@ import com.facebook.buck.remoteexecution.proto.WorkerRequirements;
 import com.facebook.buck.remoteexecution.util.MerkleTreeNodeCache;
 import com.facebook.buck.remoteexecution.util.MerkleTreeNodeCache.MerkleTreeNode;
 import com.facebook.buck.remoteexecution.util.MerkleTreeNodeCache.NodeData;
+import com.facebook.buck.remoteexecution.util.UploadedDirectories;
 import com.facebook.buck.rules.modern.Buildable;
 import com.facebook.buck.rules.modern.ModernBuildRule;
 import com.facebook.buck.rules.modern.Serializer;
@@ -176,6 +177,7 @@ public class ModernBuildRuleRemoteExecutionHelper implements RemoteExecutionHelp
   private final ThrowingSupplier<MerkleTreeNode, IOException> sharedFilesNode;
 
   private final MerkleTreeNodeCache nodeCache;
+  private final UploadedDirectories uploadedDirectories;
 
   private final BuckEventBus eventBus;
 
@@ -199,6 +201,28 @@ public class ModernBuildRuleRemoteExecutionHelper implements RemoteExecutionHelp
       Cell rootCell,
       FileHashLoader fileHasher,
       ImmutableSet<PathMatcher> ignorePaths) {
+    this(
+        eventBus,
+        protocol,
+        ruleFinder,
+        rootCell,
+        fileHasher,
+        ignorePaths,
+        new UploadedDirectories());
+  }
+
+  /**
+   * @param uploadedDirectories the directories known to be uploaded, whose subtrees aren't checked
+   *     for required data.
+   */
+  public ModernBuildRuleRemoteExecutionHelper(
+      BuckEventBus eventBus,
+      Protocol protocol,
+      SourcePathRuleFinder ruleFinder,
+      Cell rootCell,
+      FileHashLoader fileHasher,
+      ImmutableSet<PathMatcher> ignorePaths,
+      UploadedDirectories uploadedDirectories) {
     this.ignorePaths = ignorePaths;
     ImmutableSet<CanonicalCellName> cellNames = getCellNames(rootCell);
     this.cellResolver = rootCell.getCellPathResolver();
@@ -233,6 +257,7 @@ public class ModernBuildRuleRemoteExecutionHelper implements RemoteExecutionHelp
     this.serializer = new Serializer(ruleFinder, cellResolver, delegate);
 
     this.nodeCache = new MerkleTreeNodeCache(protocol);
+    this.uploadedDirectories = uploadedDirectories;
 
     this.classPath = prepareClassPath(BuckClasspath::getClasspath);
     this.bootstrapClassPath = prepareClassPath(BuckClasspath::getBootstrapClasspath);
@@ -425,9 +450,12 @@ public class ModernBuildRuleRemoteExecutionHelper implements RemoteExecutionHelp
 
       MerkleTreeNode mergedMerkleTree = nodeCache.mergeNodes(allNodes);
 
+      ImmutableSet.Builder<Digest> inputDirectories = ImmutableSet.builder();
       nodeCache.forAllData(
           mergedMerkleTree,
+          uploadedDirectories::contains,
           childData -> {
+            inputDirectories.add(childData.getDigest());
             if (requiredDataPredicate.test(
                 childData.getDigest(), childData.getDirectory().toString())) {
               requiredDataBuilder.add(
@@ -457,15 +485,26 @@ public class ModernBuildRuleRemoteExecutionHelper implements RemoteExecutionHelp
               "action", actionDigest, () -> new ByteArrayInputStream(actionData)));
 
       return RemoteExecutionActionInfo.of(
-          actionDigest, requiredDataBuilder.build(), data.getTotalSize(), outputs);
+          actionDigest,
+          requiredDataBuilder.build(),
+          data.getTotalSize(),
+          outputs,
+          inputDirectories.build());
     }
   }
 
+  @Override
+  public void onInputsUploaded(RemoteExecutionActionInfo actionInfo) {
+    uploadedDirectories.addAll(actionInfo.getInputDirectories());
+  }
+
   private void getFileInputs(
       MerkleTreeNode inputsMerkleTree,
       BiPredicate<Digest, String> requiredDataPredicate,
       Consumer<UploadDataSupplier> dataConsumer) {
-    inputsMerkleTree.forAllFiles(
+    nodeCache.forAllFiles(
+        inputsMerkleTree,
+        uploadedDirectories::contains,
         (path, fileNode) -> {
           if (requiredDataPredicate.test(fileNode.getDigest(), path.toString())) {
             dataConsumer.accept(
@@ -21,6 +21,7 @@ import com.facebook.buck.remoteexecution.UploadDataSupplier;
 import com.facebook.buck.remoteexecution.interfaces.Protocol;
 import com.facebook.buck.remoteexecution.interfaces.Protocol.Digest;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import java.nio.file.Path;
 
 /** This includes all the information needed to run a remote execution command. */
@@ -34,8 +35,14 @@ public abstract class RemoteExecutionActionInfo {
 
   public abstract Iterable<? extends Path> getOutputs();
 
+  /**
+   * The digests of the directories of the inputs which weren't known to be uploaded. They are,
+   * along with everything below them, once the required data is.
+   */
+  public abstract ImmutableSet<Digest> getInputDirectories();
+
   public RemoteExecutionActionInfo withRequiredData(ImmutableList<UploadDataSupplier> data) {
-    return of(getActionDigest(), data, getTotalInputSize(), getOutputs());
+    return of(getActionDigest(), data, getTotalInputSize(), getOutputs(), getInputDirectories());
   }
 
   public static RemoteExecutionActionInfo of(
@@ -43,7 +50,16 @@ public abstract class RemoteExecutionActionInfo {
       ImmutableList<UploadDataSupplier> requiredData,
       long totalInputSize,
       java.lang.Iterable<? extends Path> outputs) {
+    return of(actionDigest, requiredData, totalInputSize, outputs, ImmutableSet.of());
+  }
+
+  public static RemoteExecutionActionInfo of(
+      Protocol.Digest actionDigest,
+      ImmutableList<UploadDataSupplier> requiredData,
+      long totalInputSize,
+      java.lang.Iterable<? extends Path> outputs,
+      ImmutableSet<Digest> inputDirectories) {
     return ImmutableRemoteExecutionActionInfo.of(
-        actionDigest, requiredData, totalInputSize, outputs);
+        actionDigest, requiredData, totalInputSize, outputs, inputDirectories);
   }
 }
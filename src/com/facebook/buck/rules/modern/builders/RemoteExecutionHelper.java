@@ -43,6 +43,13 @@ public interface RemoteExecutionHelper {
       WorkerRequirements workerRequirements)
       throws IOException;
 
+  /**
+   * Called once the required data of an action is uploaded.
+   *
+   * @param actionInfo the action, as prepared by {@link #prepareRemoteExecution}.
+   */
+  default void onInputsUploaded(RemoteExecutionActionInfo actionInfo) {}
+
   /**
    * The cell path prefix is the path that all remote execution related paths will be relative to.
    */
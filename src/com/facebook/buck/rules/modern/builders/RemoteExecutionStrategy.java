@@ -38,6 +38,7 @@ import com.facebook.buck.remoteexecution.RemoteExecutionServiceClient.ExecutionR
 import com.facebook.buck.remoteexecution.WorkerRequirementsProvider;
 import com.facebook.buck.remoteexecution.config.RemoteExecutionConfig;
 import com.facebook.buck.remoteexecution.config.RemoteExecutionStrategyConfig;
+import com.facebook.buck.remoteexecution.config.RemoteExecutionType;
 import com.facebook.buck.remoteexecution.event.RemoteBuildRuleExecutionEvent;
 import com.facebook.buck.remoteexecution.event.RemoteExecutionActionEvent;
 import com.facebook.buck.remoteexecution.event.RemoteExecutionActionEvent.State;
@@ -46,6 +47,7 @@ import com.facebook.buck.remoteexecution.interfaces.MetadataProvider;
 import com.facebook.buck.remoteexecution.interfaces.Protocol;
 import com.facebook.buck.remoteexecution.interfaces.Protocol.Digest;
 import com.facebook.buck.remoteexecution.util.OutputsMaterializer.FilesystemFileMaterializer;
+import com.facebook.buck.remoteexecution.util.UploadedDirectories;
 import com.facebook.buck.rules.modern.ModernBuildRule;
 import com.facebook.buck.step.AbstractExecutionStep;
 import com.facebook.buck.step.StepExecutionResult;
@@ -147,6 +149,12 @@ public class RemoteExecutionStrategy extends AbstractModernBuildRuleStrategy {
       MetadataProvider metadataProvider,
       WorkerRequirementsProvider workerRequirementsProvider) {
     RemoteExecutionStrategyConfig strategyConfig = remoteExecutionConfig.getStrategyConfig();
+    // The other types use a CAS which only lives as long as the build.
+    UploadedDirectories uploadedDirectories =
+        remoteExecutionConfig.getType() == RemoteExecutionType.GRPC
+            ? UploadedDirectories.forCas(
+                remoteExecutionConfig.getCasHost() + ":" + remoteExecutionConfig.getCasPort())
+            : new UploadedDirectories();
     return new LocalFallbackStrategy(
         new RemoteExecutionStrategy(
             eventBus,
@@ -159,7 +167,8 @@ public class RemoteExecutionStrategy extends AbstractModernBuildRuleStrategy {
                 ruleFinder,
                 rootCell,
                 fileHasher,
-                strategyConfig.getIgnorePaths()),
+                strategyConfig.getIgnorePaths(),
+                uploadedDirectories),
             workerRequirementsProvider,
             MoreExecutors.listeningDecorator(
                 MostExecutors.newMultiThreadExecutor("remote-exec", strategyConfig.getThreads())),
@@ -373,6 +382,7 @@ public class RemoteExecutionStrategy extends AbstractModernBuildRuleStrategy {
     return Futures.transform(
         inputsUploadedFuture,
         ignored -> {
+          mbrHelper.onInputsUploaded(actionInfo);
           // The actionInfo may be very large, so explicitly clear out the unneeded parts.
           // actionInfo.getRequiredData() in particular may be very, very large and is unneeded once
           // uploading has completed.
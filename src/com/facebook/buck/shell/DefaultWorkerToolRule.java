@@ -59,6 +59,8 @@ public class DefaultWorkerToolRule extends WriteFile
       SourcePathRuleFinder ruleFinder,
       Tool tool,
       int maxWorkers,
+      int prewarmWorkers,
+      long maxIdleTimeSeconds,
       boolean isAsync,
       boolean isPersistent) {
     super(
@@ -72,6 +74,8 @@ public class DefaultWorkerToolRule extends WriteFile
         new DefaultWorkerTool(
             new DefaultWorkerToolDelegatingTool(tool, getSourcePathToOutput()),
             maxWorkers,
+            prewarmWorkers,
+            maxIdleTimeSeconds,
             isAsync,
             isPersistent,
             buildTarget,
@@ -143,6 +147,20 @@ public class DefaultWorkerToolRule extends WriteFile
     @CustomFieldBehavior(DefaultFieldSerialization.class)
     private final Integer maxWorkers;
 
+    /**
+     * Important : Do not add this field into RuleKey. Rule key should not change in case of pool
+     * sizing modification.
+     */
+    @CustomFieldBehavior(DefaultFieldSerialization.class)
+    private final int prewarmWorkers;
+
+    /**
+     * Important : Do not add this field into RuleKey. Rule key should not change in case of pool
+     * sizing modification.
+     */
+    @CustomFieldBehavior(DefaultFieldSerialization.class)
+    private final long maxIdleTimeSeconds;
+
     /**
      * Important : Do not add this field into RuleKey. Rule key should not change in case of async
      * variable modification.
@@ -160,12 +178,16 @@ public class DefaultWorkerToolRule extends WriteFile
     DefaultWorkerTool(
         Tool tool,
         int maxWorkers,
+        int prewarmWorkers,
+        long maxIdleTimeSeconds,
         boolean isAsync,
         boolean isPersistent,
         BuildTarget buildTarget,
         UUID uuid) {
       this.tool = tool;
       this.maxWorkers = maxWorkers;
+      this.prewarmWorkers = prewarmWorkers;
+      this.maxIdleTimeSeconds = maxIdleTimeSeconds;
       this.isPersistent = isPersistent;
       this.buildTarget = buildTarget;
       this.isAsync = isAsync;
@@ -195,6 +217,16 @@ public class DefaultWorkerToolRule extends WriteFile
       return maxWorkers;
     }
 
+    @Override
+    public int getPrewarmWorkers() {
+      return prewarmWorkers;
+    }
+
+    @Override
+    public long getMaxIdleTimeSeconds() {
+      return maxIdleTimeSeconds;
+    }
+
     @Override
     public boolean isAsync() {
       return isAsync;
@@ -762,6 +762,8 @@ public class GenruleBuildable implements Buildable {
                   workerMacroArg.getEnvironment(),
                   workerMacroArg.getMaxWorkers(),
                   workerMacroArg.isAsync(),
+                  workerMacroArg.getPrewarmWorkers(),
+                  workerMacroArg.getMaxIdleTimeSeconds(),
                   workerMacroArg.getPersistentWorkerKey().isPresent()
                       ? Optional.of(
                           WorkerProcessIdentity.of(
@@ -31,6 +31,12 @@ public interface WorkerTool extends AddsToRuleKey {
 
   int getMaxWorkers();
 
+  /** Returns the number of workers to start ahead of the first job, and keep running when idle. */
+  int getPrewarmWorkers();
+
+  /** Returns how long in seconds a worker may be idle before it is shut down, 0 for no limit. */
+  long getMaxIdleTimeSeconds();
+
   boolean isPersistent();
 
   HashCode getInstanceKey();
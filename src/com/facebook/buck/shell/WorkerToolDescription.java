@@ -56,6 +56,8 @@ public class WorkerToolDescription implements DescriptionWithTargetGraph<WorkerT
 
   private static final String CONFIG_SECTION = "worker";
   private static final String CONFIG_PERSISTENT_KEY = "persistent";
+  private static final String CONFIG_PREWARM_WORKERS_KEY = "prewarm_workers";
+  private static final String CONFIG_MAX_IDLE_TIME_SECONDS_KEY = "max_idle_time_seconds";
 
   public static final ImmutableList<MacroExpander<? extends Macro, ?>> MACRO_EXPANDERS =
       ImmutableList.of(
@@ -149,6 +151,21 @@ public class WorkerToolDescription implements DescriptionWithTargetGraph<WorkerT
               .orElse(1);
     }
 
+    int prewarmWorkers =
+        args.getPrewarmWorkers()
+            .orElse(
+                buckConfig
+                    .getLong(CONFIG_SECTION, CONFIG_PREWARM_WORKERS_KEY)
+                    .map(Long::intValue)
+                    .orElse(0));
+    Preconditions.checkArgument(prewarmWorkers >= 0, "prewarm_workers must not be negative.");
+    long maxIdleTimeSeconds =
+        args.getMaxIdleTimeSeconds()
+            .orElse(
+                buckConfig.getLong(CONFIG_SECTION, CONFIG_MAX_IDLE_TIME_SECONDS_KEY).orElse(0L));
+    Preconditions.checkArgument(
+        maxIdleTimeSeconds >= 0, "max_idle_time_seconds must not be negative.");
+
     CommandTool tool = builder.build();
     return new DefaultWorkerToolRule(
         buildTarget,
@@ -156,6 +173,8 @@ public class WorkerToolDescription implements DescriptionWithTargetGraph<WorkerT
         graphBuilder,
         tool,
         maxWorkers,
+        Math.min(prewarmWorkers, maxWorkers),
+        maxIdleTimeSeconds,
         async,
         args.getPersistent()
             .orElse(buckConfig.getBooleanValue(CONFIG_SECTION, CONFIG_PERSISTENT_KEY, false)));
@@ -199,6 +218,10 @@ public class WorkerToolDescription implements DescriptionWithTargetGraph<WorkerT
 
     Optional<Integer> getMaxWorkersPerThreadPercent();
 
+    Optional<Integer> getPrewarmWorkers();
+
+    Optional<Long> getMaxIdleTimeSeconds();
+
     Optional<Boolean> getPersistent();
 
     Optional<Boolean> getSoloAsync();
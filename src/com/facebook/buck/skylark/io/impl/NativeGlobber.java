@@ -17,6 +17,7 @@
 package com.facebook.buck.skylark.io.impl;
 
 import com.facebook.buck.skylark.io.Globber;
+import com.facebook.buck.util.concurrent.DirectoryListingPool;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.vfs.Path;
@@ -30,7 +31,8 @@ import java.util.Set;
  * patterns (file patterns that should be returned) minus exclude patterns (file patterns that
  * should be excluded from the resulting set).
  *
- * <p>Since this is a simple implementation it does not support caching and other smarts.
+ * <p>Since this is a simple implementation it does not support caching and other smarts, but it
+ * does list directories in parallel.
  */
 public class NativeGlobber implements Globber {
 
@@ -69,8 +71,12 @@ public class NativeGlobber implements Globber {
    */
   private static ImmutableSet<String> resolvePathsMatchingGlobPatterns(
       Collection<String> patterns, Path basePath, boolean excludeDirectories) throws IOException {
+    // Subdirectories are listed in parallel, on the same pool that ProjectFilesystem walks file
+    // trees on.
     return UnixGlob.forPath(basePath).addPatterns(patterns)
-        .setExcludeDirectories(excludeDirectories).glob().stream()
+        .setExcludeDirectories(excludeDirectories)
+        .setExecutor(DirectoryListingPool.get())
+        .glob().stream()
         .map(includePath -> includePath.relativeTo(basePath).getPathString())
         .collect(ImmutableSet.toImmutableSet());
   }
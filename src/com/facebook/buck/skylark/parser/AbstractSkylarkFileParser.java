@@ -18,6 +18,7 @@ package com.facebook.buck.skylark.parser;
 
 import com.facebook.buck.core.filesystems.AbsPath;
 import com.facebook.buck.core.starlark.compatible.BuckStarlark;
+import com.facebook.buck.core.starlark.knowntypes.KnownUserDefinedRuleTypes;
 import com.facebook.buck.core.starlark.rule.SkylarkUserDefinedRule;
 import com.facebook.buck.core.util.immutables.BuckStyleValue;
 import com.facebook.buck.io.pathformat.PathFormatter;
@@ -43,6 +44,9 @@ import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
@@ -86,24 +90,33 @@ abstract class AbstractSkylarkFileParser<T extends FileManifest> implements File
   protected final ProjectBuildFileParserOptions options;
   protected final EventHandler eventHandler;
   protected final BuckGlobals buckGlobals;
+  protected final SkylarkParseCache parseCache;
 
   private final Cache<com.google.devtools.build.lib.vfs.Path, BuildFileAST> astCache;
+  private final Cache<com.google.devtools.build.lib.vfs.Path, HashCode> contentHashCache;
   private final Cache<com.google.devtools.build.lib.vfs.Path, ExtensionData> extensionDataCache;
+  private final Cache<com.google.devtools.build.lib.vfs.Path, HashCode> extensionHashCache;
   private final LoadingCache<LoadImport, IncludesData> includesDataCache;
   private final PackageImplicitIncludesFinder packageImplicitIncludeFinder;
+  private final Object globalsScope;
 
   AbstractSkylarkFileParser(
       ProjectBuildFileParserOptions options,
       FileSystem fileSystem,
       BuckGlobals buckGlobals,
-      EventHandler eventHandler) {
+      EventHandler eventHandler,
+      SkylarkParseCache parseCache) {
     this.options = options;
     this.fileSystem = fileSystem;
     this.eventHandler = eventHandler;
     this.buckGlobals = buckGlobals;
+    this.parseCache = parseCache;
+    this.globalsScope = createGlobalsScope(options, buckGlobals);
 
     this.astCache = CacheBuilder.newBuilder().build();
+    this.contentHashCache = CacheBuilder.newBuilder().build();
     this.extensionDataCache = CacheBuilder.newBuilder().build();
+    this.extensionHashCache = CacheBuilder.newBuilder().build();
 
     this.includesDataCache =
         CacheBuilder.newBuilder()
@@ -120,6 +133,24 @@ abstract class AbstractSkylarkFileParser<T extends FileManifest> implements File
         PackageImplicitIncludesFinder.fromConfiguration(options.getPackageImplicitIncludes());
   }
 
+  /**
+   * @return A value that is equal for parsers whose extensions are interchangeable, because they
+   *     are evaluated with the same globals and resolve labels to the same files.
+   */
+  private static Object createGlobalsScope(
+      ProjectBuildFileParserOptions options, BuckGlobals buckGlobals) {
+    return ImmutableList.of(
+        buckGlobals.getSkylarkFunctionModule(),
+        buckGlobals.getDescriptions(),
+        buckGlobals.getImplicitNativeRulesState(),
+        buckGlobals.getUserDefinedRulesState(),
+        buckGlobals.getKnownUserDefinedRuleTypes(),
+        buckGlobals.getPerFeatureProviders(),
+        options.getProjectRoot(),
+        options.getCellRoots(),
+        options.getCellName());
+  }
+
   abstract FileKind getFileKind();
 
   abstract ParseResult getParseResult(
@@ -301,15 +332,16 @@ abstract class AbstractSkylarkFileParser<T extends FileManifest> implements File
   /**
    * Reads file and returns abstract syntax tree for that file.
    *
-   * @param path file path to read the data from.
+   * @param path file path the data was read from.
+   * @param content the contents of the file.
    * @return abstract syntax tree; does not handle any errors.
    */
   @VisibleForTesting
   protected BuildFileAST readSkylarkAST(
-      com.google.devtools.build.lib.vfs.Path path, FileKind fileKind) throws IOException {
+      com.google.devtools.build.lib.vfs.Path path, byte[] content, FileKind fileKind) {
     ParserInputSource input =
         ParserInputSource.create(
-            FileSystemUtils.readContent(path, StandardCharsets.UTF_8), path.asFragment());
+            new String(content, StandardCharsets.UTF_8).toCharArray(), path.asFragment());
     switch (fileKind) {
       case BUCK:
         return BuildFileAST.parseBuildFile(input, eventHandler);
@@ -327,17 +359,25 @@ abstract class AbstractSkylarkFileParser<T extends FileManifest> implements File
       throws BuildFileParseException, IOException {
     BuildFileAST result = astCache.getIfPresent(path);
     if (result == null) {
+      byte[] content;
       try {
-        result = readSkylarkAST(path, fileKind);
+        content = FileSystemUtils.readContent(path);
       } catch (FileNotFoundException e) {
         throw BuildFileParseException.createForUnknownParseError(
             "%s cannot be loaded because it does not exist. It was referenced from %s",
             path, containingLabel);
       }
-      if (result.containsErrors()) {
-        throw BuildFileParseException.createForUnknownParseError(
-            "Cannot parse %s.  It was referenced from %s", path, containingLabel);
+      HashCode contentHash = Hashing.sha1().hashBytes(content);
+      result = parseCache.getAst(path.toString(), fileKind, contentHash);
+      if (result == null) {
+        result = readSkylarkAST(path, content, fileKind);
+        if (result.containsErrors()) {
+          throw BuildFileParseException.createForUnknownParseError(
+              "Cannot parse %s.  It was referenced from %s", path, containingLabel);
+        }
+        parseCache.putAst(path.toString(), fileKind, contentHash, result);
       }
+      contentHashCache.put(path, contentHash);
       astCache.put(path, result);
     }
     return result;
@@ -682,6 +722,49 @@ abstract class AbstractSkylarkFileParser<T extends FileManifest> implements File
         toLoadedPaths(load.getPath(), dependencies, null));
   }
 
+  /**
+   * @return The hash identifying the evaluated form of a fully loaded extension: its own contents
+   *     and the evaluated forms of all the extensions it loads.
+   */
+  private HashCode getExtensionHash(ExtensionLoadState load) throws BuildFileParseException {
+    HashCode contentHash =
+        Preconditions.checkNotNull(contentHashCache.getIfPresent(load.getPath()));
+    Hasher hasher = Hashing.sha1().newHasher().putBytes(contentHash.asBytes());
+    ImmutableList<SkylarkImport> imports = load.getAST().getImports();
+    for (int i = 0; i < imports.size(); ++i) {
+      LoadImport dependency = ImmutableLoadImport.of(load.getLabel(), imports.get(i));
+      HashCode dependencyHash =
+          extensionHashCache.getIfPresent(
+              getImportPath(dependency.getLabel(), dependency.getImport()));
+      if (dependencyHash == null) {
+        throw BuildFileParseException.createForUnknownParseError(
+            "Cannot evaluate extension file %s; missing dependency is %s",
+            load.getLabel(), dependency.getLabel());
+      }
+      hasher.putBytes(dependencyHash.asBytes());
+    }
+    return hasher.hash();
+  }
+
+  /**
+   * Adapts an extension evaluated by another parser sharing {@link #parseCache} for this load, and
+   * registers the user defined rules it exports as if it was evaluated here.
+   */
+  private ExtensionData reuseExtensionData(ExtensionLoadState load, ExtensionData extension) {
+    KnownUserDefinedRuleTypes knownUserDefinedRuleTypes =
+        buckGlobals.getKnownUserDefinedRuleTypes();
+    knownUserDefinedRuleTypes.invalidateExtension(load.getLabel());
+    for (Object value : extension.getExtension().getBindings().values()) {
+      if (value instanceof SkylarkUserDefinedRule) {
+        SkylarkUserDefinedRule rule = (SkylarkUserDefinedRule) value;
+        if (rule.isExported() && rule.getLabel().equals(load.getLabel())) {
+          knownUserDefinedRuleTypes.addRule(rule);
+        }
+      }
+    }
+    return extension.withImportString(load.getSkylarkImport().getImportString());
+  }
+
   /**
    * Call {@link com.google.devtools.build.lib.packages.SkylarkExportable#export(Label, String)} on
    * any objects that are assigned to
@@ -752,9 +835,18 @@ abstract class AbstractSkylarkFileParser<T extends FileManifest> implements File
       // This load is kept on the queue until all of its dependencies are satisfied.
 
       if (!haveUnsatisfiedDeps) {
-        // We are done with this load; build it and cache it.
+        // We are done with this load; build it, unless another parser already did, and cache it.
         work.removeFirst();
-        extension = buildExtensionData(load);
+        String label = load.getLabel().toString();
+        HashCode extensionHash = getExtensionHash(load);
+        extension = parseCache.getExtension(globalsScope, label, extensionHash);
+        if (extension == null) {
+          extension = buildExtensionData(load);
+          parseCache.putExtension(globalsScope, label, extensionHash, extension);
+        } else {
+          extension = reuseExtensionData(load, extension);
+        }
+        extensionHashCache.put(load.getPath(), extensionHash);
         extensionDataCache.put(load.getPath(), extension);
       }
     }
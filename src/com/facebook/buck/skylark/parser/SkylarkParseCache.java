@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.skylark.parser;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+/**
+ * Syntax trees of Skylark files and evaluated extensions which, unlike the caches each {@link
+ * AbstractSkylarkFileParser} keeps for its own lifetime, can be shared by any number of parsers and
+ * outlive them.
+ *
+ * <p>Entries are keyed by content rather than by path alone, so they stay valid while files
+ * change. A syntax tree is keyed by its file's path and content hash. An evaluated extension is
+ * keyed by its label, its file's content hash and the keys of all the extensions it loads, and is
+ * only shared between parsers whose globals are equivalent, since the values it binds were created
+ * from them.
+ *
+ * <p>Values are softly referenced, so entries for files that have since changed are released under
+ * memory pressure.
+ */
+public class SkylarkParseCache {
+
+  private final Cache<AstKey, BuildFileAST> asts = CacheBuilder.newBuilder().softValues().build();
+  private final Cache<ExtensionKey, ExtensionData> extensions =
+      CacheBuilder.newBuilder().softValues().build();
+
+  @Nullable
+  BuildFileAST getAst(String path, FileKind fileKind, HashCode contentHash) {
+    return asts.getIfPresent(new AstKey(path, fileKind, contentHash));
+  }
+
+  void putAst(String path, FileKind fileKind, HashCode contentHash, BuildFileAST ast) {
+    asts.put(new AstKey(path, fileKind, contentHash), ast);
+  }
+
+  @Nullable
+  ExtensionData getExtension(Object globalsScope, String label, HashCode extensionHash) {
+    return extensions.getIfPresent(new ExtensionKey(globalsScope, label, extensionHash));
+  }
+
+  void putExtension(
+      Object globalsScope, String label, HashCode extensionHash, ExtensionData extension) {
+    extensions.put(new ExtensionKey(globalsScope, label, extensionHash), extension);
+  }
+
+  private static final class AstKey {
+    private final String path;
+    private final FileKind fileKind;
+    private final HashCode contentHash;
+
+    private AstKey(String path, FileKind fileKind, HashCode contentHash) {
+      this.path = path;
+      this.fileKind = fileKind;
+      this.contentHash = contentHash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof AstKey)) {
+        return false;
+      }
+      AstKey other = (AstKey) obj;
+      return path.equals(other.path)
+          && fileKind == other.fileKind
+          && contentHash.equals(other.contentHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, fileKind, contentHash);
+    }
+  }
+
+  private static final class ExtensionKey {
+    private final Object globalsScope;
+    private final String label;
+    private final HashCode extensionHash;
+
+    private ExtensionKey(Object globalsScope, String label, HashCode extensionHash) {
+      this.globalsScope = globalsScope;
+      this.label = label;
+      this.extensionHash = extensionHash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ExtensionKey)) {
+        return false;
+      }
+      ExtensionKey other = (ExtensionKey) obj;
+      return globalsScope.equals(other.globalsScope)
+          && label.equals(other.label)
+          && extensionHash.equals(other.extensionHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(globalsScope, label, extensionHash);
+    }
+  }
+}
@@ -71,8 +71,9 @@ public class SkylarkProjectBuildFileParser extends AbstractSkylarkFileParser<Bui
       FileSystem fileSystem,
       BuckGlobals buckGlobals,
       EventHandler eventHandler,
-      GlobberFactory globberFactory) {
-    super(options, fileSystem, buckGlobals, eventHandler);
+      GlobberFactory globberFactory,
+      SkylarkParseCache parseCache) {
+    super(options, fileSystem, buckGlobals, eventHandler, parseCache);
     this.buckEventBus = buckEventBus;
     this.globberFactory = globberFactory;
   }
@@ -85,8 +86,30 @@ public class SkylarkProjectBuildFileParser extends AbstractSkylarkFileParser<Bui
       BuckGlobals buckGlobals,
       EventHandler eventHandler,
       GlobberFactory globberFactory) {
+    return using(
+        options,
+        buckEventBus,
+        fileSystem,
+        buckGlobals,
+        eventHandler,
+        globberFactory,
+        new SkylarkParseCache());
+  }
+
+  /**
+   * Create an instance of Skylark project build file parser using provided options, which reuses
+   * syntax trees and extensions from {@code parseCache}.
+   */
+  public static SkylarkProjectBuildFileParser using(
+      ProjectBuildFileParserOptions options,
+      BuckEventBus buckEventBus,
+      FileSystem fileSystem,
+      BuckGlobals buckGlobals,
+      EventHandler eventHandler,
+      GlobberFactory globberFactory,
+      SkylarkParseCache parseCache) {
     return new SkylarkProjectBuildFileParser(
-        options, buckEventBus, fileSystem, buckGlobals, eventHandler, globberFactory);
+        options, buckEventBus, fileSystem, buckGlobals, eventHandler, globberFactory, parseCache);
   }
 
   @VisibleForTesting
@@ -97,7 +120,8 @@ public class SkylarkProjectBuildFileParser extends AbstractSkylarkFileParser<Bui
         other.fileSystem,
         other.buckGlobals,
         other.eventHandler,
-        other.globberFactory);
+        other.globberFactory,
+        other.parseCache);
   }
 
   @Override
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.step;
+
+import com.facebook.buck.core.build.execution.context.ExecutionContext;
+import java.io.IOException;
+
+/**
+ * {@link Step} running one shard of the tests of a test rule. The shard steps which are adjacent in
+ * the steps of a test rule don't depend on each other, and may be run concurrently.
+ */
+public class TestShardStep implements Step {
+
+  private final Step step;
+
+  public TestShardStep(Step step) {
+    this.step = step;
+  }
+
+  @Override
+  public StepExecutionResult execute(ExecutionContext context)
+      throws IOException, InterruptedException {
+    return step.execute(context);
+  }
+
+  @Override
+  public String getShortName() {
+    // Use the short name of the underlying Step because StepEvent.getCategory() uses the short
+    // name to group similar step types together so they can be audited for time spent.
+    return step.getShortName();
+  }
+
+  @Override
+  public String getDescription(ExecutionContext context) {
+    return step.getDescription(context);
+  }
+}
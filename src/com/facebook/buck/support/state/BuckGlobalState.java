@@ -16,6 +16,7 @@
 
 package com.facebook.buck.support.state;
 
+import com.facebook.buck.command.config.BuildBuckConfig;
 import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.files.DirectoryListCache;
 import com.facebook.buck.core.files.FileTreeCache;
@@ -31,8 +32,10 @@ import com.facebook.buck.io.watchman.Watchman;
 import com.facebook.buck.io.watchman.WatchmanCursor;
 import com.facebook.buck.io.watchman.WatchmanWatcher;
 import com.facebook.buck.parser.DaemonicParserState;
+import com.facebook.buck.parser.config.ParserConfig;
 import com.facebook.buck.parser.manifest.BuildFileManifestCache;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
+import com.facebook.buck.rules.keys.PersistentRuleKeyCache;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.impl.WatchedFileHashCache;
@@ -248,6 +251,51 @@ public final class BuckGlobalState implements Closeable {
   public void close() {
     shutdownPersistentWorkerPools();
     shutdownWebServer();
+    saveFileHashCaches();
+    saveRuleKeyCache();
+    saveParserState();
+  }
+
+  private void saveFileHashCaches() {
+    if (!rootCell.getBuckConfig().getView(BuildBuckConfig.class).shouldPersistFileHashCaches()) {
+      return;
+    }
+    for (ProjectFileHashCache hashCache : hashCaches) {
+      if (hashCache instanceof WatchedFileHashCache) {
+        WatchedFileHashCache cache = (WatchedFileHashCache) hashCache;
+        try {
+          cache.saveSnapshot(cache.getDefaultSnapshotPath());
+        } catch (IOException e) {
+          LOG.warn(e, "Failed to save file hash cache for %s", cache.getFilesystem().getRootPath());
+        }
+      }
+    }
+  }
+
+  private void saveRuleKeyCache() {
+    Optional<PersistentRuleKeyCache> persistentCache =
+        defaultRuleKeyFactoryCacheRecycler.getPersistentCache();
+    if (!persistentCache.isPresent()) {
+      return;
+    }
+    try {
+      persistentCache
+          .get()
+          .save(PersistentRuleKeyCache.getDefaultSnapshotPath(rootCell.getFilesystem()));
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save rule key cache");
+    }
+  }
+
+  private void saveParserState() {
+    if (!rootCell.getBuckConfig().getView(ParserConfig.class).shouldPersistParserState()) {
+      return;
+    }
+    try {
+      daemonicParserState.saveSnapshot(DaemonicParserState.getDefaultSnapshotPath(rootCell));
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save parser state");
+    }
   }
 
   private void shutdownPersistentWorkerPools() {
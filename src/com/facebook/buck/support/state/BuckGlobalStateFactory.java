@@ -45,6 +45,7 @@ import com.facebook.buck.parser.manifest.BuildFileManifestCache;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
+import com.facebook.buck.rules.keys.PersistentRuleKeyCache;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
@@ -90,7 +91,17 @@ public class BuckGlobalStateFactory {
         ImmutableList.builderWithExpectedSize(allCells.size() + 1);
     for (Cell subCell : allCells) {
       WatchedFileHashCache watchedCache =
-          new WatchedFileHashCache(subCell.getFilesystem(), buildBuckConfig.getFileHashCacheMode());
+          new WatchedFileHashCache(
+              subCell.getFilesystem(),
+              buildBuckConfig.getFileHashCacheMode(),
+              // Persisted rule keys are validated against the stats recorded by the hash cache.
+              buildBuckConfig.shouldPersistFileHashCaches()
+                  || buildBuckConfig.shouldPersistRuleKeyCache());
+      if (buildBuckConfig.shouldPersistFileHashCaches()) {
+        // The Watchman clock was taken before this point, so any change made after the snapshot is
+        // validated here will still be reported to the cache.
+        watchedCache.loadSnapshot(watchedCache.getDefaultSnapshotPath());
+      }
       fileEventBus.register(watchedCache);
       hashCachesBuilder.add(watchedCache);
     }
@@ -108,21 +119,36 @@ public class BuckGlobalStateFactory {
         createBuildFileManifestCachePerCellMap(
             fileEventBus, rootCell.getCellProvider(), rootCell.getSuperRootPath());
     ActionGraphCache actionGraphCache =
-        new ActionGraphCache(buildBuckConfig.getMaxActionGraphCacheEntries());
+        new ActionGraphCache(
+            buildBuckConfig.getMaxActionGraphCacheEntries(),
+            buildBuckConfig.getMaxActionGraphCacheRules());
     VersionedTargetGraphCache versionedTargetGraphCache = new VersionedTargetGraphCache();
 
     TypeCoercerFactory typeCoercerFactory = new DefaultTypeCoercerFactory();
     ParserConfig parserConfig = rootCell.getRootCell().getBuckConfig().getView(ParserConfig.class);
     DaemonicParserState daemonicParserState =
         new DaemonicParserState(parserConfig.getNumParsingThreads());
+    if (parserConfig.shouldPersistParserState()) {
+      daemonicParserState.loadSnapshot(
+          DaemonicParserState.getDefaultSnapshotPath(rootCell.getRootCell()));
+    }
     fileEventBus.register(daemonicParserState);
 
     // Build the the rule key cache recycler.
+    Optional<PersistentRuleKeyCache> persistentRuleKeyCache =
+        buildBuckConfig.shouldPersistRuleKeyCache()
+            ? Optional.of(
+                PersistentRuleKeyCache.load(
+                    rootCell.getRootCell().getFilesystem(),
+                    PersistentRuleKeyCache.getDefaultSnapshotPath(
+                        rootCell.getRootCell().getFilesystem())))
+            : Optional.empty();
     RuleKeyCacheRecycler<RuleKey> defaultRuleKeyFactoryCacheRecycler =
         RuleKeyCacheRecycler.createAndRegister(
             fileEventBus,
             new DefaultRuleKeyCache<>(),
-            RichStream.from(allCells).map(Cell::getFilesystem).toImmutableSet());
+            RichStream.from(allCells).map(Cell::getFilesystem).toImmutableSet(),
+            persistentRuleKeyCache);
 
     Optional<WebServer> webServer;
     if (webServerToReuse.isPresent()) {
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.test;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.util.json.ObjectMappers;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * The durations of the test rules and test classes run by previous test runs, used to start the
+ * tests expected to take longest first, and to balance the shards of large test rules.
+ *
+ * <p>The expected duration is a moving average which gives the last run as much weight as all the
+ * ones before it, so that it follows tests which got faster or slower.
+ */
+@ThreadSafe
+public class TestDurationHistory {
+  private static final Logger LOG = Logger.get(TestDurationHistory.class);
+
+  private static final String TARGETS = "targets";
+  private static final String CLASSES = "classes";
+
+  private final ConcurrentMap<String, Long> targetDurations;
+  private final ConcurrentMap<String, Long> classDurations;
+
+  public TestDurationHistory() {
+    this(ImmutableMap.of(), ImmutableMap.of());
+  }
+
+  private TestDurationHistory(Map<String, Long> targetDurations, Map<String, Long> classDurations) {
+    this.targetDurations = new ConcurrentHashMap<>(targetDurations);
+    this.classDurations = new ConcurrentHashMap<>(classDurations);
+  }
+
+  /** Loads the history from the given file, or returns an empty one if it can't be read. */
+  public static TestDurationHistory load(Path file) {
+    try {
+      Map<String, Map<String, Long>> durations =
+          ObjectMappers.readValue(file, new TypeReference<Map<String, Map<String, Long>>>() {});
+      return new TestDurationHistory(
+          durations.getOrDefault(TARGETS, ImmutableMap.of()),
+          durations.getOrDefault(CLASSES, ImmutableMap.of()));
+    } catch (NoSuchFileException e) {
+      return new TestDurationHistory();
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Failed to read test durations from %s, ignoring them.", file);
+      return new TestDurationHistory();
+    }
+  }
+
+  /** Writes the history to the given file. */
+  public void save(Path file) throws IOException {
+    Files.createDirectories(file.getParent());
+    try (OutputStream out = Files.newOutputStream(file)) {
+      ObjectMappers.WRITER.writeValue(
+          out,
+          ImmutableMap.of(
+              TARGETS, ImmutableMap.copyOf(targetDurations),
+              CLASSES, ImmutableMap.copyOf(classDurations)));
+    }
+  }
+
+  /** @return how long the tests of the given rule are expected to take, in milliseconds. */
+  public Optional<Long> getExpectedDurationMillis(BuildTarget target) {
+    return Optional.ofNullable(targetDurations.get(target.toString()));
+  }
+
+  /** @return how long the given test class is expected to take, in milliseconds. */
+  public Optional<Long> getExpectedClassDurationMillis(String testClass) {
+    return Optional.ofNullable(classDurations.get(testClass));
+  }
+
+  /** @return the expected durations of all the test classes, in milliseconds. */
+  public ImmutableMap<String, Long> getExpectedClassDurationsMillis() {
+    return ImmutableMap.copyOf(classDurations);
+  }
+
+  /**
+   * Records the duration of a run of the tests of a rule, and of each test class they contain.
+   *
+   * @param durationMillis how long running the tests of the rule took, from start to results.
+   */
+  public void record(TestResults results, long durationMillis) {
+    update(targetDurations, results.getBuildTarget().toString(), durationMillis);
+    for (TestCaseSummary testCase : results.getTestCases()) {
+      update(classDurations, testCase.getTestCaseName(), testCase.getTotalTime());
+    }
+  }
+
+  private static void update(ConcurrentMap<String, Long> durations, String key, long duration) {
+    durations.merge(key, Math.max(0, duration), (previous, latest) -> (previous + latest) / 2);
+  }
+
+  /**
+   * @return how long running jobs of the given durations takes on {@code numThreads} threads, when
+   *     each job is started on the first free thread, longest first.
+   */
+  public static long predictWallTimeMillis(Collection<Long> durations, int numThreads) {
+    List<Long> longestFirst = new ArrayList<>(durations);
+    longestFirst.sort(Comparator.reverseOrder());
+    PriorityQueue<Long> threadEndTimes = new PriorityQueue<>();
+    long wallTime = 0;
+    for (long duration : longestFirst) {
+      long start = threadEndTimes.size() < numThreads ? 0 : threadEndTimes.remove();
+      threadEndTimes.add(start + duration);
+      wallTime = Math.max(wallTime, start + duration);
+    }
+    return wallTime;
+  }
+}
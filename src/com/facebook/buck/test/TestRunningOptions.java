@@ -74,6 +74,15 @@ public abstract class TestRunningOptions {
 
   public abstract Optional<String> getJavaTempDir();
 
+  /** The number of shards into which the test classes of a JUnit test rule are split. */
+  @Value.Default
+  public int getJUnitShards() {
+    return 1;
+  }
+
+  /** How long each test class took in previous runs, in milliseconds, to balance the shards. */
+  public abstract ImmutableMap<String, Long> getExpectedTestClassDurations();
+
   public static Builder builder() {
     return new Builder();
   }
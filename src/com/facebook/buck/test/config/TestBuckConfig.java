@@ -115,6 +115,21 @@ public abstract class TestBuckConfig implements ConfigView<BuckConfig> {
     return getDelegate().getOptionalListWithoutComments("test", "coverageExcludes", ',');
   }
 
+  /**
+   * @return the number of shards, run concurrently, into which the test classes of each JUnit test
+   *     rule are split. This will use the test.junit_shards setting if it exists, and otherwise
+   *     runs each rule in a single shard.
+   */
+  @Lazy
+  public int getJUnitShards() {
+    OptionalInt shards = getDelegate().getInteger(TEST_SECTION_HEADER, "junit_shards");
+    if (shards.isPresent() && shards.getAsInt() <= 0) {
+      throw new HumanReadableException(
+          "test.junit_shards must be greater than zero (was " + shards.getAsInt() + ")");
+    }
+    return shards.orElse(1);
+  }
+
   public boolean isBuildingFilteredTestsEnabled() {
     return getDelegate().getBooleanValue("test", "build_filtered_tests", false);
   }
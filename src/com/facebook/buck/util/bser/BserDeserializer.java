@@ -16,37 +16,16 @@
 
 package com.facebook.buck.util.bser;
 
-import static com.facebook.buck.util.bser.BserConstants.BSER_ARRAY;
-import static com.facebook.buck.util.bser.BserConstants.BSER_FALSE;
-import static com.facebook.buck.util.bser.BserConstants.BSER_INT16;
-import static com.facebook.buck.util.bser.BserConstants.BSER_INT32;
-import static com.facebook.buck.util.bser.BserConstants.BSER_INT64;
-import static com.facebook.buck.util.bser.BserConstants.BSER_INT8;
-import static com.facebook.buck.util.bser.BserConstants.BSER_NULL;
-import static com.facebook.buck.util.bser.BserConstants.BSER_OBJECT;
-import static com.facebook.buck.util.bser.BserConstants.BSER_REAL;
-import static com.facebook.buck.util.bser.BserConstants.BSER_SKIP;
-import static com.facebook.buck.util.bser.BserConstants.BSER_STRING;
-import static com.facebook.buck.util.bser.BserConstants.BSER_TEMPLATE;
-import static com.facebook.buck.util.bser.BserConstants.BSER_TRUE;
-
 import com.facebook.buck.util.ImmutableMapWithNullValues;
-import com.google.common.base.Preconditions;
-import com.google.common.io.ByteStreams;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.BufferUnderflowException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import javax.annotation.Nullable;
 
 /**
@@ -86,12 +65,6 @@ public class BserDeserializer {
         StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT);
   }
 
-  // 2 bytes marker, 1 byte int size
-  private static final int INITIAL_SNIFF_LEN = 3;
-
-  // 2 bytes marker, 1 byte int size, up to 8 bytes int64 value
-  private static final int SNIFF_BUFFER_SIZE = 13;
-
   /**
    * Deserializes the next BSER-encoded value from the stream.
    *
@@ -100,136 +73,37 @@ public class BserDeserializer {
    */
   @Nullable
   public Object deserializeBserValue(InputStream inputStream) throws IOException {
+    BserReader reader = new BserReader(inputStream, utf8Decoder);
+    Object value;
     try {
-      return deserializeRecursive(readBserBuffer(inputStream));
-    } catch (BufferUnderflowException e) {
-      throw new BserEofException("Prematurely reached end of BSER buffer", e);
-    }
-  }
-
-  private ByteBuffer readBserBuffer(InputStream inputStream) throws IOException {
-    ByteBuffer sniffBuffer = ByteBuffer.allocate(SNIFF_BUFFER_SIZE).order(ByteOrder.nativeOrder());
-    Preconditions.checkState(sniffBuffer.hasArray());
-
-    int sniffBytesRead = ByteStreams.read(inputStream, sniffBuffer.array(), 0, INITIAL_SNIFF_LEN);
-    if (sniffBytesRead < INITIAL_SNIFF_LEN) {
-      throw new BserEofException(
-          String.format(
-              "Invalid BSER header (expected %d bytes, got %d bytes)",
-              INITIAL_SNIFF_LEN, sniffBytesRead));
-    }
-
-    if (sniffBuffer.get() != 0x00 || sniffBuffer.get() != 0x01) {
-      throw new IOException("Invalid BSER header");
-    }
-
-    byte lengthType = sniffBuffer.get();
-    int lengthBytesRemaining;
-    switch (lengthType) {
-      case BSER_INT8:
-        lengthBytesRemaining = 1;
-        break;
-      case BSER_INT16:
-        lengthBytesRemaining = 2;
-        break;
-      case BSER_INT32:
-        lengthBytesRemaining = 4;
-        break;
-      case BSER_INT64:
-        lengthBytesRemaining = 8;
-        break;
-      default:
-        throw new IOException(String.format("Unrecognized BSER header length type %d", lengthType));
-    }
-    int lengthBytesRead =
-        ByteStreams.read(
-            inputStream, sniffBuffer.array(), sniffBuffer.position(), lengthBytesRemaining);
-    if (lengthBytesRead < lengthBytesRemaining) {
-      throw new BserEofException(
-          String.format(
-              "Invalid BSER header length (expected %d bytes, got %d bytes)",
-              lengthBytesRemaining, lengthBytesRead));
-    }
-    int bytesRemaining = deserializeIntLen(sniffBuffer, lengthType);
-
-    ByteBuffer bserBuffer = ByteBuffer.allocate(bytesRemaining).order(ByteOrder.nativeOrder());
-    Preconditions.checkState(bserBuffer.hasArray());
-
-    int remainingBytesRead = ByteStreams.read(inputStream, bserBuffer.array(), 0, bytesRemaining);
-
-    if (remainingBytesRead < bytesRemaining) {
-      throw new IOException(
-          String.format(
-              "Invalid BSER header (expected %d bytes, got %d bytes)",
-              bytesRemaining, remainingBytesRead));
-    }
-
-    return bserBuffer;
-  }
-
-  private int deserializeIntLen(ByteBuffer buffer, byte type) throws IOException {
-    long value = deserializeNumber(buffer, type).longValue();
-    if (value > Integer.MAX_VALUE) {
-      throw new IOException(
-          String.format("BSER length out of range (%d > %d)", value, Integer.MAX_VALUE));
-    } else if (value < 0) {
-      throw new IOException(String.format("BSER length out of range (%d < 0)", value));
-    }
-    return (int) value;
-  }
-
-  private Number deserializeNumber(ByteBuffer buffer, byte type) throws IOException {
-    switch (type) {
-      case BSER_INT8:
-        return buffer.get();
-      case BSER_INT16:
-        return buffer.getShort();
-      case BSER_INT32:
-        return buffer.getInt();
-      case BSER_INT64:
-        return buffer.getLong();
-      default:
-        throw new IOException(String.format("Invalid BSER number encoding %d", type));
-    }
-  }
-
-  private String deserializeString(ByteBuffer buffer) throws IOException {
-    byte intType = buffer.get();
-    int len = deserializeIntLen(buffer, intType);
-
-    // We use a CharsetDecoder here instead of String(byte[], Charset)
-    // because we want it to throw an exception for any non-UTF-8 input.
-    buffer.limit(buffer.position() + len);
-
-    try {
-      // We'll likely have many duplicates of this string. Java 7 and
-      // up have not-insane behavior of String.intern(), so we'll use
-      // it to deduplicate the String instances.
-      //
-      // See: http://java-performance.info/string-intern-in-java-6-7-8/
-      return utf8Decoder.decode(buffer).toString().intern();
-    } finally {
-      buffer.limit(buffer.capacity());
+      value = deserializeRecursive(reader);
+    } catch (IOException | RuntimeException e) {
+      reader.skipToEndAfter(e);
+      throw e;
     }
+    reader.skipToEnd();
+    return value;
   }
 
-  private List<Object> deserializeArray(ByteBuffer buffer) throws IOException {
-    byte intType = buffer.get();
-    int numItems = deserializeIntLen(buffer, intType);
+  private List<Object> deserializeArray(BserReader reader) throws IOException {
+    int numItems = reader.beginArray();
+    List<Object> list;
     if (numItems == 0) {
-      return Collections.emptyList();
-    }
-    ArrayList<Object> list = new ArrayList<>(numItems);
-    for (int i = 0; i < numItems; i++) {
-      list.add(deserializeRecursive(buffer));
+      list = Collections.emptyList();
+    } else {
+      list = new ArrayList<>(numItems);
+      while (reader.hasNext()) {
+        list.add(deserializeRecursive(reader));
+      }
     }
+    reader.endArray();
     return list;
   }
 
-  private Map<String, Object> deserializeObject(ByteBuffer buffer) throws IOException {
-    byte intType = buffer.get();
-    int numItems = deserializeIntLen(buffer, intType);
-    if (numItems == 0) {
+  private Map<String, Object> deserializeObject(BserReader reader) throws IOException {
+    reader.beginObject();
+    if (!reader.hasNext()) {
+      reader.endObject();
       return Collections.emptyMap();
     }
     ImmutableMapWithNullValues.Builder<String, Object> builder;
@@ -238,79 +112,33 @@ public class BserDeserializer {
     } else {
       builder = ImmutableMapWithNullValues.Builder.sorted();
     }
-    for (int i = 0; i < numItems; i++) {
-      byte stringType = buffer.get();
-      if (stringType != BSER_STRING) {
-        throw new IOException(
-            String.format("Unrecognized BSER object key type %d, expected string", stringType));
-      }
-      String key = deserializeString(buffer);
-      Object value = deserializeRecursive(buffer);
-      builder.put(key, value);
+    while (reader.hasNext()) {
+      String key = reader.nextName();
+      builder.put(key, deserializeRecursive(reader));
     }
+    reader.endObject();
     return builder.build();
   }
 
-  private List<Map<String, Object>> deserializeTemplate(ByteBuffer buffer) throws IOException {
-    byte arrayType = buffer.get();
-    if (arrayType != BSER_ARRAY) {
-      throw new IOException(String.format("Expected ARRAY to follow TEMPLATE, got %d", arrayType));
-    }
-    List<Object> keys = deserializeArray(buffer);
-    byte numItemsType = buffer.get();
-    int numItems = deserializeIntLen(buffer, numItemsType);
-    ArrayList<Map<String, Object>> result = new ArrayList<>();
-    for (int itemIdx = 0; itemIdx < numItems; itemIdx++) {
-      Map<String, Object> obj;
-      if (keyOrdering == KeyOrdering.UNSORTED) {
-        obj = new LinkedHashMap<>();
-      } else {
-        obj = new TreeMap<>();
-      }
-      for (int keyIdx = 0; keyIdx < keys.size(); keyIdx++) {
-        byte keyValueType = buffer.get();
-        if (keyValueType != BSER_SKIP) {
-          String key = (String) keys.get(keyIdx);
-          obj.put(key, deserializeRecursiveWithType(buffer, keyValueType));
-        }
-      }
-      result.add(obj);
-    }
-    return result;
-  }
-
   @Nullable
-  private Object deserializeRecursive(ByteBuffer buffer) throws IOException {
-    byte type = buffer.get();
-    return deserializeRecursiveWithType(buffer, type);
-  }
-
-  @Nullable
-  private Object deserializeRecursiveWithType(ByteBuffer buffer, byte type) throws IOException {
-    switch (type) {
-      case BSER_INT8:
-      case BSER_INT16:
-      case BSER_INT32:
-      case BSER_INT64:
-        return deserializeNumber(buffer, type);
-      case BSER_REAL:
-        return buffer.getDouble();
-      case BSER_TRUE:
-        return true;
-      case BSER_FALSE:
-        return false;
-      case BSER_NULL:
+  private Object deserializeRecursive(BserReader reader) throws IOException {
+    switch (reader.peek()) {
+      case INTEGER:
+        return reader.nextNumber();
+      case REAL:
+        return reader.nextDouble();
+      case BOOLEAN:
+        return reader.nextBoolean();
+      case NULL:
+        reader.nextNull();
         return null;
-      case BSER_STRING:
-        return deserializeString(buffer);
-      case BSER_ARRAY:
-        return deserializeArray(buffer);
-      case BSER_OBJECT:
-        return deserializeObject(buffer);
-      case BSER_TEMPLATE:
-        return deserializeTemplate(buffer);
-      default:
-        throw new IOException(String.format("Unrecognized BSER value type %d", type));
-    }
+      case STRING:
+        return reader.nextString();
+      case ARRAY:
+        return deserializeArray(reader);
+      case OBJECT:
+        return deserializeObject(reader);
+    }
+    throw new IllegalStateException();
   }
 }
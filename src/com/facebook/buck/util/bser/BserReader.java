@@ -0,0 +1,604 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.util.bser;
+
+import static com.facebook.buck.util.bser.BserConstants.BSER_ARRAY;
+import static com.facebook.buck.util.bser.BserConstants.BSER_FALSE;
+import static com.facebook.buck.util.bser.BserConstants.BSER_INT16;
+import static com.facebook.buck.util.bser.BserConstants.BSER_INT32;
+import static com.facebook.buck.util.bser.BserConstants.BSER_INT64;
+import static com.facebook.buck.util.bser.BserConstants.BSER_INT8;
+import static com.facebook.buck.util.bser.BserConstants.BSER_NULL;
+import static com.facebook.buck.util.bser.BserConstants.BSER_OBJECT;
+import static com.facebook.buck.util.bser.BserConstants.BSER_REAL;
+import static com.facebook.buck.util.bser.BserConstants.BSER_SKIP;
+import static com.facebook.buck.util.bser.BserConstants.BSER_STRING;
+import static com.facebook.buck.util.bser.BserConstants.BSER_TEMPLATE;
+import static com.facebook.buck.util.bser.BserConstants.BSER_TRUE;
+
+import com.facebook.buck.util.bser.BserDeserializer.BserEofException;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Pull reader for a BSER-encoded value, which decodes it while reading it from the stream.
+ *
+ * <p>Unlike {@link BserDeserializer}, it doesn't read the whole PDU in memory first, and lets the
+ * caller decode values straight into its own types rather than into {@code List}s and {@code
+ * Map}s. Arrays and objects are read with {@link #beginArray}, {@link #beginObject}, {@link
+ * #hasNext} and the matching {@code end} methods, in the spirit of streaming JSON readers.
+ * Templates, which Watchman uses for lists of files, are read as arrays of objects, in which the
+ * skipped fields of an item are left out.
+ *
+ * <p>The reader never reads past the end of the PDU, so the stream can be used for the next one
+ * once the value has been read.
+ */
+public class BserReader {
+
+  /** Type of the next value. */
+  public enum ValueType {
+    ARRAY,
+    OBJECT,
+    STRING,
+    INTEGER,
+    REAL,
+    BOOLEAN,
+    NULL,
+  }
+
+  private enum ContainerKind {
+    ARRAY,
+    OBJECT,
+    TEMPLATE,
+    TEMPLATE_ITEM,
+  }
+
+  /** State of an array or object being read. */
+  private static class Container {
+    private final ContainerKind kind;
+    private int remaining;
+    private final String[] keys;
+    private int keyIndex;
+    private boolean nameRead;
+
+    private Container(ContainerKind kind, int remaining, String[] keys) {
+      this.kind = kind;
+      this.remaining = remaining;
+      this.keys = keys;
+    }
+  }
+
+  private static final int BUFFER_SIZE = 8192;
+
+  // 2 bytes marker, 1 byte int size
+  private static final int INITIAL_SNIFF_LEN = 3;
+
+  // 2 bytes marker, 1 byte int size, up to 8 bytes int64 value
+  private static final int SNIFF_BUFFER_SIZE = 13;
+
+  private static final String[] NO_KEYS = new String[0];
+
+  private final InputStream inputStream;
+  private final CharsetDecoder utf8Decoder;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.nativeOrder());
+  private int position;
+  private int limit;
+
+  private final int pduLength;
+  /** Bytes of the PDU which are still in the stream. */
+  private int pduBytesInStream;
+
+  private final List<Container> containers = new ArrayList<>();
+  private boolean valueRead;
+  /** Type byte of the next value, if it was read by {@link #peek} or {@link #hasNext}. */
+  private int peekedType = -1;
+
+  /** Reads the header of the PDU from {@code inputStream}. */
+  public BserReader(InputStream inputStream) throws IOException {
+    this(
+        inputStream,
+        StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT));
+  }
+
+  BserReader(InputStream inputStream, CharsetDecoder utf8Decoder) throws IOException {
+    this.inputStream = inputStream;
+    this.utf8Decoder = utf8Decoder;
+    this.pduLength = readHeader(inputStream);
+    this.pduBytesInStream = pduLength;
+  }
+
+  private static int readHeader(InputStream inputStream) throws IOException {
+    ByteBuffer sniffBuffer = ByteBuffer.allocate(SNIFF_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+    Preconditions.checkState(sniffBuffer.hasArray());
+
+    int sniffBytesRead = ByteStreams.read(inputStream, sniffBuffer.array(), 0, INITIAL_SNIFF_LEN);
+    if (sniffBytesRead < INITIAL_SNIFF_LEN) {
+      throw new BserEofException(
+          String.format(
+              "Invalid BSER header (expected %d bytes, got %d bytes)",
+              INITIAL_SNIFF_LEN, sniffBytesRead));
+    }
+
+    if (sniffBuffer.get() != 0x00 || sniffBuffer.get() != 0x01) {
+      throw new IOException("Invalid BSER header");
+    }
+
+    byte lengthType = sniffBuffer.get();
+    int lengthBytesRemaining = getIntegerSize(lengthType);
+    if (lengthBytesRemaining < 0) {
+      throw new IOException(String.format("Unrecognized BSER header length type %d", lengthType));
+    }
+    int lengthBytesRead =
+        ByteStreams.read(
+            inputStream, sniffBuffer.array(), sniffBuffer.position(), lengthBytesRemaining);
+    if (lengthBytesRead < lengthBytesRemaining) {
+      throw new BserEofException(
+          String.format(
+              "Invalid BSER header length (expected %d bytes, got %d bytes)",
+              lengthBytesRemaining, lengthBytesRead));
+    }
+    return checkLength(readInteger(sniffBuffer, sniffBuffer.position(), lengthType).longValue());
+  }
+
+  /** @return the type of the next value. */
+  public ValueType peek() throws IOException {
+    Container container = currentContainer();
+    if (container != null) {
+      Preconditions.checkState(
+          container.kind != ContainerKind.OBJECT || container.nameRead,
+          "Expected the name of a field");
+      if (container.kind == ContainerKind.TEMPLATE) {
+        return ValueType.OBJECT;
+      }
+    }
+    switch (peekType()) {
+      case BSER_ARRAY:
+      case BSER_TEMPLATE:
+        return ValueType.ARRAY;
+      case BSER_OBJECT:
+        return ValueType.OBJECT;
+      case BSER_STRING:
+        return ValueType.STRING;
+      case BSER_INT8:
+      case BSER_INT16:
+      case BSER_INT32:
+      case BSER_INT64:
+        return ValueType.INTEGER;
+      case BSER_REAL:
+        return ValueType.REAL;
+      case BSER_TRUE:
+      case BSER_FALSE:
+        return ValueType.BOOLEAN;
+      case BSER_NULL:
+        return ValueType.NULL;
+      default:
+        throw new IOException(String.format("Unrecognized BSER value type %d", peekedType));
+    }
+  }
+
+  /**
+   * Starts reading an array, or a template.
+   *
+   * @return the number of items in the array.
+   */
+  public int beginArray() throws IOException {
+    beforeValue();
+    byte type = readType();
+    if (type == BSER_ARRAY) {
+      int items = readLength();
+      containers.add(new Container(ContainerKind.ARRAY, items, NO_KEYS));
+      return items;
+    }
+    if (type != BSER_TEMPLATE) {
+      throw new IOException(String.format("Expected BSER array, got %d", type));
+    }
+    byte arrayType = readType();
+    if (arrayType != BSER_ARRAY) {
+      throw new IOException(String.format("Expected ARRAY to follow TEMPLATE, got %d", arrayType));
+    }
+    String[] keys = new String[readLength()];
+    for (int i = 0; i < keys.length; i++) {
+      byte keyType = readType();
+      if (keyType != BSER_STRING) {
+        throw new IOException(
+            String.format("Unrecognized BSER template key type %d, expected string", keyType));
+      }
+      keys[i] = readString();
+    }
+    int items = readLength();
+    containers.add(new Container(ContainerKind.TEMPLATE, items, keys));
+    return items;
+  }
+
+  public void endArray() {
+    Container container = currentContainer();
+    Preconditions.checkState(
+        container != null
+            && (container.kind == ContainerKind.ARRAY || container.kind == ContainerKind.TEMPLATE),
+        "Not reading an array");
+    Preconditions.checkState(container.remaining == 0, "%s items left", container.remaining);
+    containers.remove(containers.size() - 1);
+  }
+
+  /** Starts reading an object, or an item of a template. */
+  public void beginObject() throws IOException {
+    Container container = currentContainer();
+    beforeValue();
+    if (container != null && container.kind == ContainerKind.TEMPLATE) {
+      containers.add(new Container(ContainerKind.TEMPLATE_ITEM, 0, container.keys));
+      return;
+    }
+    byte type = readType();
+    if (type != BSER_OBJECT) {
+      throw new IOException(String.format("Expected BSER object, got %d", type));
+    }
+    containers.add(new Container(ContainerKind.OBJECT, readLength(), NO_KEYS));
+  }
+
+  public void endObject() throws IOException {
+    Preconditions.checkState(!hasNext(), "Fields left");
+    Container container = Preconditions.checkNotNull(currentContainer());
+    Preconditions.checkState(
+        container.kind == ContainerKind.OBJECT || container.kind == ContainerKind.TEMPLATE_ITEM,
+        "Not reading an object");
+    containers.remove(containers.size() - 1);
+  }
+
+  /** @return whether the array or object being read has more items or fields. */
+  public boolean hasNext() throws IOException {
+    Container container = Preconditions.checkNotNull(currentContainer(), "Not in a container");
+    if (container.kind != ContainerKind.TEMPLATE_ITEM) {
+      return container.remaining > 0;
+    }
+    while (container.keyIndex < container.keys.length) {
+      if (peekType() != BSER_SKIP) {
+        return true;
+      }
+      peekedType = -1;
+      container.keyIndex++;
+    }
+    return false;
+  }
+
+  /** @return the name of the next field of the object being read. */
+  public String nextName() throws IOException {
+    Container container = currentContainer();
+    Preconditions.checkState(
+        container != null
+            && (container.kind == ContainerKind.OBJECT
+                || container.kind == ContainerKind.TEMPLATE_ITEM)
+            && !container.nameRead,
+        "Expected a value");
+    Preconditions.checkState(hasNext(), "No fields left");
+    container.nameRead = true;
+    if (container.kind == ContainerKind.TEMPLATE_ITEM) {
+      return container.keys[container.keyIndex];
+    }
+    byte type = readType();
+    if (type != BSER_STRING) {
+      throw new IOException(
+          String.format("Unrecognized BSER object key type %d, expected string", type));
+    }
+    return readString();
+  }
+
+  public String nextString() throws IOException {
+    beforeValue();
+    byte type = readType();
+    if (type != BSER_STRING) {
+      throw new IOException(String.format("Expected BSER string, got %d", type));
+    }
+    return readString();
+  }
+
+  /** @return the next integer, as a {@link Byte}, {@link Short}, {@link Integer} or {@link Long} */
+  public Number nextNumber() throws IOException {
+    beforeValue();
+    return readNumber(readType());
+  }
+
+  public long nextLong() throws IOException {
+    return nextNumber().longValue();
+  }
+
+  public double nextDouble() throws IOException {
+    beforeValue();
+    byte type = readType();
+    if (type != BSER_REAL) {
+      throw new IOException(String.format("Expected BSER real, got %d", type));
+    }
+    ensure(8);
+    double value = byteBuffer.getDouble(position);
+    position += 8;
+    return value;
+  }
+
+  public boolean nextBoolean() throws IOException {
+    beforeValue();
+    byte type = readType();
+    if (type != BSER_TRUE && type != BSER_FALSE) {
+      throw new IOException(String.format("Expected BSER boolean, got %d", type));
+    }
+    return type == BSER_TRUE;
+  }
+
+  public void nextNull() throws IOException {
+    beforeValue();
+    byte type = readType();
+    if (type != BSER_NULL) {
+      throw new IOException(String.format("Expected BSER null, got %d", type));
+    }
+  }
+
+  /** Skips the next value, without decoding its strings. */
+  public void skipValue() throws IOException {
+    switch (peek()) {
+      case ARRAY:
+        beginArray();
+        while (hasNext()) {
+          skipValue();
+        }
+        endArray();
+        return;
+      case OBJECT:
+        beginObject();
+        while (hasNext()) {
+          nextName();
+          skipValue();
+        }
+        endObject();
+        return;
+      case STRING:
+        beforeValue();
+        readType();
+        skipBytes(readLength());
+        return;
+      case INTEGER:
+        nextNumber();
+        return;
+      case REAL:
+        nextDouble();
+        return;
+      case BOOLEAN:
+        nextBoolean();
+        return;
+      case NULL:
+        nextNull();
+        return;
+    }
+  }
+
+  /**
+   * Skips what is left of the PDU, so the next one can be read from the stream even if the value
+   * was only partly read.
+   */
+  public void skipToEnd() throws IOException {
+    containers.clear();
+    valueRead = true;
+    peekedType = -1;
+    position = limit;
+    skipBytes(pduBytesInStream);
+  }
+
+  /**
+   * Skips what is left of the PDU after reading the value failed with {@code failure}, so that a
+   * bad value doesn't leave the stream in the middle of a PDU. A failure to skip is added to {@code
+   * failure} as a suppressed exception, for the caller to rethrow {@code failure}.
+   */
+  public void skipToEndAfter(Exception failure) {
+    try {
+      skipToEnd();
+    } catch (IOException | RuntimeException e) {
+      failure.addSuppressed(e);
+    }
+  }
+
+  @Nullable
+  private Container currentContainer() {
+    return containers.isEmpty() ? null : containers.get(containers.size() - 1);
+  }
+
+  /** Accounts for the value about to be read in the container it's part of. */
+  private void beforeValue() {
+    Container container = currentContainer();
+    if (container == null) {
+      Preconditions.checkState(!valueRead, "The value was already read");
+      valueRead = true;
+      return;
+    }
+    switch (container.kind) {
+      case ARRAY:
+      case TEMPLATE:
+        Preconditions.checkState(container.remaining > 0, "No items left");
+        container.remaining--;
+        return;
+      case OBJECT:
+        Preconditions.checkState(container.nameRead, "Expected the name of a field");
+        container.nameRead = false;
+        container.remaining--;
+        return;
+      case TEMPLATE_ITEM:
+        Preconditions.checkState(container.nameRead, "Expected the name of a field");
+        container.nameRead = false;
+        container.keyIndex++;
+        return;
+    }
+  }
+
+  private byte peekType() throws IOException {
+    if (peekedType < 0) {
+      ensure(1);
+      peekedType = buffer[position++] & 0xff;
+    }
+    return (byte) peekedType;
+  }
+
+  private byte readType() throws IOException {
+    byte type = peekType();
+    peekedType = -1;
+    return type;
+  }
+
+  private int readLength() throws IOException {
+    return checkLength(readNumber(readType()).longValue());
+  }
+
+  private Number readNumber(byte type) throws IOException {
+    int size = getIntegerSize(type);
+    if (size < 0) {
+      throw new IOException(String.format("Invalid BSER number encoding %d", type));
+    }
+    ensure(size);
+    Number value = readInteger(byteBuffer, position, type);
+    position += size;
+    return value;
+  }
+
+  private String readString() throws IOException {
+    int length = readLength();
+    ByteBuffer bytes;
+    if (length <= BUFFER_SIZE) {
+      ensure(length);
+      bytes = ByteBuffer.wrap(buffer, position, length);
+      position += length;
+    } else {
+      bytes = ByteBuffer.wrap(readLargeBytes(length));
+    }
+    // We use a CharsetDecoder here instead of String(byte[], Charset)
+    // because we want it to throw an exception for any non-UTF-8 input.
+    // Strings, like file names, repeat a lot, so they are interned.
+    return utf8Decoder.decode(bytes).toString().intern();
+  }
+
+  private byte[] readLargeBytes(int length) throws IOException {
+    checkInPdu(length);
+    byte[] bytes = new byte[length];
+    int buffered = limit - position;
+    System.arraycopy(buffer, position, bytes, 0, buffered);
+    position = limit;
+    int read = ByteStreams.read(inputStream, bytes, buffered, length - buffered);
+    pduBytesInStream -= read;
+    if (read < length - buffered) {
+      throw truncatedPdu();
+    }
+    return bytes;
+  }
+
+  private void skipBytes(int length) throws IOException {
+    checkInPdu(length);
+    int buffered = Math.min(length, limit - position);
+    position += buffered;
+    int toSkip = length - buffered;
+    while (toSkip > 0) {
+      // InputStream.skip() may skip fewer bytes than requested without being at the end of the
+      // stream, so whatever it doesn't skip is read in the buffer and dropped.
+      int skipped = (int) inputStream.skip(toSkip);
+      if (skipped <= 0) {
+        skipped = inputStream.read(buffer, 0, Math.min(toSkip, BUFFER_SIZE));
+        if (skipped < 0) {
+          throw truncatedPdu();
+        }
+      }
+      toSkip -= skipped;
+      pduBytesInStream -= skipped;
+    }
+  }
+
+  /** Makes sure the next {@code length} bytes of the PDU are in the buffer. */
+  private void ensure(int length) throws IOException {
+    if (limit - position >= length) {
+      return;
+    }
+    checkInPdu(length);
+    System.arraycopy(buffer, position, buffer, 0, limit - position);
+    limit -= position;
+    position = 0;
+    while (limit < length) {
+      int read = inputStream.read(buffer, limit, Math.min(BUFFER_SIZE - limit, pduBytesInStream));
+      if (read < 0) {
+        throw truncatedPdu();
+      }
+      limit += read;
+      pduBytesInStream -= read;
+    }
+  }
+
+  private void checkInPdu(int length) throws BserEofException {
+    if (limit - position + pduBytesInStream < length) {
+      throw new BserEofException("Prematurely reached end of BSER buffer");
+    }
+  }
+
+  private IOException truncatedPdu() {
+    return new IOException(
+        String.format(
+            "Invalid BSER header (expected %d bytes, got %d bytes)",
+            pduLength, pduLength - pduBytesInStream));
+  }
+
+  /** @return the number of bytes of an integer of the given type, or -1 if it isn't one. */
+  private static int getIntegerSize(byte type) {
+    switch (type) {
+      case BSER_INT8:
+        return 1;
+      case BSER_INT16:
+        return 2;
+      case BSER_INT32:
+        return 4;
+      case BSER_INT64:
+        return 8;
+      default:
+        return -1;
+    }
+  }
+
+  private static Number readInteger(ByteBuffer buffer, int index, byte type) {
+    switch (type) {
+      case BSER_INT8:
+        return buffer.get(index);
+      case BSER_INT16:
+        return buffer.getShort(index);
+      case BSER_INT32:
+        return buffer.getInt(index);
+      case BSER_INT64:
+        return buffer.getLong(index);
+      default:
+        throw new IllegalArgumentException("Not an integer type: " + type);
+    }
+  }
+
+  private static int checkLength(long value) throws IOException {
+    if (value > Integer.MAX_VALUE) {
+      throw new IOException(
+          String.format("BSER length out of range (%d > %d)", value, Integer.MAX_VALUE));
+    } else if (value < 0) {
+      throw new IOException(String.format("BSER length out of range (%d < 0)", value));
+    }
+    return (int) value;
+  }
+}
@@ -24,6 +24,7 @@ import com.google.common.hash.HashCode;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 /**
@@ -46,6 +47,23 @@ public interface FileHashCache extends FileHashLoader {
     set(filesystem.resolve(path), hashCode);
   }
 
+  /**
+   * @return the stat of the file at {@code path} taken right before its cached hash was computed,
+   *     if the cache handling it recorded one.
+   */
+  @SuppressWarnings("unused")
+  default Optional<FileStat> getFileStat(Path path) {
+    return Optional.empty();
+  }
+
+  /**
+   * Return the {@link FileStat} recorded for the given relative {@link Path} under the given {@link
+   * ProjectFilesystem}.
+   */
+  default Optional<FileStat> getFileStat(ProjectFilesystem filesystem, Path path) {
+    return getFileStat(filesystem.resolve(path));
+  }
+
   default FileHashCacheVerificationResult verify() throws IOException {
     throw new RuntimeException(
         "FileHashCache class " + getClass().getName() + " does not support verification.");
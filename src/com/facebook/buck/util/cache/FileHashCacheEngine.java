@@ -20,6 +20,7 @@ import com.facebook.buck.event.AbstractBuckEvent;
 import com.google.common.hash.HashCode;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 import javax.annotation.Nullable;
@@ -43,6 +44,17 @@ public interface FileHashCacheEngine {
 
   void invalidateWithParents(Path path);
 
+  /**
+   * Invalidates each of the given paths together with their parents, as if by calling {@link
+   * #invalidateWithParents(Path)} on each of them. Engines which can apply the whole batch more
+   * cheaply than one path at a time should override this.
+   */
+  default void invalidateWithParents(Collection<Path> paths) {
+    for (Path path : paths) {
+      invalidateWithParents(path);
+    }
+  }
+
   HashCode get(Path path) throws IOException;
 
   HashCode getForArchiveMember(Path archiveRelativePath, Path memberPath) throws IOException;
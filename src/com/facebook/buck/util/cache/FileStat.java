@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import java.io.IOException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * The stat data of a regular file, taken right before its content was read, which proves that its
+ * content hasn't changed since as long as a later stat of the file still matches it.
+ */
+public final class FileStat {
+
+  /**
+   * Files modified this recently before they were stat'ed may still change again within the same
+   * modification time tick, in which case their stat data can't prove their content is unchanged.
+   */
+  private static final long RACY_MODIFICATION_WINDOW_MILLIS = 2000;
+
+  private final long size;
+  private final long modifiedMillis;
+  private final String fileKey;
+
+  private FileStat(long size, long modifiedMillis, String fileKey) {
+    this.size = size;
+    this.modifiedMillis = modifiedMillis;
+    this.fileKey = fileKey;
+  }
+
+  /** @return a stat read back from its recorded fields. */
+  public static FileStat of(long size, long modifiedMillis, String fileKey) {
+    return new FileStat(size, modifiedMillis, fileKey);
+  }
+
+  /**
+   * Stats {@code path}, which must be done before its content is read.
+   *
+   * @return the stat of {@code path}, or empty if it isn't a regular file or was modified too
+   *     recently for its stat to be trusted.
+   */
+  public static Optional<FileStat> of(ProjectFilesystem filesystem, Path path) {
+    long nowMillis = System.currentTimeMillis();
+    BasicFileAttributes attributes;
+    try {
+      attributes =
+          filesystem.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    } catch (IOException e) {
+      return Optional.empty();
+    }
+    long modified = attributes.lastModifiedTime().toMillis();
+    if (!attributes.isRegularFile() || modified > nowMillis - RACY_MODIFICATION_WINDOW_MILLIS) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        new FileStat(attributes.size(), modified, Objects.toString(attributes.fileKey(), "")));
+  }
+
+  /** @return whether a fresh stat of {@code path} still matches this one. */
+  public boolean matches(ProjectFilesystem filesystem, Path path) {
+    return of(filesystem, path).filter(this::equals).isPresent();
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getModifiedMillis() {
+    return modifiedMillis;
+  }
+
+  public String getFileKey() {
+    return fileKey;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof FileStat)) {
+      return false;
+    }
+    FileStat that = (FileStat) other;
+    return size == that.size
+        && modifiedMillis == that.modifiedMillis
+        && fileKey.equals(that.fileKey);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(size, modifiedMillis, fileKey);
+  }
+}
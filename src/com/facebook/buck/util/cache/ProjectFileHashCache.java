@@ -24,6 +24,7 @@ import com.google.common.hash.HashCode;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map.Entry;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 /**
@@ -45,6 +46,15 @@ public interface ProjectFileHashCache extends ProjectFileHashLoader {
 
   void set(Path path, HashCode hashCode) throws IOException;
 
+  /**
+   * @return the stat of the file at {@code path} taken right before its cached hash was computed,
+   *     if this cache recorded one.
+   */
+  @SuppressWarnings("unused")
+  default Optional<FileStat> getFileStat(Path path) {
+    return Optional.empty();
+  }
+
   default FileHashCache.FileHashCacheVerificationResult verify() throws IOException {
     throw new RuntimeException(
         "ProjectFileHashCache class " + getClass().getName() + " does not support verification.");
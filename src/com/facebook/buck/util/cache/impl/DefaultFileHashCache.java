@@ -211,7 +211,8 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     return HashCodeAndFileType.ofFile(getFileHashCode(path));
   }
 
-  private HashCode getFileHashCode(Path path) throws IOException {
+  /** @return the hash of the contents of the file at {@code path}. */
+  protected HashCode getFileHashCode(Path path) throws IOException {
     return projectFilesystem.computeSha1(path).asHashCode();
   }
 
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import com.facebook.buck.io.file.SnapshotFile;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.cache.FileStat;
+import com.facebook.buck.util.cache.HashCodeAndFileType;
+import com.facebook.buck.util.cache.JarHashCodeAndFileType;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compact on-disk snapshot of the file hashes held by a {@link WatchedFileHashCache}, used to
+ * give a newly started daemon the hashes computed by its predecessor.
+ *
+ * <p>Only regular files (including archives) are recorded, together with the {@link FileStat} taken
+ * right before their hash was computed. Changes made after that may not have reached the cache by
+ * the time the snapshot is written, so the stat must not be taken at save time. When the snapshot
+ * is read back, an entry is only restored if a fresh stat of the file still matches the recorded
+ * one, so files changed since they were hashed are simply rehashed. Directory hashes depend on the
+ * contents of their children and are never persisted.
+ */
+class FileHashCacheSnapshot {
+
+  private static final SnapshotFile SNAPSHOT_FILE = new SnapshotFile("file hash", 0x46484353, 2);
+
+  private FileHashCacheSnapshot() {}
+
+  /** Receives the entries restored from a snapshot. */
+  @FunctionalInterface
+  interface EntryConsumer {
+    void accept(Path path, HashCodeAndFileType value, FileStat stat);
+  }
+
+  /**
+   * Writes the file entries of {@code entries} which have a stat in {@code stats} to {@code
+   * snapshotPath}, replacing it atomically.
+   *
+   * @return the number of entries written.
+   */
+  static int write(
+      Map<Path, HashCodeAndFileType> entries, Map<Path, FileStat> stats, Path snapshotPath)
+      throws IOException {
+    Map<Path, Pair<HashCodeAndFileType, FileStat>> entriesToWrite = new HashMap<>();
+    for (Map.Entry<Path, HashCodeAndFileType> entry : entries.entrySet()) {
+      FileStat stat = stats.get(entry.getKey());
+      if (entry.getValue().getType() != HashCodeAndFileType.TYPE_DIRECTORY && stat != null) {
+        entriesToWrite.put(entry.getKey(), new Pair<>(entry.getValue(), stat));
+      }
+    }
+
+    SNAPSHOT_FILE.write(
+        snapshotPath,
+        out -> {
+          for (Map.Entry<Path, Pair<HashCodeAndFileType, FileStat>> entry :
+              entriesToWrite.entrySet()) {
+            HashCodeAndFileType value = entry.getValue().getFirst();
+            FileStat stat = entry.getValue().getSecond();
+            out.writeBoolean(true);
+            out.writeUTF(entry.getKey().toString());
+            out.writeByte(value.getType());
+            byte[] hash = value.getHashCode().asBytes();
+            out.writeByte(hash.length);
+            out.write(hash);
+            out.writeLong(stat.getSize());
+            out.writeLong(stat.getModifiedMillis());
+            out.writeUTF(stat.getFileKey());
+          }
+          out.writeBoolean(false);
+        });
+    return entriesToWrite.size();
+  }
+
+  /**
+   * Reads the snapshot at {@code snapshotPath}, passing each entry which still matches the file
+   * system to {@code consumer}. Missing or unreadable snapshots are treated as empty.
+   *
+   * @return the number of entries restored.
+   */
+  static int read(ProjectFilesystem filesystem, Path snapshotPath, EntryConsumer consumer) {
+    AtomicInteger restored = new AtomicInteger();
+    // Each entry is handed over as soon as it's read, so a truncated snapshot still restores the
+    // hashes before the point of truncation.
+    SNAPSHOT_FILE.read(
+        snapshotPath,
+        in -> {
+          while (in.readBoolean()) {
+            Path path = filesystem.getPath(in.readUTF());
+            byte type = in.readByte();
+            byte[] hash = new byte[in.readByte()];
+            in.readFully(hash);
+            FileStat stat = FileStat.of(in.readLong(), in.readLong(), in.readUTF());
+
+            if (stat.matches(filesystem, path)) {
+              consumer.accept(
+                  path, toValue(filesystem, path, type, HashCode.fromBytes(hash)), stat);
+              restored.incrementAndGet();
+            }
+          }
+        });
+    return restored.get();
+  }
+
+  private static HashCodeAndFileType toValue(
+      ProjectFilesystem filesystem, Path path, byte type, HashCode hashCode) {
+    if (type == HashCodeAndFileType.TYPE_ARCHIVE) {
+      return JarHashCodeAndFileType.ofArchive(
+          hashCode, new DefaultJarContentHasher(filesystem, path));
+    }
+    return HashCodeAndFileType.ofFile(hashCode);
+  }
+}
@@ -26,6 +26,7 @@ import com.google.common.hash.HashCode;
 import java.io.IOException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
@@ -73,6 +74,12 @@ class FileSystemMapFileHashCache implements FileHashCacheEngine {
     invalidate(path);
   }
 
+  @Override
+  public void invalidateWithParents(Collection<Path> paths) {
+    loadingCache.removeAll(paths);
+    sizeCache.removeAll(paths);
+  }
+
   @Override
   public HashCode get(Path path) {
     return loadingCache.get(path.normalize()).getHashCode();
@@ -31,7 +31,10 @@ import com.google.common.hash.HashCode;
 import java.io.IOException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -130,6 +133,43 @@ class LoadingCacheFileHashCache implements FileHashCacheEngine {
     }
   }
 
+  @Override
+  public void invalidateWithParents(Collection<Path> paths) {
+    if (paths.isEmpty()) {
+      return;
+    }
+
+    // Scanning the cache once per path is quadratic for large change sets, so instead collect the
+    // changed paths and all of their ancestors up front and check every entry against them in a
+    // single pass. This applies the same two conditions as `invalidateWithParents(Path)`.
+    Set<Path> changedPaths = new HashSet<>(paths);
+    Set<Path> changedPathsAndAncestors = new HashSet<>();
+    for (Path path : paths) {
+      // Stop as soon as we reach an ancestor added by an earlier path, as its own ancestors are
+      // already in the set.
+      for (Path current = path;
+          current != null && changedPathsAndAncestors.add(current);
+          current = current.getParent()) {}
+    }
+
+    List<Path> pathsToInvalidate = new ArrayList<>();
+    for (Path entry : loadingCache.asMap().keySet()) {
+      if (changedPathsAndAncestors.contains(entry) || hasAncestorIn(entry, changedPaths)) {
+        pathsToInvalidate.add(entry);
+      }
+    }
+    pathsToInvalidate.forEach(this::invalidate);
+  }
+
+  private static boolean hasAncestorIn(Path path, Set<Path> candidates) {
+    for (Path current = path; current != null; current = current.getParent()) {
+      if (candidates.contains(current)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   @Override
   public void invalidate(Path path) {
     loadingCache.invalidate(path);
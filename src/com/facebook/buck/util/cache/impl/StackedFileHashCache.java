@@ -19,6 +19,7 @@ package com.facebook.buck.util.cache.impl;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.util.cache.FileHashCache;
 import com.facebook.buck.util.cache.FileHashCacheMode;
+import com.facebook.buck.util.cache.FileStat;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.types.Pair;
 import com.google.common.base.Preconditions;
@@ -174,6 +175,11 @@ public class StackedFileHashCache implements FileHashCache {
     }
   }
 
+  @Override
+  public Optional<FileStat> getFileStat(Path path) {
+    return lookup(path).flatMap(found -> found.getFirst().getFileStat(found.getSecond()));
+  }
+
   @Override
   public FileHashCacheVerificationResult verify() throws IOException {
     ImmutableList.Builder<String> verificationErrors = ImmutableList.builder();
@@ -227,6 +233,11 @@ public class StackedFileHashCache implements FileHashCache {
     }
   }
 
+  @Override
+  public Optional<FileStat> getFileStat(ProjectFilesystem filesystem, Path path) {
+    return lookup(filesystem, path).flatMap(cache -> cache.getFileStat(path));
+  }
+
   public StackedFileHashCache newDecoratedFileHashCache(
       Function<ProjectFileHashCache, ProjectFileHashCache> decorateDelegate) {
     ImmutableList.Builder<ProjectFileHashCache> decoratedCaches = ImmutableList.builder();
@@ -19,32 +19,123 @@ package com.facebook.buck.util.cache.impl;
 import com.facebook.buck.core.filesystems.RelPath;
 import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.watchman.WatchmanEvent;
+import com.facebook.buck.io.watchman.WatchmanMultiplePathEvent;
 import com.facebook.buck.io.watchman.WatchmanOverflowEvent;
 import com.facebook.buck.io.watchman.WatchmanPathEvent;
 import com.facebook.buck.util.cache.FileHashCacheMode;
+import com.facebook.buck.util.cache.FileStat;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
 
 public class WatchedFileHashCache extends DefaultFileHashCache {
 
   private static final Logger LOG = Logger.get(WatchedFileHashCache.class);
 
+  /**
+   * The stat of each file taken right before its hash was computed, if this cache records them.
+   * These are only trusted for paths which are still in the cache.
+   */
+  @Nullable private final ConcurrentMap<Path, FileStat> fileStats;
+
   public WatchedFileHashCache(
       ProjectFilesystem projectFilesystem, FileHashCacheMode fileHashCacheMode) {
+    this(projectFilesystem, fileHashCacheMode, false);
+  }
+
+  /**
+   * @param recordFileStats whether this cache records the stat of each file it hashes, at the cost
+   *     of a stat per file hashed. Those are needed by {@link #saveSnapshot(Path)}, and are handed
+   *     out by {@link #getFileStat(Path)}.
+   */
+  public WatchedFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      FileHashCacheMode fileHashCacheMode,
+      boolean recordFileStats) {
     super(projectFilesystem, getDefaultPathPredicate(projectFilesystem), fileHashCacheMode);
+    this.fileStats = recordFileStats ? new ConcurrentHashMap<>() : null;
+  }
+
+  @Override
+  protected HashCode getFileHashCode(Path path) throws IOException {
+    if (fileStats == null) {
+      return super.getFileHashCode(path);
+    }
+    // Stat before reading the content, so that a write racing with the hashing changes the stat.
+    Optional<FileStat> stat = FileStat.of(getFilesystem(), path);
+    fileStats.remove(path);
+    HashCode hashCode = super.getFileHashCode(path);
+    stat.ifPresent(value -> fileStats.put(path, value));
+    return hashCode;
+  }
+
+  @Override
+  public Optional<FileStat> getFileStat(Path relativePath) {
+    if (fileStats == null) {
+      return Optional.empty();
+    }
+    FileStat stat = fileStats.get(relativePath);
+    if (stat == null || fileHashCacheEngine.getIfPresent(relativePath) == null) {
+      return Optional.empty();
+    }
+    return Optional.of(stat);
+  }
+
+  @Override
+  public void set(Path relativePath, HashCode hashCode) {
+    // The hash wasn't computed from the file, so whatever stat was recorded for it no longer
+    // vouches for the cached hash.
+    if (fileStats != null) {
+      fileStats.remove(relativePath);
+    }
+    super.set(relativePath, hashCode);
   }
 
   /**
-   * Called when file change events are posted to the file change EventBus to invalidate cached
-   * build rules if required. {@link Path}s contained within events must all be relative to the
-   * {@link ProjectFilesystem} root.
+   * Invalidates the cached hashes of the path in {@code event} and of its parents. {@link Path}s
+   * contained within events must all be relative to the {@link ProjectFilesystem} root.
+   *
+   * <p>This is not subscribed to the file change EventBus, as every path event posted there is also
+   * part of a {@link WatchmanMultiplePathEvent}, which is invalidated as a single batch.
    */
-  @Subscribe
-  public synchronized void onFileSystemChange(WatchmanPathEvent event) {
+  public void onFileSystemChange(WatchmanPathEvent event) {
     // Path event, remove the path from the cache as it has been changed, added or deleted.
     RelPath path = event.getPath().normalize();
     LOG.verbose("Invalidating %s", path);
     fileHashCacheEngine.invalidateWithParents(path.getPath());
+    if (fileStats != null) {
+      fileStats.remove(path.getPath());
+    }
+  }
+
+  /**
+   * Called when file change events are posted to the file change EventBus to invalidate cached
+   * build rules if required. All the changed files are invalidated in one batch, without taking a
+   * lock on this cache, so that lookups of unaffected paths can proceed concurrently. {@link
+   * Path}s contained within events must all be relative to the {@link ProjectFilesystem} root.
+   */
+  @Subscribe
+  public void onFileSystemChange(WatchmanMultiplePathEvent event) {
+    // Directory changes are implied by the changes of their children, which invalidate their
+    // parents anyway, so skip them rather than dropping every file under them.
+    ImmutableList<Path> paths =
+        event.getChanges().stream()
+            .filter(change -> change.getType() != WatchmanEvent.Type.DIRECTORY)
+            .map(change -> change.getPath().normalize())
+            .collect(ImmutableList.toImmutableList());
+    LOG.verbose("Invalidating %d paths", paths.size());
+    fileHashCacheEngine.invalidateWithParents(paths);
+    if (fileStats != null) {
+      paths.forEach(fileStats::remove);
+    }
   }
 
   @SuppressWarnings("unused")
@@ -53,5 +144,43 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
     // Non-path change event, likely an overflow due to many change events: invalidate everything.
     LOG.debug("Invalidating all");
     invalidateAll();
+    if (fileStats != null) {
+      fileStats.clear();
+    }
+  }
+
+  /** @return the default location of the snapshot of this cache, inside buck-out. */
+  public Path getDefaultSnapshotPath() {
+    ProjectFilesystem filesystem = getFilesystem();
+    return filesystem
+        .resolve(filesystem.getBuckPaths().getDaemonStateDir())
+        .resolve("file_hashes.bin");
+  }
+
+  /**
+   * Saves the hashes of the files in this cache to {@code snapshotPath}, so that a later instance
+   * can pick them up with {@link #loadSnapshot(Path)}.
+   */
+  public void saveSnapshot(Path snapshotPath) throws IOException {
+    Preconditions.checkState(fileStats != null, "File stats are not recorded by this cache");
+    int saved = FileHashCacheSnapshot.write(fileHashCacheEngine.asMap(), fileStats, snapshotPath);
+    LOG.debug("Saved %d file hashes to %s", saved, snapshotPath);
+  }
+
+  /**
+   * Restores the hashes saved by {@link #saveSnapshot(Path)} for files which haven't changed since.
+   * This must be called before any changes are reported to this cache.
+   */
+  public void loadSnapshot(Path snapshotPath) {
+    Preconditions.checkState(fileStats != null, "File stats are not recorded by this cache");
+    int restored =
+        FileHashCacheSnapshot.read(
+            getFilesystem(),
+            snapshotPath,
+            (path, value, stat) -> {
+              fileStats.put(path, stat);
+              fileHashCacheEngine.put(path, value);
+            });
+    LOG.debug("Restored %d file hashes from %s", restored, snapshotPath);
   }
 }
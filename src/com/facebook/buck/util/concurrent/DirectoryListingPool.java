@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The pool on which directories are listed in parallel, when walking file trees and resolving
+ * globs.
+ *
+ * <p>Listing directories blocks on the filesystem, so it isn't done on {@link
+ * ForkJoinPool#commonPool()}, where it would hold up the parallel streams and futures of the rest
+ * of the process. The pool has more threads than there are cores, as they mostly wait, but their
+ * number is bounded. Its threads are daemon threads, and are created on first use.
+ */
+public class DirectoryListingPool {
+
+  private static final int PARALLELISM = 2 * Runtime.getRuntime().availableProcessors();
+
+  private DirectoryListingPool() {
+    // Utility class.
+  }
+
+  private static class Holder {
+    private static final ForkJoinPool POOL =
+        MostExecutors.forkJoinPoolWithThreadLimit("directory-listing", PARALLELISM, PARALLELISM);
+  }
+
+  /** @return the pool, which is created the first time it is asked for. */
+  public static ForkJoinPool get() {
+    return Holder.POOL;
+  }
+}
@@ -25,6 +25,7 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class MostExecutors {
 
@@ -155,6 +156,26 @@ public class MostExecutors {
    * are used.
    */
   public static ForkJoinPool forkJoinPoolWithThreadLimit(int parallelism, int spares) {
+    return forkJoinPoolWithThreadLimit(parallelism, spares, thread -> {});
+  }
+
+  /**
+   * Like {@link #forkJoinPoolWithThreadLimit(int, int)}, with meaningfully named threads.
+   *
+   * @param threadName a thread name prefix used to easily identify threads when debugging.
+   */
+  public static ForkJoinPool forkJoinPoolWithThreadLimit(
+      String threadName, int parallelism, int spares) {
+    AtomicInteger threadCount = new AtomicInteger(0);
+    return forkJoinPoolWithThreadLimit(
+        parallelism,
+        spares,
+        thread ->
+            thread.setName(String.format(threadName + "-%d", threadCount.incrementAndGet())));
+  }
+
+  private static ForkJoinPool forkJoinPoolWithThreadLimit(
+      int parallelism, int spares, Consumer<Thread> threadInitializer) {
     AtomicInteger activeThreads = new AtomicInteger(0);
     return new ForkJoinPool(
         parallelism,
@@ -162,19 +183,22 @@ public class MostExecutors {
           if (activeThreads.get() > parallelism + spares) {
             return null;
           }
-          return new ForkJoinWorkerThread(pool) {
-            @Override
-            protected void onStart() {
-              super.onStart();
-              activeThreads.incrementAndGet();
-            }
-
-            @Override
-            protected void onTermination(Throwable exception) {
-              activeThreads.decrementAndGet();
-              super.onTermination(exception);
-            }
-          };
+          ForkJoinWorkerThread thread =
+              new ForkJoinWorkerThread(pool) {
+                @Override
+                protected void onStart() {
+                  super.onStart();
+                  activeThreads.incrementAndGet();
+                }
+
+                @Override
+                protected void onTermination(Throwable exception) {
+                  activeThreads.decrementAndGet();
+                  super.onTermination(exception);
+                }
+              };
+          threadInitializer.accept(thread);
+          return thread;
         },
         /* handler */ null,
         /* asyncMode */ false);
@@ -23,6 +23,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Stack;
@@ -173,51 +174,68 @@ public class FileSystemMap<T> {
    */
   public void remove(Path path) {
     synchronized (root) {
-      Stack<Pair<Path, Entry<T>>> stack = new Stack<>();
-      Entry<T> entry = root;
-      Path relPath = rootPath;
-      // Walk the tree to fetch the node requested by the path, or the closest intermediate node.
-      boolean partial = false;
-      for (Path p : path) {
-
-        // stack will contain all the parent chain but not the actual leaf
-        stack.push(new Pair<>(relPath, entry));
+      removeLocked(path);
+    }
+  }
 
-        relPath = relPath.resolve(p);
-        entry = entry.subLevels == null ? null : entry.subLevels.get(relPath);
+  /**
+   * Removes all the given paths, as if by calling {@link #remove(Path)} on each of them. The lock
+   * on the trie is taken for each path rather than for the whole batch, so that lookups and puts
+   * aren't held up until a large batch is removed.
+   *
+   * @param paths The paths specifying the branches to remove.
+   */
+  public void removeAll(Collection<Path> paths) {
+    for (Path path : paths) {
+      remove(path);
+    }
+  }
 
-        if (entry == null) {
-          // We're trying to remove a path that doesn't exist, no point in going deeper.
-          // Break and proceed to remove whatever path we found so far.
-          partial = true;
-          break;
-        }
+  private void removeLocked(Path path) {
+    Stack<Pair<Path, Entry<T>>> stack = new Stack<>();
+    Entry<T> entry = root;
+    Path relPath = rootPath;
+    // Walk the tree to fetch the node requested by the path, or the closest intermediate node.
+    boolean partial = false;
+    for (Path p : path) {
+
+      // stack will contain all the parent chain but not the actual leaf
+      stack.push(new Pair<>(relPath, entry));
+
+      relPath = relPath.resolve(p);
+      entry = entry.subLevels == null ? null : entry.subLevels.get(relPath);
+
+      if (entry == null) {
+        // We're trying to remove a path that doesn't exist, no point in going deeper.
+        // Break and proceed to remove whatever path we found so far.
+        partial = true;
+        break;
       }
-      // The following approach supports these cases:
-      //   1. Remove a path that has been found as a leaf in the trie (easy case).
-      //   2. Support prefix removal as well (i.e.: if we want to remove an intermediate node.
+    }
+    // The following approach supports these cases:
+    //   1. Remove a path that has been found as a leaf in the trie (easy case).
+    //   2. Support prefix removal as well (i.e.: if we want to remove an intermediate node.
 
-      if (stack.isEmpty()) {
-        // this can only happen if path we are trying to remove is empty
-        return;
-      }
+    if (stack.isEmpty()) {
+      // this can only happen if path we are trying to remove is empty
+      return;
+    }
 
-      if (!partial) {
-        // If full path is matched, then remove it and everything below it
-        removeChild(stack.peek().getSecond(), path);
-      }
+    if (!partial) {
+      // If full path is matched, then remove it and everything below it
+      removeChild(stack.peek().getSecond(), path);
+    }
 
-      // For all paths above, remove intermediate nodes if empty or reset their values if not
-      while (!stack.empty()) {
-        Pair<Path, Entry<T>> current = stack.pop();
+    // For all paths above, remove intermediate nodes if empty or reset their values if not
+    while (!stack.empty()) {
+      Pair<Path, Entry<T>> current = stack.pop();
 
-        // dump value on all nodes up, including a root one
-        current.getSecond().set(null);
+      // dump value on all nodes up, including a root one
+      current.getSecond().set(null);
 
-        // remove all parent nodes that do not have children anymore
-        if (current.getSecond().size() == 0 && !stack.empty()) {
-          removeChild(stack.peek().getSecond(), current.getFirst());
-        }
+      // remove all parent nodes that do not have children anymore
+      if (current.getSecond().size() == 0 && !stack.empty()) {
+        removeChild(stack.peek().getSecond(), current.getFirst());
       }
     }
   }
@@ -135,7 +135,7 @@ public class JarBuilder {
   public int createJarFile(Path outputFile) throws IOException {
     Preconditions.checkArgument(outputFile.isAbsolute());
     try (CustomJarOutputStream jar =
-        ZipOutputStreams.newJarOutputStream(
+        ZipOutputStreams.newParallelJarOutputStream(
             outputFile, ZipOutputStreams.HandleDuplicates.APPEND_TO_ZIP)) {
       jar.setEntryHashingEnabled(shouldHashEntries);
       this.outputFile = outputFile;
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import com.facebook.buck.util.timing.Clock;
+import com.google.common.util.concurrent.Futures;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import javax.annotation.Nullable;
+
+/**
+ * An implementation of {@link CustomZipOutputStream.Impl} that compresses entries on an {@link
+ * Executor}, so that a zip with many entries is compressed on several cores, while producing the
+ * same bytes as {@link AppendingZipOutputStreamImpl}.
+ *
+ * <p>The bytes of each entry are held in memory until the entry is closed, and then compressed on
+ * the executor while the next entries are written. Compressed entries are written out in the order
+ * they were added. Each entry is deflated as a whole with its own {@link java.util.zip.Deflater},
+ * just as when it's written directly, so the output doesn't depend on which thread did the work.
+ *
+ * <p>Entries larger than {@link #MAX_BUFFERED_ENTRY_SIZE} are written directly once all the entries
+ * before them are, and the bytes of the entries waiting to be written are bounded by {@link
+ * #MAX_PENDING_BYTES}, to keep the memory used in check.
+ */
+class ParallelZipOutputStreamImpl implements CustomZipOutputStream.Impl {
+
+  private static final int MAX_BUFFERED_ENTRY_SIZE = 8 * 1024 * 1024;
+  private static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+  // Entries smaller than this are cheaper to compress than to hand over to another thread.
+  private static final int MIN_PARALLEL_ENTRY_SIZE = 4 * 1024;
+
+  private final OutputStream delegate;
+  private final boolean throwExceptionsOnDuplicate;
+  private final Clock clock;
+  private final Executor executor;
+  private long currentOffset = 0;
+  private final List<EntryAccounting> entries = new ArrayList<>();
+  private final Set<String> seenNames = new HashSet<>();
+
+  /** Entries which were closed but not written yet, in the order they were added. */
+  private final Deque<PendingEntry> pendingEntries = new ArrayDeque<>();
+
+  private long pendingBytes = 0;
+
+  @Nullable private EntryAccounting currentEntry = null;
+  @Nullable private byte[] currentHeader = null;
+  /** The bytes of the current entry, or null once they're written directly to the delegate. */
+  @Nullable private ExposedByteArrayOutputStream currentBytes = null;
+
+  public ParallelZipOutputStreamImpl(
+      Clock clock, OutputStream stream, boolean throwExceptionsOnDuplicate, Executor executor) {
+    this.delegate = stream;
+    this.clock = clock;
+    this.throwExceptionsOnDuplicate = throwExceptionsOnDuplicate;
+    this.executor = executor;
+  }
+
+  @Override
+  public void actuallyPutNextEntry(ZipEntry entry) throws IOException {
+    if (throwExceptionsOnDuplicate && !seenNames.add(entry.getName())) {
+      // Same exception as ZipOutputStream.
+      throw new ZipException("duplicate entry: " + entry.getName());
+    }
+
+    // The offset is set once the entries before this one are written.
+    currentEntry = new EntryAccounting(clock, entry, /* currentOffset */ 0);
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    currentEntry.writeLocalFileHeader(header);
+    currentHeader = header.toByteArray();
+    currentBytes = new ExposedByteArrayOutputStream();
+  }
+
+  @Override
+  public void actuallyWrite(byte[] b, int off, int len) throws IOException {
+    EntryAccounting entry = Objects.requireNonNull(currentEntry);
+    if (currentBytes != null && currentBytes.size() + len > MAX_BUFFERED_ENTRY_SIZE) {
+      writePendingEntries();
+      writeHeader(entry, Objects.requireNonNull(currentHeader));
+      entry.write(delegate, currentBytes.getBuffer(), 0, currentBytes.size());
+      currentBytes = null;
+    }
+
+    if (currentBytes == null) {
+      entry.write(delegate, b, off, len);
+    } else {
+      currentBytes.write(b, off, len);
+    }
+  }
+
+  @Override
+  public void actuallyCloseEntry() throws IOException {
+    if (currentEntry == null) {
+      return; // no-op
+    }
+
+    EntryAccounting entry = currentEntry;
+    ExposedByteArrayOutputStream bytes = currentBytes;
+    byte[] header = Objects.requireNonNull(currentHeader);
+    currentEntry = null;
+    currentHeader = null;
+    currentBytes = null;
+
+    if (bytes == null) {
+      currentOffset += entry.finish(delegate);
+      return;
+    }
+
+    Future<byte[]> compression;
+    if (bytes.size() < MIN_PARALLEL_ENTRY_SIZE
+        || entry.getCompressionMethod() == ZipEntry.STORED) {
+      compression = Futures.immediateFuture(compress(entry, bytes));
+    } else {
+      FutureTask<byte[]> task = new FutureTask<>(() -> compress(entry, bytes));
+      executor.execute(task);
+      compression = task;
+    }
+    pendingEntries.add(new PendingEntry(entry, header, bytes.size(), compression));
+    pendingBytes += bytes.size();
+
+    while (!pendingEntries.isEmpty()
+        && (pendingEntries.peek().compression.isDone() || pendingBytes > MAX_PENDING_BYTES)) {
+      writeNextPendingEntry();
+    }
+  }
+
+  @Override
+  public void actuallyClose() throws IOException {
+    writePendingEntries();
+    new CentralDirectory().writeCentralDirectory(delegate, currentOffset, entries);
+
+    delegate.close();
+  }
+
+  /** @return the compressed bytes of the entry, followed by its data descriptor if it has one. */
+  private static byte[] compress(EntryAccounting entry, ExposedByteArrayOutputStream bytes)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entry.write(out, bytes.getBuffer(), 0, bytes.size());
+    entry.finish(out);
+    return out.toByteArray();
+  }
+
+  /** Writes all the pending entries, waiting for their compression to finish. */
+  private void writePendingEntries() throws IOException {
+    while (!pendingEntries.isEmpty()) {
+      writeNextPendingEntry();
+    }
+  }
+
+  private void writeNextPendingEntry() throws IOException {
+    PendingEntry pending = pendingEntries.remove();
+    byte[] compressed = Futures.getChecked(pending.compression, IOException.class);
+    writeHeader(pending.entry, pending.header);
+    delegate.write(compressed);
+    currentOffset += compressed.length;
+    pendingBytes -= pending.size;
+  }
+
+  private void writeHeader(EntryAccounting entry, byte[] header) throws IOException {
+    entry.setOffset(currentOffset);
+    entries.add(entry);
+    delegate.write(header);
+    currentOffset += header.length;
+  }
+
+  private static class PendingEntry {
+    private final EntryAccounting entry;
+    private final byte[] header;
+    private final int size;
+    private final Future<byte[]> compression;
+
+    private PendingEntry(
+        EntryAccounting entry, byte[] header, int size, Future<byte[]> compression) {
+      this.entry = entry;
+      this.header = header;
+      this.size = size;
+      this.compression = compression;
+    }
+  }
+
+  /** Gives access to the bytes written without copying them. */
+  private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    private byte[] getBuffer() {
+      return buf;
+    }
+  }
+}
@@ -19,17 +19,33 @@ package com.facebook.buck.util.zip;
 import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.util.timing.Clock;
 import com.facebook.buck.util.timing.DefaultClock;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class ZipOutputStreams {
 
   /** The size of the BufferedOutputStream used to wrap the underlying file. */
   private static final int FILE_BUFFER_SIZE = 512 * 1024;
 
+  /** Compresses the entries of the zips written in parallel, shared across all of them. */
+  private static final Supplier<Executor> COMPRESSION_EXECUTOR =
+      Suppliers.memoize(
+          () ->
+              Executors.newFixedThreadPool(
+                  Runtime.getRuntime().availableProcessors(),
+                  new ThreadFactoryBuilder()
+                      .setNameFormat("zip-compression-%d")
+                      .setDaemon(true)
+                      .build()));
+
   private ZipOutputStreams() {
     // factory class
   }
@@ -82,6 +98,58 @@ public class ZipOutputStreams {
         new BufferedOutputStream(Files.newOutputStream(jarFile), FILE_BUFFER_SIZE), mode);
   }
 
+  /**
+   * Create a new {@link CustomZipOutputStream} like {@link #newOutputStream(Path,
+   * HandleDuplicates)}, which compresses its entries on several threads. The zip file is identical
+   * to the one the stream from {@link #newOutputStream(Path, HandleDuplicates)} writes.
+   *
+   * @param zipFile The file to write to.
+   * @param mode How to handle duplicate entries.
+   */
+  public static CustomZipOutputStream newParallelOutputStream(Path zipFile, HandleDuplicates mode)
+      throws IOException {
+    return newParallelOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(zipFile), FILE_BUFFER_SIZE), mode);
+  }
+
+  /**
+   * Create a new {@link CustomZipOutputStream} which compresses its entries on several threads, as
+   * {@link #newParallelOutputStream(Path, HandleDuplicates)} does.
+   *
+   * @param out The output stream to write to.
+   * @param mode How to handle duplicate entries.
+   */
+  public static CustomZipOutputStream newParallelOutputStream(
+      OutputStream out, HandleDuplicates mode) {
+    return newParallelOutputStream(out, mode, new DefaultClock(), COMPRESSION_EXECUTOR.get());
+  }
+
+  /**
+   * Create a new {@link CustomJarOutputStream} which compresses its entries on several threads, as
+   * {@link #newParallelOutputStream(Path, HandleDuplicates)} does.
+   */
+  public static CustomJarOutputStream newParallelJarOutputStream(
+      Path jarFile, HandleDuplicates mode) throws IOException {
+    return new CustomJarOutputStream(
+        newParallelImpl(
+            new BufferedOutputStream(Files.newOutputStream(jarFile), FILE_BUFFER_SIZE),
+            mode,
+            new DefaultClock(),
+            COMPRESSION_EXECUTOR.get()));
+  }
+
+  /**
+   * Create a new {@link CustomZipOutputStream} which compresses its entries on {@code executor}.
+   *
+   * @param out The output stream to write to.
+   * @param mode How to handle duplicate entries.
+   * @param executor The executor to compress the entries on.
+   */
+  public static CustomZipOutputStream newParallelOutputStream(
+      OutputStream out, HandleDuplicates mode, Clock clock, Executor executor) {
+    return new CustomZipOutputStream(newParallelImpl(out, mode, clock, executor));
+  }
+
   /**
    * Create a new {@link CustomZipOutputStream} that handles duplicate entries in the way dictated
    * by {@code mode}.
@@ -131,6 +199,19 @@ public class ZipOutputStreams {
     return impl;
   }
 
+  /**
+   * @return an impl compressing the entries on {@code executor}, unless the entries are only
+   *     written out once the stream is closed, as with {@link HandleDuplicates#OVERWRITE_EXISTING}.
+   */
+  protected static CustomZipOutputStream.Impl newParallelImpl(
+      OutputStream out, HandleDuplicates mode, Clock clock, Executor executor) {
+    if (mode == HandleDuplicates.OVERWRITE_EXISTING) {
+      return newImpl(out, mode, clock);
+    }
+    return new ParallelZipOutputStreamImpl(
+        clock, out, mode == HandleDuplicates.THROW_EXCEPTION, executor);
+  }
+
   public enum HandleDuplicates {
     /** Duplicate entries are simply appended to the zip. */
     APPEND_TO_ZIP,
@@ -50,6 +50,18 @@ public interface WorkerProcessParams {
    */
   boolean isAsync();
 
+  /**
+   * Number of workers started ahead of the first job when the pool is created, which are also kept
+   * running when shutting down idle workers.
+   */
+  int getPrewarmWorkers();
+
+  /**
+   * How long, in seconds, a worker may stay idle before it is shut down, or 0 to keep idle workers
+   * running as long as the pool.
+   */
+  long getMaxIdleTimeSeconds();
+
   /**
    * Identifies the instance of the persisted worker process pool. Defines when worker process pool
    * should be invalidated.
@@ -66,7 +78,34 @@ public interface WorkerProcessParams {
       int maxWorkers,
       boolean isAsync,
       Optional<WorkerProcessIdentity> workerProcessIdentity) {
+    return of(
+        tempDir,
+        startupCommand,
+        startupEnvironment,
+        maxWorkers,
+        isAsync,
+        /* prewarmWorkers */ 0,
+        /* maxIdleTimeSeconds */ 0,
+        workerProcessIdentity);
+  }
+
+  static WorkerProcessParams of(
+      Path tempDir,
+      ImmutableList<String> startupCommand,
+      ImmutableMap<String, String> startupEnvironment,
+      int maxWorkers,
+      boolean isAsync,
+      int prewarmWorkers,
+      long maxIdleTimeSeconds,
+      Optional<WorkerProcessIdentity> workerProcessIdentity) {
     return ImmutableWorkerProcessParams.of(
-        tempDir, startupCommand, startupEnvironment, maxWorkers, isAsync, workerProcessIdentity);
+        tempDir,
+        startupCommand,
+        startupEnvironment,
+        maxWorkers,
+        isAsync,
+        prewarmWorkers,
+        maxIdleTimeSeconds,
+        workerProcessIdentity);
   }
 }
@@ -26,6 +26,9 @@ public interface WorkerProcessPool extends Closeable {
 
   int getCapacity();
 
+  /** Starts worker processes ahead of the first job, so that it doesn't wait for them to start. */
+  void prewarm();
+
   ListenableFuture<WorkerJobResult> submitJob(String expandedJobArgs)
       throws IOException, InterruptedException;
 
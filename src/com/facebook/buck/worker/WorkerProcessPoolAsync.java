@@ -16,6 +16,8 @@
 
 package com.facebook.buck.worker;
 
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.util.Threads;
 import com.facebook.buck.util.function.ThrowingSupplier;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -25,9 +27,11 @@ import java.util.concurrent.Semaphore;
 import javax.annotation.Nullable;
 
 public class WorkerProcessPoolAsync implements WorkerProcessPool {
+  private static final Logger LOG = Logger.get(WorkerProcessPoolAsync.class);
 
   private final HashCode poolHash;
   private final int maxRequests;
+  private final boolean prewarm;
   private final ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess;
   private final Semaphore concurrencyLimiter;
   @Nullable private WorkerProcess workerProcess;
@@ -36,8 +40,18 @@ public class WorkerProcessPoolAsync implements WorkerProcessPool {
       int maxRequests,
       HashCode poolHash,
       ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess) {
+    this(maxRequests, false, poolHash, startWorkerProcess);
+  }
+
+  /** @param prewarm whether {@link #prewarm()} starts the worker process of the pool. */
+  public WorkerProcessPoolAsync(
+      int maxRequests,
+      boolean prewarm,
+      HashCode poolHash,
+      ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess) {
     this.poolHash = poolHash;
     this.maxRequests = maxRequests;
+    this.prewarm = prewarm;
     this.startWorkerProcess = startWorkerProcess;
     this.concurrencyLimiter = new Semaphore(maxRequests <= 0 ? Integer.MAX_VALUE : maxRequests);
   }
@@ -52,14 +66,36 @@ public class WorkerProcessPoolAsync implements WorkerProcessPool {
     return maxRequests;
   }
 
+  @Override
+  public void prewarm() {
+    if (!prewarm) {
+      return;
+    }
+    Thread thread =
+        Threads.namedThread(
+            "worker-pool-prewarm",
+            () -> {
+              try {
+                ensureWorkerProcess();
+              } catch (IOException e) {
+                // The worker is started again, or the error reported, when a job is submitted.
+                LOG.warn(e, "Failed to pre-warm worker process.");
+              }
+            });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private synchronized void ensureWorkerProcess() throws IOException {
+    if (workerProcess == null || !workerProcess.isAlive()) {
+      workerProcess = startWorkerProcess.get();
+    }
+  }
+
   @Override
   public ListenableFuture<WorkerJobResult> submitJob(String expandedJobArgs)
       throws IOException, InterruptedException {
-    synchronized (this) {
-      if (workerProcess == null || !workerProcess.isAlive()) {
-        workerProcess = startWorkerProcess.get();
-      }
-    }
+    ensureWorkerProcess();
 
     concurrencyLimiter.acquire();
     try {
@@ -23,6 +23,7 @@ import com.facebook.buck.util.Escaper;
 import com.facebook.buck.util.ProcessExecutorParams;
 import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.function.ThrowingSupplier;
+import com.facebook.buck.util.timing.DefaultClock;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
@@ -36,6 +37,7 @@ import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -134,16 +136,32 @@ public class WorkerProcessPoolFactory {
     WorkerProcessPool newPool;
     if (paramsToUse.isAsync()) {
       newPool =
-          new WorkerProcessPoolAsync(paramsToUse.getMaxWorkers(), workerHash, startWorkerProcess);
+          new WorkerProcessPoolAsync(
+              paramsToUse.getMaxWorkers(),
+              paramsToUse.getPrewarmWorkers() > 0,
+              workerHash,
+              startWorkerProcess);
     } else {
       newPool =
-          new WorkerProcessPoolSync(paramsToUse.getMaxWorkers(), workerHash, startWorkerProcess);
+          new WorkerProcessPoolSync(
+              paramsToUse.getMaxWorkers(),
+              paramsToUse.getPrewarmWorkers(),
+              paramsToUse.getMaxIdleTimeSeconds(),
+              TimeUnit.SECONDS,
+              workerHash,
+              startWorkerProcess,
+              new DefaultClock());
     }
     WorkerProcessPool previousPool = processPoolMap.putIfAbsent(key, newPool);
     // If putIfAbsent does not return null, then that means another thread beat this thread
     // into putting an WorkerProcessPool in the map for this key. If that's the case, then we
     // should ignore newPool and return the existing one.
-    return previousPool == null ? newPool : previousPool;
+    if (previousPool != null) {
+      newPool.close();
+      return previousPool;
+    }
+    newPool.prewarm();
+    return newPool;
   }
 
   public ImmutableList<String> getCommand(Platform platform, WorkerProcessParams paramsToUse) {
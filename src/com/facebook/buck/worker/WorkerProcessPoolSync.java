@@ -17,11 +17,16 @@
 package com.facebook.buck.worker;
 
 import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.util.Threads;
 import com.facebook.buck.util.concurrent.LinkedBlockingStack;
 import com.facebook.buck.util.function.ThrowingSupplier;
+import com.facebook.buck.util.timing.Clock;
+import com.facebook.buck.util.timing.DefaultClock;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Suppliers;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -31,37 +36,162 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
-/** A synchronous pool of {@link WorkerProcess} instances. */
+/**
+ * A synchronous pool of {@link WorkerProcess} instances.
+ *
+ * <p>Worker processes are started when they are first borrowed, so the pool grows with the number
+ * of jobs waiting for a worker, up to its capacity. Available workers are handed out most recently
+ * returned first, so jobs keep hitting the few workers with the warmest JITs and caches, while
+ * workers which were never started or were shut down are only used when all the others are busy.
+ *
+ * <p>{@link #prewarm()} starts a number of workers ahead of the first job. Workers which stay idle
+ * for longer than the maximum idle time are shut down, keeping the pre-warmed number of workers
+ * running, so that a pool which was grown for a large build gives back the memory of its workers.
+ */
 @ThreadSafe
 public class WorkerProcessPoolSync implements Closeable, WorkerProcessPool {
   private static final Logger LOG = Logger.get(WorkerProcessPoolSync.class);
 
+  private static final Supplier<ScheduledExecutorService> IDLE_WORKER_REAPER =
+      Suppliers.memoize(
+          () ->
+              Executors.newSingleThreadScheduledExecutor(
+                  runnable -> {
+                    Thread thread = Threads.namedThread("worker-pool-idle-reaper", runnable);
+                    thread.setDaemon(true);
+                    return thread;
+                  }));
+
   private final int capacity;
+  private final int prewarmWorkers;
+  private final long maxIdleTimeNanos;
   private final BlockingQueue<WorkerLifecycle> availableWorkers;
   private final WorkerLifecycle[] workerLifecycles;
   private final HashCode poolHash;
+  private final Clock clock;
+  @Nullable private final ScheduledFuture<?> idleWorkerReaper;
 
   public WorkerProcessPoolSync(
       int maxWorkers,
       HashCode poolHash,
       ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess) {
+    this(
+        maxWorkers,
+        /* prewarmWorkers */ 0,
+        /* maxIdleTime */ 0,
+        TimeUnit.SECONDS,
+        poolHash,
+        startWorkerProcess,
+        new DefaultClock());
+  }
+
+  /**
+   * @param prewarmWorkers the number of workers started by {@link #prewarm()}, and kept running
+   *     when shutting down idle workers.
+   * @param maxIdleTime how long a worker may stay idle before it is shut down, or 0 to keep idle
+   *     workers running until the pool is closed.
+   */
+  public WorkerProcessPoolSync(
+      int maxWorkers,
+      int prewarmWorkers,
+      long maxIdleTime,
+      TimeUnit unit,
+      HashCode poolHash,
+      ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess,
+      Clock clock) {
     capacity = maxWorkers;
+    this.prewarmWorkers = Math.max(0, Math.min(prewarmWorkers, maxWorkers));
+    this.maxIdleTimeNanos = unit.toNanos(maxIdleTime);
     availableWorkers = new LinkedBlockingStack<>();
     workerLifecycles = new WorkerLifecycle[maxWorkers];
     this.poolHash = poolHash;
+    this.clock = clock;
 
     Arrays.setAll(
         workerLifecycles,
-        ignored -> new WorkerLifecycle(startWorkerProcess, availableWorkers::add));
+        ignored -> new WorkerLifecycle(startWorkerProcess, availableWorkers::add, clock));
     Collections.addAll(availableWorkers, workerLifecycles);
+
+    if (maxIdleTimeNanos > 0) {
+      idleWorkerReaper =
+          IDLE_WORKER_REAPER
+              .get()
+              .scheduleWithFixedDelay(
+                  this::closeIdleWorkers,
+                  maxIdleTimeNanos,
+                  maxIdleTimeNanos,
+                  TimeUnit.NANOSECONDS);
+    } else {
+      idleWorkerReaper = null;
+    }
+  }
+
+  /**
+   * Starts the pre-warmed number of workers in the background, so that the first jobs submitted to
+   * the pool don't wait for the workers to start up.
+   *
+   * <p>The workers started are the ones which are borrowed first.
+   */
+  @Override
+  public void prewarm() {
+    for (int i = 0; i < prewarmWorkers; i++) {
+      // Available workers are a stack, so the last ones are borrowed first.
+      WorkerLifecycle lifecycle = workerLifecycles[capacity - 1 - i];
+      Thread thread =
+          Threads.namedThread(
+              "worker-pool-prewarm-" + i,
+              () -> {
+                try {
+                  lifecycle.get();
+                } catch (IOException | IllegalStateException e) {
+                  // The worker is started again, or the error reported, when it is borrowed.
+                  LOG.warn(e, "Failed to pre-warm worker process.");
+                }
+              });
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Shuts down the workers which have been idle for longer than the maximum idle time, from the
+   * longest idle one, as long as more than the pre-warmed number of workers are running.
+   */
+  @VisibleForTesting
+  void closeIdleWorkers() {
+    long idleSinceNanos = clock.nanoTime() - maxIdleTimeNanos;
+    // Snapshot the last use times, as they may change while sorting.
+    List<Map.Entry<Long, WorkerLifecycle>> running = new ArrayList<>(capacity);
+    for (WorkerLifecycle lifecycle : workerLifecycles) {
+      if (lifecycle.isRunning()) {
+        running.add(Maps.immutableEntry(lifecycle.getLastUsedNanos(), lifecycle));
+      }
+    }
+    running.sort(Map.Entry.comparingByKey());
+
+    int numRunning = running.size();
+    for (Map.Entry<Long, WorkerLifecycle> entry : running) {
+      if (numRunning <= prewarmWorkers) {
+        break;
+      }
+      if (entry.getValue().closeProcessIfIdleSince(idleSinceNanos)) {
+        numRunning--;
+      }
+    }
   }
 
   @Override
@@ -105,6 +235,9 @@ public class WorkerProcessPoolSync implements Closeable, WorkerProcessPool {
   @Override
   public synchronized void close() {
     Throwable caughtWhileClosing = null;
+    if (idleWorkerReaper != null) {
+      idleWorkerReaper.cancel(false);
+    }
 
     // remove all available workers
     int numAvailableWorkers = availableWorkers.drainTo(new ArrayList<>(capacity));
@@ -149,14 +282,19 @@ public class WorkerProcessPoolSync implements Closeable, WorkerProcessPool {
 
     private final ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess;
     private final Consumer<WorkerLifecycle> onWorkerProcessReturn;
+    private final Clock clock;
     private boolean isClosed = false;
+    private boolean isBorrowed = false;
+    private long lastUsedNanos;
     @Nullable private WorkerProcess workerProcess;
 
     private WorkerLifecycle(
         ThrowingSupplier<WorkerProcess, IOException> startWorkerProcess,
-        Consumer<WorkerLifecycle> onWorkerProcessReturn) {
+        Consumer<WorkerLifecycle> onWorkerProcessReturn,
+        Clock clock) {
       this.startWorkerProcess = startWorkerProcess;
       this.onWorkerProcessReturn = onWorkerProcessReturn;
+      this.clock = clock;
     }
 
     /** Allows to retrieve the wrapped worker process, starting it up if necessary. */
@@ -177,15 +315,50 @@ public class WorkerProcessPoolSync implements Closeable, WorkerProcessPool {
       // start a worker if necessary, this might throw IOException
       if (workerProcess == null) {
         workerProcess = startWorkerProcess.get();
+        lastUsedNanos = clock.nanoTime();
       }
 
       return workerProcess;
     }
 
+    public synchronized void markBorrowed() {
+      isBorrowed = true;
+    }
+
     public void makeAvailable() {
+      synchronized (this) {
+        isBorrowed = false;
+        lastUsedNanos = clock.nanoTime();
+      }
       onWorkerProcessReturn.accept(this);
     }
 
+    public synchronized boolean isRunning() {
+      return workerProcess != null;
+    }
+
+    public synchronized long getLastUsedNanos() {
+      return lastUsedNanos;
+    }
+
+    /**
+     * Shuts down the worker process if it isn't borrowed and wasn't used since the given time. The
+     * lifecycle stays available, and starts a new process when it is borrowed again.
+     */
+    public synchronized boolean closeProcessIfIdleSince(long idleSinceNanos) {
+      if (isBorrowed || workerProcess == null || lastUsedNanos > idleSinceNanos) {
+        return false;
+      }
+      try {
+        workerProcess.close();
+      } catch (Exception ex) {
+        LOG.error(ex, "Failed to close idle worker process; ignoring.");
+      } finally {
+        workerProcess = null;
+      }
+      return true;
+    }
+
     @Override
     public synchronized void close() {
       isClosed = true;
@@ -214,6 +387,7 @@ public class WorkerProcessPoolSync implements Closeable, WorkerProcessPool {
 
     private BorrowedWorkerProcess(WorkerLifecycle lifecycle) {
       this.lifecycle = Objects.requireNonNull(lifecycle);
+      lifecycle.markBorrowed();
     }
 
     /** Returns ownership of the borrowed worker process back to the pool it was retrieved from. */
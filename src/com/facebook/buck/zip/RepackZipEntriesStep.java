@@ -93,7 +93,9 @@ public class RepackZipEntriesStep implements Step {
     Path outputFile = filesystem.getPathForRelativePath(outputPath);
     try (ZipInputStream in =
             new ZipInputStream(new BufferedInputStream(Files.newInputStream(inputFile)));
-        CustomZipOutputStream out = ZipOutputStreams.newOutputStream(outputFile)) {
+        CustomZipOutputStream out =
+            ZipOutputStreams.newParallelOutputStream(
+                outputFile, ZipOutputStreams.HandleDuplicates.THROW_EXCEPTION)) {
       for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
         CustomZipEntry customEntry = new CustomZipEntry(entry);
         if (entries.contains(customEntry.getName())) {
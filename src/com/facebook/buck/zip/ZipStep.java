@@ -94,7 +94,8 @@ public class ZipStep implements Step {
 
     try (BufferedOutputStream baseOut =
             new BufferedOutputStream(filesystem.newFileOutputStream(pathToZipFile));
-        CustomZipOutputStream out = ZipOutputStreams.newOutputStream(baseOut, THROW_EXCEPTION)) {
+        CustomZipOutputStream out =
+            ZipOutputStreams.newParallelOutputStream(baseOut, THROW_EXCEPTION)) {
       /* TODO: Make this logic to avoid using exceptions.
        * If walking the file directory throws, then an empty jar file is still created.
        */
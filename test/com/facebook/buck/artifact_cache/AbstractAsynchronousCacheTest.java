@@ -25,6 +25,7 @@ import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.event.BuckEventBusForTests;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.impl.FakeProjectFilesystem;
@@ -106,6 +107,58 @@ public class AbstractAsynchronousCacheTest {
     }
   }
 
+  @Test
+  public void testAdaptiveMultiFetchWaitsForBatchesInFlight() throws Exception {
+    ExplicitRunExecutorService service = new ExplicitRunExecutorService();
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+
+    List<ImmutableList<RuleKey>> requestedRuleKeys = new ArrayList<>();
+    AdaptiveMultiFetchController controller =
+        new AdaptiveMultiFetchController("fake", 3, 1, BuckEventBusForTests.newInstance());
+
+    try (AbstractAsynchronousCache cache =
+        new RequestedKeyRecordingAsynchronousCache(
+            service,
+            filesystem,
+            requestedRuleKeys,
+            new ArrayList<>(),
+            3,
+            3,
+            false,
+            Optional.of(controller))) {
+      // Another batch is in flight, so the pending fetches wait for it.
+      assertTrue(controller.tryStartBatch());
+      List<ListenableFuture<CacheResult>> results = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        results.add(
+            cache.fetchAsync(
+                null,
+                new RuleKey(HashCode.fromInt(i)),
+                LazyPath.ofInstance(filesystem.getPath("path" + i))));
+      }
+      service.run();
+      assertEquals(0, requestedRuleKeys.size());
+      results.forEach(future -> assertFalse(future.isDone()));
+
+      controller.batchAbandoned();
+      results.add(
+          cache.fetchAsync(
+              null,
+              new RuleKey(HashCode.fromInt(5)),
+              LazyPath.ofInstance(filesystem.getPath("path5"))));
+      service.run();
+
+      for (ListenableFuture<CacheResult> future : results) {
+        assertTrue(future.isDone());
+        assertTrue(future.get().getType().isSuccess());
+      }
+      assertEquals(3, requestedRuleKeys.get(0).size());
+      for (ImmutableList<RuleKey> batch : requestedRuleKeys) {
+        assertTrue(batch.size() <= 3);
+      }
+    }
+  }
+
   @Test
   public void testSkipPendingAsyncFetchRequests() throws ExecutionException, InterruptedException {
     ExplicitRunExecutorService service = new ExplicitRunExecutorService();
@@ -273,6 +326,7 @@ public class AbstractAsynchronousCacheTest {
     private int multiFetchLimit;
     private int concurrency;
     private boolean isMultiCheckEnabled;
+    private final Optional<AdaptiveMultiFetchController> multiFetchController;
 
     public RequestedKeyRecordingAsynchronousCache(
         ExplicitRunExecutorService service,
@@ -282,6 +336,26 @@ public class AbstractAsynchronousCacheTest {
         int multiFetchLimit,
         int concurrency,
         boolean isMultiCheckEnabled) {
+      this(
+          service,
+          filesystem,
+          requestedRuleKeys,
+          checkedRuleKeys,
+          multiFetchLimit,
+          concurrency,
+          isMultiCheckEnabled,
+          Optional.empty());
+    }
+
+    public RequestedKeyRecordingAsynchronousCache(
+        ExplicitRunExecutorService service,
+        ProjectFilesystem filesystem,
+        List<ImmutableList<RuleKey>> requestedRuleKeys,
+        List<ImmutableSet<RuleKey>> checkedRuleKeys,
+        int multiFetchLimit,
+        int concurrency,
+        boolean isMultiCheckEnabled,
+        Optional<AdaptiveMultiFetchController> multiFetchController) {
       super(
           "fake",
           ArtifactCacheMode.dir,
@@ -296,6 +370,7 @@ public class AbstractAsynchronousCacheTest {
       this.multiFetchLimit = multiFetchLimit;
       this.concurrency = concurrency;
       this.isMultiCheckEnabled = isMultiCheckEnabled;
+      this.multiFetchController = multiFetchController;
     }
 
     @Override
@@ -369,5 +444,10 @@ public class AbstractAsynchronousCacheTest {
     protected boolean isMultiCheckEnabled() {
       return isMultiCheckEnabled;
     }
+
+    @Override
+    protected Optional<AdaptiveMultiFetchController> getMultiFetchController() {
+      return multiFetchController;
+    }
   }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.event.BuckEventBusForTests;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class AdaptiveMultiFetchControllerTest {
+
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static AdaptiveMultiFetchController newController(int maxBatchSize, int maxConcurrency) {
+    return new AdaptiveMultiFetchController(
+        "test", maxBatchSize, maxConcurrency, BuckEventBusForTests.newInstance());
+  }
+
+  /** Reports a batch of {@code keys} keys taking 10ms per key and carrying 1000 bytes per key. */
+  private static void finishHealthyBatch(AdaptiveMultiFetchController controller, int keys) {
+    assertTrue(controller.tryStartBatch());
+    controller.batchFinished(keys, keys * 10 * MILLIS, keys * 1000, 0);
+  }
+
+  @Test
+  public void growsBatchSizeThenConcurrencyWhileBatchesAreHealthy() {
+    AdaptiveMultiFetchController controller = newController(12, 4);
+    assertEquals(10, controller.getBatchSizeLimit());
+    assertEquals(4, controller.getConcurrencyLimit());
+
+    finishHealthyBatch(controller, 10);
+    assertEquals(11, controller.getBatchSizeLimit());
+    finishHealthyBatch(controller, 11);
+    finishHealthyBatch(controller, 12);
+    assertEquals(12, controller.getBatchSizeLimit());
+  }
+
+  @Test
+  public void backsOffOnErrorsAndRecoversAdditively() {
+    AdaptiveMultiFetchController controller = newController(100, 4);
+    finishHealthyBatch(controller, 10);
+    assertEquals(11, controller.getBatchSizeLimit());
+
+    assertTrue(controller.tryStartBatch());
+    controller.batchFinished(11, 110 * MILLIS, 0, 11);
+    assertEquals(5, controller.getBatchSizeLimit());
+    assertEquals(2, controller.getConcurrencyLimit());
+
+    finishHealthyBatch(controller, 5);
+    assertEquals(6, controller.getBatchSizeLimit());
+  }
+
+  @Test
+  public void backsOffWhenBatchesSlowDown() {
+    AdaptiveMultiFetchController controller = newController(100, 4);
+    finishHealthyBatch(controller, 10);
+    finishHealthyBatch(controller, 11);
+    assertEquals(12, controller.getBatchSizeLimit());
+
+    // Five times slower per key than the previous batches.
+    assertTrue(controller.tryStartBatch());
+    controller.batchFinished(12, 12 * 50 * MILLIS, 12 * 1000, 0);
+    assertEquals(6, controller.getBatchSizeLimit());
+    assertEquals(2, controller.getConcurrencyLimit());
+  }
+
+  @Test
+  public void growsConcurrencyOnceBatchSizeIsAtItsLimit() {
+    AdaptiveMultiFetchController controller = newController(2, 4);
+    assertTrue(controller.tryStartBatch());
+    controller.batchFinished(2, 20 * MILLIS, 0, 2);
+    assertEquals(1, controller.getBatchSizeLimit());
+    assertEquals(2, controller.getConcurrencyLimit());
+
+    finishHealthyBatch(controller, 1);
+    assertEquals(2, controller.getBatchSizeLimit());
+    assertEquals(2, controller.getConcurrencyLimit());
+    finishHealthyBatch(controller, 2);
+    assertEquals(2, controller.getBatchSizeLimit());
+    assertEquals(3, controller.getConcurrencyLimit());
+  }
+
+  @Test
+  public void spreadsPendingRequestsOverConcurrentBatches() {
+    AdaptiveMultiFetchController controller = newController(100, 4);
+    assertEquals(1, controller.getBatchSize(0));
+    assertEquals(3, controller.getBatchSize(9));
+    assertEquals(10, controller.getBatchSize(1000));
+  }
+
+  @Test
+  public void limitsBatchesInFlight() {
+    AdaptiveMultiFetchController controller = newController(100, 2);
+    assertTrue(controller.tryStartBatch());
+    assertTrue(controller.tryStartBatch());
+    assertFalse(controller.tryStartBatch());
+    controller.batchAbandoned();
+    assertTrue(controller.tryStartBatch());
+  }
+
+  @Test
+  public void countsDecisions() {
+    AdaptiveMultiFetchController controller = newController(100, 4);
+    finishHealthyBatch(controller, 10);
+    finishHealthyBatch(controller, 11);
+    assertTrue(controller.tryStartBatch());
+    controller.batchFinished(12, 120 * MILLIS, 0, 12);
+
+    long increases = 0;
+    long decreases = 0;
+    for (Counter counter : controller.getCounters()) {
+      if (counter.getName().equals("limit_increases")) {
+        increases = ((IntegerCounter) counter).get();
+      } else if (counter.getName().equals("limit_decreases")) {
+        decreases = ((IntegerCounter) counter).get();
+      }
+    }
+    assertEquals(2, increases);
+    assertEquals(1, decreases);
+  }
+}
@@ -236,6 +236,21 @@ public class ArtifactCacheBuckConfigTest {
     config.getCacheEntries();
   }
 
+  @Test
+  public void testMalformedSQLiteReaderConnections() throws IOException {
+    ArtifactCacheBuckConfig config =
+        createFromText(
+            "[cache]",
+            "mode = sqlite",
+            "sqlite_cache_names = name",
+            "[cache#name]",
+            "sqlite_reader_connections = 0");
+
+    expectedException.expect(HumanReadableException.class);
+    expectedException.expectMessage("sqlite_reader_connections");
+    config.getCacheEntries();
+  }
+
   @Test
   public void testServedCacheAbsentByDefault() throws IOException {
     ArtifactCacheBuckConfig config = createFromText("[cache]", "dir = ~/cache_dir");
@@ -17,7 +17,9 @@
 package com.facebook.buck.artifact_cache;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
@@ -59,6 +61,7 @@ import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Before;
@@ -826,6 +829,114 @@ public class DirArtifactCacheTest {
             .getType());
   }
 
+  @Test
+  public void testDeleteLeastRecentlyFetchedAcrossInstances() throws IOException {
+    // A and B take 104 bytes each, 100 bytes of artifact and 4 bytes of metadata, and C 14 bytes.
+    // Storing C has to delete one of the others to get back to 2/3 of the maximum size.
+    Path data = tmpDir.newFile("data");
+    Files.write(data, randomBytes(100));
+    Path smallData = tmpDir.newFile("small_data");
+    Files.write(smallData, randomBytes(10));
+    RuleKey ruleKeyA = new RuleKey("aaaa");
+    RuleKey ruleKeyB = new RuleKey("bbbb");
+    RuleKey ruleKeyC = new RuleKey("cccc");
+
+    DirArtifactCache cache = newDirArtifactCache(Optional.of(210L), CacheReadMode.READWRITE);
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyA).build(),
+        BorrowablePath.notBorrowablePath(data));
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyB).build(),
+        BorrowablePath.notBorrowablePath(data));
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(cache.fetchAsync(null, ruleKeyA, LazyPath.ofInstance(data)))
+            .getType());
+    cache.close();
+
+    // Make A look older than B on disk, so that only the index says A was used more recently.
+    for (RuleKey ruleKey : ImmutableList.of(ruleKeyA, ruleKeyB)) {
+      long accessMillis = ruleKey.equals(ruleKeyA) ? 0 : 9000;
+      for (Optional<String> extension :
+          ImmutableList.of(Optional.<String>empty(), Optional.of(".metadata"))) {
+        Files.setAttribute(
+            cache.getPathForRuleKey(ruleKey, extension),
+            "lastAccessTime",
+            FileTime.fromMillis(accessMillis));
+      }
+    }
+
+    dirArtifactCache = newDirArtifactCache(Optional.of(210L), CacheReadMode.READWRITE);
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyC).build(),
+        BorrowablePath.notBorrowablePath(smallData));
+
+    for (RuleKey ruleKey : ImmutableList.of(ruleKeyA, ruleKeyB, ruleKeyC)) {
+      assertEquals(
+          ruleKey.equals(ruleKeyB) ? CacheResultType.MISS : CacheResultType.HIT,
+          Futures.getUnchecked(
+                  dirArtifactCache.fetchAsync(null, ruleKey, LazyPath.ofInstance(data)))
+              .getType());
+    }
+  }
+
+  @Test
+  public void testTrimDeletesFilesMissingFromTheIndex() throws IOException {
+    Path data = tmpDir.newFile("data");
+    Files.write(data, randomBytes(100));
+    RuleKey ruleKeyA = new RuleKey("aaaa");
+    RuleKey ruleKeyB = new RuleKey("bbbb");
+
+    dirArtifactCache = newDirArtifactCache(Optional.of(200L), CacheReadMode.READWRITE);
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyA).build(),
+        BorrowablePath.notBorrowablePath(data));
+    // Stored behind the index's back, e.g. by a process which doesn't trim the cache.
+    Path unindexed = cacheDir.resolve("cc").resolve("cc").resolve("cccc");
+    Files.createDirectories(unindexed.getParent());
+    Files.write(unindexed, randomBytes(100));
+    Files.setAttribute(unindexed, "lastAccessTime", FileTime.fromMillis(0));
+    // The index was built by walking the cache before that, so the next cache has to walk it.
+    dirArtifactCache = newDirArtifactCache(Optional.of(200L), CacheReadMode.READWRITE);
+    // The indexed files alone exceed the maximum size, so storing B trims the cache to 133 bytes.
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyB).build(),
+        BorrowablePath.notBorrowablePath(data));
+
+    assertFalse(Files.exists(unindexed));
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(dirArtifactCache.fetchAsync(null, ruleKeyB, LazyPath.ofInstance(data)))
+            .getType());
+  }
+
+  @Test
+  public void testTrimDoesNotWalkTheCacheRightAfterIndexingIt() throws IOException {
+    Path data = tmpDir.newFile("data");
+    Files.write(data, randomBytes(100));
+    RuleKey ruleKeyA = new RuleKey("aaaa");
+    RuleKey ruleKeyB = new RuleKey("bbbb");
+
+    dirArtifactCache = newDirArtifactCache(Optional.of(200L), CacheReadMode.READWRITE);
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyA).build(),
+        BorrowablePath.notBorrowablePath(data));
+    Path unindexed = cacheDir.resolve("cc").resolve("cc").resolve("cccc");
+    Files.createDirectories(unindexed.getParent());
+    Files.write(unindexed, randomBytes(100));
+    Files.setAttribute(unindexed, "lastAccessTime", FileTime.fromMillis(0));
+    // Storing A built the index by walking the cache, so trimming goes by the index alone.
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyB).build(),
+        BorrowablePath.notBorrowablePath(data));
+
+    assertTrue(Files.exists(unindexed));
+    assertEquals(
+        CacheResultType.MISS,
+        Futures.getUnchecked(dirArtifactCache.fetchAsync(null, ruleKeyA, LazyPath.ofInstance(data)))
+            .getType());
+  }
+
   @Test
   public void testCacheStoreMultipleKeys() throws IOException {
     Path fileX = tmpDir.newFile("x");
@@ -897,6 +1008,96 @@ public class DirArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testChunkedStoreAndFetchHit() throws IOException {
+    DirArtifactCache cache =
+        newDirArtifactCache(Optional.empty(), CacheReadMode.READWRITE, /* chunked */ true);
+
+    RuleKey ruleKey = new RuleKey("aaaa");
+    byte[] contents = randomBytes(1024 * 1024);
+    Path data = Paths.get("data");
+    projectFilesystem.writeBytesToPath(contents, data);
+
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey).build(), BorrowablePath.borrowablePath(data));
+
+    // The artifact is only stored as chunks.
+    assertFalse(projectFilesystem.exists(cache.getPathForRuleKey(ruleKey, Optional.empty())));
+    assertTrue(projectFilesystem.exists(cache.getPathForRuleKey(ruleKey, Optional.of(".chunks"))));
+    assertEquals(
+        CacheResultType.CONTAINS,
+        Futures.getUnchecked(cache.multiContainsAsync(ImmutableSet.of(ruleKey)))
+            .get(ruleKey)
+            .getType());
+
+    Path out = Paths.get("out");
+    CacheResult result =
+        Futures.getUnchecked(cache.fetchAsync(null, ruleKey, LazyPath.ofInstance(out)));
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertArrayEquals(contents, Files.readAllBytes(projectFilesystem.resolve(out)));
+    cache.close();
+
+    // A cache which doesn't store chunks still fetches them.
+    DirArtifactCache unchunkedCache =
+        newDirArtifactCache(Optional.empty(), CacheReadMode.READONLY);
+    projectFilesystem.deleteFileAtPath(out);
+    result =
+        Futures.getUnchecked(unchunkedCache.fetchAsync(null, ruleKey, LazyPath.ofInstance(out)));
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertArrayEquals(contents, Files.readAllBytes(projectFilesystem.resolve(out)));
+    unchunkedCache.close();
+  }
+
+  @Test
+  public void testChunkedStoreSharesChunksOfSimilarArtifacts() throws IOException {
+    DirArtifactCache cache =
+        newDirArtifactCache(Optional.empty(), CacheReadMode.READWRITE, /* chunked */ true);
+
+    byte[] original = randomBytes(2 * 1024 * 1024);
+    // Insert a few bytes in the middle, which shifts everything after them.
+    byte[] edited = new byte[original.length + 3];
+    int middle = original.length / 2;
+    System.arraycopy(original, 0, edited, 0, middle);
+    edited[middle] = 1;
+    edited[middle + 1] = 2;
+    edited[middle + 2] = 3;
+    System.arraycopy(original, middle, edited, middle + 3, original.length - middle);
+
+    RuleKey originalKey = new RuleKey("aaaa");
+    RuleKey editedKey = new RuleKey("bbbb");
+    Path data = Paths.get("data");
+    projectFilesystem.writeBytesToPath(original, data);
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(originalKey).build(),
+        BorrowablePath.notBorrowablePath(data));
+    projectFilesystem.writeBytesToPath(edited, data);
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(editedKey).build(),
+        BorrowablePath.notBorrowablePath(data));
+
+    long storedBytes = 0;
+    for (Path file : cache.getAllFilesInCache()) {
+      if (file.startsWith(cacheDir.resolve("chunks"))) {
+        storedBytes += Files.size(file);
+      }
+    }
+    assertThat(storedBytes, Matchers.lessThan((long) original.length * 3 / 2));
+
+    Path out = Paths.get("out");
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(cache.fetchAsync(null, editedKey, LazyPath.ofInstance(out)))
+            .getType());
+    assertArrayEquals(edited, Files.readAllBytes(projectFilesystem.resolve(out)));
+    cache.close();
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(42).nextBytes(bytes);
+    return bytes;
+  }
+
   private static class BuildRuleForTest extends FakeBuildRule {
 
     @SuppressWarnings("PMD.UnusedPrivateField")
@@ -912,12 +1113,19 @@ public class DirArtifactCacheTest {
 
   private DirArtifactCache newDirArtifactCache(
       Optional<Long> maxCacheSizeBytes, CacheReadMode cacheReadMode) throws IOException {
+    return newDirArtifactCache(maxCacheSizeBytes, cacheReadMode, false);
+  }
+
+  private DirArtifactCache newDirArtifactCache(
+      Optional<Long> maxCacheSizeBytes, CacheReadMode cacheReadMode, boolean chunked)
+      throws IOException {
     return new DirArtifactCache(
         "dir",
         projectFilesystem,
         cacheDir,
         cacheReadMode,
         maxCacheSizeBytes,
-        MoreExecutors.newDirectExecutorService());
+        MoreExecutors.newDirectExecutorService(),
+        chunked);
   }
 }
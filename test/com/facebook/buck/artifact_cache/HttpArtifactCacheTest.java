@@ -18,8 +18,10 @@ package com.facebook.buck.artifact_cache;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
@@ -52,6 +54,7 @@ import com.google.common.io.ByteSource;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -578,6 +581,28 @@ public class HttpArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testMultiContainsIsUnsupportedWithoutMultiFetch() {
+    AtomicBoolean requested = new AtomicBoolean();
+    argsBuilder.setFetchClient(
+        withMakeRequest(
+            (path, requestBuilder) -> {
+              requested.set(true);
+              throw new IOException("unexpected request to " + path);
+            }));
+    HttpArtifactCache cache = new HttpArtifactCache(argsBuilder.build());
+    try {
+      Futures.getUnchecked(
+          cache.multiContainsAsync(
+              ImmutableSet.of(new RuleKey("00000000000000000000000000000000"))));
+      fail("multiContains should not be supported");
+    } catch (UncheckedExecutionException e) {
+      assertThat(e.getCause(), Matchers.instanceOf(UnsupportedOperationException.class));
+    }
+    assertFalse(requested.get());
+    cache.close();
+  }
+
   @Test
   public void testFetchMetadata() {
     Path output = Paths.get("output/file");
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PrefetchingCacheDecoratorTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final RuleKey KEY = new RuleKey("aaaa");
+  private static final byte[] DATA = "artifact".getBytes(StandardCharsets.UTF_8);
+
+  private CountingArtifactCache delegate;
+  private PrefetchingCacheDecorator cache;
+
+  @Before
+  public void setUp() {
+    delegate = new CountingArtifactCache();
+    cache =
+        new PrefetchingCacheDecorator(
+            delegate, TestProjectFilesystems.createProjectFilesystem(tmp.getRoot()));
+  }
+
+  @Test
+  public void servesPrefetchedArtifact() throws Exception {
+    delegate.store(ArtifactInfo.builder().addRuleKeys(KEY).build(), DATA);
+    cache.prefetch(null, KEY);
+    assertTrue(cache.isPrefetched(KEY));
+
+    Path output = tmp.getRoot().resolve("output");
+    CacheResult result = cache.fetchAsync(null, KEY, LazyPath.ofInstance(output)).get();
+
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertArrayEquals(DATA, Files.readAllBytes(output));
+    assertEquals(1, delegate.fetches.get());
+    assertFalse(cache.isPrefetched(KEY));
+  }
+
+  @Test
+  public void doesNotFetchPrefetchedMissAgain() throws Exception {
+    cache.prefetch(null, KEY);
+
+    Path output = tmp.getRoot().resolve("output");
+    CacheResult result = cache.fetchAsync(null, KEY, LazyPath.ofInstance(output)).get();
+
+    assertEquals(CacheResultType.MISS, result.getType());
+    assertEquals(1, delegate.fetches.get());
+  }
+
+  @Test
+  public void doesNotPrefetchKeysAlreadyFetched() throws Exception {
+    delegate.store(ArtifactInfo.builder().addRuleKeys(KEY).build(), DATA);
+    cache.fetchAsync(null, KEY, LazyPath.ofInstance(tmp.getRoot().resolve("output"))).get();
+    cache.prefetch(null, KEY);
+    cache.prefetch(null, KEY);
+
+    assertFalse(cache.isPrefetched(KEY));
+    assertEquals(1, delegate.fetches.get());
+  }
+
+  @Test
+  public void fetchesAgainOnceDiscarded() throws Exception {
+    delegate.store(ArtifactInfo.builder().addRuleKeys(KEY).build(), DATA);
+    cache.prefetch(null, KEY);
+    cache.discardPrefetched();
+    assertFalse(cache.isPrefetched(KEY));
+
+    Path output = tmp.getRoot().resolve("output");
+    CacheResult result = cache.fetchAsync(null, KEY, LazyPath.ofInstance(output)).get();
+
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertArrayEquals(DATA, Files.readAllBytes(output));
+    assertEquals(2, delegate.fetches.get());
+  }
+
+  private static class CountingArtifactCache extends InMemoryArtifactCache {
+    private final AtomicInteger fetches = new AtomicInteger();
+
+    @Override
+    public ListenableFuture<CacheResult> fetchAsync(
+        BuildTarget target, RuleKey ruleKey, LazyPath output) {
+      fetches.incrementAndGet();
+      return super.fetchAsync(target, ruleKey, output);
+    }
+  }
+}
@@ -137,6 +137,7 @@ public class SQLiteArtifactCacheBenchmark {
         BuckEventBusForTests.newInstance(),
         maxCacheSizeBytes,
         Optional.of(MAX_INLINED_BYTES),
+        Optional.empty(),
         CacheReadMode.READWRITE);
   }
 
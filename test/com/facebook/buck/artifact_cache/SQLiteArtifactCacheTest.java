@@ -46,7 +46,12 @@ import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Before;
@@ -109,6 +114,7 @@ public class SQLiteArtifactCacheTest {
         BuckEventBusForTests.newInstance(),
         maxCacheSizeBytes,
         Optional.of(MAX_INLINED_BYTES),
+        Optional.empty(),
         CacheReadMode.READWRITE);
   }
 
@@ -291,6 +297,49 @@ public class SQLiteArtifactCacheTest {
     assertThat(artifactCache.metadataRuleKeys(), Matchers.contains(ruleKeyC));
   }
 
+  @Test
+  public void testFetchKeepsMetadataFromEviction() throws Exception {
+    artifactCache = cache(Optional.of(0L));
+    Timestamp time = Timestamp.from(Instant.now().minus(Duration.ofDays(8)));
+
+    artifactCache.insertMetadata(ruleKeyA, ImmutableMap.of(), time);
+    artifactCache.insertMetadata(ruleKeyB, ImmutableMap.of(), time);
+
+    // the access time update for A is buffered, and must be written before evicting
+    CacheResult result = Futures.getUnchecked(artifactCache.fetchAsync(null, ruleKeyA, output));
+    assertEquals(CacheResultType.HIT, result.getType());
+
+    artifactCache.removeOldMetadata().get();
+    assertThat(artifactCache.metadataRuleKeys(), Matchers.contains(ruleKeyA));
+  }
+
+  @Test
+  public void testConcurrentFetches() throws Exception {
+    artifactCache = cache(Optional.empty());
+    artifactCache.store(
+        ArtifactInfo.builder()
+            .addRuleKeys(ruleKeyA)
+            .putMetadata(METADATA_KEY, contentHashA.toString())
+            .build(),
+        BorrowablePath.notBorrowablePath(emptyFile));
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<CacheResult>> results = new ArrayList<>();
+      for (int i = 0; i < 64; i++) {
+        LazyPath fetchOutput = LazyPath.ofInstance(cacheDir.resolve(".output" + i));
+        results.add(
+            executor.submit(
+                () -> Futures.getUnchecked(artifactCache.fetchAsync(null, ruleKeyA, fetchOutput))));
+      }
+      for (Future<CacheResult> result : results) {
+        assertEquals(CacheResultType.HIT, result.get().getType());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void testNoStoreMisses() throws Exception {
     artifactCache = cache(Optional.of(0L));
@@ -17,8 +17,10 @@
 package com.facebook.buck.cli;
 
 import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 
 import com.facebook.buck.core.cell.Cells;
@@ -65,6 +67,7 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.Executors;
@@ -88,6 +91,7 @@ public class BuckQueryEnvironmentTest {
   private BuckQueryEnvironment buckQueryEnvironment;
   private Path cellRoot;
   private ListeningExecutorService executor;
+  private Parser parser;
   private PerBuildState parserState;
   private BuckEventBus eventBus;
   private CapturingConsoleEventListener capturingConsoleEventListener;
@@ -127,7 +131,7 @@ public class BuckQueryEnvironmentTest {
             eventBus,
             new ParsingUnconfiguredBuildTargetViewFactory(),
             UnconfiguredTargetConfiguration.INSTANCE);
-    Parser parser =
+    parser =
         TestParserFactory.create(
             depsAwareExecutor.get(), cell.getRootCell(), perBuildStateFactory, eventBus);
     parserState =
@@ -222,4 +226,50 @@ public class BuckQueryEnvironmentTest {
         capturingConsoleEventListener.getLogMessages(),
         CoreMatchers.equalTo(singletonList(expectedWarning)));
   }
+
+  @Test
+  public void reverseDepsAreFoundLevelByLevelWithinTheUniverse() throws Exception {
+    assertThat(
+        buckQueryEnvironment.evaluateQuery("rdeps(//example:two, //example:six)"),
+        contains(
+            createQueryBuildTarget("//example", "six"),
+            createQueryBuildTarget("//example", "four"),
+            createQueryBuildTarget("//example", "two")));
+    assertThat(
+        buckQueryEnvironment.evaluateQuery("rdeps(//example:two, //example:six, 1)"),
+        contains(
+            createQueryBuildTarget("//example", "six"),
+            createQueryBuildTarget("//example", "four")));
+    assertThat(
+        buckQueryEnvironment.evaluateQuery("rdeps(//example:two, //example:one)"),
+        is(equalTo(ImmutableSet.of())));
+  }
+
+  @Test
+  public void reverseDepsAreFoundWhenTheGraphIsNotInTheDaemonIndex() throws Exception {
+    buckQueryEnvironment.evaluateQuery("rdeps(//example:two, //example:six)");
+    // Drops the nodes of the graph from the index, which only leaves the snapshot of the graph.
+    parser.getPermState().invalidateAllCaches();
+
+    assertThat(
+        buckQueryEnvironment.evaluateQuery("rdeps(//example:two, //example:six, 1)"),
+        contains(
+            createQueryBuildTarget("//example", "six"),
+            createQueryBuildTarget("//example", "four")));
+    assertEquals(0, parser.getPermState().getTargetNodeIndex().size());
+  }
+
+  @Test
+  public void queriesAreEvaluatedInOrder() throws Exception {
+    List<Set<QueryTarget>> results =
+        buckQueryEnvironment.evaluateQueries(
+            ImmutableList.of(
+                "rdeps(//example:two, //example:four, 0)",
+                "rdeps(//example:two, //example:six, 0)"));
+    assertThat(
+        results,
+        contains(
+            ImmutableSet.of(createQueryBuildTarget("//example", "four")),
+            ImmutableSet.of(createQueryBuildTarget("//example", "six"))));
+  }
 }
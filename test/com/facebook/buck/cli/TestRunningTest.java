@@ -48,8 +48,13 @@ import com.facebook.buck.jvm.java.JavaLibraryBuilder;
 import com.facebook.buck.jvm.java.JavaLibraryDescriptionArg;
 import com.facebook.buck.shell.GenruleBuilder;
 import com.facebook.buck.shell.GenruleDescriptionArg;
+import com.facebook.buck.step.AbstractExecutionStep;
 import com.facebook.buck.step.ExecutionOrderAwareFakeStep;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.step.StepExecutionResult;
+import com.facebook.buck.step.StepExecutionResults;
 import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.step.TestShardStep;
 import com.facebook.buck.test.FakeTestResults;
 import com.facebook.buck.test.TestCaseSummary;
 import com.facebook.buck.test.TestResultSummary;
@@ -71,7 +76,11 @@ import java.nio.file.Paths;
 import java.util.List;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -684,6 +693,75 @@ public class TestRunningTest {
         actualSeparateStepExecutionOrderList, equalTo(expectedSeparateStepExecutionOrderList));
   }
 
+  @Test
+  public void testShardsRunConcurrently() throws Exception {
+    CommandRunnerParams commandRunnerParams = CommandRunnerParamsForTesting.builder().build();
+
+    AtomicInteger atomicExecutionOrder = new AtomicInteger(0);
+    ExecutionOrderAwareFakeStep setUpStep =
+        new ExecutionOrderAwareFakeStep("setup", "setup", 0, atomicExecutionOrder);
+    // Each shard only completes once the other one started.
+    CyclicBarrier shardsStarted = new CyclicBarrier(2);
+    Step shard =
+        new AbstractExecutionStep("shard") {
+          @Override
+          public StepExecutionResult execute(ExecutionContext context)
+              throws InterruptedException {
+            try {
+              shardsStarted.await(10, TimeUnit.SECONDS);
+            } catch (BrokenBarrierException | TimeoutException e) {
+              return StepExecutionResults.ERROR;
+            }
+            assertThat(setUpStep.getExecutionEndOrder(), equalTo(OptionalInt.of(1)));
+            return StepExecutionResults.SUCCESS;
+          }
+        };
+    BuildTarget shardedTestTarget = BuildTargetFactory.newInstance("//:sharded_test");
+    FakeTestRule shardedTest =
+        new FakeTestRule(
+            shardedTestTarget,
+            new FakeProjectFilesystem(),
+            TestBuildRuleParams.create(),
+            ImmutableSet.of(),
+            Optional.of(Paths.get("shardedTestOutputDir")),
+            false, // runTestSeparately
+            ImmutableList.of(setUpStep, new TestShardStep(shard), new TestShardStep(shard)),
+            () -> FakeTestResults.of(ImmutableList.of()));
+
+    ListeningExecutorService service =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(3));
+    FakeBuildEngine fakeBuildEngine =
+        new FakeBuildEngine(
+            ImmutableMap.of(
+                shardedTestTarget,
+                BuildResult.success(shardedTest, BUILT_LOCALLY, CacheResult.miss())));
+    SourcePathRuleFinder ruleFinder = new TestActionGraphBuilder();
+    int ret =
+        TestRunning.runTests(
+            commandRunnerParams,
+            new TestActionGraphBuilder(),
+            ImmutableList.of(shardedTest),
+            TestExecutionContext.newInstance(),
+            DEFAULT_OPTIONS,
+            service,
+            fakeBuildEngine,
+            FakeBuildContext.withSourcePathResolver(ruleFinder.getSourcePathResolver()),
+            ruleFinder);
+
+    assertThat(ret, equalTo(0));
+    assertThat(shardsStarted.isBroken(), equalTo(false));
+  }
+
+  @Test
+  public void predictionSummaryShowsDifferenceFromPrediction() {
+    assertEquals(
+        "Tests took 12.0s, 2.0s longer than the 10.0s predicted from previous runs (+20%).",
+        TestRunning.formatPredictionSummary(12000, 10000));
+    assertEquals(
+        "Tests took 7.5s, 2.5s shorter than the 10.0s predicted from previous runs (-25%).",
+        TestRunning.formatPredictionSummary(7500, 10000));
+  }
+
   @Test
   public void whenSeparateTestFailsThenBuildFails() throws Exception {
     CommandRunnerParams commandRunnerParams = CommandRunnerParamsForTesting.builder().build();
@@ -60,6 +60,7 @@ public class CachingBuildEngineFactory {
   private boolean logBuildRuleFailuresInline = true;
   private BuildInfoStoreManager buildInfoStoreManager;
   private Optional<BuildRuleStrategy> customBuildRuleStrategy = Optional.empty();
+  private boolean cachePrefetchEnabled = false;
 
   public CachingBuildEngineFactory(
       BuildRuleResolver buildRuleResolver,
@@ -132,6 +133,11 @@ public class CachingBuildEngineFactory {
     return this;
   }
 
+  public CachingBuildEngineFactory setCachePrefetchEnabled(boolean cachePrefetchEnabled) {
+    this.cachePrefetchEnabled = cachePrefetchEnabled;
+    return this;
+  }
+
   public CachingBuildEngine build() {
     TargetConfigurationSerializer targetConfigurationSerializer =
         TargetConfigurationSerializerForTests.create(
@@ -152,7 +158,8 @@ public class CachingBuildEngineFactory {
           ruleKeyFactories.get(),
           resourceAwareSchedulingInfo,
           RuleKeyDiagnostics.nop(),
-          logBuildRuleFailuresInline);
+          logBuildRuleFailuresInline,
+          cachePrefetchEnabled);
     }
 
     return new CachingBuildEngine(
@@ -174,7 +181,8 @@ public class CachingBuildEngineFactory {
             cachingBuildEngineDelegate.getFileHashCache(),
             buildRuleResolver,
             inputFileSizeLimit,
-            new TrackedRuleKeyCache<>(new DefaultRuleKeyCache<>(), new NoOpCacheStatsTracker())));
+            new TrackedRuleKeyCache<>(new DefaultRuleKeyCache<>(), new NoOpCacheStatsTracker())),
+        cachePrefetchEnabled);
   }
 
   private static WeightedListeningExecutorService toWeighted(ListeningExecutorService service) {
@@ -189,6 +189,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -1688,6 +1689,100 @@ public class CachingBuildEngineTest {
         assertTrue(fakeFileHashCache.contains(filesystem.resolve(output)));
       }
     }
+
+    @Test
+    public void prefetchedArtifactsAreOnlyFetchedOnce() throws Exception {
+      buildWithPrefetching(/* multiContainsSupported */ true);
+    }
+
+    @Test
+    public void artifactsAreNotPrefetchedWhenTheCacheCannotTellWhichItHas() throws Exception {
+      buildWithPrefetching(/* multiContainsSupported */ false);
+    }
+
+    private void buildWithPrefetching(boolean multiContainsSupported) throws Exception {
+      ImmutableList<BuildRule> rules =
+          ImmutableList.of(
+              new WriteFile(
+                  BuildTargetFactory.newInstance("//:first"),
+                  filesystem,
+                  "first",
+                  Paths.get("output/first"),
+                  /* executable */ false),
+              new WriteFile(
+                  BuildTargetFactory.newInstance("//:second"),
+                  filesystem,
+                  "second",
+                  Paths.get("output/second"),
+                  /* executable */ false));
+      List<LazyPath> fetches = Collections.synchronizedList(new ArrayList<>());
+      BuildEngineBuildContext countingContext =
+          buildContext.withArtifactCache(
+              new InMemoryArtifactCache() {
+                @Override
+                public ListenableFuture<CacheResult> fetchAsync(
+                    BuildTarget target, RuleKey ruleKey, LazyPath output) {
+                  fetches.add(output);
+                  return super.fetchAsync(target, ruleKey, output);
+                }
+
+                @Override
+                public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+                    ImmutableSet<RuleKey> ruleKeys) {
+                  if (!multiContainsSupported) {
+                    throw new UnsupportedOperationException("multiContains is not supported");
+                  }
+                  return super.multiContainsAsync(ruleKeys);
+                }
+              });
+
+      // Run an initial build to seed the cache.
+      try (CachingBuildEngine cachingBuildEngine = cachingBuildEngineFactory().build()) {
+        for (BuildRule rule : rules) {
+          BuildResult result =
+              cachingBuildEngine
+                  .build(countingContext, TestExecutionContext.newInstance(), rule)
+                  .getResult()
+                  .get();
+          assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+          buildInfoStore.deleteMetadata(rule.getBuildTarget());
+        }
+        filesystem.deleteRecursivelyIfExists(Paths.get(""));
+      }
+      fetches.clear();
+
+      // Now run a second build which prefetches both artifacts, if the cache says it has them.
+      try (CachingBuildEngine cachingBuildEngine =
+          cachingBuildEngineFactory().setCachePrefetchEnabled(true).build()) {
+        for (BuildRule rule : rules) {
+          BuildResult result =
+              cachingBuildEngine
+                  .build(countingContext, TestExecutionContext.newInstance(), rule)
+                  .getResult()
+                  .get();
+          assertEquals(BuildRuleSuccessType.FETCHED_FROM_CACHE, result.getSuccess());
+        }
+      }
+      // Both artifacts were fetched only once, and into the staging area if they were prefetched.
+      assertEquals(2, fetches.size());
+      for (LazyPath fetch : fetches) {
+        if (!multiContainsSupported) {
+          assertThat(
+              fetch.getUnchecked().getFileName().toString(),
+              Matchers.not(Matchers.startsWith("buck_prefetched_artifact_")));
+          continue;
+        }
+        assertThat(
+            fetch.getUnchecked().getFileName().toString(),
+            Matchers.startsWith("buck_prefetched_artifact_"));
+        assertTrue(
+            fetch
+                .getUnchecked()
+                .startsWith(filesystem.resolve(filesystem.getBuckPaths().getScratchDir())));
+      }
+      assertEquals("first", filesystem.readFileIfItExists(Paths.get("output/first")).get());
+      assertEquals("second", filesystem.readFileIfItExists(Paths.get("output/second")).get());
+    }
   }
 
   public static class InputBasedRuleKeyTests extends CommonFixture {
@@ -293,6 +293,35 @@ public class ManifestTest {
         Matchers.equalTo(Optional.of(key2)));
   }
 
+  @Test
+  public void lookupProbesEachInputOnce() throws IOException {
+    SourcePath input1 = FakeSourcePath.of("input1.h");
+    SourcePath input2 = FakeSourcePath.of("input2.h");
+    String header1 = RESOLVER.getRelativePath(input1).toString();
+    String header2 = RESOLVER.getRelativePath(input2).toString();
+    Manifest manifest =
+        ManifestUtil.fromMap(
+            new RuleKey("cc"),
+            ImmutableMap.of(
+                new RuleKey("aa"),
+                ImmutableMap.of(header1, HashCode.fromInt(1), header2, HashCode.fromInt(3)),
+                new RuleKey("bb"),
+                ImmutableMap.of(header1, HashCode.fromInt(1), header2, HashCode.fromInt(4)),
+                new RuleKey("dd"),
+                ImmutableMap.of(header1, HashCode.fromInt(2), header2, HashCode.fromInt(5))));
+    FileHashLoader fileHashLoader =
+        new FakeFileHashCache(
+            ImmutableMap.of(
+                RESOLVER.getAbsolutePath(input1),
+                HashCode.fromInt(2),
+                RESOLVER.getAbsolutePath(input2),
+                HashCode.fromInt(5)));
+    assertThat(
+        manifest.lookup(fileHashLoader, RESOLVER, ImmutableSet.of(input1, input2)),
+        Matchers.equalTo(Optional.of(new RuleKey("dd"))));
+    assertThat(manifest.getStats().getNumLookupProbes(), Matchers.equalTo(2));
+  }
+
   @Test
   public void size() {
     assertThat(new Manifest(new RuleKey("cc")).size(), Matchers.equalTo(0));
@@ -325,6 +354,6 @@ public class ManifestTest {
                     new RuleKey("bb"),
                     ImmutableMap.of("bar.h", HashCode.fromInt(0))))
             .getStats(),
-        Matchers.equalTo(ImmutableManifestStats.of(2, 1, 2)));
+        Matchers.equalTo(ImmutableManifestStats.of(2, 1, 2, 0)));
   }
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.graph.transformation.executor.impl;
+
+import com.facebook.buck.core.graph.transformation.executor.DepsAwareExecutor;
+import com.facebook.buck.core.graph.transformation.executor.DepsAwareTask;
+import com.facebook.buck.core.graph.transformation.executor.factory.DepsAwareExecutorFactory;
+import com.facebook.buck.core.graph.transformation.executor.factory.DepsAwareExecutorType;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+/**
+ * Compares the {@link DepsAwareExecutor}s on synthetic graphs of tasks, each doing a little
+ * computation once its dependencies are done, as the graph transformation engine's computations
+ * do.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DepsAwareExecutorBenchmark {
+
+  @Param({"DEFAULT", "DEFAULT_WITH_LS", "JAVA_BASED", "TOPOSORT_BASED", "WORK_STEALING"})
+  public DepsAwareExecutorType executorType;
+
+  /**
+   * The shape of the graph: {@code WIDE} has a few layers of many tasks, {@code DEEP} many layers
+   * of a few tasks, and both have each task depend on a few random tasks of the layer below.
+   */
+  @Param({"WIDE", "DEEP"})
+  public String shape;
+
+  @Param({"10000"})
+  public int numberOfTasks;
+
+  @Param({"4"})
+  public int depsPerTask;
+
+  /** The amount of work each task does, in {@link Blackhole#consumeCPU} tokens. */
+  @Param({"100"})
+  public long workPerTask;
+
+  @Param({"8"})
+  public int parallelism;
+
+  private DepsAwareExecutor<Object, ?> executor;
+  private Graph<?> graph;
+
+  @Setup(Level.Trial)
+  public void setUpExecutor() {
+    executor = DepsAwareExecutorFactory.create(executorType, parallelism);
+  }
+
+  /** Tasks only run once, so every invocation gets a new graph. */
+  @Setup(Level.Invocation)
+  public void setUpGraph() {
+    graph = createGraph(executor);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.close();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public void evaluateGraph() throws ExecutionException, InterruptedException {
+    graph.evaluate();
+  }
+
+  private <TaskType extends DepsAwareTask<Object, TaskType>> Graph<TaskType> createGraph(
+      DepsAwareExecutor<Object, TaskType> executor) {
+    int width = shape.equals("WIDE") ? numberOfTasks / 10 : 10;
+    int depth = numberOfTasks / width;
+    Random random = new Random(0);
+
+    List<TaskType> below = ImmutableList.of();
+    for (int i = 0; i < depth; i++) {
+      List<TaskType> layer = new ArrayList<>(width);
+      for (int j = 0; j < width; j++) {
+        ImmutableSet.Builder<TaskType> depsBuilder = ImmutableSet.builder();
+        for (int k = 0; k < depsPerTask && !below.isEmpty(); k++) {
+          depsBuilder.add(below.get(random.nextInt(below.size())));
+        }
+        ImmutableSet<TaskType> deps = depsBuilder.build();
+        layer.add(
+            executor.createThrowingTask(
+                () -> {
+                  Blackhole.consumeCPU(workPerTask);
+                  return null;
+                },
+                ImmutableSet::of,
+                () -> deps));
+      }
+      below = layer;
+    }
+    return new Graph<>(executor, below);
+  }
+
+  private static class Graph<TaskType extends DepsAwareTask<Object, TaskType>> {
+    private final DepsAwareExecutor<Object, TaskType> executor;
+    private final List<TaskType> roots;
+
+    private Graph(DepsAwareExecutor<Object, TaskType> executor, List<TaskType> roots) {
+      this.executor = executor;
+      this.roots = roots;
+    }
+
+    private void evaluate() throws ExecutionException, InterruptedException {
+      for (Future<Object> future : executor.submitAll(roots)) {
+        future.get();
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException, RunnerException {
+    Main.main(new String[] {DepsAwareExecutorBenchmark.class.getName()});
+  }
+}
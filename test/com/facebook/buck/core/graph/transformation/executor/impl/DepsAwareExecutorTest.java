@@ -65,6 +65,10 @@ public class DepsAwareExecutorTest<TaskType extends DepsAwareTask<Object, TaskTy
             (Supplier<DepsAwareExecutor<?, ?>>)
                 () -> ToposortBasedDepsAwareExecutor.of(NUMBER_OF_THREADS)
           },
+          {
+            (Supplier<DepsAwareExecutor<?, ?>>)
+                () -> WorkStealingDepsAwareExecutor.of(NUMBER_OF_THREADS)
+          },
         });
   }
 
@@ -213,4 +217,37 @@ public class DepsAwareExecutorTest<TaskType extends DepsAwareTask<Object, TaskTy
             });
     executor.submit(task3).get();
   }
+
+  @Test(timeout = 10000)
+  public void runsEachTaskOfDiamondsOnceAfterItsDeps()
+      throws ExecutionException, InterruptedException {
+    final int depth = 100;
+    final int width = 10;
+
+    LongAdder runs = new LongAdder();
+    List<TaskType> previous = new ArrayList<>();
+    for (int i = 0; i < depth; i++) {
+      List<TaskType> layer = new ArrayList<>();
+      ImmutableSet<TaskType> deps = ImmutableSet.copyOf(previous);
+      for (int j = 0; j < width; j++) {
+        layer.add(
+            executor.createThrowingTask(
+                () -> {
+                  for (TaskType dep : deps) {
+                    assertTrue(dep.getResultFuture().isDone());
+                  }
+                  runs.increment();
+                  return null;
+                },
+                ImmutableSet::of,
+                () -> deps));
+      }
+      previous = layer;
+    }
+    for (Future<?> future : executor.submitAll(previous)) {
+      future.get();
+    }
+
+    assertEquals(depth * width, runs.intValue());
+  }
 }
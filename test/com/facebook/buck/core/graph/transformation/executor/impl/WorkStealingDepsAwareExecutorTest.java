@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.graph.transformation.executor.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorkStealingDepsAwareExecutorTest {
+
+  private WorkStealingDepsAwareExecutor<Object> executor;
+
+  @Before
+  public void setUp() {
+    executor = WorkStealingDepsAwareExecutor.of(4);
+  }
+
+  @After
+  public void cleanUp() {
+    executor.close();
+  }
+
+  @Test(timeout = 10000)
+  public void failureOfDepPropagatesToDependants() throws InterruptedException {
+    ToposortBasedDepsAwareTask<Object> task1 =
+        executor.createTask(
+            () -> {
+              throw new IllegalStateException("failed");
+            });
+    ToposortBasedDepsAwareTask<Object> task2 =
+        executor.createThrowingTask(() -> null, ImmutableSet::of, () -> ImmutableSet.of(task1));
+    ToposortBasedDepsAwareTask<Object> task3 =
+        executor.createThrowingTask(() -> null, () -> ImmutableSet.of(task2), ImmutableSet::of);
+
+    try {
+      executor.submit(task3).get();
+      fail("Expected the failure of the dependency to propagate");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void failureOfDepsSupplierPropagatesToDependants() throws InterruptedException {
+    ToposortBasedDepsAwareTask<Object> task1 = executor.createTask(() -> null);
+    ToposortBasedDepsAwareTask<Object> task2 =
+        executor.createThrowingTask(
+            () -> null,
+            () -> ImmutableSet.of(task1),
+            () -> {
+              throw new IllegalStateException("failed");
+            });
+    ToposortBasedDepsAwareTask<Object> task3 =
+        executor.createThrowingTask(() -> null, ImmutableSet::of, () -> ImmutableSet.of(task2));
+
+    try {
+      executor.submit(task3).get();
+      fail("Expected the failure of the deps supplier to propagate");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void sharedDepRunsOnce() throws ExecutionException, InterruptedException {
+    AtomicInteger runs = new AtomicInteger();
+    ToposortBasedDepsAwareTask<Object> shared =
+        executor.createTask(
+            () -> {
+              runs.incrementAndGet();
+              return null;
+            });
+    ImmutableSet.Builder<ToposortBasedDepsAwareTask<Object>> dependants = ImmutableSet.builder();
+    for (int i = 0; i < 100; i++) {
+      dependants.add(
+          executor.createThrowingTask(() -> null, ImmutableSet::of, () -> ImmutableSet.of(shared)));
+    }
+    ToposortBasedDepsAwareTask<Object> root =
+        executor.createThrowingTask(() -> null, ImmutableSet::of, dependants::build);
+
+    executor.submit(root).get();
+
+    assertEquals(1, runs.get());
+  }
+}
@@ -178,6 +178,55 @@ public class ActionGraphProviderTest {
     runAndCheckExpectedHitMissCount(cache, runList);
   }
 
+  @Test
+  public void hitOnMultiEntryCacheWithIncrementalActionGraph() {
+    ActionGraphProvider cache =
+        new ActionGraphProviderBuilder()
+            .withMaxEntries(2)
+            .withEventBus(eventBus)
+            .withCheckActionGraphs()
+            .withIncrementalActionGraphMode(IncrementalActionGraphMode.ENABLED)
+            .build();
+
+    // List of (graph to run, (expected hit count, expected miss count))
+    ArrayList<Pair<TargetGraph, Pair<Integer, Integer>>> runList = new ArrayList<>();
+
+    // First run for graph 1 should be a miss.
+    runList.add(new Pair<>(targetGraph1, new Pair<>(0, 1)));
+    // First run for graph 2 should be a miss, but must not drop graph 1 from the cache.
+    runList.add(new Pair<>(targetGraph2, new Pair<>(0, 2)));
+    // Alternating between the graphs should only hit.
+    runList.add(new Pair<>(targetGraph1, new Pair<>(1, 2)));
+    runList.add(new Pair<>(targetGraph2, new Pair<>(2, 2)));
+    runList.add(new Pair<>(targetGraph1, new Pair<>(3, 2)));
+
+    runAndCheckExpectedHitMissCount(cache, runList);
+  }
+
+  @Test
+  public void evictsWhenCachedRulesExceedLimit() {
+    ActionGraphProvider cache =
+        new ActionGraphProviderBuilder()
+            .withActionGraphCache(new ActionGraphCache(2, 2))
+            .withEventBus(eventBus)
+            .withCheckActionGraphs()
+            .build();
+
+    // List of (graph to run, (expected hit count, expected miss count))
+    ArrayList<Pair<TargetGraph, Pair<Integer, Integer>>> runList = new ArrayList<>();
+
+    // First run for graph 1, which has 2 rules, should be a miss.
+    runList.add(new Pair<>(targetGraph1, new Pair<>(0, 1)));
+    // First run for graph 2 should be a miss, and evict graph 1 to stay within 2 rules.
+    runList.add(new Pair<>(targetGraph2, new Pair<>(0, 2)));
+    // Second run for graph 2 should be a hit.
+    runList.add(new Pair<>(targetGraph2, new Pair<>(1, 2)));
+    // Second run for graph 1 should be a miss.
+    runList.add(new Pair<>(targetGraph1, new Pair<>(1, 3)));
+
+    runAndCheckExpectedHitMissCount(cache, runList);
+  }
+
   @Test
   public void testLruEvictionOrder() {
     ActionGraphProvider cache =
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.util.graph;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+public class CompactDirectedGraphTest {
+
+  //           A
+  //         /  \
+  //       B     C
+  //      /     / \
+  //    D    __/   E
+  //  /  \  /
+  // F    G
+  private MutableDirectedGraph<String> makeGraph() {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    graph.addNode("C");
+    graph.addNode("B");
+    graph.addNode("E");
+    graph.addNode("A");
+    graph.addNode("F");
+    graph.addNode("G");
+    graph.addNode("D");
+
+    graph.addEdge("D", "G");
+    graph.addEdge("A", "C");
+    graph.addEdge("D", "F");
+    graph.addEdge("B", "D");
+    graph.addEdge("A", "B");
+    graph.addEdge("C", "E");
+    graph.addEdge("C", "G");
+    return graph;
+  }
+
+  @Test
+  public void keepsNodesAndEdgesInOrder() {
+    MutableDirectedGraph<String> graph = makeGraph();
+    CompactDirectedGraph<String> compactGraph = CompactDirectedGraph.copyOf(graph);
+
+    assertEquals(7, compactGraph.getNodeCount());
+    assertEquals(7, compactGraph.getEdgeCount());
+    assertEquals(
+        ImmutableList.copyOf(graph.getNodes()), ImmutableList.copyOf(compactGraph.getNodes()));
+    for (String node : graph.getNodes()) {
+      int index = compactGraph.getIndex(node);
+      assertEquals(node, compactGraph.getNode(index));
+      assertEquals(
+          ImmutableList.copyOf(graph.getOutgoingNodesFor(node)),
+          ImmutableList.copyOf(compactGraph.getOutgoingNodesFor(node)));
+      assertEquals(
+          ImmutableList.copyOf(graph.getIncomingNodesFor(node)),
+          ImmutableList.copyOf(compactGraph.getIncomingNodesFor(node)));
+      assertEquals(
+          Iterables.size(graph.getOutgoingNodesFor(node)), compactGraph.getOutDegree(index));
+      assertEquals(
+          Iterables.size(graph.getIncomingNodesFor(node)), compactGraph.getInDegree(index));
+    }
+    assertEquals(
+        ImmutableList.copyOf(graph.getNodesWithNoIncomingEdges()),
+        ImmutableList.copyOf(compactGraph.getNodesWithNoIncomingEdges()));
+    assertEquals(
+        ImmutableList.copyOf(graph.getNodesWithNoOutgoingEdges()),
+        ImmutableList.copyOf(compactGraph.getNodesWithNoOutgoingEdges()));
+  }
+
+  @Test
+  public void nodeSetsBehaveLikeSets() {
+    CompactDirectedGraph<String> compactGraph = CompactDirectedGraph.copyOf(makeGraph());
+
+    assertEquals(ImmutableSet.of("E", "G"), compactGraph.getOutgoingNodesFor("C"));
+    assertTrue(compactGraph.getOutgoingNodesFor("C").contains("G"));
+    assertFalse(compactGraph.getOutgoingNodesFor("C").contains("F"));
+    assertFalse(compactGraph.getOutgoingNodesFor("C").contains("not a node"));
+    assertEquals(ImmutableSet.of("C", "D"), compactGraph.getIncomingNodesFor("G"));
+    assertEquals(-1, compactGraph.getIndex("not a node"));
+    assertTrue(compactGraph.getOutgoingNodesFor("not a node").isEmpty());
+  }
+
+  @Test
+  public void equalityIgnoresOrder() {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    graph.addEdge("A", "B");
+    graph.addEdge("A", "C");
+    MutableDirectedGraph<String> reordered = new MutableDirectedGraph<>();
+    reordered.addNode("C");
+    reordered.addEdge("A", "C");
+    reordered.addEdge("A", "B");
+    MutableDirectedGraph<String> different = new MutableDirectedGraph<>();
+    different.addEdge("A", "B");
+    different.addEdge("B", "C");
+
+    assertEquals(CompactDirectedGraph.copyOf(graph), CompactDirectedGraph.copyOf(reordered));
+    assertEquals(
+        CompactDirectedGraph.copyOf(graph).hashCode(),
+        CompactDirectedGraph.copyOf(reordered).hashCode());
+    assertNotEquals(CompactDirectedGraph.copyOf(graph), CompactDirectedGraph.copyOf(different));
+  }
+
+  @Test
+  public void traversalsMatchTheOnesOnMultimapGraphs() throws CycleException {
+    for (int seed = 0; seed < 20; seed++) {
+      MutableDirectedGraph<Integer> graph = makeRandomDag(new Random(seed), 200, 3);
+      CompactDirectedGraph<Integer> compactGraph = CompactDirectedGraph.copyOf(graph);
+
+      assertEquals(
+          TopologicalSort.sort(graph), compactGraph.toNodes(compactGraph.topologicalSort()));
+
+      List<Integer> postOrder = new ArrayList<>();
+      new AcyclicDepthFirstPostOrderTraversal<Integer>(
+              node -> graph.getOutgoingNodesFor(node).iterator())
+          .traverse(graph.getNodesWithNoIncomingEdges(), node -> node % 7 != 0)
+          .forEach(postOrder::add);
+      assertEquals(
+          postOrder,
+          compactGraph.toNodes(
+              compactGraph.depthFirstPostOrder(
+                  compactGraph.getIndexesOfNodesWithNoIncomingEdges(),
+                  index -> compactGraph.getNode(index) % 7 != 0)));
+    }
+  }
+
+  @Test
+  public void reverseBreadthFirstStaysWithinTransitiveClosure() {
+    for (int seed = 0; seed < 20; seed++) {
+      Random random = new Random(seed);
+      MutableDirectedGraph<Integer> graph = makeRandomDag(random, 200, 3);
+      CompactDirectedGraph<Integer> compactGraph = CompactDirectedGraph.copyOf(graph);
+      int universe = 100 + random.nextInt(100);
+      int[] roots = {random.nextInt(200), random.nextInt(200), random.nextInt(200)};
+      int maxDepth = random.nextInt(5);
+
+      Set<Integer> closure = new LinkedHashSet<>();
+      new AbstractBreadthFirstTraversal<Integer>(universe) {
+        @Override
+        public Iterable<Integer> visit(Integer node) {
+          closure.add(node);
+          return graph.getOutgoingNodesFor(node);
+        }
+      }.start();
+      BitSet compactClosure = compactGraph.getTransitiveClosure(new int[] {universe});
+      assertEquals(
+          ImmutableSet.copyOf(closure),
+          ImmutableSet.copyOf(compactGraph.toNodes(compactClosure.stream().toArray())));
+
+      List<Integer> expected = new ArrayList<>();
+      List<Integer> level = new ArrayList<>();
+      for (int root : roots) {
+        level.add(root);
+      }
+      for (int depth = 0; depth <= maxDepth && !level.isEmpty(); depth++) {
+        List<Integer> nextLevel = new ArrayList<>();
+        for (int node : level) {
+          if (closure.contains(node) && !expected.contains(node)) {
+            expected.add(node);
+            Iterables.addAll(nextLevel, graph.getIncomingNodesFor(node));
+          }
+        }
+        level = nextLevel;
+      }
+      int[] rootIndexes = Arrays.stream(roots).map(compactGraph::getIndex).toArray();
+      assertEquals(
+          expected,
+          compactGraph.toNodes(
+              compactGraph.reverseBreadthFirst(rootIndexes, compactClosure, maxDepth)));
+    }
+  }
+
+  @Test
+  public void topologicalSortLeavesOutCycles() {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    graph.addEdge("A", "B");
+    graph.addEdge("B", "C");
+    graph.addEdge("C", "B");
+    graph.addNode("D");
+    CompactDirectedGraph<String> compactGraph = CompactDirectedGraph.copyOf(graph);
+
+    assertArrayEquals(new int[] {compactGraph.getIndex("D")}, compactGraph.topologicalSort());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void depthFirstPostOrderDetectsCycles() {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    graph.addEdge("A", "B");
+    graph.addEdge("B", "C");
+    graph.addEdge("C", "B");
+    CompactDirectedGraph<String> compactGraph = CompactDirectedGraph.copyOf(graph);
+
+    compactGraph.depthFirstPostOrder(new int[] {compactGraph.getIndex("A")}, index -> true);
+  }
+
+  /** Creates a DAG where each node has edges to up to {@code maxDeps} nodes added before it. */
+  static MutableDirectedGraph<Integer> makeRandomDag(Random random, int nodeCount, int maxDeps) {
+    MutableDirectedGraph<Integer> graph = new MutableDirectedGraph<>();
+    for (int node = 0; node < nodeCount; node++) {
+      graph.addNode(node);
+      int deps = node == 0 ? 0 : random.nextInt(maxDeps + 1);
+      for (int i = 0; i < deps; i++) {
+        graph.addEdge(node, random.nextInt(node));
+      }
+    }
+    return graph;
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.util.graph;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+/**
+ * Compares traversing a synthetic target graph sized DAG stored in the multimaps of a {@link
+ * MutableDirectedGraph} with traversing it as a {@link DirectedAcyclicGraph}, which stores it as a
+ * {@link CompactDirectedGraph}.
+ *
+ * <p>{@link #main} also prints the heap retained by both representations of the graph.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DirectedGraphBenchmark {
+
+  private static final int HEAP_MEASUREMENT_NODES = 400000;
+
+  @SuppressWarnings("unused")
+  private static volatile Object retainedForMeasurement;
+
+  @Param({"MULTIMAP", "COMPACT"})
+  public String representation;
+
+  @Param({"400000"})
+  public int numberOfNodes;
+
+  @Param({"8"})
+  public int maxDepsPerNode;
+
+  private TraversableGraph<Node> graph;
+
+  @Setup(Level.Trial)
+  public void setUpGraph() {
+    MutableDirectedGraph<Node> mutableGraph = createGraph(numberOfNodes, maxDepsPerNode);
+    graph =
+        representation.equals("COMPACT") ? new DirectedAcyclicGraph<>(mutableGraph) : mutableGraph;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public void topologicalSort(Blackhole blackhole) {
+    blackhole.consume(TopologicalSort.sort(graph));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public void bottomUpTraversal(Blackhole blackhole) {
+    new AbstractBottomUpTraversal<Node, RuntimeException>(graph) {
+      @Override
+      public void visit(Node node) {
+        blackhole.consume(node);
+      }
+    }.traverse();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public void visitAllEdges(Blackhole blackhole) {
+    for (Node node : graph.getNodes()) {
+      for (Node dep : graph.getOutgoingNodesFor(node)) {
+        blackhole.consume(dep);
+      }
+    }
+  }
+
+  /**
+   * Creates a DAG where each node has edges to up to {@code maxDepsPerNode} of the nodes created
+   * before it, mostly recent ones, as targets mostly depend on targets close to them.
+   */
+  private static MutableDirectedGraph<Node> createGraph(int numberOfNodes, int maxDepsPerNode) {
+    Random random = new Random(0);
+    Node[] nodes = new Node[numberOfNodes];
+    MutableDirectedGraph<Node> graph = new MutableDirectedGraph<>();
+    for (int i = 0; i < numberOfNodes; i++) {
+      nodes[i] = new Node("//some/package" + i / 10 + ":target" + i);
+      graph.addNode(nodes[i]);
+      int deps = i == 0 ? 0 : random.nextInt(maxDepsPerNode + 1);
+      for (int j = 0; j < deps; j++) {
+        int distance = 1 + (int) Math.abs(random.nextGaussian() * 1000);
+        graph.addEdge(nodes[i], nodes[Math.max(0, i - distance)]);
+      }
+    }
+    return graph;
+  }
+
+  /** A node with the hashing and equality cost of a build target. */
+  private static final class Node {
+    private final String name;
+
+    private Node(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Node && name.equals(((Node) other).name);
+    }
+
+    @Override
+    public int hashCode() {
+      return name.hashCode();
+    }
+  }
+
+  private static long measureRetainedHeapBytes(Supplier<Object> supplier) {
+    long before = usedHeapBytes();
+    retainedForMeasurement = supplier.get();
+    long bytes = usedHeapBytes() - before;
+    retainedForMeasurement = null;
+    return bytes;
+  }
+
+  private static long usedHeapBytes() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  public static void main(String[] args) throws IOException, RunnerException {
+    MutableDirectedGraph<Node> mutableGraph = createGraph(HEAP_MEASUREMENT_NODES, 8);
+    // Leave out the nodes themselves, as both representations share them.
+    long multimapBytes =
+        measureRetainedHeapBytes(() -> createGraph(HEAP_MEASUREMENT_NODES, 8))
+            - measureNodesBytes();
+    long compactBytes = measureRetainedHeapBytes(() -> new DirectedAcyclicGraph<>(mutableGraph));
+    System.out.printf(
+        "Retained heap for %d nodes and %d edges: multimaps %d MB, compact %d MB%n",
+        mutableGraph.getNodeCount(),
+        mutableGraph.getEdgeCount(),
+        multimapBytes >> 20,
+        compactBytes >> 20);
+
+    Main.main(new String[] {DirectedGraphBenchmark.class.getName()});
+  }
+
+  private static long measureNodesBytes() {
+    return measureRetainedHeapBytes(
+        () -> {
+          Node[] nodes = new Node[HEAP_MEASUREMENT_NODES];
+          for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node("//some/package" + i / 10 + ":target" + i);
+          }
+          return nodes;
+        });
+  }
+}
@@ -27,8 +27,10 @@ import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.ClientCertificateHandler;
 import com.facebook.buck.artifact_cache.DirArtifactCacheTestUtil;
+import com.facebook.buck.artifact_cache.HttpArtifactCacheBinaryProtocol;
 import com.facebook.buck.artifact_cache.TestArtifactCaches;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.core.cell.CellPathResolver;
 import com.facebook.buck.core.cell.TestCellPathResolver;
 import com.facebook.buck.core.cell.name.CanonicalCellName;
@@ -56,16 +58,25 @@ import com.facebook.buck.testutil.TemporaryPaths;
 import com.facebook.buck.util.environment.Architecture;
 import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.timing.FakeClock;
+import com.facebook.buck.util.types.Pair;
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
@@ -181,6 +192,151 @@ public class ServedCacheIntegrationTest {
         projectFilesystem.readFileIfItExists(fetchedContents).get(), Matchers.equalTo(A_FILE_DATA));
   }
 
+  @Test
+  public void testFetchFromServedDircacheInPlace() throws Exception {
+    // This is how the cache is served by buckd, without decorators.
+    ArtifactCache servedCache =
+        TestArtifactCaches.createDirCacheForTest(
+            projectFilesystem.getRootPath(), Paths.get("test-cache"));
+    webServer = new WebServer(/* port */ 0, projectFilesystem, FakeClock.doNotCare());
+    webServer.updateAndStartIfNeeded(Optional.of(servedCache));
+
+    ArtifactCache serverBackedCache =
+        createArtifactCache(createMockLocalHttpCacheConfig(webServer.getPort()));
+
+    Path fetchedContents = tmpDir.newFile();
+    CacheResult cacheResult =
+        Futures.getUnchecked(
+            serverBackedCache.fetchAsync(
+                null, A_FILE_RULE_KEY, LazyPath.ofInstance(fetchedContents)));
+    assertThat(cacheResult.getType(), Matchers.equalTo(CacheResultType.HIT));
+    assertThat(cacheResult.getMetadata(), Matchers.equalTo(A_FILE_METADATA));
+    assertThat(
+        projectFilesystem.readFileIfItExists(fetchedContents).get(), Matchers.equalTo(A_FILE_DATA));
+  }
+
+  @Test
+  public void testRangeRequestFromServedDircache() throws Exception {
+    ArtifactCache servedCache =
+        TestArtifactCaches.createDirCacheForTest(
+            projectFilesystem.getRootPath(), Paths.get("test-cache"));
+    webServer = new WebServer(/* port */ 0, projectFilesystem, FakeClock.doNotCare());
+    webServer.updateAndStartIfNeeded(Optional.of(servedCache));
+
+    // The payload is at the end of the response, so a suffix range of its length is just it.
+    HttpURLConnection connection =
+        (HttpURLConnection)
+            new URL(
+                    String.format(
+                        "http://127.0.0.1:%d/artifacts/key/%s",
+                        webServer.getPort(), A_FILE_RULE_KEY))
+                .openConnection();
+    connection.setRequestProperty("Range", "bytes=-" + A_FILE_DATA.length());
+    try (InputStream in = connection.getInputStream()) {
+      assertThat(connection.getResponseCode(), Matchers.equalTo(206));
+      assertThat(
+          new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8),
+          Matchers.equalTo(A_FILE_DATA));
+    }
+  }
+
+  @Test
+  public void testMultiFetchFromServedDircache() throws Exception {
+    webServer = new WebServer(/* port */ 0, projectFilesystem, FakeClock.doNotCare());
+    webServer.updateAndStartIfNeeded(Optional.of(dirCache));
+
+    ArtifactCache serverBackedCache =
+        createArtifactCache(
+            createMockLocalConfig(
+                "[cache]",
+                "mode = http",
+                String.format("http_url = http://127.0.0.1:%d/", webServer.getPort()),
+                "http_multi_fetch = true"));
+
+    Path fetchedContents = tmpDir.newFile();
+    CacheResult cacheResult =
+        Futures.getUnchecked(
+            serverBackedCache.fetchAsync(
+                null, A_FILE_RULE_KEY, LazyPath.ofInstance(fetchedContents)));
+    assertThat(cacheResult.getType(), Matchers.equalTo(CacheResultType.HIT));
+    assertThat(cacheResult.getMetadata(), Matchers.equalTo(A_FILE_METADATA));
+    assertThat(
+        projectFilesystem.readFileIfItExists(fetchedContents).get(), Matchers.equalTo(A_FILE_DATA));
+
+    RuleKey missingRuleKey = new RuleKey("9876543210");
+    assertThat(
+        Futures.getUnchecked(
+                serverBackedCache.fetchAsync(
+                    null, missingRuleKey, LazyPath.ofInstance(tmpDir.newFile())))
+            .getType(),
+        Matchers.equalTo(CacheResultType.MISS));
+    assertThat(
+        Futures.getUnchecked(
+            serverBackedCache.multiContainsAsync(
+                ImmutableSet.of(A_FILE_RULE_KEY, missingRuleKey))),
+        Matchers.equalTo(
+            ImmutableMap.of(
+                A_FILE_RULE_KEY,
+                CacheResult.contains("http", ArtifactCacheMode.http),
+                missingRuleKey,
+                CacheResult.miss())));
+  }
+
+  @Test
+  public void testMultiFetchResponseFromServedDircache() throws Exception {
+    webServer = new WebServer(/* port */ 0, projectFilesystem, FakeClock.doNotCare());
+    webServer.updateAndStartIfNeeded(Optional.of(dirCache));
+
+    HttpURLConnection connection =
+        (HttpURLConnection)
+            new URL(String.format("http://127.0.0.1:%d/artifacts/multi_fetch", webServer.getPort()))
+                .openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(
+          HttpArtifactCacheBinaryProtocol.createMultiKeyRequest(
+              ImmutableList.of(new RuleKey("9876543210"), A_FILE_RULE_KEY)));
+    }
+    // Artifacts come back in the order they were asked for, each after whether it was found.
+    try (DataInputStream in = new DataInputStream(connection.getInputStream())) {
+      assertThat(connection.getResponseCode(), Matchers.equalTo(200));
+      assertFalse(in.readBoolean());
+      assertTrue(in.readBoolean());
+      byte[] fetchResponse = new byte[(int) in.readLong()];
+      in.readFully(fetchResponse);
+      assertThat(
+          new String(fetchResponse, StandardCharsets.UTF_8), Matchers.endsWith(A_FILE_DATA));
+      assertThat(in.read(), Matchers.equalTo(-1));
+    }
+  }
+
+  @Test
+  public void testParseRange() {
+    assertThat(ArtifactCacheHandler.parseRange(null, 100), Matchers.equalTo(Optional.empty()));
+    assertThat(
+        ArtifactCacheHandler.parseRange("bytes=10-19", 100),
+        Matchers.equalTo(Optional.of(new Pair<>(10L, 19L))));
+    assertThat(
+        ArtifactCacheHandler.parseRange("bytes=90-", 100),
+        Matchers.equalTo(Optional.of(new Pair<>(90L, 99L))));
+    assertThat(
+        ArtifactCacheHandler.parseRange("bytes=-10", 100),
+        Matchers.equalTo(Optional.of(new Pair<>(90L, 99L))));
+    assertThat(
+        ArtifactCacheHandler.parseRange("bytes=90-200", 100),
+        Matchers.equalTo(Optional.of(new Pair<>(90L, 99L))));
+    // Unsatisfiable ranges start past the end.
+    assertThat(
+        ArtifactCacheHandler.parseRange("bytes=100-", 100).get().getFirst(),
+        Matchers.greaterThanOrEqualTo(100L));
+    // Invalid and multiple ranges are ignored.
+    assertThat(
+        ArtifactCacheHandler.parseRange("bytes=20-10", 100), Matchers.equalTo(Optional.empty()));
+    assertThat(
+        ArtifactCacheHandler.parseRange("bytes=0-1,5-6", 100), Matchers.equalTo(Optional.empty()));
+  }
+
   private static class ThrowAfterXBytesStream extends FilterInputStream {
     private final long bytesToThrowAfter;
     private long bytesRead = 0L;
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.io.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class SnapshotFileTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private Path path;
+
+  @Before
+  public void setUp() {
+    path = tmp.getRoot().resolve("state/snapshot.bin");
+  }
+
+  @Test
+  public void recordsAreReadBack() throws IOException {
+    SnapshotFile snapshotFile = new SnapshotFile("test", 0x54455354, 1);
+    writeRecords(snapshotFile, "a", "b");
+
+    assertEquals(ImmutableList.of("a", "b"), readRecords(snapshotFile));
+    try (Stream<Path> files = Files.list(path.getParent())) {
+      assertEquals(ImmutableList.of(path), files.collect(ImmutableList.toImmutableList()));
+    }
+  }
+
+  @Test
+  public void snapshotsInAnotherVersionAreIgnored() throws IOException {
+    writeRecords(new SnapshotFile("test", 0x54455354, 1), "a");
+
+    assertTrue(readRecords(new SnapshotFile("test", 0x54455354, 2)).isEmpty());
+  }
+
+  @Test
+  public void missingSnapshotsAreEmpty() {
+    assertTrue(readRecords(new SnapshotFile("test", 0x54455354, 1)).isEmpty());
+  }
+
+  @Test
+  public void recordsBeforeATruncationAreKept() throws IOException {
+    SnapshotFile snapshotFile = new SnapshotFile("test", 0x54455354, 1);
+    writeRecords(snapshotFile, "a", "b");
+    byte[] contents = Files.readAllBytes(path);
+    Files.write(path, Arrays.copyOf(contents, contents.length - 3));
+
+    assertEquals(ImmutableList.of("a"), readRecords(snapshotFile));
+  }
+
+  private void writeRecords(SnapshotFile snapshotFile, String... records) throws IOException {
+    snapshotFile.write(
+        path,
+        out -> {
+          for (String record : records) {
+            out.writeBoolean(true);
+            out.writeUTF(record);
+          }
+          out.writeBoolean(false);
+        });
+  }
+
+  private List<String> readRecords(SnapshotFile snapshotFile) {
+    List<String> records = new ArrayList<>();
+    snapshotFile.read(
+        path,
+        in -> {
+          while (in.readBoolean()) {
+            records.add(in.readUTF());
+          }
+        });
+    return records;
+  }
+}
@@ -38,6 +38,7 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
@@ -68,6 +69,7 @@ import java.nio.file.NotLinkException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileTime;
@@ -83,6 +85,7 @@ import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
@@ -808,6 +811,29 @@ public class FakeProjectFilesystem extends DefaultProjectFilesystem {
     }
   }
 
+  @Override
+  ImmutableMap<Path, BasicFileAttributes> getFilesAndAttributesWithPathMapping(
+      Path root,
+      EnumSet<FileVisitOption> visitOptions,
+      DirectoryStream.Filter<? super Path> ignoreFilter,
+      Function<Path, Path> pathMapper)
+      throws IOException {
+    ImmutableMap.Builder<Path, BasicFileAttributes> files = ImmutableMap.builder();
+    walkFileTreeWithPathMapping(
+        root,
+        visitOptions,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+            files.put(path, attributes);
+            return FileVisitResult.CONTINUE;
+          }
+        },
+        ignoreFilter,
+        pathMapper);
+    return files.build();
+  }
+
   @Override
   public void copyFolder(Path source, Path target) {
     throw new UnsupportedOperationException();
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.io.filesystem.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.concurrent.DirectoryListingPool;
+import com.facebook.buck.util.environment.Platform;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ParallelFileTreeWalkerTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ParallelFileTreeWalker newWalker(
+      Set<FileVisitOption> options, Function<Path, Path> pathMapper) {
+    return new ParallelFileTreeWalker(
+        DirectoryListingPool.get(), options, path -> true, path -> true, pathMapper);
+  }
+
+  @Test
+  public void findsFilesInTheOrderOfASequentialWalk() throws IOException {
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < 5; j++) {
+        tmp.newFolder("dir" + i, "sub" + j);
+        tmp.newFile("dir" + i + "/sub" + j + "/file");
+      }
+      tmp.newFile("dir" + i + "/file");
+    }
+    tmp.newFile("file");
+    DefaultProjectFilesystem filesystem =
+        TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+
+    List<Path> expected = new ArrayList<>();
+    filesystem.walkRelativeFileTree(
+        Paths.get(""),
+        EnumSet.noneOf(FileVisitOption.class),
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            expected.add(file);
+            return FileVisitResult.CONTINUE;
+          }
+        },
+        true);
+    ImmutableMap<Path, BasicFileAttributes> files =
+        newWalker(EnumSet.noneOf(FileVisitOption.class), tmp.getRoot()::relativize)
+            .walk(tmp.getRoot());
+
+    assertEquals(31, expected.size());
+    assertEquals(expected, ImmutableList.copyOf(files.keySet()));
+    assertTrue(files.values().stream().allMatch(BasicFileAttributes::isRegularFile));
+  }
+
+  @Test
+  public void doesNotListIgnoredDirectories() throws IOException {
+    tmp.newFolder("ignored", "sub");
+    tmp.newFile("ignored/sub/file");
+    tmp.newFolder("kept");
+    tmp.newFile("kept/file");
+    Path ignored = tmp.getRoot().resolve("ignored");
+    Set<Path> filtered = ConcurrentHashMap.newKeySet();
+
+    ImmutableMap<Path, BasicFileAttributes> files =
+        new ParallelFileTreeWalker(
+                DirectoryListingPool.get(),
+                EnumSet.noneOf(FileVisitOption.class),
+                path -> {
+                  filtered.add(path);
+                  return !path.equals(ignored);
+                },
+                path -> true,
+                tmp.getRoot()::relativize)
+            .walk(tmp.getRoot());
+
+    assertEquals(ImmutableList.of(Paths.get("kept/file")), files.keySet().asList());
+    assertTrue(filtered.contains(ignored));
+    assertFalse(filtered.contains(ignored.resolve("sub")));
+  }
+
+  @Test
+  public void returnsTheRootWhenItIsAFile() throws IOException {
+    Path file = tmp.newFile("file");
+
+    assertEquals(
+        ImmutableList.of(file),
+        newWalker(EnumSet.noneOf(FileVisitOption.class), Function.identity())
+            .walk(file)
+            .keySet()
+            .asList());
+  }
+
+  @Test(expected = FileSystemLoopException.class)
+  public void detectsLoopsWhenFollowingLinks() throws IOException {
+    Assume.assumeTrue("System supports symlinks", !Platform.detect().equals(Platform.WINDOWS));
+    Path dir = tmp.newFolder("dir", "sub");
+    Files.createSymbolicLink(dir.resolve("loop"), tmp.getRoot().resolve("dir"));
+
+    newWalker(EnumSet.of(FileVisitOption.FOLLOW_LINKS), Function.identity()).walk(tmp.getRoot());
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.exceptions.ParsingError;
+import com.facebook.buck.parser.syntax.ListWithSelects;
+import com.facebook.buck.parser.syntax.SelectorValue;
+import com.facebook.buck.skylark.io.GlobSpec;
+import com.facebook.buck.skylark.io.GlobSpecWithResult;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import java.io.IOException;
+import java.util.Optional;
+import org.junit.Test;
+
+public class BuildFileManifestCodecTest {
+
+  @Test
+  public void decodedManifestEqualsEncodedOne() throws Exception {
+    ImmutableMap<String, Object> target =
+        ImmutableMap.<String, Object>builder()
+            .put("name", "foo")
+            .put("buck.base_path", "foo")
+            .put("srcs", ImmutableSortedSet.of("B.java", "A.java"))
+            .put("exported", true)
+            .put("timeout", 30)
+            .put("labels", ImmutableSet.of("z", "a"))
+            .put("env", ImmutableSortedMap.of("B", "1", "A", "2"))
+            .put(
+                "deps",
+                ListWithSelects.of(
+                    ImmutableList.of(
+                        ImmutableList.of(":bar"),
+                        SelectorValue.of(
+                            ImmutableMap.of(
+                                "//config:linux", ImmutableList.of(":linux"),
+                                "DEFAULT", ImmutableList.of()),
+                            "")),
+                    ImmutableList.class))
+            .build();
+    BuildFileManifest manifest =
+        BuildFileManifest.of(
+            ImmutableMap.of("foo", target),
+            ImmutableSortedSet.of("/repo/defs.bzl"),
+            ImmutableMap.of("section", ImmutableMap.of("key", Optional.of("value"))),
+            Optional.of(ImmutableMap.of("HOME", Optional.of("/home"), "UNSET", Optional.empty())),
+            ImmutableList.of(
+                GlobSpecWithResult.of(
+                    GlobSpec.of(ImmutableList.of("*.java"), ImmutableList.of("Test*"), true),
+                    ImmutableSet.of("A.java", "B.java"))),
+            ImmutableList.of(ParsingError.of("error", ImmutableList.of("frame"))));
+
+    assertEquals(manifest, BuildFileManifestCodec.decode(BuildFileManifestCodec.encode(manifest)));
+  }
+
+  @Test(expected = IOException.class)
+  public void encodingUnsupportedValueFails() throws Exception {
+    BuildFileManifestCodec.encode(
+        BuildFileManifest.of(
+            ImmutableMap.of("foo", ImmutableMap.of("name", "foo", "value", new Object())),
+            ImmutableSortedSet.of(),
+            ImmutableMap.of(),
+            Optional.empty(),
+            ImmutableList.of(),
+            ImmutableList.of()));
+  }
+}
@@ -32,6 +32,9 @@ import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.BuildTargetFactory;
 import com.facebook.buck.core.model.RuleType;
 import com.facebook.buck.core.model.UnconfiguredBuildTarget;
+import com.facebook.buck.core.model.targetgraph.FakeTargetNodeBuilder;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.core.model.targetgraph.TargetNodeMaybeIncompatible;
 import com.facebook.buck.core.model.targetgraph.impl.ImmutableUnconfiguredTargetNode;
 import com.facebook.buck.core.model.targetgraph.raw.UnconfiguredTargetNode;
 import com.facebook.buck.core.parser.buildtargetpattern.UnconfiguredBuildTargetParser;
@@ -178,6 +181,38 @@ public class DaemonicCellStateTest {
         cache.lookupComputedNode(target.getUnconfiguredBuildTarget()));
   }
 
+  @Test
+  public void targetNodeIndexFollowsTheTargetNodeCache() throws BuildTargetException {
+    TargetNodeIndex index = new TargetNodeIndex();
+    DaemonicCellState indexedState = new DaemonicCellState(cells.getRootCell(), 1, index);
+    Cache<BuildTarget, TargetNodeMaybeIncompatible> cache =
+        indexedState.getCache(DaemonicCellState.TARGET_NODE_CACHE_TYPE);
+    BuildTarget lib = BuildTargetFactory.newInstance("//path/to:lib");
+    BuildTarget bin = BuildTargetFactory.newInstance("//other:bin");
+    populateDummyRawNode(indexedState, lib);
+    populateDummyRawNode(indexedState, bin);
+    TargetNode<?> libNode = FakeTargetNodeBuilder.newBuilder(lib).build();
+    TargetNode<?> binNode = FakeTargetNodeBuilder.newBuilder(bin).setDeps(libNode).build();
+
+    cache.putComputedNodeIfNotPresent(lib, TargetNodeMaybeIncompatible.ofCompatible(libNode));
+    assertEquals(0, index.size());
+
+    // Nodes cached before the index was enabled are added to it explicitly.
+    index.enable();
+    indexedState.addToTargetNodeIndex();
+    assertEquals(Optional.of(libNode), index.getNode(lib));
+
+    cache.putComputedNodeIfNotPresent(bin, TargetNodeMaybeIncompatible.ofCompatible(binNode));
+    assertEquals(ImmutableSet.of(binNode), index.getDependents(lib));
+
+    indexedState.invalidatePath(AbsPath.of(filesystem.resolve("other/BUCK")));
+    assertEquals(ImmutableSet.of(), index.getDependents(lib));
+    assertEquals(Optional.of(libNode), index.getNode(lib));
+
+    indexedState.removeFromTargetNodeIndex();
+    assertEquals(0, index.size());
+  }
+
   @Test
   public void putPackageIfNotPresent() {
     AbsPath packageFile = dummyPackageFile();
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.cell.TestCellBuilder;
+import com.facebook.buck.core.config.FakeBuckConfig;
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.core.filesystems.RelPath;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.io.watchman.WatchmanEvent.Kind;
+import com.facebook.buck.io.watchman.WatchmanPathEvent;
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.skylark.io.GlobSpec;
+import com.facebook.buck.skylark.io.GlobSpecWithResult;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ParserStateSnapshotTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private BuckEventBus eventBus;
+  private Path snapshotPath;
+  private AbsPath buildFile;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    eventBus = BuckEventBusForTests.newInstance();
+    snapshotPath = tmp.getRoot().resolve("parser_state.bin");
+    filesystem.mkdirs(filesystem.getPath("foo"));
+    filesystem.writeContentsToPath("java_library(name = 'foo')", filesystem.getPath("foo/BUCK"));
+    filesystem.writeContentsToPath("", filesystem.getPath("foo/A.java"));
+    buildFile = AbsPath.of(filesystem.resolve("foo/BUCK"));
+  }
+
+  @Test
+  public void manifestIsRestoredIfInputsAreUnchanged() throws Exception {
+    Cell cell = createCell(ImmutableMap.of());
+    BuildFileManifest manifest = createManifest(ImmutableMap.of(), ImmutableSet.of("A.java"));
+    saveSnapshot(cell, manifest);
+
+    DaemonicParserState restored = loadSnapshot();
+
+    assertEquals(
+        Optional.of(manifest),
+        restored.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus));
+  }
+
+  @Test
+  public void manifestIsNotRestoredIfBuildFileChanged() throws Exception {
+    Cell cell = createCell(ImmutableMap.of());
+    saveSnapshot(cell, createManifest(ImmutableMap.of(), ImmutableSet.of("A.java")));
+    filesystem.writeContentsToPath("java_library(name = 'bar')", filesystem.getPath("foo/BUCK"));
+
+    DaemonicParserState restored = loadSnapshot();
+
+    assertFalse(
+        restored.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus).isPresent());
+  }
+
+  @Test
+  public void manifestIsNotRestoredIfGlobResultsChanged() throws Exception {
+    Cell cell = createCell(ImmutableMap.of());
+    saveSnapshot(cell, createManifest(ImmutableMap.of(), ImmutableSet.of("A.java")));
+    filesystem.writeContentsToPath("", filesystem.getPath("foo/B.java"));
+
+    DaemonicParserState restored = loadSnapshot();
+
+    assertFalse(
+        restored.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus).isPresent());
+  }
+
+  @Test
+  public void manifestIsNotRestoredIfConfigurationItReadChanged() throws Exception {
+    ImmutableMap<String, Object> configs =
+        ImmutableMap.of("foo", ImmutableMap.of("bar", Optional.of("baz")));
+    saveSnapshot(
+        createCell(ImmutableMap.of("foo", ImmutableMap.of("bar", "baz"))),
+        createManifest(configs, ImmutableSet.of("A.java")));
+    Cell changedCell = createCell(ImmutableMap.of("foo", ImmutableMap.of("bar", "qux")));
+
+    DaemonicParserState restored = loadSnapshot();
+
+    assertFalse(
+        restored
+            .getRawNodeCache()
+            .lookupComputedNode(changedCell, buildFile, eventBus)
+            .isPresent());
+  }
+
+  @Test
+  public void manifestIsNotRestoredIfBuildFileChangedBeforeTheSnapshotWasSaved() throws Exception {
+    Cell cell = createCell(ImmutableMap.of());
+    DaemonicParserState state = loadSnapshot();
+    putManifest(state, cell, createManifest(ImmutableMap.of(), ImmutableSet.of("A.java")));
+    filesystem.writeContentsToPath("java_library(name = 'bar')", filesystem.getPath("foo/BUCK"));
+    state.saveSnapshot(snapshotPath);
+
+    DaemonicParserState restored = loadSnapshot();
+
+    assertFalse(
+        restored.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus).isPresent());
+  }
+
+  @Test
+  public void manifestIsNotSavedIfBuildFileChangedWhileParsing() throws Exception {
+    Cell cell = createCell(ImmutableMap.of());
+    BuildFileManifest manifest = createManifest(ImmutableMap.of(), ImmutableSet.of("A.java"));
+    DaemonicParserState state = loadSnapshot();
+    state.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus);
+    filesystem.writeContentsToPath("java_library(name = 'bar')", filesystem.getPath("foo/BUCK"));
+    state.getRawNodeCache().putComputedNodeIfNotPresent(cell, buildFile, manifest, false, eventBus);
+    state.saveSnapshot(snapshotPath);
+
+    DaemonicParserState restored = loadSnapshot();
+
+    assertFalse(
+        restored.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus).isPresent());
+  }
+
+  @Test
+  public void manifestIsNotSavedIfAFileChangeIsReportedWhileParsing() throws Exception {
+    Cell cell = createCell(ImmutableMap.of());
+    BuildFileManifest manifest = createManifest(ImmutableMap.of(), ImmutableSet.of("A.java"));
+    DaemonicParserState state = loadSnapshot();
+    state.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus);
+    state.invalidateBasedOn(
+        WatchmanPathEvent.of(
+            filesystem.getRootPath(), Kind.MODIFY, RelPath.get("foo/defs.bzl")));
+    state.getRawNodeCache().putComputedNodeIfNotPresent(cell, buildFile, manifest, false, eventBus);
+    state.saveSnapshot(snapshotPath);
+
+    DaemonicParserState restored = loadSnapshot();
+
+    assertFalse(
+        restored.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus).isPresent());
+  }
+
+  @Test
+  public void restoredManifestIsSavedAgain() throws Exception {
+    Cell cell = createCell(ImmutableMap.of());
+    BuildFileManifest manifest = createManifest(ImmutableMap.of(), ImmutableSet.of("A.java"));
+    saveSnapshot(cell, manifest);
+    DaemonicParserState restored = loadSnapshot();
+    restored.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus);
+    restored.saveSnapshot(snapshotPath);
+
+    DaemonicParserState restoredAgain = loadSnapshot();
+
+    assertEquals(
+        Optional.of(manifest),
+        restoredAgain.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus));
+  }
+
+  private Cell createCell(ImmutableMap<String, ImmutableMap<String, String>> sections) {
+    return new TestCellBuilder()
+        .setFilesystem(filesystem)
+        .setBuckConfig(
+            FakeBuckConfig.builder().setFilesystem(filesystem).setSections(sections).build())
+        .build()
+        .getRootCell();
+  }
+
+  private BuildFileManifest createManifest(
+      ImmutableMap<String, Object> configs, ImmutableSet<String> globResult) {
+    return BuildFileManifest.of(
+        ImmutableMap.of("foo", ImmutableMap.of("name", "foo", "buck.base_path", "foo")),
+        ImmutableSortedSet.of(),
+        configs,
+        Optional.of(ImmutableMap.of()),
+        ImmutableList.of(
+            GlobSpecWithResult.of(
+                GlobSpec.of(ImmutableList.of("*.java"), ImmutableList.of(), true), globResult)),
+        ImmutableList.of());
+  }
+
+  private void saveSnapshot(Cell cell, BuildFileManifest manifest) throws Exception {
+    DaemonicParserState state = loadSnapshot();
+    putManifest(state, cell, manifest);
+    state.saveSnapshot(snapshotPath);
+  }
+
+  private void putManifest(DaemonicParserState state, Cell cell, BuildFileManifest manifest) {
+    state.getRawNodeCache().lookupComputedNode(cell, buildFile, eventBus);
+    state.getRawNodeCache().putComputedNodeIfNotPresent(cell, buildFile, manifest, false, eventBus);
+  }
+
+  private DaemonicParserState loadSnapshot() {
+    DaemonicParserState state = new DaemonicParserState(1);
+    state.loadSnapshot(snapshotPath);
+    return state;
+  }
+}
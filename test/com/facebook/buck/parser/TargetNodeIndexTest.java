@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.model.targetgraph.FakeTargetNodeBuilder;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.google.common.collect.ImmutableSet;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TargetNodeIndexTest {
+
+  private TargetNode<?> a;
+  private TargetNode<?> b;
+  private TargetNode<?> c;
+  private TargetNodeIndex index;
+
+  @Before
+  public void setUp() {
+    //   a
+    //  / \
+    // b   |
+    //  \ /
+    //   c
+    c = FakeTargetNodeBuilder.newBuilder(BuildTargetFactory.newInstance("//:c")).build();
+    b = FakeTargetNodeBuilder.newBuilder(BuildTargetFactory.newInstance("//:b")).setDeps(c).build();
+    a =
+        FakeTargetNodeBuilder.newBuilder(BuildTargetFactory.newInstance("//:a"))
+            .setDeps(b, c)
+            .build();
+    index = new TargetNodeIndex();
+    index.enable();
+  }
+
+  @Test
+  public void nodesAreOnlyIndexedOnceEnabled() {
+    TargetNodeIndex disabledIndex = new TargetNodeIndex();
+    disabledIndex.add(a);
+
+    assertEquals(0, disabledIndex.size());
+    assertEquals(ImmutableSet.of(), disabledIndex.getDependents(c.getBuildTarget()));
+  }
+
+  @Test
+  public void indexesReverseDependencies() {
+    index.add(a);
+    index.add(b);
+    index.add(c);
+
+    assertEquals(3, index.size());
+    assertEquals(Optional.of(b), index.getNode(b.getBuildTarget()));
+    assertEquals(ImmutableSet.of(a, b), index.getDependents(c.getBuildTarget()));
+    assertEquals(ImmutableSet.of(a), index.getDependents(b.getBuildTarget()));
+    assertEquals(ImmutableSet.of(), index.getDependents(a.getBuildTarget()));
+  }
+
+  @Test
+  public void dependentsAreIndexedBeforeTheirDependencies() {
+    index.add(a);
+
+    assertFalse(index.getNode(c.getBuildTarget()).isPresent());
+    assertEquals(ImmutableSet.of(a), index.getDependents(c.getBuildTarget()));
+  }
+
+  @Test
+  public void removedNodesAreNoLongerDependents() {
+    index.add(a);
+    index.add(b);
+    index.add(c);
+
+    long version = index.getVersion();
+    index.remove(b.getBuildTarget());
+
+    assertNotEquals(version, index.getVersion());
+    assertFalse(index.getNode(b.getBuildTarget()).isPresent());
+    assertEquals(ImmutableSet.of(a), index.getDependents(c.getBuildTarget()));
+    // The dependents of a node which was removed are still in the cache.
+    assertEquals(ImmutableSet.of(a), index.getDependents(b.getBuildTarget()));
+
+    index.clear();
+
+    assertEquals(0, index.size());
+    assertEquals(ImmutableSet.of(), index.getDependents(c.getBuildTarget()));
+  }
+}
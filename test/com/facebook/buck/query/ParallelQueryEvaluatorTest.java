@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.query;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.model.QueryTarget;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ParallelQueryEvaluatorTest {
+
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private ExecutorService executor;
+  private TestQueryEnvironment env;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(2);
+    //   a   d
+    //   |   |
+    //   b   |
+    //    \ /
+    //     c
+    env = new TestQueryEnvironment();
+    env.addDep("//:a", "//:b");
+    env.addDep("//:b", "//:c");
+    env.addDep("//:d", "//:c");
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void evaluatesCommonSubexpressionsOnce() throws Exception {
+    ParallelQueryEvaluator<QueryBuildTarget> evaluator = new ParallelQueryEvaluator<>(executor);
+    QueryExpression<QueryBuildTarget> first =
+        QueryExpression.parse("rdeps(set(//:a //:d), //:c, 1) ^ deps(//:a)", env);
+    QueryExpression<QueryBuildTarget> second =
+        QueryExpression.parse("rdeps(set(//:a //:d), //:b)", env);
+
+    assertThat(evaluator.eval(first, env), containsInAnyOrder(target("//:b"), target("//:c")));
+    assertThat(evaluator.eval(second, env), contains(target("//:b"), target("//:a")));
+    assertTrue(evaluator.isPresent(QueryExpression.parse("set(//:a //:d)", env)));
+    assertEquals(Integer.valueOf(1), env.patternEvaluations.get("//:a"));
+    assertEquals(Integer.valueOf(1), env.patternEvaluations.get("//:c"));
+  }
+
+  @Test
+  public void evaluatesOperandsConcurrently() throws Exception {
+    CyclicBarrier barrier = new CyclicBarrier(2);
+    env.beforeEvaluatingPattern = () -> barrier.await(10, TimeUnit.SECONDS);
+    ParallelQueryEvaluator<QueryBuildTarget> evaluator = new ParallelQueryEvaluator<>(executor);
+
+    assertThat(
+        evaluator.eval(QueryExpression.parse("//:a + //:d", env), env),
+        contains(target("//:a"), target("//:d")));
+  }
+
+  @Test
+  public void evaluatesOnTheCallingThreadWithoutExecutor() throws Exception {
+    ParallelQueryEvaluator<QueryBuildTarget> evaluator =
+        new ParallelQueryEvaluator<>(MoreExecutors.directExecutor());
+
+    assertThat(
+        evaluator.eval(QueryExpression.parse("rdeps(//:a, //:c) - //:c", env), env),
+        contains(target("//:b"), target("//:a")));
+  }
+
+  @Test
+  public void rethrowsFailuresOfPrefetchedOperands() throws Exception {
+    env.beforeEvaluatingPattern =
+        () -> {
+          throw new QueryException("no such target");
+        };
+    ParallelQueryEvaluator<QueryBuildTarget> evaluator = new ParallelQueryEvaluator<>(executor);
+
+    thrown.expect(QueryException.class);
+    thrown.expectMessage("no such target");
+    evaluator.eval(QueryExpression.parse("//:a + //:d", env), env);
+  }
+
+  private static QueryBuildTarget target(String name) {
+    return QueryBuildTarget.of(BuildTargetFactory.newInstance(name));
+  }
+
+  private interface Hook {
+    void run() throws Exception;
+  }
+
+  private static class TestQueryEnvironment extends BaseTestQueryEnvironment<QueryBuildTarget> {
+    private final SetMultimap<QueryBuildTarget, QueryBuildTarget> deps = HashMultimap.create();
+    private final SetMultimap<QueryBuildTarget, QueryBuildTarget> rdeps = HashMultimap.create();
+    private final ConcurrentMap<String, Integer> patternEvaluations = new ConcurrentHashMap<>();
+    private volatile Hook beforeEvaluatingPattern = () -> {};
+
+    private void addDep(String from, String to) {
+      deps.put(target(from), target(to));
+      rdeps.put(target(to), target(from));
+    }
+
+    @Override
+    public TargetEvaluator getTargetEvaluator() {
+      return new TargetEvaluator() {
+        @Override
+        public Set<QueryTarget> evaluateTarget(String target) throws QueryException {
+          try {
+            beforeEvaluatingPattern.run();
+          } catch (QueryException e) {
+            throw e;
+          } catch (Exception e) {
+            throw new QueryException(e, "Failed evaluating %s", target);
+          }
+          patternEvaluations.merge(target, 1, Integer::sum);
+          return ImmutableSet.of(target(target));
+        }
+
+        @Override
+        public Type getType() {
+          return Type.LAZY;
+        }
+      };
+    }
+
+    @Override
+    public Set<QueryBuildTarget> getFwdDeps(Iterable<QueryBuildTarget> targets) {
+      Set<QueryBuildTarget> result = new LinkedHashSet<>();
+      targets.forEach(target -> result.addAll(deps.get(target)));
+      return result;
+    }
+
+    @Override
+    public Set<QueryBuildTarget> getReverseDeps(Iterable<QueryBuildTarget> targets) {
+      Set<QueryBuildTarget> result = new LinkedHashSet<>();
+      targets.forEach(target -> result.addAll(rdeps.get(target)));
+      return result;
+    }
+
+    @Override
+    public Set<QueryBuildTarget> getTransitiveClosure(Set<QueryBuildTarget> targets) {
+      Set<QueryBuildTarget> result = new LinkedHashSet<>();
+      Set<QueryBuildTarget> current = targets;
+      while (!current.isEmpty()) {
+        result.addAll(current);
+        current = getFwdDeps(current);
+      }
+      return result;
+    }
+
+    @Override
+    public void buildTransitiveClosure(Set<? extends QueryTarget> targetNodes, int maxDepth) {}
+
+    @Override
+    public Iterable<QueryFunction<? extends QueryTarget, QueryBuildTarget>> getFunctions() {
+      return ImmutableList.of(new DepsFunction<>(), new RdepsFunction<>());
+    }
+  }
+}
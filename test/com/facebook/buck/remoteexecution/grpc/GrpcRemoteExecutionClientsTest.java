@@ -16,6 +16,7 @@
 
 package com.facebook.buck.remoteexecution.grpc;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import build.bazel.remote.execution.v2.ActionResult;
@@ -208,6 +209,60 @@ public class GrpcRemoteExecutionClientsTest {
     assertEquals(ImmutableMap.of(out1, data1, out2, data2), getDirectoryContents(workDir));
   }
 
+  @Test
+  public void testLargeBlobsAreStreamed() throws Exception {
+    Protocol protocol = new GrpcProtocol();
+    Path root = temporaryPaths.getRoot();
+    Path cacheDir = root.resolve("cache");
+    Files.createDirectories(cacheDir);
+    Path workDir = root.resolve("work");
+    Files.createDirectories(workDir);
+    LocalContentAddressedStorage storage =
+        new LocalContentAddressedStorage(
+            cacheDir, new GrpcProtocol(), BuckEventBusForTests.newInstance());
+    services.add(new LocalBackedCasServer(storage));
+    services.add(new LocalBackedByteStreamServer(storage));
+
+    setupServer();
+
+    // Larger than a batch, so it's written in many chunks through the ByteStream service.
+    byte[] largeData = new byte[11 * 1024 * 1024];
+    for (int i = 0; i < largeData.length; i++) {
+      largeData[i] = (byte) i;
+    }
+    Digest largeDigest = protocol.computeDigest(largeData);
+    String smallData = "small";
+    Digest smallDigest = protocol.computeDigest(smallData.getBytes(Charsets.UTF_8));
+
+    clients
+        .getContentAddressedStorage()
+        .addMissing(
+            ImmutableList.of(
+                UploadDataSupplier.of(
+                    "large", largeDigest, () -> new ByteArrayInputStream(largeData)),
+                UploadDataSupplier.of(
+                    "small",
+                    smallDigest,
+                    () -> new ByteArrayInputStream(smallData.getBytes(Charsets.UTF_8)))))
+        .get();
+
+    Path largeOut = Paths.get("large");
+    Path smallOut = Paths.get("small");
+    clients
+        .getContentAddressedStorage()
+        .materializeOutputs(
+            ImmutableList.of(),
+            ImmutableList.of(
+                protocol.newOutputFile(largeOut, largeDigest, false),
+                protocol.newOutputFile(smallOut, smallDigest, false)),
+            new FilesystemFileMaterializer(workDir))
+        .get();
+
+    assertArrayEquals(largeData, Files.readAllBytes(workDir.resolve(largeOut)));
+    assertEquals(
+        smallData, new String(Files.readAllBytes(workDir.resolve(smallOut)), Charsets.UTF_8));
+  }
+
   private ImmutableMap<Path, String> getDirectoryContents(Path workDir) throws IOException {
     Builder<Path, String> contentsBuilder = ImmutableMap.builder();
     try (Stream<Path> stream = Files.list(workDir)) {
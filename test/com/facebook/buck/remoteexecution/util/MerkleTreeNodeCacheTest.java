@@ -18,6 +18,7 @@ package com.facebook.buck.remoteexecution.util;
 
 import static com.google.common.collect.Iterables.getOnlyElement;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
@@ -36,6 +37,7 @@ import com.facebook.buck.testutil.TemporaryPaths;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -303,6 +305,88 @@ public class MerkleTreeNodeCacheTest {
     assertEquals(30, nodeCache.getData(combinedNode).getTotalSize());
   }
 
+  @Test
+  public void testDirectoryDataIsSharedAcrossNodeCaches() {
+    MerkleTreeDirectoryCache directoryCache = new MerkleTreeDirectoryCache(1024 * 1024);
+    MerkleTreeNodeCache firstCache = new MerkleTreeNodeCache(protocol, directoryCache);
+    MerkleTreeNodeCache secondCache = new MerkleTreeNodeCache(protocol, directoryCache);
+
+    MerkleTreeNode firstNode =
+        firstCache.createNode(createFiles(), ImmutableMap.of(), ImmutableMap.of());
+    MerkleTreeNode secondNode =
+        secondCache.createNode(createFiles(), ImmutableMap.of(), ImmutableMap.of());
+    NodeData firstData = firstCache.getData(firstNode);
+
+    assertNotSame(firstNode, secondNode);
+    assertSame(firstData, secondCache.getData(secondNode));
+    assertEquals(3, directoryCache.size());
+
+    MerkleTreeNodeCache unsharedCache =
+        new MerkleTreeNodeCache(protocol, new MerkleTreeDirectoryCache(1024 * 1024));
+    NodeData unsharedData =
+        unsharedCache.getData(
+            unsharedCache.createNode(createFiles(), ImmutableMap.of(), ImmutableMap.of()));
+    assertNotSame(firstData, unsharedData);
+    assertEquals(firstData.getDigest(), unsharedData.getDigest());
+  }
+
+  @Test
+  public void testDirectoryCacheIsBounded() {
+    MerkleTreeDirectoryCache directoryCache = new MerkleTreeDirectoryCache(0);
+    MerkleTreeNodeCache nodeCache = new MerkleTreeNodeCache(protocol, directoryCache);
+    NodeData data =
+        nodeCache.getData(
+            nodeCache.createNode(createFiles(), ImmutableMap.of(), ImmutableMap.of()));
+
+    assertEquals(0, directoryCache.size());
+    assertEquals(
+        new MerkleTreeNodeCache(protocol, new MerkleTreeDirectoryCache(1024 * 1024))
+            .getData(nodeCache.createNode(createFiles(), ImmutableMap.of(), ImmutableMap.of()))
+            .getDigest(),
+        data.getDigest());
+  }
+
+  @Test
+  public void testUploadedSubtreesAreSkipped() {
+    MerkleTreeNodeCache nodeCache = new MerkleTreeNodeCache(protocol);
+    MerkleTreeNode node =
+        nodeCache.createNode(createFiles(), ImmutableMap.of(), ImmutableMap.of());
+    Directory root = nodeCache.getData(node).getDirectory();
+    Digest rootDigest = nodeCache.getData(node).getDigest();
+    Digest catDigest = getDirNodeEqualsName(root.getDirectoriesList(), "cat").getDigest();
+    Digest dogDigest = getDirNodeEqualsName(root.getDirectoriesList(), "dog").getDigest();
+
+    UploadedDirectories uploadedDirectories = new UploadedDirectories();
+    uploadedDirectories.addAll(ImmutableList.of(dogDigest));
+
+    Set<Digest> visitedDirectories = new HashSet<>();
+    nodeCache.forAllData(
+        node, uploadedDirectories::contains, data -> visitedDirectories.add(data.getDigest()));
+    Set<Path> visitedFiles = new HashSet<>();
+    nodeCache.forAllFiles(
+        node, uploadedDirectories::contains, (path, fileNode) -> visitedFiles.add(path));
+
+    assertEquals(ImmutableSet.of(rootDigest, catDigest), visitedDirectories);
+    assertEquals(ImmutableSet.of(Paths.get("cat/file.1"), Paths.get("cat/file.2")), visitedFiles);
+
+    uploadedDirectories.addAll(ImmutableList.of(rootDigest));
+    nodeCache.forAllData(node, uploadedDirectories::contains, data -> fail());
+    nodeCache.forAllFiles(node, uploadedDirectories::contains, (path, fileNode) -> fail());
+  }
+
+  private ImmutableMap<Path, FileNode> createFiles() {
+    Digest hash1 = protocol.computeDigest("hash1".getBytes(Charsets.UTF_8));
+    Digest hash2 = protocol.computeDigest("hash2".getBytes(Charsets.UTF_8));
+    Digest hash3 = protocol.computeDigest("hash3".getBytes(Charsets.UTF_8));
+    return ImmutableMap.of(
+        Paths.get("cat/file.1"),
+        protocol.newFileNode(hash1, "file.1", false),
+        Paths.get("cat/file.2"),
+        protocol.newFileNode(hash2, "file.2", false),
+        Paths.get("dog/file.3"),
+        protocol.newFileNode(hash3, "file.3", false));
+  }
+
   @Test
   public void badFileNodeNameIsRejected() {
     expected.expect(IllegalStateException.class);
@@ -22,6 +22,9 @@ import com.facebook.buck.remoteexecution.UploadDataSupplier;
 import com.facebook.buck.remoteexecution.grpc.GrpcProtocol;
 import com.facebook.buck.remoteexecution.interfaces.Protocol.Digest;
 import com.facebook.buck.util.types.Unit;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
@@ -31,11 +34,17 @@ import io.grpc.StatusRuntimeException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 import org.easymock.EasyMock;
 import org.junit.Assert;
 import org.junit.Test;
@@ -136,6 +145,98 @@ public class MultiThreadedBlobUploaderTest {
     EasyMock.verify(casBlobUploader);
   }
 
+  @Test
+  public void testSmallBlobsAreBatchedAndLargeOnesStreamed() throws Exception {
+    ExecutorService service = Executors.newSingleThreadExecutor();
+    RecordingBlobUploader casBlobUploader = new RecordingBlobUploader();
+    MultiThreadedBlobUploader uploader =
+        new MultiThreadedBlobUploader(100, 10, 20, service, casBlobUploader);
+
+    uploader
+        .addMissing(
+            Stream.of(
+                createBlob(6, 'a'),
+                createBlob(6, 'b'),
+                createBlob(4, 'c'),
+                createBlob(4, 'd'),
+                createBlob(25, 'e')))
+        .get();
+
+    // The second blob of 6 bytes doesn't fit in the first batch, but the one of 4 behind it does.
+    Assert.assertEquals(
+        ImmutableList.of(ImmutableList.of(6, 4), ImmutableList.of(6, 4)),
+        casBlobUploader.batches);
+    Assert.assertEquals(ImmutableList.of(25), casBlobUploader.streams);
+  }
+
+  @Test
+  public void testBytesInFlightAreBounded() throws Exception {
+    ExecutorService service = Executors.newFixedThreadPool(8);
+    RecordingBlobUploader casBlobUploader = new RecordingBlobUploader();
+    MultiThreadedBlobUploader uploader =
+        new MultiThreadedBlobUploader(1, 10, 20, service, casBlobUploader);
+
+    List<UploadDataSupplier> blobs = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      blobs.add(createBlob(i % 2 == 0 ? 8 : 30, (char) ('a' + i)));
+    }
+    uploader.addMissing(blobs.stream()).get();
+
+    Assert.assertEquals(10, casBlobUploader.streams.size());
+    Assert.assertEquals(10, casBlobUploader.batches.stream().mapToInt(List::size).sum());
+    // Streams count for the size of a batch.
+    Assert.assertTrue(casBlobUploader.maxInFlightBytes.get() <= 20);
+  }
+
+  /** Records the uploads, and the most bytes uploaded at once, without keeping the data. */
+  private static class RecordingBlobUploader implements CasBlobUploader {
+    private final List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> streams = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger inFlightBytes = new AtomicInteger();
+    private final AtomicInteger maxInFlightBytes = new AtomicInteger();
+
+    @Override
+    public ImmutableSet<String> getMissingHashes(Set<Digest> requiredDigests) {
+      return requiredDigests.stream().map(Digest::getHash).collect(ImmutableSet.toImmutableSet());
+    }
+
+    @Override
+    public ImmutableList<UploadResult> batchUpdateBlobs(ImmutableList<UploadDataSupplier> blobs) {
+      int size = blobs.stream().mapToInt(blob -> blob.getDigest().getSize()).sum();
+      upload(size);
+      batches.add(
+          blobs.stream()
+              .map(blob -> blob.getDigest().getSize())
+              .collect(ImmutableList.toImmutableList()));
+      return blobs.stream()
+          .map(blob -> new UploadResult(blob.getDigest(), 0, null))
+          .collect(ImmutableList.toImmutableList());
+    }
+
+    @Override
+    public UploadResult uploadFromStream(UploadDataSupplier blob) {
+      upload(10);
+      streams.add(blob.getDigest().getSize());
+      return new UploadResult(blob.getDigest(), 0, null);
+    }
+
+    private void upload(int size) {
+      maxInFlightBytes.accumulateAndGet(inFlightBytes.addAndGet(size), Math::max);
+      try {
+        Thread.sleep(5);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      inFlightBytes.addAndGet(-size);
+    }
+  }
+
+  private static UploadDataSupplier createBlob(int size, char fill) {
+    byte[] data = Strings.repeat(String.valueOf(fill), size).getBytes(Charsets.UTF_8);
+    return UploadDataSupplier.of(
+        String.valueOf(fill), PROTOCOL.computeDigest(data), () -> new ByteArrayInputStream(data));
+  }
+
   private ImmutableMap<Digest, UploadDataSupplier> createUploadData() {
     byte[] buffer = "topspin".getBytes();
     Digest digest = PROTOCOL.computeDigest(buffer);
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.rulekey.AddToRuleKey;
+import com.facebook.buck.core.rulekey.AddsToRuleKey;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.SourcePathRuleFinder;
+import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
+import com.facebook.buck.core.sourcepath.FakeSourcePath;
+import com.facebook.buck.core.sourcepath.NonHashableSourcePathContainer;
+import com.facebook.buck.core.sourcepath.SourcePath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.rules.keys.config.TestRuleKeyConfigurationFactory;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.cache.FileHashCacheMode;
+import com.facebook.buck.util.cache.NoOpCacheStatsTracker;
+import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
+import com.facebook.buck.util.cache.impl.StackedFileHashCache;
+import com.facebook.buck.util.cache.impl.WatchedFileHashCache;
+import com.facebook.buck.util.hashing.FileHashLoader;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentRuleKeyCacheTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private SourcePathRuleFinder ruleFinder;
+  private Path input;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    ruleFinder = new TestActionGraphBuilder();
+    input = filesystem.getPath("input");
+    writeInput("contents", 60);
+  }
+
+  @Test
+  public void ruleKeyIsServedFromSnapshotWhenNothingChanged() throws IOException {
+    PersistentRuleKeyCache cache = new PersistentRuleKeyCache(filesystem);
+    RuleKey ruleKey = createFactory(createFileHashLoader(), cache).build(createRule("value"));
+
+    Path snapshot = tmp.getRoot().resolve("rule_keys.bin");
+    cache.save(snapshot);
+    PersistentRuleKeyCache loaded = PersistentRuleKeyCache.load(filesystem, snapshot);
+    assertEquals(1, loaded.size());
+
+    // A new rule instance misses the identity based cache, and the file hash loader fails if asked
+    // for anything, so the rule key must come from the snapshot.
+    RuleKey reloadedRuleKey =
+        createFactory(new FailingFileHashLoader(), loaded).build(createRule("value"));
+    assertEquals(ruleKey, reloadedRuleKey);
+  }
+
+  @Test
+  public void ruleKeyIsRecomputedWhenInputChanges() throws IOException {
+    PersistentRuleKeyCache cache = new PersistentRuleKeyCache(filesystem);
+    RuleKey ruleKey = createFactory(createFileHashLoader(), cache).build(createRule("value"));
+
+    writeInput("other contents", 30);
+    RuleKey newRuleKey = createFactory(createFileHashLoader(), cache).build(createRule("value"));
+    assertNotEquals(ruleKey, newRuleKey);
+  }
+
+  @Test
+  public void ruleKeyIsRecomputedWhenStructureChanges() throws IOException {
+    PersistentRuleKeyCache cache = new PersistentRuleKeyCache(filesystem);
+    RuleKey ruleKey = createFactory(createFileHashLoader(), cache).build(createRule("value"));
+
+    RuleKey newRuleKey =
+        createFactory(createFileHashLoader(), cache).build(createRule("other value"));
+    assertNotEquals(ruleKey, newRuleKey);
+  }
+
+  @Test
+  public void ruleKeysOfRecentlyModifiedInputsAreNotRecorded() throws IOException {
+    writeInput("contents", 0);
+    PersistentRuleKeyCache cache = new PersistentRuleKeyCache(filesystem);
+    createFactory(createFileHashLoader(), cache).build(createRule("value"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void ruleKeysAreNotRecordedWithoutTheStatsOfTheirInputs() throws IOException {
+    PersistentRuleKeyCache cache = new PersistentRuleKeyCache(filesystem);
+    createFactory(
+            new StackedFileHashCache(
+                ImmutableList.of(
+                    DefaultFileHashCache.createDefaultFileHashCache(
+                        filesystem, FileHashCacheMode.DEFAULT))),
+            cache)
+        .build(createRule("value"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void staleHashesAreNotRecordedAsCurrent() throws IOException {
+    FileHashLoader staleHashLoader = createFileHashLoader();
+    RuleKey ruleKey =
+        createFactory(staleHashLoader, new PersistentRuleKeyCache(filesystem))
+            .build(createRule("value"));
+
+    // The change isn't reported to the hash cache, so the rule key is computed from the old hash,
+    // and must be recorded with the stat the old hash was computed for.
+    writeInput("other contents", 30);
+    PersistentRuleKeyCache cache = new PersistentRuleKeyCache(filesystem);
+    assertEquals(ruleKey, createFactory(staleHashLoader, cache).build(createRule("value")));
+
+    RuleKey newRuleKey = createFactory(createFileHashLoader(), cache).build(createRule("value"));
+    assertNotEquals(ruleKey, newRuleKey);
+  }
+
+  @Test
+  public void ruleKeysAreDroppedWhenTheirInputsChange() throws IOException {
+    PersistentRuleKeyCache cache = new PersistentRuleKeyCache(filesystem);
+    createFactory(createFileHashLoader(), cache).build(createRule("value"));
+    assertEquals(1, cache.size());
+
+    cache.invalidate(filesystem.resolve(input));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void ruleKeyComputedOnMissMatchesRegularRuleKey() throws IOException {
+    filesystem.mkdirs(filesystem.getPath("dir"));
+    filesystem.writeContentsToPath("in dir", filesystem.getPath("dir/file"));
+    RuleWithAllInputs rule = createRuleWithAllInputs();
+
+    RuleKey ruleKey =
+        createFactory(createFileHashLoader(), new PersistentRuleKeyCache(filesystem)).build(rule);
+
+    RuleKey regularRuleKey =
+        new DefaultRuleKeyFactory(
+                new RuleKeyFieldLoader(TestRuleKeyConfigurationFactory.create()),
+                createFileHashLoader(),
+                ruleFinder,
+                new TrackedRuleKeyCache<>(
+                    new DefaultRuleKeyCache<>(), new NoOpCacheStatsTracker()),
+                Optional.empty())
+            .build(createRuleWithAllInputs());
+    assertEquals(regularRuleKey, ruleKey);
+  }
+
+  @Test
+  public void nonHashingInputsAreHashedRatherThanRecorded() throws IOException {
+    Path file = filesystem.getPath("dir/file");
+    filesystem.mkdirs(file.getParent());
+    filesystem.writeContentsToPath("in dir", file);
+    PersistentRuleKeyCache cache = new PersistentRuleKeyCache(filesystem);
+    RuleKey ruleKey = createFactory(createFileHashLoader(), cache).build(createRuleWithAllInputs());
+    assertEquals(1, cache.size());
+
+    filesystem.writeContentsToPath("changed in dir", file);
+    RuleKey newRuleKey =
+        createFactory(createFileHashLoader(), cache).build(createRuleWithAllInputs());
+    assertNotEquals(ruleKey, newRuleKey);
+  }
+
+  @Test
+  public void leastRecentlyUsedRuleKeysAreDropped() throws IOException {
+    PersistentRuleKeyCache cache = new PersistentRuleKeyCache(filesystem, 1);
+    createFactory(createFileHashLoader(), cache).build(createRule("value"));
+    createFactory(createFileHashLoader(), cache)
+        .build(
+            new RuleWithInput(
+                BuildTargetFactory.newInstance("//:other"),
+                FakeSourcePath.of(filesystem, input.toString()),
+                "value"));
+    assertEquals(1, cache.size());
+  }
+
+  private void writeInput(String contents, long secondsAgo) throws IOException {
+    filesystem.writeContentsToPath(contents, input);
+    Files.setLastModifiedTime(
+        filesystem.resolve(input),
+        FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(secondsAgo)));
+  }
+
+  private FileHashLoader createFileHashLoader() {
+    return new StackedFileHashCache(
+        ImmutableList.of(
+            new WatchedFileHashCache(filesystem, FileHashCacheMode.DEFAULT, true)));
+  }
+
+  private DefaultRuleKeyFactory createFactory(
+      FileHashLoader hashLoader, PersistentRuleKeyCache persistentCache) {
+    return new DefaultRuleKeyFactory(
+        new RuleKeyFieldLoader(TestRuleKeyConfigurationFactory.create()),
+        hashLoader,
+        ruleFinder,
+        new TrackedRuleKeyCache<>(new DefaultRuleKeyCache<>(), new NoOpCacheStatsTracker()),
+        Optional.of(persistentCache),
+        Optional.empty());
+  }
+
+  private RuleWithInput createRule(String value) {
+    return new RuleWithInput(
+        BuildTargetFactory.newInstance("//:rule"),
+        FakeSourcePath.of(filesystem, input.toString()),
+        value);
+  }
+
+  private RuleWithAllInputs createRuleWithAllInputs() {
+    return new RuleWithAllInputs(
+        FakeSourcePath.of(filesystem, input.toString()),
+        new NonHashableSourcePathContainer(FakeSourcePath.of(filesystem, "dir")),
+        new AppendableWithInput(FakeSourcePath.of(filesystem, input.toString())));
+  }
+
+  private static class RuleWithInput extends EmptyFakeBuildRule {
+
+    @AddToRuleKey private final SourcePath input;
+    @AddToRuleKey private final String value;
+
+    private RuleWithInput(BuildTarget target, SourcePath input, String value) {
+      super(target);
+      this.input = input;
+      this.value = value;
+    }
+  }
+
+  private static class RuleWithAllInputs extends EmptyFakeBuildRule {
+
+    @AddToRuleKey private final SourcePath input;
+    @AddToRuleKey private final NonHashableSourcePathContainer nonHashingInput;
+    @AddToRuleKey private final AppendableWithInput appendable;
+
+    private RuleWithAllInputs(
+        SourcePath input,
+        NonHashableSourcePathContainer nonHashingInput,
+        AppendableWithInput appendable) {
+      super(BuildTargetFactory.newInstance("//:rule_with_all_inputs"));
+      this.input = input;
+      this.nonHashingInput = nonHashingInput;
+      this.appendable = appendable;
+    }
+  }
+
+  private static class AppendableWithInput implements AddsToRuleKey {
+
+    @AddToRuleKey private final SourcePath input;
+
+    private AppendableWithInput(SourcePath input) {
+      this.input = input;
+    }
+  }
+
+  private static class FailingFileHashLoader implements FileHashLoader {
+
+    @Override
+    public HashCode get(Path path) {
+      throw new AssertionError("Unexpected hash of " + path);
+    }
+
+    @Override
+    public long getSize(Path path) {
+      throw new AssertionError("Unexpected size of " + path);
+    }
+
+    @Override
+    public HashCode getForArchiveMember(Path relativeArchivePath, Path memberPath) {
+      throw new AssertionError("Unexpected hash of " + relativeArchivePath);
+    }
+  }
+}
@@ -92,6 +92,16 @@ public class FakeWorkerBuilder
       return 0;
     }
 
+    @Override
+    public int getPrewarmWorkers() {
+      return 0;
+    }
+
+    @Override
+    public long getMaxIdleTimeSeconds() {
+      return 0;
+    }
+
     @Override
     public boolean isPersistent() {
       return false;
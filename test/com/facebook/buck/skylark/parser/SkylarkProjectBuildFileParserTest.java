@@ -581,6 +581,59 @@ public class SkylarkProjectBuildFileParserTest {
         equalTo(recordingParser.expectedCounts(vfs_path(buildFile), 1)));
   }
 
+  @Test
+  public void doesNotReadOrBuildFilesParsedByParserSharingCache() throws Exception {
+    Path buildFile = projectFilesystem.resolve("BUCK");
+    Files.write(
+        buildFile,
+        Arrays.asList(
+            "load('//:ext_1.bzl', 'ext_1')", "prebuilt_jar(name=ext_1, binary_jar='a.jar')"));
+
+    Path ext1 = projectFilesystem.resolve("ext_1.bzl");
+    Files.write(ext1, Arrays.asList("load(':ext_2.bzl', 'ext_2')", "ext_1 = ext_2"));
+
+    Path ext2 = projectFilesystem.resolve("ext_2.bzl");
+    Files.write(ext2, Arrays.asList("ext_2 = 'hello'"));
+
+    new RecordingParser(parser).getManifest(buildFile);
+    RecordingParser recordingParser = new RecordingParser(parser);
+    Map<String, Object> rule =
+        SkylarkProjectBuildFileParserTestUtils.getSingleRule(recordingParser, buildFile);
+
+    assertThat(rule.get("name"), equalTo("hello"));
+    assertThat(recordingParser.readCounts, equalTo(recordingParser.expectedCounts()));
+    assertThat(recordingParser.buildCounts, equalTo(recordingParser.expectedCounts()));
+  }
+
+  @Test
+  public void rebuildsExtensionsWhoseDependenciesChangedSinceParsedByParserSharingCache()
+      throws Exception {
+    Path buildFile = projectFilesystem.resolve("BUCK");
+    Files.write(
+        buildFile,
+        Arrays.asList(
+            "load('//:ext_1.bzl', 'ext_1')", "prebuilt_jar(name=ext_1, binary_jar='a.jar')"));
+
+    Path ext1 = projectFilesystem.resolve("ext_1.bzl");
+    Files.write(ext1, Arrays.asList("load(':ext_2.bzl', 'ext_2')", "ext_1 = ext_2"));
+
+    Path ext2 = projectFilesystem.resolve("ext_2.bzl");
+    Files.write(ext2, Arrays.asList("ext_2 = 'hello'"));
+
+    new RecordingParser(parser).getManifest(buildFile);
+    Files.write(ext2, Arrays.asList("ext_2 = 'world'"));
+    RecordingParser recordingParser = new RecordingParser(parser);
+    Map<String, Object> rule =
+        SkylarkProjectBuildFileParserTestUtils.getSingleRule(recordingParser, buildFile);
+
+    assertThat(rule.get("name"), equalTo("world"));
+    assertThat(
+        recordingParser.readCounts, equalTo(recordingParser.expectedCounts(vfs_path(ext2), 1)));
+    assertThat(
+        recordingParser.buildCounts,
+        equalTo(recordingParser.expectedCounts(vfs_path(ext1), 1, vfs_path(ext2), 1)));
+  }
+
   @Test
   public void canHandleSameExtensionLoadedMultipleTimesFromAnotherExtension() throws Exception {
     // Verifies we can handle the case when the same extension is loaded multiple times from another
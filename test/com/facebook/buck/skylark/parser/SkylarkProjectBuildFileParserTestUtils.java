@@ -55,9 +55,9 @@ public class SkylarkProjectBuildFileParserTestUtils {
     }
 
     @Override
-    public BuildFileAST readSkylarkAST(Path path, FileKind fileKind) throws IOException {
+    public BuildFileAST readSkylarkAST(Path path, byte[] content, FileKind fileKind) {
       readCounts.compute(path, (k, v) -> v == null ? 1 : v + 1);
-      return super.readSkylarkAST(path, fileKind);
+      return super.readSkylarkAST(path, content, fileKind);
     }
 
     @Override
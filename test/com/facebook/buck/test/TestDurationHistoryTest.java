@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.test;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.test.result.type.ResultType;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TestDurationHistoryTest {
+
+  private static final BuildTarget TARGET = BuildTargetFactory.newInstance("//foo:bar");
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void recordsMovingAverageOfTargetsAndClasses() {
+    TestDurationHistory history = new TestDurationHistory();
+    assertEquals(Optional.empty(), history.getExpectedDurationMillis(TARGET));
+
+    history.record(results(ImmutableMap.of("FooTest", 100L, "BarTest", 300L)), 1000);
+    assertEquals(Optional.of(1000L), history.getExpectedDurationMillis(TARGET));
+    assertEquals(Optional.of(100L), history.getExpectedClassDurationMillis("FooTest"));
+
+    history.record(results(ImmutableMap.of("FooTest", 300L)), 2000);
+    assertEquals(Optional.of(1500L), history.getExpectedDurationMillis(TARGET));
+    assertEquals(
+        ImmutableMap.of("FooTest", 200L, "BarTest", 300L),
+        history.getExpectedClassDurationsMillis());
+  }
+
+  @Test
+  public void savedHistoryIsLoaded() throws IOException {
+    Path file = tmp.getRoot().resolve("log").resolve("test_durations.json");
+    TestDurationHistory history = new TestDurationHistory();
+    history.record(results(ImmutableMap.of("FooTest", 100L)), 1000);
+    history.save(file);
+
+    TestDurationHistory loaded = TestDurationHistory.load(file);
+    assertEquals(Optional.of(1000L), loaded.getExpectedDurationMillis(TARGET));
+    assertEquals(ImmutableMap.of("FooTest", 100L), loaded.getExpectedClassDurationsMillis());
+  }
+
+  @Test
+  public void missingOrCorruptHistoryIsEmpty() throws IOException {
+    Path file = tmp.getRoot().resolve("test_durations.json");
+    assertEquals(
+        Optional.empty(), TestDurationHistory.load(file).getExpectedDurationMillis(TARGET));
+
+    Files.write(file, "{not json".getBytes(StandardCharsets.UTF_8));
+    assertEquals(
+        Optional.empty(), TestDurationHistory.load(file).getExpectedDurationMillis(TARGET));
+  }
+
+  @Test
+  public void predictsWallTimeOfLongestFirstSchedule() {
+    assertEquals(0, TestDurationHistory.predictWallTimeMillis(ImmutableList.of(), 4));
+    assertEquals(
+        10, TestDurationHistory.predictWallTimeMillis(ImmutableList.of(3L, 10L, 4L, 3L), 2));
+    assertEquals(
+        13, TestDurationHistory.predictWallTimeMillis(ImmutableList.of(3L, 5L, 4L, 6L, 6L), 2));
+    assertEquals(20, TestDurationHistory.predictWallTimeMillis(ImmutableList.of(10L, 10L), 1));
+  }
+
+  private static TestResults results(ImmutableMap<String, Long> classDurations) {
+    ImmutableList.Builder<TestCaseSummary> testCases = ImmutableList.builder();
+    classDurations.forEach(
+        (testClass, duration) ->
+            testCases.add(
+                new TestCaseSummary(
+                    testClass,
+                    ImmutableList.of(
+                        new TestResultSummary(
+                            testClass,
+                            "test",
+                            ResultType.SUCCESS,
+                            duration,
+                            null,
+                            null,
+                            null,
+                            null)))));
+    return TestResults.builder().setBuildTarget(TARGET).setTestCases(testCases.build()).build();
+  }
+}
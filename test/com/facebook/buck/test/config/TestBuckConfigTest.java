@@ -128,4 +128,26 @@ public class TestBuckConfigTest {
             .build();
     buckConfig.getView(TestBuckConfig.class).getNumTestThreads();
   }
+
+  @Test
+  public void testJUnitShards() {
+    assertEquals(
+        1, FakeBuckConfig.builder().build().getView(TestBuckConfig.class).getJUnitShards());
+    BuckConfig buckConfig =
+        FakeBuckConfig.builder()
+            .setSections(ImmutableMap.of("test", ImmutableMap.of("junit_shards", "4")))
+            .build();
+    assertEquals(4, buckConfig.getView(TestBuckConfig.class).getJUnitShards());
+  }
+
+  @Test
+  public void testJUnitShardsLessThanOne() {
+    thrown.expect(HumanReadableException.class);
+    thrown.expectMessage(Matchers.startsWith("test.junit_shards must be greater than zero"));
+    BuckConfig buckConfig =
+        FakeBuckConfig.builder()
+            .setSections(ImmutableMap.of("test", ImmutableMap.of("junit_shards", "0")))
+            .build();
+    buckConfig.getView(TestBuckConfig.class).getJUnitShards();
+  }
 }
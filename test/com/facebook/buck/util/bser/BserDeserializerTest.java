@@ -23,15 +23,20 @@ import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Bytes;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteOrder;
 import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.List;
 import java.util.Map;
@@ -330,6 +335,32 @@ public class BserDeserializerTest {
     deserializer.deserializeBserValue(getByteStream("00010306020303ABCDEF"));
   }
 
+  @Test
+  public void nextValueIsReadAfterStringNotUTF8() throws IOException {
+    // The first value is too large to be buffered at once, and starts with a string which isn't
+    // UTF-8, so most of it is still in the stream when decoding fails.
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    BserSerializer serializer = new BserSerializer();
+    serializer.serializeToStream(
+        ImmutableList.of("XYZ", Strings.repeat("0123456789", 2000)), outputStream);
+    serializer.serializeToStream("hi", outputStream);
+    byte[] bytes = outputStream.toByteArray();
+    int invalidString = Bytes.indexOf(bytes, "XYZ".getBytes(StandardCharsets.US_ASCII));
+    bytes[invalidString] = (byte) 0xAB;
+    bytes[invalidString + 1] = (byte) 0xCD;
+    bytes[invalidString + 2] = (byte) 0xEF;
+
+    BserDeserializer deserializer = new BserDeserializer(BserDeserializer.KeyOrdering.UNSORTED);
+    InputStream stream = new ByteArrayInputStream(bytes);
+    try {
+      deserializer.deserializeBserValue(stream);
+      fail("Expected the first value to fail to decode");
+    } catch (CharacterCodingException e) {
+      // The rest of the first PDU is skipped.
+    }
+    assertThat(deserializer.deserializeBserValue(stream), equalTo("hi"));
+  }
+
   @Test
   public void throwIfArrayLengthTooShort() throws IOException {
     thrown.expect(BserDeserializer.BserEofException.class);
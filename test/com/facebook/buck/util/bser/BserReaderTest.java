@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.util.bser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class BserReaderTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private static byte[] serialize(Object value) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    new BserSerializer().serializeToStream(value, outputStream);
+    return outputStream.toByteArray();
+  }
+
+  @Test
+  public void readsTemplateAsArrayOfObjectsWithoutSkippedFields() throws IOException {
+    // [{"name": "fred", "age": 20}, {"name": "pete", "age": 30}, {"age": 25}] as a template.
+    BserReader reader =
+        new BserReader(
+            new ByteArrayInputStream(
+                BaseEncoding.base16()
+                    .decode(
+                        "000103280B0003020203046E616D6502030361676503030203046672656403140203"
+                            + "0470657465031E0C0319")));
+
+    assertEquals(BserReader.ValueType.ARRAY, reader.peek());
+    assertEquals(3, reader.beginArray());
+    StringBuilder items = new StringBuilder();
+    while (reader.hasNext()) {
+      assertEquals(BserReader.ValueType.OBJECT, reader.peek());
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        items.append(name).append('=');
+        if (name.equals("name")) {
+          items.append(reader.nextString());
+        } else {
+          items.append(reader.nextLong());
+        }
+        items.append(' ');
+      }
+      reader.endObject();
+      items.append(';');
+    }
+    reader.endArray();
+
+    assertEquals("name=fred age=20 ;name=pete age=30 ;age=25 ;", items.toString());
+  }
+
+  @Test
+  public void skipsNestedValues() throws IOException {
+    BserReader reader =
+        new BserReader(
+            new ByteArrayInputStream(
+                serialize(
+                    ImmutableMap.of(
+                        "skipped",
+                        ImmutableList.of(1, ImmutableMap.of("nested", "value"), 2.5, true),
+                        "read",
+                        "value"))));
+
+    reader.beginObject();
+    assertEquals("skipped", reader.nextName());
+    reader.skipValue();
+    assertEquals("read", reader.nextName());
+    assertEquals("value", reader.nextString());
+    assertFalse(reader.hasNext());
+    reader.endObject();
+  }
+
+  @Test
+  public void readsStringsLargerThanTheBuffer() throws IOException {
+    String largeString = Strings.repeat("0123456789", 2000);
+    BserReader reader =
+        new BserReader(
+            new ByteArrayInputStream(serialize(ImmutableList.of(largeString, largeString, 42L))));
+
+    assertEquals(3, reader.beginArray());
+    assertEquals(largeString, reader.nextString());
+    reader.skipValue();
+    assertEquals(42L, reader.nextLong());
+    reader.endArray();
+  }
+
+  @Test
+  public void leavesTheStreamAtTheStartOfTheNextValue() throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    outputStream.write(serialize(ImmutableList.of("first", "second")));
+    outputStream.write(serialize("third"));
+    InputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
+
+    BserReader reader = new BserReader(inputStream);
+    reader.beginArray();
+    assertEquals("first", reader.nextString());
+    reader.skipToEnd();
+
+    reader = new BserReader(inputStream);
+    assertEquals("third", reader.nextString());
+    reader.skipToEnd();
+    assertEquals(-1, inputStream.read());
+  }
+
+  @Test
+  public void reportsValueTypes() throws IOException {
+    BserReader reader =
+        new BserReader(
+            new ByteArrayInputStream(serialize(ImmutableList.of("a", 1, 1.5, false, "b"))));
+
+    reader.beginArray();
+    assertEquals(BserReader.ValueType.STRING, reader.peek());
+    reader.skipValue();
+    assertEquals(BserReader.ValueType.INTEGER, reader.peek());
+    assertEquals(1, reader.nextNumber().intValue());
+    assertEquals(BserReader.ValueType.REAL, reader.peek());
+    assertEquals(1.5, reader.nextDouble(), 0.0);
+    assertEquals(BserReader.ValueType.BOOLEAN, reader.peek());
+    assertFalse(reader.nextBoolean());
+    assertTrue(reader.hasNext());
+    assertEquals("b", reader.nextString());
+    assertFalse(reader.hasNext());
+    reader.endArray();
+  }
+
+  @Test
+  public void throwsWhenValueIsLongerThanThePdu() throws IOException {
+    // The PDU is 2 bytes long, but holds the beginning of a 5 byte string.
+    BserReader reader =
+        new BserReader(
+            new ByteArrayInputStream(BaseEncoding.base16().decode("0001030202030568656C6C6F")));
+
+    thrown.expect(BserDeserializer.BserEofException.class);
+    thrown.expectMessage("Prematurely reached end of BSER buffer");
+    reader.nextString();
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.util.cache.impl;
 
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
@@ -26,7 +27,10 @@ import com.facebook.buck.core.filesystems.RelPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
 import com.facebook.buck.io.filesystem.impl.FakeProjectFilesystem;
+import com.facebook.buck.io.watchman.WatchmanEvent;
 import com.facebook.buck.io.watchman.WatchmanEvent.Kind;
+import com.facebook.buck.io.watchman.WatchmanMultiplePathEvent;
+import com.facebook.buck.io.watchman.WatchmanMultiplePathEvent.Change;
 import com.facebook.buck.io.watchman.WatchmanOverflowEvent;
 import com.facebook.buck.io.watchman.WatchmanPathEvent;
 import com.facebook.buck.testutil.TemporaryPaths;
@@ -40,8 +44,10 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.Optional;
 import org.hamcrest.junit.ExpectedException;
 import org.junit.Rule;
 import org.junit.Test;
@@ -229,6 +235,42 @@ public class WatchedFileHashCacheTest {
         nullValue());
   }
 
+  @Test
+  public void whenNotifiedOfMultiplePathEventChangedFilesAndParentsAreRemoved()
+      throws IOException {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    WatchedFileHashCache cache = new WatchedFileHashCache(filesystem, fileHashCacheMode);
+
+    Path dir = filesystem.getPath("dir");
+    Path changed = dir.resolve("changed");
+    Path other = filesystem.getPath("other");
+    Path otherChild = other.resolve("child");
+    Path unrelated = filesystem.getPath("unrelated");
+    filesystem.mkdirs(dir);
+    filesystem.mkdirs(other);
+    filesystem.touch(changed);
+    filesystem.touch(otherChild);
+    filesystem.touch(unrelated);
+
+    cache.get(dir);
+    cache.get(other);
+    cache.get(unrelated);
+
+    cache.onFileSystemChange(
+        WatchmanMultiplePathEvent.of(
+            filesystem.getRootPath(),
+            ImmutableList.of(
+                Change.of(WatchmanEvent.Type.FILE, changed, Kind.MODIFY),
+                // Directory changes are implied by changes to their children and are skipped.
+                Change.of(WatchmanEvent.Type.DIRECTORY, other, Kind.MODIFY))));
+
+    assertFalse(cache.getIfPresent(changed).isPresent());
+    assertFalse(cache.getIfPresent(dir).isPresent());
+    assertTrue(cache.getIfPresent(other).isPresent());
+    assertTrue(cache.getIfPresent(otherChild).isPresent());
+    assertTrue(cache.getIfPresent(unrelated).isPresent());
+  }
+
   @Test
   public void thatWillGetIsCorrect() throws IOException {
     ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
@@ -242,4 +284,54 @@ public class WatchedFileHashCacheTest {
     assertFalse(cache.willGet(filesystem.getPath("buck-out/file.txt")));
     assertTrue(cache.willGet(filesystem.getPath("file.txt")));
   }
+
+  @Test
+  public void snapshotRestoresHashesOfUnchangedFiles() throws IOException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    Path unchanged = Paths.get("unchanged.txt");
+    Path changed = Paths.get("changed.txt");
+    filesystem.writeContentsToPath("unchanged", unchanged);
+    filesystem.writeContentsToPath("changed", changed);
+    // Files modified right before the snapshot is written are deliberately left out of it.
+    FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+    filesystem.setLastModifiedTime(unchanged, past);
+    filesystem.setLastModifiedTime(changed, past);
+
+    WatchedFileHashCache cache = new WatchedFileHashCache(filesystem, fileHashCacheMode, true);
+    HashCode unchangedHash = cache.get(unchanged);
+    cache.get(changed);
+    Path snapshot = cache.getDefaultSnapshotPath();
+    cache.saveSnapshot(snapshot);
+
+    filesystem.writeContentsToPath("changed while no daemon was running", changed);
+
+    WatchedFileHashCache restored =
+        new WatchedFileHashCache(filesystem, fileHashCacheMode, true);
+    restored.loadSnapshot(snapshot);
+    assertThat(restored.getIfPresent(unchanged), equalTo(Optional.of(unchangedHash)));
+    assertFalse(restored.getIfPresent(changed).isPresent());
+  }
+
+  @Test
+  public void snapshotDoesNotRestoreHashesOfFilesChangedBeforeItWasSaved() throws IOException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    Path changed = Paths.get("changed.txt");
+    filesystem.writeContentsToPath("changed", changed);
+    filesystem.setLastModifiedTime(
+        changed, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+
+    WatchedFileHashCache cache = new WatchedFileHashCache(filesystem, fileHashCacheMode, true);
+    cache.get(changed);
+    // The change event hasn't reached the cache yet when the snapshot is saved.
+    filesystem.writeContentsToPath("changed before the snapshot was saved", changed);
+    filesystem.setLastModifiedTime(
+        changed, FileTime.fromMillis(System.currentTimeMillis() - 30_000));
+    Path snapshot = cache.getDefaultSnapshotPath();
+    cache.saveSnapshot(snapshot);
+
+    WatchedFileHashCache restored =
+        new WatchedFileHashCache(filesystem, fileHashCacheMode, true);
+    restored.loadSnapshot(snapshot);
+    assertFalse(restored.getIfPresent(changed).isPresent());
+  }
 }
@@ -25,6 +25,7 @@ import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.io.filesystem.impl.FakeProjectFilesystem;
 import com.facebook.buck.util.filesystem.FileSystemMap.Entry;
+import com.google.common.collect.ImmutableList;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import org.junit.Test;
@@ -208,6 +209,27 @@ public class FileSystemMapTest {
     assertEquals(fsMap.map.size(), 0);
   }
 
+  @Test
+  public void testRemoveAllPaths() {
+    Path parent = Paths.get("usr");
+    Path path1 = Paths.get("usr/HelloWorld.java");
+    Path path2 = Paths.get("usr/Yo.java");
+    Path path3 = Paths.get("usr/Other.java");
+    Path path4 = Paths.get("opt/Bye.java");
+    FileSystemMap<Boolean> fsMap = new FileSystemMap<>(loader, filesystem);
+    fsMap.put(parent, true);
+    fsMap.put(path1, true);
+    fsMap.put(path2, true);
+    fsMap.put(path3, true);
+    fsMap.put(path4, true);
+
+    fsMap.removeAll(ImmutableList.of(path1, path2, path4, Paths.get("usr/Missing.java")));
+    assertNull(fsMap.root.subLevels.get(parent).getWithoutLoading());
+    assertFalse(fsMap.root.subLevels.containsKey(Paths.get("opt")));
+    assertEquals(2, fsMap.map.size());
+    assertTrue(fsMap.map.get(path3).getWithoutLoading());
+  }
+
   @Test
   public void testGetWithPathThatExists() {
     Path path = Paths.get("usr/HelloWorld.java");
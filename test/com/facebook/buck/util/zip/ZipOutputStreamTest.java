@@ -35,10 +35,13 @@ import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.io.file.MorePosixFilePermissions;
 import com.facebook.buck.testutil.ZipArchive;
+import com.facebook.buck.util.timing.Clock;
+import com.facebook.buck.util.timing.DefaultClock;
 import com.google.common.collect.ImmutableList;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -53,12 +56,16 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
@@ -488,6 +495,104 @@ public class ZipOutputStreamTest {
     }
   }
 
+  public static class ParallelTests {
+    private ExecutorService executor;
+
+    @Before
+    public void createExecutor() {
+      executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void shutDownExecutor() {
+      executor.shutdownNow();
+    }
+
+    @Test
+    public void parallelCompressionGeneratesTheSameOutputAsSerialCompression()
+        throws IOException {
+      Random random = new Random(0);
+      String packageName = getClass().getPackage().getName().replace('.', '/');
+      byte[] macbeth = Resources.toByteArray(Resources.getResource(packageName + "/macbeth.dat"));
+      // Compressible, but larger than the entries which are compressed in memory.
+      byte[] large = new byte[20 * 1024 * 1024];
+      for (int i = 0; i < large.length; i += macbeth.length) {
+        System.arraycopy(macbeth, 0, large, i, Math.min(macbeth.length, large.length - i));
+      }
+      byte[] stored = "stored".getBytes(UTF_8);
+
+      ByteArrayOutputStream serial = new ByteArrayOutputStream();
+      ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+      Clock clock = new DefaultClock();
+      try (CustomZipOutputStream serialOut =
+              ZipOutputStreams.newOutputStream(serial, THROW_EXCEPTION, clock);
+          CustomZipOutputStream parallelOut =
+              ZipOutputStreams.newParallelOutputStream(
+                  parallel, THROW_EXCEPTION, clock, executor)) {
+        for (int i = 0; i < 200; i++) {
+          // Bytes with a few distinct values, so every entry compresses differently.
+          byte[] content = new byte[random.nextInt(64 * 1024)];
+          for (int j = 0; j < content.length; j++) {
+            content[j] = (byte) random.nextInt(1 + i % 16);
+          }
+          String name = "entry" + i;
+          int level = 1 + i % 9;
+          writeEntry(serialOut, newEntry(name, level), content, random.nextInt(8192) + 1);
+          writeEntry(parallelOut, newEntry(name, level), content, random.nextInt(8192) + 1);
+
+          if (i == 100) {
+            writeEntry(serialOut, newEntry("large", 6), large, 65536);
+            writeEntry(parallelOut, newEntry("large", 6), large, 4096);
+
+            writeEntry(serialOut, newStoredEntry("stored", stored), stored, stored.length);
+            writeEntry(parallelOut, newStoredEntry("stored", stored), stored, stored.length);
+
+            writeEntry(serialOut, new CustomZipEntry("dir/"), new byte[0], 1);
+            writeEntry(parallelOut, new CustomZipEntry("dir/"), new byte[0], 1);
+          }
+        }
+      }
+
+      assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+    }
+
+    @Test(expected = ZipException.class)
+    public void writingTheSameFileMoreThanOnceIsAnError() throws IOException {
+      try (CustomZipOutputStream out =
+          ZipOutputStreams.newParallelOutputStream(
+              new ByteArrayOutputStream(), THROW_EXCEPTION, new DefaultClock(), executor)) {
+        ZipEntry entry = new ZipEntry("example.txt");
+        out.putNextEntry(entry);
+        out.putNextEntry(entry);
+      }
+    }
+
+    private static CustomZipEntry newEntry(String name, int compressionLevel) {
+      CustomZipEntry entry = new CustomZipEntry(name);
+      entry.setCompressionLevel(compressionLevel);
+      return entry;
+    }
+
+    private static CustomZipEntry newStoredEntry(String name, byte[] content) {
+      CustomZipEntry entry = newEntry(name, NO_COMPRESSION);
+      entry.setSize(content.length);
+      entry.setCompressedSize(content.length);
+      entry.setCrc(calcCrc(content));
+      return entry;
+    }
+
+    private static void writeEntry(
+        CustomZipOutputStream out, CustomZipEntry entry, byte[] content, int chunkSize)
+        throws IOException {
+      entry.setTime(0);
+      out.putNextEntry(entry);
+      for (int i = 0; i < content.length; i += chunkSize) {
+        out.write(content, i, Math.min(chunkSize, content.length - i));
+      }
+      out.closeEntry();
+    }
+  }
+
   private static List<NameAndContent> getExtractedEntries(Path zipFile) throws IOException {
     List<NameAndContent> entries = new ArrayList<>();
     try (ZipInputStream in = new ZipInputStream(Files.newInputStream(zipFile))) {
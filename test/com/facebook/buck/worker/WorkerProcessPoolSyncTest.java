@@ -24,14 +24,19 @@ import static org.junit.Assert.assertThat;
 
 import com.facebook.buck.util.Threads;
 import com.facebook.buck.util.function.ThrowingSupplier;
+import com.facebook.buck.util.timing.Clock;
+import com.facebook.buck.util.timing.FakeClock;
+import com.facebook.buck.util.timing.SettableFakeClock;
 import com.facebook.buck.worker.WorkerProcessPoolSync.BorrowedWorkerProcess;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.Hashing;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -125,6 +130,53 @@ public class WorkerProcessPoolSyncTest {
     assertThat(createdWorkers.size(), equalTo(numConcurrentConsumers));
   }
 
+  @Test(timeout = WAIT_FOR_TEST_THREADS_TIMEOUT)
+  public void prewarmedWorkersAreBorrowedFirst() throws Exception {
+    Set<WorkerProcess> createdWorkers = concurrentSet();
+    WorkerProcessPoolSync pool =
+        createPool(3, 2, 0, SettableFakeClock.DO_NOT_CARE, createdWorkers::add);
+
+    pool.prewarm();
+    while (createdWorkers.size() < 2) {
+      Thread.sleep(1);
+    }
+
+    acquireWorkersThenRunActionThenRelease(
+        pool, 2, () -> assertThat(createdWorkers.size(), is(2)));
+    assertThat(createdWorkers.size(), is(2));
+  }
+
+  @Test
+  public void closesIdleWorkersDownToPrewarmedNumber() throws Exception {
+    SettableFakeClock clock = new SettableFakeClock(FakeClock.doNotCare());
+    List<WorkerProcess> createdWorkers = new ArrayList<>();
+    WorkerProcessPoolSync pool = createPool(3, 1, 10, clock, createdWorkers::add);
+
+    acquireWorkersThenRelease(pool, 3);
+    clock.advanceTimeNanos(TimeUnit.SECONDS.toNanos(5));
+    WorkerProcess recentlyUsed;
+    try (BorrowedWorkerProcess worker = pool.borrowWorkerProcess()) {
+      recentlyUsed = worker.get();
+    }
+
+    clock.advanceTimeNanos(TimeUnit.SECONDS.toNanos(6));
+    pool.closeIdleWorkers();
+    assertThat(createdWorkers.stream().filter(WorkerProcess::isAlive).count(), is(1L));
+    assertThat(recentlyUsed.isAlive(), is(true));
+
+    clock.advanceTimeNanos(TimeUnit.SECONDS.toNanos(60));
+    pool.closeIdleWorkers();
+    assertThat(recentlyUsed.isAlive(), is(true));
+
+    // The worker which is still running is borrowed first, and the others are started again.
+    try (BorrowedWorkerProcess worker = pool.borrowWorkerProcess()) {
+      assertThat(worker.get(), is(recentlyUsed));
+    }
+    acquireWorkersThenRelease(pool, 3);
+    assertThat(createdWorkers.size(), is(5));
+    pool.close();
+  }
+
   @Test(timeout = WAIT_FOR_TEST_THREADS_TIMEOUT)
   public void destroysProcessOnFailure() throws Exception {
     Set<WorkerProcess> createdWorkers = new HashSet<>();
@@ -381,6 +433,27 @@ public class WorkerProcessPoolSyncTest {
         });
   }
 
+  private static WorkerProcessPoolSync createPool(
+      int maxWorkers,
+      int prewarmWorkers,
+      long maxIdleTimeSeconds,
+      Clock clock,
+      Consumer<WorkerProcess> onWorkerCreated) {
+    return new WorkerProcessPoolSync(
+        maxWorkers,
+        prewarmWorkers,
+        maxIdleTimeSeconds,
+        TimeUnit.SECONDS,
+        Hashing.sha256().hashLong(0),
+        () -> {
+          FakeWorkerProcess worker = new FakeWorkerProcess(ImmutableMap.of());
+          worker.ensureLaunchAndHandshake();
+          onWorkerCreated.accept(worker);
+          return worker;
+        },
+        clock);
+  }
+
   private static WorkerProcessPoolSync createPool(int maxWorkers) {
     return createPool(maxWorkers, x -> {});
   }